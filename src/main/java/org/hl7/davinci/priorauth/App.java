@@ -28,7 +28,7 @@ public class App {
   /**
    * Local database for FHIR resources.
    */
-  private static Database DB;
+  private static ResourceStore DB;
 
   private static boolean debugMode = false;
 
@@ -55,16 +55,43 @@ public class App {
 
   public static void initializeAppDB() {
     if (DB == null) {
-      DB = new Database();
+      DB = createResourceStore(PropertyProvider.getProperty("database_engine", "sql"));
       PriorAuthRule.populateRulesTable();
       AuthUtils.populateClientTable();
     }
   }
 
-  public static Database getDB() {
+  public static ResourceStore getDB() {
     return DB;
   }
 
+  /**
+   * Replace the ResourceStore used by the microservice. Only meant for tools
+   * which compare the engines against each other.
+   * 
+   * @param db - the ResourceStore to use.
+   */
+  static void setDB(ResourceStore db) {
+    DB = db;
+  }
+
+  /**
+   * Create the ResourceStore for the configured engine
+   * 
+   * @param engine - sql (H2 tables), mvstore (H2 MVStore maps) or sharded
+   *               (H2 tables in database_shards files).
+   * @return a new ResourceStore using the engine, defaulting to sql.
+   */
+  public static ResourceStore createResourceStore(String engine) {
+    if (engine.equalsIgnoreCase("mvstore"))
+      return new MVStoreResourceStore();
+    if (engine.equalsIgnoreCase("sharded"))
+      return new ShardedResourceStore();
+    if (!engine.equalsIgnoreCase("sql"))
+      PALogger.getLogger().warning("App::createResourceStore:Unknown database_engine " + engine + ". Using sql");
+    return new Database();
+  }
+
   /**
    * Set the base URI for the microservice. This is necessary so
    * Bundle.entry.fullUrl data is accurately populated.
@@ -0,0 +1,21 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.TimerTask;
+
+/**
+ * A TimerTask which archives the partitions of the Audit table older than the
+ * retention window (see AuditPartitions).
+ */
+public class ArchiveAuditTask extends TimerTask {
+
+    private final AuditPartitions partitions;
+
+    public ArchiveAuditTask(AuditPartitions partitions) {
+        this.partitions = partitions;
+    }
+
+    @Override
+    public void run() {
+        partitions.rotate();
+    }
+}
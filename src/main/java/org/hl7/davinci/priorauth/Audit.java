@@ -1,9 +1,11 @@
 package org.hl7.davinci.priorauth;
 
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -14,11 +16,13 @@ import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAgentComponent;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAgentNetworkComponent;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAgentNetworkType;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventEntityComponent;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventEntityDetailComponent;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventSourceComponent;
 
 public class Audit {
@@ -36,9 +40,28 @@ public class Audit {
     private static final Coding sourceType = new Coding("http://terminology.hl7.org/CodeSystem/security-source-type",
             "4", "Application Server");
 
+    // Audit events are written in the background unless audit_async is false
+    private static final AuditWriter writer = Boolean
+            .parseBoolean(PropertyProvider.getProperty("audit_async", "true")) ? AuditWriter.fromProperties() : null;
+
+    // Ids only have to be unique, so a counter is used instead of a random UUID
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX) + "-";
+    private static final AtomicLong sequence = new AtomicLong();
+
+    // Descriptions (and operation summaries) longer than this are cut off
+    private static final int MAX_DESCRIPTION_LENGTH = Integer
+            .parseInt(PropertyProvider.getProperty("audit_description_max_length", "256"));
+    private static final int MAX_OPERATIONS_LENGTH = Integer
+            .parseInt(PropertyProvider.getProperty("audit_operations_max_length", "2048"));
+
+    // The time of the event, not the time the writer inserted it (same format as
+    // the timestamp column)
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
     public enum AuditEventType {
         AUDIT("110101", "Audit Log Used"), REST("rest", "RESTful Operation"),
-        ACTIVITY("110100", "Application Activity"), QUERY("110112", "Query");
+        ACTIVITY("110100", "Application Activity"), QUERY("110112", "Query"), EXPORT("110106", "Export");
 
         private final String code;
         private final String display;
@@ -56,6 +79,14 @@ public class Audit {
         public String toCode() {
             return this.code;
         }
+
+        public static AuditEventType fromCode(String code) {
+            for (AuditEventType type : values()) {
+                if (type.code.equals(code))
+                    return type;
+            }
+            return null;
+        }
     }
 
     public enum AuditEventOutcome {
@@ -110,9 +141,8 @@ public class Audit {
         return entity;
     }
 
-    private static AuditEventAgentComponent createAgentComponent(HttpServletRequest request) {
-        String ip = getIPAddress(request);
-        AuditEventAgentComponent agent = new AuditEventAgentComponent(new BooleanType(request != null));
+    private static AuditEventAgentComponent createAgentComponent(boolean requestor, String ip, String clientId) {
+        AuditEventAgentComponent agent = new AuditEventAgentComponent(new BooleanType(requestor));
         if (ip != null) {
             AuditEventAgentNetworkComponent network = new AuditEventAgentNetworkComponent();
             network.setAddress(ip);
@@ -120,8 +150,7 @@ public class Audit {
             agent.setNetwork(network);
         }
 
-        if (request != null) {
-            String clientId = AuthUtils.getClientId(request);
+        if (requestor && clientId != null) {
             if (!clientId.contains("Unknown"))
                 agent.setWho(new Reference(App.getBaseUrl() + "/Organization/" + clientId));
             agent.setAltId(clientId);
@@ -132,46 +161,91 @@ public class Audit {
     }
 
     /**
-     * Create an AuditEvent for an action
+     * Create the AuditEvent for a row of the Audit table. Only the columns are
+     * stored, the AuditEvent is built when the audit trail is read.
      * 
-     * @param eventType   - the type of event
-     * @param eventAction - the kind of CRUDE action
-     * @param what        - reference to the resource accessed
-     * @param request     - the servlet request
-     * @return an AuditEvent resource for the action
+     * @param row      - map of the columns of the row (id, type, action, outcome,
+     *                 what, query, ip, clientId, requestor, description,
+     *                 operations) to their values
+     * @param recorded - the timestamp of the row
+     * @return an AuditEvent resource for the row
      */
-    private static AuditEvent auditEventFactory(AuditEventType eventType, AuditEventAction eventAction,
-            AuditEventOutcome outcome, HttpServletRequest request, Reference what, String query, String description) {
-        Coding type = eventType.toCoding();
-        InstantType recorded = new InstantType(new Date());
+    public static AuditEvent toAuditEvent(Map<String, String> row, Date recorded) {
+        AuditEventType eventType = AuditEventType.fromCode(row.get("type"));
+        Coding type = eventType != null ? eventType.toCoding() : new Coding(null, row.get("type"), null);
         AuditEventSourceComponent source = createSourceComponent();
-        AuditEventEntityComponent entity = createEntityComponent(what, query, description);
-        AuditEventAgentComponent agent = createAgentComponent(request);
+        String what = row.get("what");
+        AuditEventEntityComponent entity = createEntityComponent(what != null ? new Reference(what) : null,
+                row.get("query"), row.get("description"));
+        AuditEventAgentComponent agent = createAgentComponent(Boolean.parseBoolean(row.get("requestor")),
+                row.get("ip"), row.get("clientId"));
+
+        if (row.get("operations") != null)
+            entity.addDetail(new AuditEventEntityDetailComponent(new StringType("operations"),
+                    new StringType(row.get("operations"))));
 
-        AuditEvent auditEvent = new AuditEvent(type, recorded, source);
+        AuditEvent auditEvent = new AuditEvent(type, new InstantType(recorded), source);
         auditEvent.addAgent(agent);
         auditEvent.addEntity(entity);
-        auditEvent.setAction(eventAction);
-        auditEvent.setOutcome(outcome.getOutcome());
-        auditEvent.setId(UUID.randomUUID().toString());
+        for (AuditEventAction action : AuditEventAction.values()) {
+            if (action != AuditEventAction.NULL && action.getDisplay().equals(row.get("action")))
+                auditEvent.setAction(action);
+        }
+        if (row.get("outcome") != null)
+            auditEvent.setOutcome(AuditEvent.AuditEventOutcome.fromCode(row.get("outcome")));
+        auditEvent.setId(row.get("id"));
 
         return auditEvent;
     }
 
     public static void createAuditEvent(AuditEventType eventType, AuditEventAction eventAction, AuditEventOutcome outcome, String referenceUrl,
             HttpServletRequest request, String description) {
-        String query = request != null ? request.getRequestURL().toString() : null;
-        AuditEvent audit = auditEventFactory(eventType, eventAction, outcome, request, new Reference(referenceUrl), query, 
-                description);
+        // Events of a request are written as one event when the request completes
+        AuditContext context = AuditContext.current();
+        if (context != null && context.record(eventType, eventAction, outcome, referenceUrl, description))
+            return;
+        write(eventType, eventAction, outcome, referenceUrl, request, description, null);
+    }
+
+    /**
+     * Write an audit event to the Audit table (in the background unless
+     * audit_async is false)
+     * 
+     * @param operations - summary of the operations the event is made of (see
+     *                   AuditContext) or null.
+     */
+    static void write(AuditEventType eventType, AuditEventAction eventAction, AuditEventOutcome outcome,
+            String referenceUrl, HttpServletRequest request, String description, String operations) {
         Map<String, Object> data = new HashMap<>();
-        data.put("id", audit.getId());
+        data.put("id", ID_PREFIX + Long.toString(sequence.incrementAndGet(), Character.MAX_RADIX));
         data.put("type", eventType.toCode());
         data.put("action", eventAction.getDisplay());
         data.put("outcome", outcome.toCode());
         data.put("what", referenceUrl);
-        data.put("query", query);
+        data.put("query", request != null ? request.getRequestURL().toString() : null);
         data.put("ip", getIPAddress(request));
-        data.put("resource", FhirUtils.json(audit));
-        App.getDB().write(Table.AUDIT, data);
+        data.put("clientId", request != null ? AuthUtils.getClientId(request) : null);
+        data.put("requestor", request != null);
+        data.put("description", truncate(description, MAX_DESCRIPTION_LENGTH));
+        data.put("operations", truncate(operations, MAX_OPERATIONS_LENGTH));
+        data.put("timestamp", LocalDateTime.now().format(TIMESTAMP_FORMAT));
+        if (writer != null)
+            writer.enqueue(data);
+        else
+            App.getDB().write(Table.AUDIT, data);
+    }
+
+    private static String truncate(String value, int maxLength) {
+        if (value == null || value.length() <= maxLength)
+            return value;
+        return value.substring(0, Math.max(0, maxLength - 3)) + "...";
+    }
+
+    /**
+     * Wait until every audit event created so far has been written
+     */
+    public static void flush() {
+        if (writer != null)
+            writer.flush();
     }
 }
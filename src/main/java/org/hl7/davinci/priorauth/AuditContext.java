@@ -0,0 +1,211 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+
+/**
+ * Collects the audit events created while handling one HTTP request so they are
+ * written as a single audit event when the request completes. The event of the
+ * endpoint (the first event with a reference or of type REST) becomes the
+ * written event; the other events (the reads and writes of the database) are
+ * summarized in its operations column, for example:
+ *
+ * <pre>
+ * Read from Claim x3; Write to ClaimResponse/1234; Update ClaimItem x2
+ * </pre>
+ *
+ * The outcome is the worst outcome of every event. Requests which only read
+ * and succeeded are sampled at audit_read_sample_rate (1.0 writes all of
+ * them), failures are always written.
+ *
+ * The context is bound to the thread handling the request (see
+ * AuditContextFilter); work handed to other threads is bound with propagate.
+ */
+public class AuditContext implements AutoCloseable {
+
+    private static final ThreadLocal<AuditContext> current = new ThreadLocal<>();
+
+    private static final double READ_SAMPLE_RATE = Double
+            .parseDouble(PropertyProvider.getProperty("audit_read_sample_rate", "1.0"));
+
+    private static final AtomicLong requests = Metrics.counter("audit.context.requests");
+    private static final AtomicLong aggregated = Metrics.counter("audit.context.aggregated");
+    private static final AtomicLong sampledOut = Metrics.counter("audit.context.sampled_out");
+
+    private final HttpServletRequest request;
+    private final double sampleRate;
+    private final Map<String, Integer> operations = new LinkedHashMap<>();
+    private AuditEventType eventType = null;
+    private AuditEventAction eventAction = null;
+    private String referenceUrl = null;
+    private String description = null;
+    private AuditEventOutcome outcome = AuditEventOutcome.SUCCESS;
+    private boolean readOnly = true;
+    private int recorded = 0;
+    private boolean closed = false;
+
+    AuditContext(HttpServletRequest request, double sampleRate) {
+        this.request = request;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Begin collecting the audit events of a request on the current thread. A
+     * context already bound to the thread is left in place and the returned
+     * context does nothing.
+     *
+     * @param request - the servlet request.
+     * @return the context to close when the request completes
+     */
+    public static AuditContext begin(HttpServletRequest request) {
+        return begin(request, READ_SAMPLE_RATE);
+    }
+
+    static AuditContext begin(HttpServletRequest request, double sampleRate) {
+        AuditContext context = new AuditContext(request, sampleRate);
+        if (current() != null) {
+            context.closed = true;
+            return context;
+        }
+        current.set(context);
+        return context;
+    }
+
+    /**
+     * Get the context bound to the current thread
+     *
+     * @return the context or null if there is none (or it has been closed)
+     */
+    public static AuditContext current() {
+        AuditContext context = current.get();
+        return context == null || context.isClosed() ? null : context;
+    }
+
+    /**
+     * Wrap a task so the audit events it creates on another thread are collected
+     * in the context bound to the current thread (if any)
+     *
+     * @param task - the task to run.
+     * @return the task bound to the current context
+     */
+    public static Runnable propagate(Runnable task) {
+        AuditContext context = current();
+        if (context == null)
+            return task;
+        return () -> {
+            AuditContext previous = current.get();
+            current.set(context);
+            try {
+                task.run();
+            } finally {
+                if (previous == null)
+                    current.remove();
+                else
+                    current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Add an audit event to the context
+     *
+     * @return true if the event was added, false if the context has already been
+     *         written (the event has to be written on its own).
+     */
+    synchronized boolean record(AuditEventType type, AuditEventAction action, AuditEventOutcome outcome,
+            String referenceUrl, String description) {
+        if (closed)
+            return false;
+
+        recorded++;
+        if (outcome.ordinal() > this.outcome.ordinal())
+            this.outcome = outcome;
+        if (action != AuditEventAction.R)
+            readOnly = false;
+
+        boolean endpoint = type == AuditEventType.REST || referenceUrl != null;
+        if (endpoint && this.eventType == null) {
+            this.eventType = type;
+            this.eventAction = action;
+            this.referenceUrl = referenceUrl;
+            this.description = description;
+        } else
+            operations.merge(description != null ? description : action.getDisplay(), 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Write the collected events as one audit event and unbind the context from
+     * the current thread
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        if (current.get() == this)
+            current.remove();
+
+        requests.incrementAndGet();
+        aggregated.addAndGet(Math.max(0, recorded - 1));
+        if (readOnly && outcome == AuditEventOutcome.SUCCESS && sampleRate < 1.0
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.incrementAndGet();
+            return;
+        }
+
+        AuditEventType type = eventType != null ? eventType : AuditEventType.REST;
+        AuditEventAction action = eventAction != null ? eventAction : actionOf(request);
+        String written = description != null ? description
+                : (request != null ? request.getMethod() + " " + request.getRequestURI() : null);
+        Audit.write(type, action, outcome, referenceUrl, request, written, operations());
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private String operations() {
+        if (operations.isEmpty())
+            return null;
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Integer> operation : operations.entrySet()) {
+            if (summary.length() > 0)
+                summary.append("; ");
+            summary.append(operation.getKey());
+            if (operation.getValue() > 1)
+                summary.append(" x").append(operation.getValue());
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Get the CRUDE action of a request from its method
+     */
+    private static AuditEventAction actionOf(HttpServletRequest request) {
+        switch (request != null ? request.getMethod() : "") {
+            case "GET":
+            case "HEAD":
+                return AuditEventAction.R;
+            case "POST":
+                return AuditEventAction.C;
+            case "PUT":
+            case "PATCH":
+                return AuditEventAction.U;
+            case "DELETE":
+                return AuditEventAction.D;
+            default:
+                return AuditEventAction.E;
+        }
+    }
+}
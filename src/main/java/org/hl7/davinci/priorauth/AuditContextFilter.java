@@ -0,0 +1,38 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Servlet filter which collects the audit events of each request in an
+ * AuditContext so one audit event is written per request. Disabled by setting
+ * audit_aggregate_requests to false.
+ */
+@Component
+public class AuditContextFilter extends OncePerRequestFilter {
+
+    private static final boolean ENABLED = Boolean
+            .parseBoolean(PropertyProvider.getProperty("audit_aggregate_requests", "true"));
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!ENABLED) {
+            chain.doFilter(request, response);
+            return;
+        }
+        AuditContext context = AuditContext.begin(request);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            context.close();
+        }
+    }
+}
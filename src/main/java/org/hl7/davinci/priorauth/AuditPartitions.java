@@ -0,0 +1,348 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Stores the Audit table as one table per day (Audit_yyyyMMdd, see the V7
+ * migration). Audit is a view over the partitions, so reads are unchanged,
+ * while inserts go straight to the partition of the day of their timestamp.
+ * Partitions older than the retention window are exported to a gzipped NDJSON
+ * file (one JSON object per row) in the archive directory and dropped, which
+ * removes a whole day without deleting its rows one by one.
+ *
+ * Audit_legacy holds the rows written before the table was partitioned and
+ * expires with its most recent row.
+ */
+public class AuditPartitions {
+
+  static final Logger logger = PALogger.getLogger();
+
+  static final String PREFIX = "AUDIT_";
+  static final String LEGACY = PREFIX + "LEGACY";
+  private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+  // Every partition has the columns of the view in this order
+  private static final String COLUMNS = "id, type, action, outcome, what, query, ip, clientId, requestor, "
+      + "description, operations, timestamp, resource, resource_data";
+  private static final String CREATE = " (id varchar, type varchar, action varchar, outcome varchar, "
+      + "what varchar, query varchar, ip varchar, clientId varchar, requestor boolean, description varchar, "
+      + "operations varchar, timestamp datetime DEFAULT CURRENT_TIMESTAMP, resource clob, resource_data blob);";
+
+  // Columns AuditEvents can be searched by (see Database.searchAudit) and the
+  // indexes of every partition
+  static final Set<String> SEARCH_COLUMNS = new HashSet<>(
+      Arrays.asList("type", "action", "outcome", "clientId", "what"));
+  private static final String[][] INDEXES = { { "timestamp", "timestamp, id" }, { "what", "what, timestamp" },
+      { "client", "clientId, timestamp" }, { "outcome", "outcome, timestamp" } };
+  private static final String SELECT_PARTITIONS = "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES "
+      + "WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_TYPE = 'TABLE' AND TABLE_NAME LIKE 'AUDIT\\_%';";
+
+  private static final AtomicLong archived = Metrics.counter("audit.partitions.archived");
+  private static final AtomicLong archivedRows = Metrics.counter("audit.partitions.archived_rows");
+
+  private final ConnectionPool pool;
+  private final int retentionDays;
+  private final Path archiveDir;
+  private final TreeSet<String> partitions = new TreeSet<>();
+
+  /**
+   * Create the partitions of a database
+   *
+   * @param pool          - the connections to the database.
+   * @param retentionDays - number of days (including today) partitions are kept
+   *                      for, or 0 to keep them forever.
+   * @param archiveDir    - directory expired partitions are exported to.
+   */
+  public AuditPartitions(ConnectionPool pool, int retentionDays, Path archiveDir) {
+    this.pool = pool;
+    this.retentionDays = retentionDays;
+    this.archiveDir = archiveDir;
+    Metrics.registerGauge("audit.partitions", this::size);
+  }
+
+  /**
+   * Find the existing partitions and create the partition of today
+   *
+   * @param connection - the connection to the database.
+   * @throws SQLException
+   */
+  public synchronized void initialize(Connection connection) throws SQLException {
+    partitions.clear();
+    ResultSet rs = connection.prepareStatement(SELECT_PARTITIONS).executeQuery();
+    while (rs.next())
+      partitions.add(rs.getString(1));
+    rs.close();
+    for (String partition : partitions)
+      index(connection, partition);
+    partitions.add(create(connection, partitionOf(LocalDate.now())));
+    replaceView(connection);
+  }
+
+  /**
+   * Get the INSERT of an audit row into the partition of its timestamp,
+   * creating the partition if it does not exist
+   *
+   * @param connection - the connection to the database.
+   * @param shape      - the INSERT shape of the row.
+   * @param values     - the values of the row.
+   * @return the SQL of the INSERT.
+   * @throws SQLException
+   */
+  public String insertSql(Connection connection, QueryShape shape, Map<String, Object> values) throws SQLException {
+    String partition = partitionOf(dayOf(values.get("timestamp")));
+    synchronized (this) {
+      if (!partitions.contains(partition)) {
+        partitions.add(create(connection, partition));
+        replaceView(connection);
+      }
+    }
+    // INSERT INTO Audit (...) VALUES (...)
+    return "INSERT INTO " + partition + shape.sql().substring(("INSERT INTO " + Database.Table.AUDIT.value()).length());
+  }
+
+  /**
+   * Get the partitions which can hold rows between two days
+   *
+   * @param from - the first day or null for no limit.
+   * @param to   - the last day or null for no limit.
+   * @return the partitions, most recent first. The legacy partition is always
+   *         included (last).
+   */
+  public synchronized List<String> between(LocalDate from, LocalDate to) {
+    List<String> result = new ArrayList<>();
+    for (String partition : partitions.descendingSet()) {
+      if (partition.equals(LEGACY))
+        continue;
+      LocalDate day = dayOfName(partition);
+      if (day == null || ((from == null || !day.isBefore(from)) && (to == null || !day.isAfter(to))))
+        result.add(partition);
+    }
+    if (partitions.contains(LEGACY))
+      result.add(LEGACY);
+    return result;
+  }
+
+  /**
+   * Get the query for one page of AuditEvents in a partition, most recent
+   * first. The parameters are the values of the columns (in order), the start
+   * and end of the time range, the timestamp (twice) and id of the last row of
+   * the previous page and the number of rows, each only if used.
+   *
+   * @param partition - the partition to search.
+   * @param columns   - the columns (from SEARCH_COLUMNS) which must equal a
+   *                  value.
+   * @param from      - whether rows must be at or after a time.
+   * @param to        - whether rows must be before a time.
+   * @param after     - whether the query continues after the last row of a
+   *                  previous page.
+   * @return the SQL of the query
+   * @throws IllegalArgumentException if a column cannot be searched
+   */
+  static String searchSql(String partition, List<String> columns, boolean from, boolean to, boolean after) {
+    List<String> conditions = new ArrayList<>();
+    for (String column : columns) {
+      if (!SEARCH_COLUMNS.contains(column))
+        throw new IllegalArgumentException("AuditEvents cannot be searched by " + column);
+      conditions.add(column + " = ?");
+    }
+    if (from)
+      conditions.add("timestamp >= ?");
+    if (to)
+      conditions.add("timestamp < ?");
+    if (after)
+      conditions.add("(timestamp < ? OR (timestamp = ? AND id < ?))");
+
+    StringBuilder sql = new StringBuilder("SELECT ").append(COLUMNS).append(" FROM ").append(partition);
+    for (int i = 0; i < conditions.size(); i++)
+      sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+    return sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ?;").toString();
+  }
+
+  /**
+   * Export and drop every partition older than the retention window
+   *
+   * @return the number of partitions archived.
+   */
+  public int rotate() {
+    if (retentionDays <= 0)
+      return 0;
+    LocalDate cutoff = LocalDate.now().minusDays(retentionDays - 1L);
+    int count = 0;
+    try (Connection connection = pool.getConnection()) {
+      for (String partition : snapshot()) {
+        LocalDate day = dayOfPartition(connection, partition);
+        if (day != null && !day.isBefore(cutoff))
+          continue;
+        archive(connection, partition);
+        count++;
+      }
+    } catch (SQLException | IOException e) {
+      logger.log(Level.SEVERE, "AuditPartitions::rotate:Unable to archive audit partition", e);
+    }
+    return count;
+  }
+
+  /**
+   * Get the names of the partitions, oldest first
+   */
+  public synchronized TreeSet<String> snapshot() {
+    return new TreeSet<>(partitions);
+  }
+
+  public synchronized int size() {
+    return partitions.size();
+  }
+
+  /**
+   * Export a partition to archiveDir/{partition}.ndjson.gz and drop it
+   *
+   * @param connection - the connection to the database.
+   * @param partition  - the name of the partition.
+   * @return the number of rows archived.
+   * @throws SQLException
+   * @throws IOException
+   */
+  int archive(Connection connection, String partition) throws SQLException, IOException {
+    int rows = export(connection, partition);
+    synchronized (this) {
+      partitions.remove(partition);
+      // The view depends on the partition so it has to be replaced first
+      replaceView(connection);
+      connection.prepareStatement("DROP TABLE " + partition + ";").execute();
+    }
+    archived.incrementAndGet();
+    archivedRows.addAndGet(rows);
+    logger.info("AuditPartitions::archive:Archived " + rows + " rows of " + partition);
+    return rows;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int export(Connection connection, String partition) throws SQLException, IOException {
+    ResultSet rs = connection.prepareStatement("SELECT " + COLUMNS + " FROM " + partition + " ORDER BY timestamp;")
+        .executeQuery();
+    if (!rs.next()) {
+      rs.close();
+      return 0;
+    }
+
+    Files.createDirectories(archiveDir);
+    Path file = archiveDir.resolve(partition + ".ndjson.gz");
+    ResultSetMetaData metaData = rs.getMetaData();
+    int rows = 0;
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8))) {
+      do {
+        JSONObject json = new JSONObject();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+          String column = metaData.getColumnLabel(i).toLowerCase();
+          if (column.equals("resource_data")) {
+            byte[] data = rs.getBytes(i);
+            if (data != null)
+              json.put("resource", ResourceCodec.decode(data));
+          } else if (!column.equals("resource") || !json.containsKey("resource")) {
+            Object value = rs.getObject(i);
+            if (value != null)
+              json.put(column, value instanceof Boolean ? value : rs.getString(i));
+          }
+        }
+        writer.write(json.toJSONString());
+        writer.newLine();
+        rows++;
+      } while (rs.next());
+    }
+    rs.close();
+    return rows;
+  }
+
+  private static String create(Connection connection, String partition) throws SQLException {
+    connection.prepareStatement("CREATE TABLE IF NOT EXISTS " + partition + CREATE).execute();
+    index(connection, partition);
+    return partition;
+  }
+
+  private static void index(Connection connection, String partition) throws SQLException {
+    for (String[] index : INDEXES)
+      connection.prepareStatement("CREATE INDEX IF NOT EXISTS idx_" + partition + "_" + index[0] + " ON " + partition
+          + " (" + index[1] + ");").execute();
+  }
+
+  private void replaceView(Connection connection) throws SQLException {
+    StringBuilder sql = new StringBuilder("CREATE OR REPLACE VIEW ").append(Database.Table.AUDIT.value())
+        .append(" AS ");
+    for (String partition : partitions) {
+      if (!partition.equals(partitions.first()))
+        sql.append(" UNION ALL ");
+      sql.append("SELECT ").append(COLUMNS).append(" FROM ").append(partition);
+    }
+    connection.prepareStatement(sql.append(";").toString()).execute();
+  }
+
+  /**
+   * Get the day of a partition. The legacy partition has the day of its most
+   * recent row (or none if it is empty).
+   */
+  private static LocalDate dayOfPartition(Connection connection, String partition) throws SQLException {
+    if (partition.equals(LEGACY)) {
+      ResultSet rs = connection.prepareStatement("SELECT MAX(timestamp) FROM " + LEGACY + ";").executeQuery();
+      Timestamp latest = rs.next() ? rs.getTimestamp(1) : null;
+      rs.close();
+      return latest != null ? latest.toLocalDateTime().toLocalDate() : null;
+    }
+    LocalDate day = dayOfName(partition);
+    // Tables which are not partitions created by this class are left alone
+    return day != null ? day : LocalDate.MAX;
+  }
+
+  private static LocalDate dayOfName(String partition) {
+    try {
+      return LocalDate.parse(partition.substring(PREFIX.length()), DAY_FORMAT);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the day of the timestamp of an audit row (yyyy-MM-dd HH:mm:ss.SSS).
+   * Rows without a timestamp are written today.
+   */
+  static LocalDate dayOf(Object timestamp) {
+    if (timestamp instanceof String && ((String) timestamp).length() >= 10) {
+      try {
+        return LocalDate.parse(((String) timestamp).substring(0, 10));
+      } catch (DateTimeParseException e) {
+        logger.fine("AuditPartitions::dayOf:Not a timestamp " + timestamp);
+      }
+    }
+    return LocalDate.now();
+  }
+
+  static String partitionOf(LocalDate day) {
+    return PREFIX + day.format(DAY_FORMAT);
+  }
+}
@@ -0,0 +1,322 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Writes audit events to the Audit table in the background. Request threads put
+ * the rows on a bounded queue and a single writer thread inserts them with
+ * writeBatch. What happens to a row when the queue is full is set by the
+ * audit_queue_policy property:
+ *
+ * <pre>
+ * block - wait up to audit_block_timeout_ms for space, then drop the row
+ * drop  - drop the row (counted in audit.dropped)
+ * spill - append the row to audit_spill_file
+ * </pre>
+ *
+ * Spilled rows are written to the database when the next writer starts. The
+ * queue is flushed when the JVM shuts down.
+ */
+public class AuditWriter {
+
+    static final Logger logger = PALogger.getLogger();
+
+    public enum Policy {
+        BLOCK, DROP, SPILL
+    }
+
+    private static final AtomicLong enqueued = Metrics.counter("audit.enqueued");
+    private static final AtomicLong written = Metrics.counter("audit.written");
+    private static final AtomicLong batches = Metrics.counter("audit.batches");
+    private static final AtomicLong dropped = Metrics.counter("audit.dropped");
+    private static final AtomicLong spilled = Metrics.counter("audit.spilled");
+    private static final AtomicLong failed = Metrics.counter("audit.failed");
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Semaphore space;
+    private final Policy policy;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final long blockTimeoutMs;
+    private final Path spillFile;
+    private final Object drainLock = new Object();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Create and start a writer
+     *
+     * @param capacity        - the maximum number of queued rows.
+     * @param policy          - what to do with a row when the queue is full.
+     * @param batchSize       - the maximum number of rows inserted at once.
+     * @param flushIntervalMs - how long the writer waits for a full batch.
+     * @param blockTimeoutMs  - how long the block policy waits for space.
+     * @param spillFile       - file rows are spilled to (and replayed from).
+     */
+    public AuditWriter(int capacity, Policy policy, int batchSize, long flushIntervalMs, long blockTimeoutMs,
+            Path spillFile) {
+        this.space = new Semaphore(capacity);
+        this.policy = policy;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+        this.blockTimeoutMs = blockTimeoutMs;
+        this.spillFile = spillFile;
+
+        Metrics.registerGauge("audit.queue.depth", depth::get);
+        Metrics.registerGauge("audit.queue.lag_ms", this::lagMs);
+
+        // Read the spill file before anything new can be spilled to it
+        List<Map<String, Object>> spilledRows = readSpill();
+        this.thread = new Thread(() -> run(spilledRows), "AuditWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "AuditWriterShutdown"));
+    }
+
+    /**
+     * Create a writer configured by the audit_* properties
+     */
+    public static AuditWriter fromProperties() {
+        return new AuditWriter(Integer.parseInt(PropertyProvider.getProperty("audit_queue_capacity", "10000")),
+                Policy.valueOf(PropertyProvider.getProperty("audit_queue_policy", "block").toUpperCase()),
+                Integer.parseInt(PropertyProvider.getProperty("audit_batch_size", "500")),
+                Long.parseLong(PropertyProvider.getProperty("audit_flush_interval_ms", "200")),
+                Long.parseLong(PropertyProvider.getProperty("audit_block_timeout_ms", "1000")),
+                Paths.get(PropertyProvider.getProperty("audit_spill_file", "audit-spill.ndjson")));
+    }
+
+    /**
+     * Queue a row of the Audit table to be written
+     *
+     * @param data - map of columns (keys) and values.
+     * @return true if the row was queued (or written), false if it was dropped
+     *         or spilled.
+     */
+    public boolean enqueue(Map<String, Object> data) {
+        if (!running)
+            return App.getDB().write(Table.AUDIT, data);
+
+        boolean admitted = space.tryAcquire();
+        if (!admitted && policy == Policy.BLOCK) {
+            try {
+                admitted = space.tryAcquire(blockTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!admitted) {
+            if (policy == Policy.SPILL)
+                spill(Collections.singletonList(data));
+            else
+                dropped.incrementAndGet();
+            return false;
+        }
+
+        queue.offer(new Entry(data));
+        enqueued.incrementAndGet();
+        if (depth.incrementAndGet() >= batchSize)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Write every queued row before returning
+     */
+    public void flush() {
+        while (drain())
+            ;
+    }
+
+    /**
+     * Stop the writer thread and write the rows still queued. Rows queued after
+     * the writer is closed are written synchronously.
+     */
+    public void close() {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        logger.info("AuditWriter::close:Flushed audit queue");
+    }
+
+    /**
+     * Get the number of queued rows
+     */
+    public int depth() {
+        return depth.get();
+    }
+
+    /**
+     * Get how long (in milliseconds) the oldest queued row has been waiting
+     */
+    public long lagMs() {
+        Entry oldest = queue.peek();
+        return oldest == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueued);
+    }
+
+    private void run(List<Map<String, Object>> spilledRows) {
+        // Audit events can be created while the database is being created
+        while (running && App.getDB() == null)
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        if (App.getDB() != null)
+            replay(spilledRows);
+        else
+            spill(spilledRows);
+
+        while (running) {
+            if (depth.get() < batchSize)
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "AuditWriter::run:Unable to write audit events", e);
+            }
+        }
+    }
+
+    /**
+     * Write the next batch of queued rows
+     *
+     * @return true if any rows were written (or failed), false if the queue was
+     *         empty.
+     */
+    private boolean drain() {
+        synchronized (drainLock) {
+            ResourceStore db = App.getDB();
+            if (db == null)
+                return false;
+
+            List<Map<String, Object>> rows = new ArrayList<>(batchSize);
+            Entry entry;
+            while (rows.size() < batchSize && (entry = queue.poll()) != null)
+                rows.add(entry.data);
+            if (rows.isEmpty())
+                return false;
+            depth.addAndGet(-rows.size());
+            space.release(rows.size());
+
+            BatchResult result = db.writeBatch(Table.AUDIT, rows);
+            batches.incrementAndGet();
+            written.addAndGet(result.getSucceeded());
+            if (!result.isSuccessful()) {
+                List<Map<String, Object>> failedRows = new ArrayList<>();
+                for (int index : result.getFailed())
+                    failedRows.add(rows.get(index));
+                if (policy == Policy.SPILL)
+                    spill(failedRows);
+                else
+                    failed.addAndGet(failedRows.size());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Append rows to the spill file as one JSON object per line
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized void spill(List<Map<String, Object>> rows) {
+        if (rows.isEmpty())
+            return;
+        try (BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Map<String, Object> row : rows) {
+                JSONObject json = new JSONObject();
+                for (Map.Entry<String, Object> column : row.entrySet()) {
+                    Object value = column.getValue();
+                    if (value instanceof IBaseResource)
+                        value = App.getFhirContext().newJsonParser().encodeResourceToString((IBaseResource) value);
+                    json.put(column.getKey(), value == null ? null : value.toString());
+                }
+                writer.write(json.toJSONString());
+                writer.newLine();
+            }
+            spilled.addAndGet(rows.size());
+        } catch (IOException e) {
+            failed.addAndGet(rows.size());
+            logger.log(Level.SEVERE, "AuditWriter::spill:IOException", e);
+        }
+    }
+
+    /**
+     * Read (and remove) the rows spilled by a previous writer
+     *
+     * @return the spilled rows.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> readSpill() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (!Files.exists(spillFile))
+            return rows;
+        try {
+            JSONParser parser = new JSONParser();
+            for (String line : Files.readAllLines(spillFile, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty())
+                    rows.add(new HashMap<String, Object>((JSONObject) parser.parse(line)));
+            }
+            Files.delete(spillFile);
+        } catch (IOException | ParseException e) {
+            logger.log(Level.SEVERE, "AuditWriter::readSpill:Unable to read " + spillFile, e);
+        }
+        return rows;
+    }
+
+    /**
+     * Write rows read from the spill file
+     *
+     * @param rows - the spilled rows.
+     */
+    private void replay(List<Map<String, Object>> rows) {
+        if (rows.isEmpty())
+            return;
+        logger.info("AuditWriter::replay:Writing " + rows.size() + " spilled audit events");
+        for (int start = 0; start < rows.size(); start += batchSize) {
+            List<Map<String, Object>> batch = rows.subList(start, Math.min(rows.size(), start + batchSize));
+            BatchResult result = App.getDB().writeBatch(Table.AUDIT, batch);
+            batches.incrementAndGet();
+            written.addAndGet(result.getSucceeded());
+            failed.addAndGet(result.size() - result.getSucceeded());
+        }
+    }
+
+    private static class Entry {
+        final Map<String, Object> data;
+        final long enqueued = System.nanoTime();
+
+        Entry(Map<String, Object> data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a batch of writes or updates. Rows are identified by their
+ * index in the list passed to the batch so callers can tell exactly which rows
+ * failed.
+ */
+public class BatchResult {
+
+  private final int size;
+  private final List<Integer> failed = new ArrayList<>();
+
+  public BatchResult(int size) {
+    this.size = size;
+  }
+
+  /**
+   * Record that a row of the batch failed
+   *
+   * @param index - the index of the row in the batch.
+   */
+  public void fail(int index) {
+    if (!failed.contains(index))
+      failed.add(index);
+  }
+
+  /**
+   * Record that every row of the batch failed
+   */
+  public void failAll() {
+    for (int i = 0; i < size; i++)
+      fail(i);
+  }
+
+  /**
+   * Get the number of rows in the batch
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of rows which were written or updated
+   */
+  public int getSucceeded() {
+    return size - failed.size();
+  }
+
+  /**
+   * Get the indexes of the rows which failed, in ascending order
+   */
+  public List<Integer> getFailed() {
+    List<Integer> sorted = new ArrayList<>(failed);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Check whether a row of the batch failed
+   *
+   * @param index - the index of the row in the batch.
+   */
+  public boolean isFailed(int index) {
+    return failed.contains(index);
+  }
+
+  /**
+   * Check whether every row of the batch succeeded
+   */
+  public boolean isSuccessful() {
+    return failed.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return getSucceeded() + "/" + size + " succeeded" + (failed.isEmpty() ? "" : ", failed " + getFailed());
+  }
+}
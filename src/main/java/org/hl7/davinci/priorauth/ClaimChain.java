@@ -0,0 +1,163 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Maintains the ClaimChain table (see the V4 migration) which records for every
+ * chain of Claim updates its root (the original Claim), its head (the latest
+ * update) and its depth (the number of updates). Every Claim stores the root of
+ * its chain in rootId so the head of the chain of any Claim is a single indexed
+ * lookup.
+ */
+public class ClaimChain {
+
+  private static final String SELECT_ROOT = "SELECT rootId FROM Claim WHERE id = ?;";
+  private static final String SELECT_HEAD = "SELECT ClaimChain.headId FROM Claim INNER JOIN ClaimChain "
+      + "ON ClaimChain.rootId = Claim.rootId WHERE Claim.id = ?;";
+  private static final String ADVANCE = "UPDATE ClaimChain SET headId = ?, depth = depth + 1, "
+      + "timestamp = CURRENT_TIMESTAMP WHERE rootId = ?;";
+  private static final String INSERT = "INSERT INTO ClaimChain (rootId, headId, depth) VALUES (?, ?, 0);";
+  private static final String DELETE = "DELETE FROM ClaimChain WHERE rootId = ?;";
+  private static final String DELETE_ALL = "DELETE FROM ClaimChain;";
+  private static final String UPDATE_CLAIMS = "UPDATE Claim SET status = ?, "
+      + "version = NEXT VALUE FOR resource_version, timestamp = CURRENT_TIMESTAMP WHERE rootId = ?;";
+  private static final String UPDATE_HEAD_ITEMS = "UPDATE ClaimItem SET status = ?, timestamp = CURRENT_TIMESTAMP "
+      + "WHERE id = (SELECT headId FROM ClaimChain WHERE rootId = ?);";
+
+  // The same query as the backfill of the V4 migration for a single chain
+  private static final String REBUILD = "INSERT INTO ClaimChain (rootId, headId, depth) SELECT rootId, "
+      + "(SELECT head.id FROM Claim head WHERE head.rootId = chain.rootId "
+      + "AND NOT EXISTS (SELECT 1 FROM Claim successor WHERE successor.related = head.id) "
+      + "ORDER BY head.timestamp DESC LIMIT 1), COUNT(*) - 1 "
+      + "FROM Claim chain WHERE rootId = ? GROUP BY rootId;";
+
+  private ClaimChain() {
+  }
+
+  /**
+   * Get the root of the chain a new Claim joins
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of the new Claim.
+   * @param related    - the id of the Claim it replaces or null if it is not an
+   *                   update.
+   * @return the rootId to store with the new Claim.
+   * @throws SQLException
+   */
+  static String rootOf(Connection connection, String id, String related) throws SQLException {
+    if (related == null)
+      return id;
+    String rootId = rootId(connection, related);
+    return rootId != null ? rootId : related;
+  }
+
+  /**
+   * Make a new Claim the head of its chain. A Claim which is not an update
+   * starts a new chain.
+   *
+   * @param connection - the connection to the database.
+   * @param rootId     - the root of the chain (from rootOf).
+   * @param id         - the id of the new Claim.
+   * @throws SQLException
+   */
+  static void advance(Connection connection, String rootId, String id) throws SQLException {
+    if (rootId.equals(id)) {
+      PreparedStatement stmt = connection.prepareStatement(INSERT);
+      stmt.setString(1, rootId);
+      stmt.setString(2, id);
+      stmt.execute();
+      return;
+    }
+
+    PreparedStatement stmt = connection.prepareStatement(ADVANCE);
+    stmt.setString(1, id);
+    stmt.setString(2, rootId);
+    stmt.execute();
+    if (stmt.getUpdateCount() == 0)
+      rebuild(connection, rootId);
+  }
+
+  /**
+   * Get the latest Claim in the chain of a Claim
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of any Claim in the chain.
+   * @return the id of the head of the chain or null if the Claim is not part of
+   *         a chain.
+   * @throws SQLException
+   */
+  static String head(Connection connection, String id) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(SELECT_HEAD);
+    stmt.setString(1, id);
+    ResultSet rs = stmt.executeQuery();
+    return rs.next() ? rs.getString(1) : null;
+  }
+
+  /**
+   * Get the root of the chain of an existing Claim
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of the Claim.
+   * @return the rootId of the Claim or null if it does not exist.
+   * @throws SQLException
+   */
+  static String rootId(Connection connection, String id) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(SELECT_ROOT);
+    stmt.setString(1, id);
+    ResultSet rs = stmt.executeQuery();
+    return rs.next() ? rs.getString(1) : null;
+  }
+
+  /**
+   * Set the status of every Claim in a chain and of the items of its head. Only
+   * the status columns are changed, the stored resources are not rewritten.
+   *
+   * @param connection - the connection to the database.
+   * @param rootId     - the root of the chain.
+   * @param status     - the new status.
+   * @return the number of Claims updated.
+   * @throws SQLException
+   */
+  static int updateStatus(Connection connection, String rootId, String status) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(UPDATE_CLAIMS);
+    stmt.setString(1, status);
+    stmt.setString(2, rootId);
+    int claims = stmt.executeUpdate();
+
+    stmt = connection.prepareStatement(UPDATE_HEAD_ITEMS);
+    stmt.setString(1, status);
+    stmt.setString(2, rootId);
+    stmt.executeUpdate();
+    return claims;
+  }
+
+  /**
+   * Remove every chain, after every Claim was deleted
+   *
+   * @param connection - the connection to the database.
+   * @throws SQLException
+   */
+  static void clear(Connection connection) throws SQLException {
+    connection.prepareStatement(DELETE_ALL).execute();
+  }
+
+  /**
+   * Recompute a chain from its Claims, for example after Claims at its end were
+   * deleted. The chain is removed if none of its Claims are left.
+   *
+   * @param connection - the connection to the database.
+   * @param rootId     - the root of the chain.
+   * @throws SQLException
+   */
+  static void rebuild(Connection connection, String rootId) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(DELETE);
+    stmt.setString(1, rootId);
+    stmt.execute();
+    stmt = connection.prepareStatement(REBUILD);
+    stmt.setString(1, rootId);
+    stmt.execute();
+  }
+}
@@ -0,0 +1,129 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Identifier;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * Maintains the ClaimIdentifier table (see the V10 migration) which maps the
+ * business identifiers of every Claim to the chain it belongs to (see
+ * ClaimChain). Claim/$inquiry resolves the identifier of the inquiry to the
+ * head of the chain with a single indexed lookup, however many Claims the
+ * patient submitted.
+ */
+public class ClaimIdentifier {
+
+  static final Logger logger = PALogger.getLogger();
+
+  private static final String INSERT = "INSERT INTO ClaimIdentifier (system, value, patient, claimId, rootId) "
+      + "VALUES (?, ?, ?, ?, ?);";
+  private static final String SELECT_HEAD = "SELECT ClaimChain.headId FROM ClaimIdentifier INNER JOIN ClaimChain "
+      + "ON ClaimChain.rootId = ClaimIdentifier.rootId WHERE ClaimIdentifier.patient = ? "
+      + "AND ClaimIdentifier.value = ? AND ClaimIdentifier.system = ? ORDER BY ClaimIdentifier.timestamp DESC LIMIT 1;";
+  private static final String DELETE = "DELETE FROM ClaimIdentifier WHERE claimId = ?;";
+  // Claims deleted by cascade with an earlier Claim of their chain
+  private static final String PRUNE = "DELETE FROM ClaimIdentifier WHERE rootId = ? "
+      + "AND NOT EXISTS (SELECT 1 FROM Claim WHERE Claim.id = ClaimIdentifier.claimId);";
+  private static final String DELETE_ALL = "DELETE FROM ClaimIdentifier;";
+
+  private ClaimIdentifier() {
+  }
+
+  /**
+   * Store the identifiers of a new Claim
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of the Claim.
+   * @param patient    - the patient of the Claim.
+   * @param rootId     - the root of the chain of the Claim.
+   * @param resource   - the Claim or its JSON.
+   * @return the number of identifiers stored.
+   * @throws SQLException
+   */
+  static int index(Connection connection, String id, String patient, String rootId, Object resource)
+      throws SQLException {
+    if (id == null || resource == null)
+      return 0;
+    Claim claim;
+    try {
+      claim = resource instanceof Claim ? (Claim) resource
+          : App.getFhirContext().newJsonParser().parseResource(Claim.class, resource.toString());
+    } catch (DataFormatException e) {
+      logger.log(Level.WARNING, "ClaimIdentifier::index:Unable to index Claim/" + id, e);
+      return 0;
+    }
+    if (!claim.hasIdentifier())
+      return 0;
+
+    PreparedStatement stmt = connection.prepareStatement(INSERT);
+    for (Identifier identifier : claim.getIdentifier()) {
+      if (!identifier.hasValue())
+        continue;
+      stmt.setString(1, identifier.hasSystem() ? identifier.getSystem() : "");
+      stmt.setString(2, identifier.getValue());
+      stmt.setString(3, patient);
+      stmt.setString(4, id);
+      stmt.setString(5, rootId != null ? rootId : id);
+      stmt.addBatch();
+    }
+    return stmt.executeBatch().length;
+  }
+
+  /**
+   * Get the latest Claim in the chain of the Claim with an identifier
+   *
+   * @param connection - the connection to the database.
+   * @param patient    - the patient of the Claim.
+   * @param system     - the system of the identifier or null if it has none.
+   * @param value      - the value of the identifier.
+   * @return the id of the head of the chain or null if no Claim of the patient
+   *         has the identifier.
+   * @throws SQLException
+   */
+  static String head(Connection connection, String patient, String system, String value) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(SELECT_HEAD);
+    stmt.setString(1, patient);
+    stmt.setString(2, value);
+    stmt.setString(3, system != null ? system : "");
+    ResultSet rs = stmt.executeQuery();
+    return rs.next() ? rs.getString(1) : null;
+  }
+
+  /**
+   * Remove the identifiers of a deleted Claim and of the later Claims of its
+   * chain which were deleted with it
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of the deleted Claim.
+   * @param rootId     - the root of its chain or null.
+   * @throws SQLException
+   */
+  static void remove(Connection connection, String id, String rootId) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(DELETE);
+    stmt.setString(1, id);
+    stmt.execute();
+    if (rootId != null) {
+      stmt = connection.prepareStatement(PRUNE);
+      stmt.setString(1, rootId);
+      stmt.execute();
+    }
+  }
+
+  /**
+   * Remove every identifier, after every Claim was deleted
+   *
+   * @param connection - the connection to the database.
+   * @throws SQLException
+   */
+  static void clear(Connection connection) throws SQLException {
+    connection.prepareStatement(DELETE_ALL).execute();
+  }
+}
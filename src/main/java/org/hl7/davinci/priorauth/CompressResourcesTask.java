@@ -0,0 +1,110 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Database.Table;
+
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * A TimerTask which converts resources stored as CLOBs (rows written before
+ * resources were compressed) into the compressed resource_data column. Each run
+ * converts one batch per table and the task cancels itself once every row has
+ * been converted.
+ */
+public class CompressResourcesTask extends TimerTask {
+
+    static final Logger logger = PALogger.getLogger();
+
+    // Audit rows are no longer stored as resources and Audit is a view over its
+    // partitions (see AuditPartitions), legacy audit rows are archived as they are
+    static final Table[] TABLES = { Table.BUNDLE, Table.CLAIM, Table.CLAIM_RESPONSE, Table.SUBSCRIPTION };
+
+    private static final AtomicLong converted = Metrics.counter("db.compress_resources.rows");
+    private static final AtomicLong unparsed = Metrics.counter("db.compress_resources.unparsed");
+
+    private final ConnectionPool pool;
+    private final int batchSize;
+
+    public CompressResourcesTask(ConnectionPool pool, int batchSize) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        int total = 0;
+        try {
+            for (Table table : TABLES)
+                total += compressBatch(table);
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "CompressResourcesTask::run:SQLException", e);
+            return;
+        }
+
+        if (total == 0) {
+            logger.info("CompressResourcesTask::run:All resources are compressed");
+            cancel();
+        }
+    }
+
+    /**
+     * Compress the next batch of uncompressed resources in a table
+     *
+     * @param table - the Table to convert.
+     * @return the number of rows converted.
+     * @throws SQLException
+     */
+    int compressBatch(Table table) throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            PreparedStatement select = connection.prepareStatement("SELECT TOP " + batchSize + " _ROWID_, resource FROM "
+                    + table.value() + " WHERE resource IS NOT NULL AND resource_data IS NULL;");
+            ResultSet rs = select.executeQuery();
+            List<Long> rowIds = new ArrayList<>();
+            List<byte[]> encoded = new ArrayList<>();
+            while (rs.next()) {
+                rowIds.add(rs.getLong(1));
+                encoded.add(encode(rs.getString(2)));
+            }
+            rs.close();
+            if (rowIds.isEmpty())
+                return 0;
+
+            // The timestamp is left alone so the order of the rows does not change
+            PreparedStatement update = connection.prepareStatement("UPDATE " + table.value()
+                    + " SET resource_data = ?, resource = NULL WHERE _ROWID_ = ? AND resource_data IS NULL;");
+            for (int i = 0; i < rowIds.size(); i++) {
+                update.setBytes(1, encoded.get(i));
+                update.setLong(2, rowIds.get(i));
+                update.addBatch();
+            }
+            update.executeBatch();
+            converted.addAndGet(rowIds.size());
+            logger.fine("CompressResourcesTask::compressBatch:Compressed " + rowIds.size() + " rows of " + table.value());
+            return rowIds.size();
+        }
+    }
+
+    /**
+     * Minify the stored JSON by parsing it. JSON which does not parse as a resource
+     * is compressed as is.
+     */
+    private static byte[] encode(String json) {
+        try {
+            return ResourceCodec.encode(App.getFhirContext().newJsonParser().parseResource(json));
+        } catch (DataFormatException e) {
+            unparsed.incrementAndGet();
+            logger.log(Level.WARNING, "CompressResourcesTask::encode:Unable to parse stored resource", e);
+            return ResourceCodec.encode(json);
+        }
+    }
+}
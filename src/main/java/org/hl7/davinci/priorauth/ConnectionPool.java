@@ -0,0 +1,490 @@
+package org.hl7.davinci.priorauth;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of JDBC connections. Connections handed out by the pool are
+ * returned to it (instead of being closed) when the caller closes them.
+ * PreparedStatements are cached per connection so the same SQL is only compiled
+ * once for each pooled connection.
+ */
+public class ConnectionPool {
+
+    static final Logger logger = PALogger.getLogger();
+
+    private static final int VALIDATION_TIMEOUT_SEC = 1;
+    private static final long MAINTENANCE_PERIOD_MS = 5000;
+
+    private final String name;
+    private final String jdbcUrl;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final long leakThresholdMs;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final Set<Lease> leased = ConcurrentHashMap.newKeySet();
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong timeouts;
+    private final AtomicLong leaks;
+    private final AtomicLong validationFailures;
+    private final AtomicLong statementHits;
+    private final AtomicLong statementMisses;
+    private final Timer maintenance;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new pool and open the minimum number of connections
+     *
+     * @param name             - name of the pool, used as the prefix of its
+     *                         metrics.
+     * @param jdbcUrl          - the JDBC url to open connections with.
+     * @param minSize          - number of connections kept open even when idle.
+     * @param maxSize          - maximum number of connections open at once.
+     * @param acquireTimeoutMs - how long a caller waits for a free connection
+     *                         before failing.
+     * @param leakThresholdMs  - how long a connection may be held before it is
+     *                         reported as leaked (0 disables leak detection).
+     * @param statementCacheSize - number of PreparedStatements cached for each
+     *                         connection (0 disables the cache).
+     */
+    public ConnectionPool(String name, String jdbcUrl, int minSize, int maxSize, long acquireTimeoutMs,
+            long leakThresholdMs, int statementCacheSize) {
+        this.name = name;
+        this.jdbcUrl = jdbcUrl;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.leakThresholdMs = leakThresholdMs;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.permits = new Semaphore(this.maxSize, true);
+
+        this.timeouts = Metrics.counter(name + ".pool.timeouts");
+        this.leaks = Metrics.counter(name + ".pool.leaks");
+        this.validationFailures = Metrics.counter(name + ".pool.validation_failures");
+        this.statementHits = Metrics.counter(name + ".pool.statement_cache.hits");
+        this.statementMisses = Metrics.counter(name + ".pool.statement_cache.misses");
+        Metrics.registerGauge(name + ".pool.active", leased::size);
+        Metrics.registerGauge(name + ".pool.idle", idle::size);
+        Metrics.registerGauge(name + ".pool.waiting", waiting::get);
+        Metrics.registerGauge(name + ".pool.total", open::get);
+
+        fillToMinimum();
+        this.maintenance = new Timer("ConnectionPool-" + name, true);
+        this.maintenance.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                detectLeaks();
+                fillToMinimum();
+            }
+        }, MAINTENANCE_PERIOD_MS, MAINTENANCE_PERIOD_MS);
+    }
+
+    /**
+     * Borrow a connection from the pool. The connection is returned to the pool
+     * when it is closed.
+     *
+     * @return an open connection with auto commit enabled.
+     * @throws SQLException if no connection became available before the acquire
+     *                      timeout or a new connection could not be opened.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed)
+            throw new SQLException("ConnectionPool " + name + " is closed");
+
+        boolean acquired;
+        waiting.incrementAndGet();
+        try {
+            acquired = permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("ConnectionPool::getConnection:Interrupted waiting for a connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new SQLTransientConnectionException("ConnectionPool::getConnection:Timed out after "
+                    + acquireTimeoutMs + "ms waiting for a connection (active: " + leased.size() + ", max: " + maxSize
+                    + ")");
+        }
+
+        try {
+            Connection connection = takeIdle();
+            if (connection == null)
+                connection = openConnection();
+            Lease lease = new Lease(connection, leakThresholdMs > 0 ? new Throwable("Connection acquired here") : null);
+            leased.add(lease);
+            return lease.proxy;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Close every idle connection and stop handing out new ones. Connections
+     * currently in use are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        maintenance.cancel();
+        Connection connection;
+        while ((connection = idle.poll()) != null)
+            closeQuietly(connection);
+    }
+
+    public int getActiveCount() {
+        return leased.size();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * Take the most recently used idle connection which is still valid
+     *
+     * @return a valid connection or null if there are no idle connections.
+     */
+    private Connection takeIdle() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            try {
+                if (!connection.isClosed() && connection.isValid(VALIDATION_TIMEOUT_SEC))
+                    return connection;
+            } catch (SQLException e) {
+                logger.log(Level.FINE, "ConnectionPool::takeIdle:SQLException validating connection", e);
+            }
+            validationFailures.incrementAndGet();
+            logger.warning("ConnectionPool::takeIdle:Discarding invalid connection from pool " + name);
+            closeQuietly(connection);
+        }
+        return null;
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        connection.setAutoCommit(true);
+        open.incrementAndGet();
+        return connection;
+    }
+
+    private void closeQuietly(Connection connection) {
+        // Cached statements are closed along with their connection
+        statementCaches.remove(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.log(Level.FINE, "ConnectionPool::closeQuietly:SQLException", e);
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return a connection to the pool, closing any statements and rolling back any
+     * transaction left open by the borrower.
+     */
+    private void release(Lease lease) {
+        if (!leased.remove(lease))
+            return;
+
+        Connection connection = lease.connection;
+        try {
+            lease.closeStatements();
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (closed || connection.isClosed())
+                closeQuietly(connection);
+            else
+                idle.offerFirst(connection);
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "ConnectionPool::release:Unable to reset connection. Discarding it", e);
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void fillToMinimum() {
+        while (!closed && open.get() < minSize) {
+            try {
+                idle.offerLast(openConnection());
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "ConnectionPool::fillToMinimum:SQLException", e);
+                return;
+            }
+        }
+    }
+
+    private void detectLeaks() {
+        if (leakThresholdMs <= 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        for (Lease lease : leased) {
+            if (!lease.reported && now - lease.acquiredAt > leakThresholdMs) {
+                lease.reported = true;
+                leaks.incrementAndGet();
+                logger.log(Level.WARNING, "ConnectionPool::detectLeaks:Connection from pool " + name
+                        + " has been in use for " + (now - lease.acquiredAt) + "ms", lease.acquiredBy);
+            }
+        }
+    }
+
+    /**
+     * A single checkout of a connection. The proxy handed to the caller delegates
+     * to the real connection until it is closed.
+     */
+    private class Lease implements InvocationHandler {
+        private final Connection connection;
+        private final Connection proxy;
+        private final long acquiredAt = System.currentTimeMillis();
+        private final Throwable acquiredBy;
+        private final List<Statement> statements = new ArrayList<>();
+        private final List<CachedStatement> checkedOut = new ArrayList<>();
+        private volatile boolean released = false;
+        private volatile boolean reported = false;
+
+        Lease(Connection connection, Throwable acquiredBy) {
+            this.connection = connection;
+            this.acquiredBy = acquiredBy;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+            case "close":
+                if (!released) {
+                    released = true;
+                    release(this);
+                }
+                return null;
+            case "isClosed":
+                return released || connection.isClosed();
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Pooled[" + connection + "]";
+            default:
+                if (released)
+                    throw new SQLException("Connection has already been returned to pool " + name);
+                if (statementCacheSize > 0 && method.getName().equals("prepareStatement") && args.length == 1)
+                    return prepareCached((String) args[0]);
+                try {
+                    Object result = method.invoke(connection, args);
+                    if (result instanceof Statement) {
+                        synchronized (statements) {
+                            statements.add((Statement) result);
+                        }
+                    }
+                    return result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+
+        /**
+         * Get a PreparedStatement for the sql from the cache of the connection. If
+         * the cached statement is already in use by this lease a new uncached
+         * statement is prepared instead.
+         */
+        private PreparedStatement prepareCached(String sql) throws SQLException {
+            StatementCache cache = statementCaches.computeIfAbsent(connection, key -> new StatementCache());
+            CachedStatement cached;
+            synchronized (cache) {
+                cached = cache.get(sql);
+                if (cached != null && cached.evicted) {
+                    cache.remove(sql);
+                    cached = null;
+                }
+                if (cached == null) {
+                    statementMisses.incrementAndGet();
+                    cached = new CachedStatement(connection.prepareStatement(sql));
+                    cache.put(sql, cached);
+                } else if (cached.inUse) {
+                    statementMisses.incrementAndGet();
+                    cached = null;
+                } else {
+                    statementHits.incrementAndGet();
+                }
+                if (cached != null)
+                    cached.inUse = true;
+            }
+
+            if (cached == null) {
+                PreparedStatement statement = connection.prepareStatement(sql);
+                synchronized (statements) {
+                    statements.add(statement);
+                }
+                return statement;
+            }
+            synchronized (checkedOut) {
+                checkedOut.add(cached);
+            }
+            return cached.proxy;
+        }
+
+        /**
+         * Close every statement created through this lease which the borrower did
+         * not close itself and return cached statements to the cache
+         */
+        void closeStatements() {
+            synchronized (checkedOut) {
+                for (CachedStatement cached : checkedOut)
+                    cached.checkIn();
+                checkedOut.clear();
+            }
+            synchronized (statements) {
+                for (Statement statement : statements) {
+                    try {
+                        statement.close();
+                    } catch (SQLException e) {
+                        logger.log(Level.FINE, "ConnectionPool::closeStatements:SQLException", e);
+                    }
+                }
+                statements.clear();
+            }
+        }
+    }
+
+    /**
+     * Least recently used PreparedStatements of a single connection, keyed by sql
+     */
+    private class StatementCache extends LinkedHashMap<String, CachedStatement> {
+        private static final long serialVersionUID = 1L;
+
+        StatementCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+            if (size() <= statementCacheSize)
+                return false;
+            eldest.getValue().evict();
+            return true;
+        }
+    }
+
+    /**
+     * A PreparedStatement kept open in a StatementCache. Closing the proxy handed
+     * to the caller clears the parameters and returns the statement to the cache
+     * instead of closing it.
+     */
+    private class CachedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final PreparedStatement proxy;
+        private volatile boolean inUse = false;
+        private volatile boolean evicted = false;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+            case "close":
+                checkIn();
+                return null;
+            case "isClosed":
+                return !inUse || statement.isClosed();
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return statement.toString();
+            default:
+                if (!inUse)
+                    throw new SQLException("PreparedStatement has already been closed");
+                try {
+                    return method.invoke(statement, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+
+        /**
+         * Return the statement to the cache, closing it if it was evicted while in
+         * use
+         */
+        void checkIn() {
+            if (!inUse)
+                return;
+            try {
+                ResultSet rs = statement.getResultSet();
+                if (rs != null)
+                    rs.close();
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException e) {
+                logger.log(Level.FINE, "ConnectionPool::checkIn:SQLException. Discarding statement", e);
+                evicted = true;
+            }
+            inUse = false;
+            if (evicted)
+                closeStatement();
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse)
+                closeStatement();
+        }
+
+        private void closeStatement() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                logger.log(Level.FINE, "ConnectionPool::closeStatement:SQLException", e);
+            }
+        }
+    }
+}
@@ -2,31 +2,44 @@ package org.hl7.davinci.priorauth;
 
 import java.util.*;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
 import java.util.Date;
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.h2.jdbc.JdbcSQLIntegrityConstraintViolationException;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.QueryShape.Operation;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 
 /**
- * The Database is responsible for storing and retrieving FHIR resources.
+ * The Database is the SQL engine of the ResourceStore. Resources and their
+ * columns are stored in H2 tables created by the database_sql script.
  */
-public class Database {
+public class Database implements ResourceStore {
 
   static final Logger logger = PALogger.getLogger();
 
@@ -47,14 +60,9 @@ public class Database {
 
   private String SQL_FILE;
 
-  private static final String styleFile = "src/main/resources/style.html";
-  private static final String scriptFile = "src/main/resources/script.html";
-
-  private static String style = "";
-  private static String script = "";
-
-  private static final String SET_CONCAT = ", ";
-  private static final String WHERE_CONCAT = " AND ";
+  // The data migration storing the identifiers of the Claims written before the
+  // V10 migration (see indexClaimIdentifiers)
+  private static final String CLAIM_IDENTIFIER_MIGRATION = "claim_identifier";
 
   // DB_CLOSE_DELAY=-1 maintains the DB in memory after all connections closed
   // (so that we don't lose everything between a connection closing and the next
@@ -64,6 +72,25 @@ public class Database {
   private static final String JDBC_OPTIONS = ";DB_CLOSE_DELAY=-1";
   private String JDBC_STRING;
 
+  // Connections are borrowed from (and returned to) this pool instead of being
+  // opened through the DriverManager for every call
+  private ConnectionPool pool;
+
+  // Whether resources are written compressed into the resource_data column
+  // instead of as JSON CLOBs
+  private boolean compressResources;
+
+  // Parsed resources of the tables below, keyed by table and id. Entries are
+  // invalidated by every update and delete made through this Database.
+  private static final Set<Table> CACHED_TABLES = EnumSet.of(Table.BUNDLE, Table.CLAIM, Table.CLAIM_RESPONSE,
+      Table.SUBSCRIPTION);
+  private ResourceCache cache;
+  private AuditPartitions auditPartitions;
+
+  // Columns of the Audit table an AuditEvent is built from
+  private static final String[] AUDIT_COLUMNS = { "id", "type", "action", "outcome", "what", "query", "ip",
+      "clientId", "requestor", "description", "operations" };
+
   static {
     try {
       Class.forName("org.h2.Driver");
@@ -73,9 +100,65 @@ public class Database {
   }
 
   private Connection getConnection() throws SQLException {
-    Connection connection = DriverManager.getConnection(JDBC_STRING);
-    connection.setAutoCommit(true);
-    return connection;
+    return pool.getConnection();
+  }
+
+  /**
+   * Get a connection for a statement against a table. Statements run in the
+   * unit of work bound to the thread, except audit events which are kept even
+   * if the unit of work is rolled back.
+   * 
+   * @param table - the Table the statement runs against.
+   * @return connection to use (and close) for the statement.
+   * @throws SQLException
+   */
+  private Connection getConnection(Table table) throws SQLException {
+    Connection connection = inUnitOfWork(table) ? UnitOfWork.current().connection(this) : null;
+    return connection != null ? connection : pool.getConnection();
+  }
+
+  private boolean inUnitOfWork(Table table) {
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    return table != Table.AUDIT && unitOfWork != null && unitOfWork.connection(this) != null;
+  }
+
+  /**
+   * Count the commit made by a statement which ran outside of a unit of work
+   */
+  private void autoCommitted(Table table) {
+    if (!inUnitOfWork(table))
+      UnitOfWork.commits.incrementAndGet();
+  }
+
+  /**
+   * Begin a unit of work on a connection from the pool. Everything written by
+   * this thread (and tasks propagated from it) until the unit of work is
+   * committed is written in a single transaction.
+   * 
+   * @return the unit of work.
+   */
+  @Override
+  public UnitOfWork beginUnitOfWork() {
+    if (UnitOfWork.current() != null)
+      return UnitOfWork.begin(this, null);
+
+    Connection connection = null;
+    try {
+      connection = pool.getConnection();
+      connection.setAutoCommit(false);
+    } catch (SQLException e) {
+      // Without a connection every statement runs on its own
+      logger.log(Level.SEVERE, "Database::beginUnitOfWork:SQLException", e);
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (SQLException closeException) {
+          logger.log(Level.WARNING, "Database::beginUnitOfWork:SQLException", closeException);
+        }
+      }
+      connection = null;
+    }
+    return UnitOfWork.begin(this, connection);
   }
 
   public Database() {
@@ -83,16 +166,69 @@ public class Database {
   }
 
   public Database(String relativePath) {
-    JDBC_STRING = JDBC_TYPE + relativePath + JDBC_FILE + JDBC_OPTIONS;
+    this(relativePath, JDBC_FILE);
+  }
+
+  /**
+   * Open (and create or migrate) the database stored in a given file. Used by
+   * the ShardedResourceStore, which keeps every shard in its own file.
+   * 
+   * @param relativePath - path to the project directory.
+   * @param file         - name of the database file (without .mv.db).
+   */
+  public Database(String relativePath, String file) {
+    boolean defaultFile = file.equals(JDBC_FILE);
+    String name = defaultFile ? "db" : "db." + file;
+    JDBC_STRING = JDBC_TYPE + relativePath + file + JDBC_OPTIONS;
     logger.info("JDBC: " + JDBC_STRING);
+    pool = new ConnectionPool(name, JDBC_STRING,
+        Integer.parseInt(PropertyProvider.getProperty("db_pool_min_size", "2")),
+        Integer.parseInt(PropertyProvider.getProperty("db_pool_max_size", "10")),
+        Long.parseLong(PropertyProvider.getProperty("db_pool_acquire_timeout_ms", "5000")),
+        Long.parseLong(PropertyProvider.getProperty("db_pool_leak_threshold_ms", "60000")),
+        Integer.parseInt(PropertyProvider.getProperty("db_statement_cache_size", "64")));
+    cache = new ResourceCache(name + ".resource_cache",
+        Long.parseLong(PropertyProvider.getProperty("resource_cache_max_bytes", "16777216")));
     SQL_FILE = relativePath + PropertyProvider.getProperty("database_sql");
     try (Connection connection = getConnection()) {
       String sql = new String(Files.readAllBytes(Paths.get(SQL_FILE).toAbsolutePath()));
       connection.prepareStatement(sql.replace("\"", "")).execute();
       logger.fine(sql);
 
-      style = new String(Files.readAllBytes(Paths.get(relativePath + styleFile).toAbsolutePath()));
-      script = new String(Files.readAllBytes(Paths.get(relativePath + scriptFile).toAbsolutePath()));
+      HtmlTableWriter.loadTemplates(relativePath);
+
+      // Bring the schema created above up to date
+      SchemaMigrator.migrate(connection,
+          relativePath + PropertyProvider.getProperty("database_migrations", "src/main/resources/migrations/"));
+      indexUnrecordedParameters(connection);
+      indexClaimIdentifiers(connection);
+
+      // Audit events are stored in one table per day (see AuditPartitions)
+      int retentionDays = Integer.parseInt(PropertyProvider.getProperty("audit_retention_days", "30"));
+      // Every other database file archives its (empty) partitions on its own
+      Path archiveDir = Paths.get(relativePath + PropertyProvider.getProperty("audit_archive_dir", "audit-archive/"));
+      auditPartitions = new AuditPartitions(pool, retentionDays, defaultFile ? archiveDir : archiveDir.resolve(file));
+      auditPartitions.initialize(connection);
+      if (retentionDays > 0)
+        new Timer("ArchiveAudit", true).schedule(new ArchiveAuditTask(auditPartitions), 1000, TimeUnit.HOURS.toMillis(1));
+
+      compressResources = Boolean.parseBoolean(PropertyProvider.getProperty("resource_compression", "true"));
+      if (compressResources) {
+        int batchSize = Integer.parseInt(PropertyProvider.getProperty("resource_compression_batch_size", "100"));
+        new Timer("CompressResources", true).schedule(new CompressResourcesTask(pool, batchSize), 1000, 1000);
+      }
+
+      // Final Claim chains and Bundles are deleted after purge_retention_days
+      int purgeRetentionDays = Integer.parseInt(PropertyProvider.getProperty("purge_retention_days", "0"));
+      if (purgeRetentionDays > 0) {
+        long interval = TimeUnit.MINUTES
+            .toMillis(Long.parseLong(PropertyProvider.getProperty("purge_interval_minutes", "60")));
+        PurgeExpiredTask purgeTask = new PurgeExpiredTask(pool, cache, purgeRetentionDays,
+            Integer.parseInt(PropertyProvider.getProperty("purge_batch_size", "100")),
+            Integer.parseInt(PropertyProvider.getProperty("purge_max_batches", "50")),
+            Long.parseLong(PropertyProvider.getProperty("purge_batch_pause_ms", "200")));
+        new Timer("PurgeExpired", true).schedule(purgeTask, interval, interval);
+      }
     } catch (SQLException e) {
       logger.log(Level.SEVERE, "Database::Database:SQLException", e);
     } catch (IOException e) {
@@ -100,89 +236,223 @@ public class Database {
     }
   }
 
-  public String generateAndRunQuery(Table table) {
-    String sql = "SELECT * FROM " + table.value() + " ORDER BY TIMESTAMP DESC";
-    return runQuery(sql, true, true);
+  /**
+   * Index the search parameters added to (or changed in) search_index_parameters
+   * since the last start for every stored resource, and record them (see
+   * SearchIndex.unrecorded). On the first start after the V11 migration every
+   * parameter is indexed once, which also covers the resources written before
+   * the V9 migration.
+   * 
+   * @param connection - the connection to the database.
+   * @throws SQLException
+   */
+  private void indexUnrecordedParameters(Connection connection) throws SQLException {
+    for (Table table : new Table[] { Table.CLAIM, Table.CLAIM_RESPONSE }) {
+      List<String> names = SearchIndex.unrecorded(connection, table);
+      if (!names.isEmpty()) {
+        ResultSet rs = connection.prepareStatement("SELECT id, resource, resource_data FROM " + table.value() + ";")
+            .executeQuery();
+        int count = 0;
+        while (rs.next()) {
+          String json = readResource(rs);
+          if (json == null)
+            continue;
+          SearchIndex.index(connection, table, rs.getString("id"), json, names);
+          count++;
+        }
+        logger.info("Database::indexUnrecordedParameters:Indexed " + names + " of " + count + " " + table.value()
+            + " resources");
+      }
+      SearchIndex.record(connection, table);
+    }
   }
 
-  public String runQuery(String sqlQuery, boolean printClobs, boolean outputHtml) {
-    String ret = "";
-    try (Connection connection = getConnection()) {
-      // build and execute the query
-      PreparedStatement stmt = connection.prepareStatement(sqlQuery);
-      ResultSet rs = stmt.executeQuery();
+  /**
+   * Store the identifiers of the Claims written before the V10 migration (see
+   * ClaimIdentifier). Runs once: the DataMigration table (see the V12
+   * migration) records when it completed, since Claims are indexed when they
+   * are written afterwards.
+   * 
+   * @param connection - the connection to the database.
+   * @throws SQLException
+   */
+  private void indexClaimIdentifiers(Connection connection) throws SQLException {
+    ResultSet migrated = connection
+        .prepareStatement("SELECT 1 FROM DataMigration WHERE name = '" + CLAIM_IDENTIFIER_MIGRATION + "';")
+        .executeQuery();
+    if (migrated.next())
+      return;
 
-      // get the number of columns
-      ResultSetMetaData metaData = rs.getMetaData();
-      int columnCount = metaData.getColumnCount();
+    String sql = "SELECT id, patient, rootId, resource, resource_data FROM Claim WHERE NOT EXISTS "
+        + "(SELECT 1 FROM ClaimIdentifier WHERE ClaimIdentifier.claimId = Claim.id);";
+    ResultSet rs = connection.prepareStatement(sql).executeQuery();
+    int count = 0;
+    while (rs.next()) {
+      String json = readResource(rs);
+      if (json != null && ClaimIdentifier.index(connection, rs.getString("id"), rs.getString("patient"),
+          rs.getString("rootId"), json) > 0)
+        count++;
+    }
+    if (count > 0)
+      logger.info("Database::indexClaimIdentifiers:Indexed the identifiers of " + count + " Claims");
+    connection.prepareStatement("INSERT INTO DataMigration (name) VALUES ('" + CLAIM_IDENTIFIER_MIGRATION + "');")
+        .execute();
+  }
 
-      if (outputHtml) {
-        ret += "<table id='results'>\n<tr>";
-      }
-      // print the column names
-      for (int i = 1; i <= columnCount; i++) {
-        if (i != 1 && !outputHtml) {
-          ret += " / ";
-        }
-        if (outputHtml) {
-          String columnName = metaData.getColumnName(i);
-          if (columnName.contains("ID") || columnName.contains("RELATED")) {
-            ret += "<th><div style='width: 300px;'>" + metaData.getColumnName(i) + "</div></th>";
-          } else {
-            ret += "<th>" + metaData.getColumnName(i) + "</th>";
+  /**
+   * Write a page of a table for the debug endpoints, most recent first. Each
+   * page continues after the last row of the previous page (see pageKeys)
+   * instead of skipping over an offset, and the Audit view is read one
+   * partition at a time like searchAudit. The query runs lazily and is
+   * cancelled after debug_query_timeout seconds. Resources are read as streams
+   * so only their previews are loaded.
+   */
+  @Override
+  public String writeTable(Table table, int count, String pageToken, HtmlTableWriter out) throws IOException {
+    String[] keys = pageKeys(table);
+    String[] cursor = pageToken != null ? SearchPage.decodeToken(pageToken, keys.length) : null;
+    Timestamp afterTimestamp = cursor != null ? Timestamp.valueOf(cursor[0]) : null;
+    List<String> sources = table == Table.AUDIT
+        ? auditPartitions.between(null, afterTimestamp != null ? toDay(afterTimestamp) : null)
+        : Collections.singletonList(table.value());
+    String nextPageToken = null;
+    try (Connection connection = getConnection()) {
+      connection.prepareStatement("SET LAZY_QUERY_EXECUTION TRUE;").execute();
+      try {
+        int rows = 0;
+        String[] last = new String[keys.length];
+        for (String source : sources) {
+          String sql = table == Table.AUDIT
+              ? AuditPartitions.searchSql(source, Collections.emptyList(), false, false, cursor != null)
+              : "SELECT * FROM " + source + (cursor != null ? " WHERE " + afterKeys(keys, 0) : "") + " ORDER BY "
+                  + String.join(" DESC, ", keys) + " DESC LIMIT ?;";
+          PreparedStatement stmt = connection.prepareStatement(sql);
+          stmt.setQueryTimeout(Integer.parseInt(PropertyProvider.getProperty("debug_query_timeout", "10")));
+          int index = 1;
+          if (cursor != null) {
+            for (int i = 0; i < keys.length; i++) {
+              // Every key but the last is compared twice (< and =)
+              for (int j = i < keys.length - 1 ? 2 : 1; j > 0; j--) {
+                if (i == 0)
+                  stmt.setTimestamp(index++, afterTimestamp);
+                else
+                  stmt.setString(index++, cursor[i]);
+              }
+            }
           }
-        } else {
-          ret += metaData.getColumnName(i);
-        }
-      }
-      if (outputHtml) {
-        ret += "</tr>";
-      }
-      ret += "\n";
+          // One row more than the page is read to know if there is a next page
+          stmt.setInt(index, count + 1 - rows);
+          ResultSet rs = stmt.executeQuery();
 
-      // print all of the data
-      while (rs.next()) {
-        if (outputHtml) {
-          ret += "<tr>";
-        }
-        for (int i = 1; i <= columnCount; i++) {
-          if (outputHtml) {
-            ret += "<td>";
-          }
-          if (i != 1 && !outputHtml) {
-            ret += " / ";
-          }
-          Object object = rs.getObject(i);
-          if (object instanceof org.h2.jdbc.JdbcClob && printClobs) {
-            ret += "<button class=\"collapsible\">+</button>\n" + "<div class=\"content\"><xmp>";
-            ret += object == null ? "NULL" : rs.getString(i);
-            ret += "</xmp>\n</div>\n";
-          } else {
-            ret += object == null ? "NULL" : object.toString();
-          }
-          if (outputHtml) {
-            ret += "</td>\n";
+          ResultSetMetaData metaData = rs.getMetaData();
+          String[] columns = new String[metaData.getColumnCount()];
+          for (int i = 0; i < columns.length; i++)
+            columns[i] = metaData.getColumnName(i + 1);
+          out.columns(columns);
+
+          while (rs.next()) {
+            if (rows++ == count) {
+              nextPageToken = SearchPage.encodeToken(last);
+              break;
+            }
+            last[0] = rs.getTimestamp(keys[0]).toString();
+            for (int i = 1; i < keys.length; i++)
+              last[i] = rs.getString(keys[i]);
+            out.startRow();
+            for (int i = 1; i <= columns.length; i++) {
+              int type = metaData.getColumnType(i);
+              if (type == Types.CLOB) {
+                out.preview(rs.getCharacterStream(i));
+              } else if (type == Types.BLOB) {
+                byte[] data = rs.getBytes(i);
+                if (data != null && ResourceCodec.isEncoded(data))
+                  out.preview(new StringReader(ResourceCodec.decode(data)));
+                else
+                  out.cell(data == null ? null : data.length + " bytes");
+              } else {
+                out.cell(rs.getString(i));
+              }
+            }
+            out.endRow();
           }
+          rs.close();
+          if (nextPageToken != null)
+            break;
         }
-        if (outputHtml) {
-          ret += "</tr>";
-        }
-        ret += "\n";
-      }
-
-      if (outputHtml) {
-        ret += "</table>\n";
+      } finally {
+        connection.prepareStatement("SET LAZY_QUERY_EXECUTION FALSE;").execute();
       }
-
     } catch (SQLException e) {
-      logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
+      logger.log(Level.SEVERE, "Database::writeTable:SQLException", e);
+      return null;
     }
+    return nextPageToken;
+  }
 
-    if (outputHtml) {
-      ret = "<html><head>" + style + "</head><body>" + ret + script + "</body></html>";
+  /**
+   * Get the columns the debug pages of a table are ordered by. The timestamp
+   * comes first; the primary key tells apart the rows written at the same time.
+   */
+  private static String[] pageKeys(Table table) {
+    switch (table) {
+      case CLAIM_ITEM:
+        return new String[] { "timestamp", "id", "sequence" };
+      case RULES:
+        return new String[] { "timestamp", "system", "code" };
+      default:
+        return new String[] { "timestamp", "id" };
     }
+  }
+
+  /**
+   * Get the condition selecting the rows after the last row of a page, for
+   * example "(timestamp < ? OR (timestamp = ? AND id < ?))"
+   */
+  private static String afterKeys(String[] keys, int from) {
+    if (from == keys.length - 1)
+      return keys[from] + " < ?";
+    return "(" + keys[from] + " < ? OR (" + keys[from] + " = ? AND " + afterKeys(keys, from + 1) + "))";
+  }
 
-    return ret;
+  /**
+   * Export a table one row at a time. The query runs lazily (H2
+   * LAZY_QUERY_EXECUTION) so rows are read from the table as they are written
+   * instead of being collected into a result first.
+   */
+  @Override
+  public long exportNdjson(Table table, Date since, Writer out) throws IOException {
+    logger.info("Database::exportNdjson(" + table.value() + ", " + since + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    long count = 0;
+    String sql = "SELECT resource, resource_data" + (table == Table.CLAIM ? ", status" : "") + " FROM "
+        + table.value() + (since != null ? " WHERE timestamp >= ?" : "") + ";";
+    try (Connection connection = getConnection()) {
+      connection.prepareStatement("SET LAZY_QUERY_EXECUTION TRUE;").execute();
+      try {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        if (since != null)
+          stmt.setTimestamp(1, new Timestamp(since.getTime()));
+        stmt.setFetchSize(100);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+          String json = readResource(rs);
+          if (json == null)
+            continue;
+          out.write(ExportJob.ndjsonLine(table, json, table == Table.CLAIM ? rs.getString("status") : null));
+          out.write('\n');
+          count++;
+        }
+      } finally {
+        connection.prepareStatement("SET LAZY_QUERY_EXECUTION FALSE;").execute();
+      }
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      count = -1;
+      logger.log(Level.SEVERE, "Database::exportNdjson:SQLException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Export " + table.value());
+    return count;
   }
 
   /**
@@ -192,27 +462,26 @@ public class Database {
    * @param status - the status to search.
    * @return Bundle - the search result Bundle.
    */
+  @Override
   public Bundle search(Table table, Map<String, Object> constraintMap) {
     logger.info("Database::search(" + table.value() + ", " + constraintMap.toString() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     Bundle results = new Bundle();
     results.setType(BundleType.SEARCHSET);
     results.setTimestamp(new Date());
-    try (Connection connection = getConnection()) {
-      String sql = "SELECT id, patient, resource FROM " + table.value() + " WHERE "
-          + generateClause(constraintMap, WHERE_CONCAT) + ";";
-      Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-      maps.add(constraintMap);
-      PreparedStatement stmt = generateStatement(sql, maps, connection);
-      logger.fine("search query: " + stmt.toString());
+    try (Connection connection = getConnection(table)) {
+      QueryShape shape = QueryShape.of(Operation.SEARCH, table, null, constraintMap.keySet());
+      PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintMap);
+      if (logger.isLoggable(Level.FINE))
+        logger.fine("search query: " + stmt.toString());
+      long generation = cache.generation();
       ResultSet rs = stmt.executeQuery();
       int total = 0;
       while (rs.next()) {
         String id = rs.getString("id");
         String patientOut = rs.getString("patient");
-        String json = rs.getString("resource");
         logger.info("search: " + id + "/" + patientOut);
-        Resource resource = (Resource) App.getFhirContext().newJsonParser().parseResource(json);
+        Resource resource = parseResource(table, rs, generation);
         resource.setId(id);
         BundleEntryComponent entry = new BundleEntryComponent();
         entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + id);
@@ -229,6 +498,171 @@ public class Database {
     return results;
   }
 
+  /**
+   * Search the database for one page of the given resourceType.
+   * 
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints.
+   * @param count         - the maximum number of resources on the page.
+   * @param pageToken     - the next page token of the previous page or null for
+   *                      the first page.
+   * @return SearchPage - the search result Bundle and the token of the next page.
+   */
+  @Override
+  public SearchPage searchPage(Table table, Map<String, Object> constraintMap, int count, String pageToken) {
+    logger.info("Database::searchPage(" + table.value() + ", " + constraintMap.toString() + ", " + count + ")");
+    count = Math.max(count, 1);
+    Timestamp afterTimestamp = null;
+    String afterId = null;
+    if (pageToken != null) {
+      String[] cursor = SearchPage.decodeToken(pageToken, 2);
+      afterTimestamp = Timestamp.valueOf(cursor[0]);
+      afterId = cursor[1];
+    }
+
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    String nextPageToken = null;
+    try (Connection connection = getConnection(table)) {
+      Operation operation = pageToken == null ? Operation.SEARCH_PAGE : Operation.SEARCH_PAGE_AFTER;
+      QueryShape shape = QueryShape.of(operation, table, null, constraintMap.keySet());
+      PreparedStatement stmt = connection.prepareStatement(shape.sql());
+      int index = shape.bind(stmt, Collections.emptyMap(), constraintMap);
+      if (afterTimestamp != null) {
+        stmt.setTimestamp(index++, afterTimestamp);
+        stmt.setTimestamp(index++, afterTimestamp);
+        stmt.setString(index++, afterId);
+      }
+      // One extra row tells whether there is a next page
+      stmt.setInt(index, count + 1);
+      if (logger.isLoggable(Level.FINE))
+        logger.fine("searchPage query: " + stmt.toString());
+      long generation = cache.generation();
+      ResultSet rs = stmt.executeQuery();
+      int total = 0;
+      String lastId = null;
+      Timestamp lastTimestamp = null;
+      while (rs.next()) {
+        if (total == count) {
+          nextPageToken = SearchPage.encodeToken(lastTimestamp.toString(), lastId);
+          break;
+        }
+        lastId = rs.getString("id");
+        lastTimestamp = rs.getTimestamp("timestamp");
+        Resource resource = parseResource(table, rs, generation);
+        resource.setId(lastId);
+        BundleEntryComponent entry = new BundleEntryComponent();
+        entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + lastId);
+        entry.setResource(resource);
+        results.addEntry(entry);
+        total += 1;
+      }
+      // The total is only known without counting every match when the results
+      // fit on a single page
+      if (pageToken == null && nextPageToken == null)
+        results.setTotal(total);
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::searchPage:SQLException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null, "Search " + table.value());
+    return new SearchPage(results, nextPageToken);
+  }
+
+  /**
+   * Search the audit trail one page at a time, most recent first. Only the
+   * partitions of the days in the time range (and after the last row of the
+   * previous page) are searched, newest first, each using its indexes to read
+   * no more rows than are left to fill the page.
+   * 
+   * @param constraintMap - map of the columns of the Audit table (type, action,
+   *                      outcome, clientId, what) and the values they must equal.
+   * @param from          - the earliest time (inclusive) or null.
+   * @param to            - the latest time (exclusive) or null.
+   * @param count         - the maximum number of AuditEvents on the page.
+   * @param pageToken     - the next page token of the previous page or null for
+   *                      the first page.
+   * @return SearchPage - the searchset Bundle of AuditEvents and the token of the
+   *         next page.
+   */
+  @Override
+  public SearchPage searchAudit(Map<String, Object> constraintMap, Date from, Date to, int count, String pageToken) {
+    logger.info("Database::searchAudit(" + constraintMap.toString() + ", " + from + ", " + to + ", " + count + ")");
+    count = Math.max(count, 1);
+    Timestamp afterTimestamp = null;
+    String afterId = null;
+    if (pageToken != null) {
+      String[] cursor = SearchPage.decodeToken(pageToken, 2);
+      afterTimestamp = Timestamp.valueOf(cursor[0]);
+      afterId = cursor[1];
+    }
+    List<String> columns = new ArrayList<>(constraintMap.keySet());
+    // Checked before anything is queried
+    AuditPartitions.searchSql(Table.AUDIT.value(), columns, false, false, false);
+
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    String nextPageToken = null;
+    Date latest = afterTimestamp != null && (to == null || afterTimestamp.before(to)) ? afterTimestamp : to;
+    List<String> partitions = auditPartitions.between(from != null ? toDay(from) : null,
+        latest != null ? toDay(latest) : null);
+    try (Connection connection = getConnection(Table.AUDIT)) {
+      int total = 0;
+      String lastId = null;
+      Timestamp lastTimestamp = null;
+      for (String partition : partitions) {
+        PreparedStatement stmt = connection.prepareStatement(
+            AuditPartitions.searchSql(partition, columns, from != null, to != null, afterTimestamp != null));
+        int index = 1;
+        for (String column : columns)
+          stmt.setString(index++, constraintMap.get(column).toString());
+        if (from != null)
+          stmt.setTimestamp(index++, new Timestamp(from.getTime()));
+        if (to != null)
+          stmt.setTimestamp(index++, new Timestamp(to.getTime()));
+        if (afterTimestamp != null) {
+          stmt.setTimestamp(index++, afterTimestamp);
+          stmt.setTimestamp(index++, afterTimestamp);
+          stmt.setString(index++, afterId);
+        }
+        // One extra row tells whether there is a next page
+        stmt.setInt(index, count + 1 - total);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+          if (total == count) {
+            nextPageToken = SearchPage.encodeToken(lastTimestamp.toString(), lastId);
+            break;
+          }
+          lastId = rs.getString("id");
+          lastTimestamp = rs.getTimestamp("timestamp");
+          Resource resource = parseAuditEvent(rs);
+          resource.setId(lastId);
+          results.addEntry().setFullUrl(App.getBaseUrl() + "/AuditEvent/" + lastId).setResource(resource);
+          total += 1;
+        }
+        rs.close();
+        if (nextPageToken != null)
+          break;
+      }
+      if (pageToken == null && nextPageToken == null)
+        results.setTotal(total);
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::searchAudit:SQLException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Search " + Table.AUDIT.value());
+    return new SearchPage(results, nextPageToken);
+  }
+
+  private static LocalDate toDay(Date date) {
+    return new Timestamp(date.getTime()).toLocalDateTime().toLocalDate();
+  }
+
   /**
    * Read a specific resource from the database.
    * 
@@ -236,26 +670,27 @@ public class Database {
    * @param constraintParams - the search constraints for the SQL query.
    * @return IBaseResource - if the resource exists, otherwise null.
    */
+  @Override
   public IBaseResource read(Table table, Map<String, Object> constraintParams) {
     logger.info("Database::read(" + table.value() + ", " + constraintParams.toString() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     IBaseResource result = null;
-    if (table != null && constraintParams != null) {
-      try (Connection connection = getConnection()) {
-        String sql = "SELECT TOP 1 id, patient, resource FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
-        logger.fine("read query: " + stmt.toString());
+    if (table != null && constraintParams != null && (result = readCached(table, constraintParams)) != null) {
+      logger.info("read: " + constraintParams.get("id") + " from cache");
+    } else if (table != null && constraintParams != null) {
+      try (Connection connection = getConnection(table)) {
+        long generation = cache.generation();
+        QueryShape shape = QueryShape.of(Operation.READ, table, null, constraintParams.keySet());
+        PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintParams);
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("read query: " + stmt.toString());
         ResultSet rs = stmt.executeQuery();
 
         if (rs.next()) {
           String id = rs.getString("id");
-          String json = rs.getString("resource");
           String patientOut = rs.getString("patient");
           logger.info("read: " + id + "/" + patientOut);
-          result = (Resource) App.getFhirContext().newJsonParser().parseResource(json);
+          result = parseResource(table, rs, generation);
         }
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
@@ -274,26 +709,25 @@ public class Database {
    * @return List of IBaseResource for all resources matching the constraints.
    *         Empty list if none
    */
+  @Override
   public List<IBaseResource> readAll(Table table, Map<String, Object> constraintParams) {
     logger.info("Database::readAll(" + table.value() + ", " + constraintParams.toString() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     List<IBaseResource> results = new ArrayList<IBaseResource>();
     if (table != null && constraintParams != null) {
-      try (Connection connection = getConnection()) {
-        String sql = "SELECT id, patient, resource FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
-        logger.fine("read query: " + stmt.toString());
+      try (Connection connection = getConnection(table)) {
+        long generation = cache.generation();
+        QueryShape shape = QueryShape.of(Operation.READ_ALL, table, null, constraintParams.keySet());
+        PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintParams);
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("read query: " + stmt.toString());
         ResultSet rs = stmt.executeQuery();
 
         while (rs.next()) {
           String id = rs.getString("id");
-          String json = rs.getString("resource");
           String patientOut = rs.getString("patient");
           logger.info("read: " + id + "/" + patientOut);
-          results.add((Resource) App.getFhirContext().newJsonParser().parseResource(json));
+          results.add(parseResource(table, rs, generation));
         }
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
@@ -304,29 +738,6 @@ public class Database {
     return results;
   }
 
-  /**
-   * Read the related field from the database
-   * 
-   * @param table            - the Table to read from.
-   * @param constraintParams - the search constraints for the SQL query.
-   * @return the related field of the database
-   */
-  public String readRelated(Table table, Map<String, Object> constraintParams) {
-    return readString(table, constraintParams, "related");
-  }
-
-  /**
-   * Get the status of an item in the database
-   *
-   * @param table - the Table to read from.
-   * @param id    - the id of the resource.
-   * @return - the string value of the status in the database of the first
-   *         matching entry with the provided id.
-   */
-  public String readStatus(Table table, Map<String, Object> constraintParams) {
-    return readString(table, constraintParams, "status");
-  }
-
   /**
    * Read the most recent data for specified column from the database
    *
@@ -335,17 +746,16 @@ public class Database {
    * @param column           - the column to read.
    * @return the specified column of the database
    */
+  @Override
   public String readString(Table table, Map<String, Object> constraintParams, String column) {
     logger.info("Database::read(" + table.value() + ", " + constraintParams.toString() + ", " + column + ")");
     if (table != null && constraintParams != null && column != null) {
-      try (Connection connection = getConnection()) {
-        // TODO: fix this so it does not insert a string (column) into the SQL
-        String sql = "SELECT TOP 1 " + column + " FROM " + table.value() + " WHERE "
-            + generateClause(constraintParams, WHERE_CONCAT) + " ORDER BY timestamp DESC;";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
-        logger.fine("read query: " + stmt.toString());
+      try (Connection connection = getConnection(table)) {
+        QueryShape shape = QueryShape.of(Operation.READ_COLUMN, table, QueryShape.projection(table, column),
+            constraintParams.keySet());
+        PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintParams);
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("read query: " + stmt.toString());
         ResultSet rs = stmt.executeQuery();
 
         if (rs.next()) {
@@ -355,6 +765,8 @@ public class Database {
         }
       } catch (SQLException e) {
         logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
+      } catch (IllegalArgumentException e) {
+        logger.log(Level.SEVERE, "Database::readString:IllegalArgumentException", e);
       }
     }
     Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SERIOUS_FAILURE, null, null,
@@ -362,6 +774,99 @@ public class Database {
     return null;
   }
 
+  /**
+   * Read several columns of the most recent row matching the constraints in a
+   * single query
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints for the SQL query.
+   * @param columns          - the scalar columns to read.
+   * @return map of the columns to their values or null if nothing matches
+   */
+  @Override
+  public Map<String, String> readColumns(Table table, Map<String, Object> constraintParams, String... columns) {
+    List<Map<String, String>> rows = selectColumns(Operation.READ_COLUMN, table, constraintParams, columns);
+    return rows.isEmpty() ? null : rows.get(0);
+  }
+
+  /**
+   * Read several columns of every row matching the constraints in a single
+   * query, most recent first
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints for the SQL query.
+   * @param columns          - the scalar columns to read.
+   * @return list of maps of the columns to their values. Empty list if none
+   */
+  @Override
+  public List<Map<String, String>> readAllColumns(Table table, Map<String, Object> constraintParams,
+      String... columns) {
+    return selectColumns(Operation.READ_ALL_COLUMNS, table, constraintParams, columns);
+  }
+
+  private List<Map<String, String>> selectColumns(Operation operation, Table table,
+      Map<String, Object> constraintParams, String[] columns) {
+    String projection = String.join(", ", columns);
+    logger.info("Database::readColumns(" + table.value() + ", " + constraintParams.toString() + ", " + projection
+        + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    List<Map<String, String>> results = new ArrayList<>();
+    try (Connection connection = getConnection(table)) {
+      QueryShape shape = QueryShape.of(operation, table, QueryShape.projection(table, columns),
+          constraintParams.keySet());
+      PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintParams);
+      if (logger.isLoggable(Level.FINE))
+        logger.fine("read query: " + stmt.toString());
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) {
+        Map<String, String> row = new HashMap<>();
+        for (int i = 0; i < columns.length; i++)
+          row.put(columns[i], rs.getString(i + 1));
+        results.add(row);
+      }
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::readColumns:SQLException", e);
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::readColumns:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read " + projection + " from " + table.value());
+    return results;
+  }
+
+  /**
+   * Read the version column and timestamp of the most recent resource matching
+   * the constraints
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints for the SQL query.
+   * @return the version or null if nothing matches or the table is not
+   *         versioned.
+   */
+  @Override
+  public ResourceVersion readVersion(Table table, Map<String, Object> constraintParams) {
+    logger.info("Database::readVersion(" + table.value() + ", " + constraintParams.toString() + ")");
+    if (!QueryShape.VERSIONED_TABLES.contains(table))
+      return null;
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    ResourceVersion result = null;
+    try (Connection connection = getConnection(table)) {
+      QueryShape shape = QueryShape.of(Operation.READ_VERSION, table, null, constraintParams.keySet());
+      PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintParams);
+      ResultSet rs = stmt.executeQuery();
+      if (rs.next())
+        result = new ResourceVersion(rs.getString("version"), rs.getTimestamp("timestamp"));
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::readVersion:SQLException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read version from " + table.value());
+    return result;
+  }
+
   /**
    * Insert a resource into database.
    * 
@@ -369,25 +874,31 @@ public class Database {
    * @param data  - map of columns (keys) and values.
    * @return boolean - whether or not the resource was written.
    */
+  @Override
   public boolean write(Table table, Map<String, Object> data) {
     logger.info("Database::write(" + table.value() + ", " + printMap(data) + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
     if (data != null) {
-      try (Connection connection = getConnection()) {
-        String valueClause = "";
-        for (int i = 0; i < data.values().size() - 1; i++)
-          valueClause += "?,";
-        valueClause += "?";
-
-        String sql = "INSERT INTO " + table.value() + " (" + setColumns(data.keySet()) + ") VALUES (" + valueClause
-            + ");";
-        Collection<Map<String, Object>> maps = new HashSet<Map<String, Object>>();
-        maps.add(data);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+      try (Connection connection = getConnection(table)) {
+        Map<String, Object> values = compressResource(withStatus(table, data));
+        if (table == Table.CLAIM)
+          values = linkClaim(connection, values, Collections.emptyMap());
+        QueryShape shape = QueryShape.of(Operation.INSERT, table, null, values.keySet(), Collections.emptySet());
+        PreparedStatement stmt = connection.prepareStatement(insertSql(connection, table, shape, values));
+        shape.bind(stmt, values, Collections.emptyMap());
         result = stmt.execute();
-        logger.fine(stmt.toString());
+        if (logger.isLoggable(Level.FINE))
+          logger.fine(stmt.toString());
+        if (table == Table.CLAIM) {
+          ClaimChain.advance(connection, (String) values.get("rootId"), (String) values.get("id"));
+          ClaimIdentifier.index(connection, (String) values.get("id"), (String) values.get("patient"),
+              (String) values.get("rootId"), data.get("resource"));
+        }
+        SearchIndex.index(connection, table, (String) values.get("id"), data.get("resource"));
         result = true;
+        autoCommitted(table);
+        invalidate(table, data, false);
       } catch (JdbcSQLIntegrityConstraintViolationException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
         logger.log(Level.SEVERE,
@@ -400,7 +911,7 @@ public class Database {
     }
     if (table != Table.AUDIT)
       Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C, auditOutcome, null, null,
-          "Write to " + table.value() + "\n" + data.toString());
+          "Write to " + table.value() + (data.get("id") != null ? "/" + data.get("id") : ""));
     return result;
   }
 
@@ -412,99 +923,531 @@ public class Database {
    * @param data             - map of column to value for the SQL SET clause
    * @return boolean - whether or not the update was successful
    */
+  @Override
   public boolean update(Table table, Map<String, Object> constraintParams, Map<String, Object> data) {
     logger.info("Database::update(" + table.value() + ", WHERE " + constraintParams.toString() + ", SET"
         + data.toString() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
-    String sql = "UPDATE " + table.value() + " SET " + generateClause(data, SET_CONCAT)
-        + ", timestamp = CURRENT_TIMESTAMP WHERE " + generateClause(constraintParams, WHERE_CONCAT) + ";";
+    Map<String, Object> values = compressResource(withStatus(table, data));
+    QueryShape shape = QueryShape.of(Operation.UPDATE, table, null, values.keySet(), constraintParams.keySet());
     if (table != null && constraintParams != null && data != null) {
-      try (Connection connection = getConnection()) {
-        Collection<Map<String, Object>> maps = new ArrayList<Map<String, Object>>();
-        maps.add(data);
-        maps.add(constraintParams);
-        PreparedStatement stmt = generateStatement(sql, maps, connection);
+      try (Connection connection = getConnection(table)) {
+        PreparedStatement stmt = prepare(connection, shape, values, constraintParams);
         stmt.execute();
         result = stmt.getUpdateCount() > 0 ? true : false;
-        logger.fine(stmt.toString());
+        if (logger.isLoggable(Level.FINE))
+          logger.fine(stmt.toString());
+        if (result && data.containsKey("resource"))
+          SearchIndex.index(connection, table, (String) constraintParams.get("id"), data.get("resource"));
+        autoCommitted(table);
+        invalidate(table, constraintParams, false);
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
         logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
       }
     }
-    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U, auditOutcome, null, null, sql);
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U, auditOutcome, null, null, shape.sql());
     return result;
   }
 
   /**
-   * Take in a Claim id and get the most recent id if it has been replaced by a
-   * more updated request.
+   * Insert many rows into the database in a single transaction. Rows with the
+   * same columns are sent to the database as one JDBC batch. Rows which fail
+   * (for example because of a duplicate primary key) are reported in the
+   * result, the other rows are still written.
    * 
-   * @param id - Claim id
-   * @return the most recent Claim id for the Claim by following all updates
+   * @param table - the Table to write to.
+   * @param rows  - list of maps of columns (keys) and values.
+   * @return BatchResult - which of the rows were written.
    */
-  public String getMostRecentId(String id) {
-    Map<String, Object> readConstraintMap = new HashMap<String, Object>();
-    readConstraintMap.put("related", id);
-    Claim referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    String referencingId = id;
+  @Override
+  public BatchResult writeBatch(Table table, List<Map<String, Object>> rows) {
+    logger.info("Database::writeBatch(" + table.value() + ", " + rows.size() + " rows)");
+    BatchResult result = new BatchResult(rows.size());
+    if (rows.isEmpty())
+      return result;
+
+    List<Map<String, Object>> values = new ArrayList<>(rows.size());
+    Map<String, List<Integer>> batches = new LinkedHashMap<>();
+    try (Connection connection = getConnection(table)) {
+      // Claims in the batch can be updates of Claims earlier in the batch
+      Map<String, String> roots = new HashMap<>();
+      for (int i = 0; i < rows.size(); i++) {
+        Map<String, Object> row = compressResource(withStatus(table, rows.get(i)));
+        if (table == Table.CLAIM) {
+          row = linkClaim(connection, row, roots);
+          roots.put((String) row.get("id"), (String) row.get("rootId"));
+        }
+        values.add(row);
+        QueryShape shape = QueryShape.of(Operation.INSERT, table, null, row.keySet(), Collections.emptySet());
+        batches.computeIfAbsent(insertSql(connection, table, shape, row), sql -> new ArrayList<>()).add(i);
+      }
+
+      connection.setAutoCommit(false);
+      for (Map.Entry<String, List<Integer>> entry : batches.entrySet()) {
+        List<Integer> batch = entry.getValue();
+        QueryShape shape = QueryShape.of(Operation.INSERT, table, null, values.get(batch.get(0)).keySet(),
+            Collections.emptySet());
+        PreparedStatement stmt = connection.prepareStatement(entry.getKey());
+        for (int index : batch) {
+          shape.bind(stmt, values.get(index), Collections.emptyMap());
+          stmt.addBatch();
+        }
+        executeBatch(stmt, batch, result);
+      }
+      if (table == Table.CLAIM)
+        for (int i = 0; i < values.size(); i++)
+          if (!result.isFailed(i)) {
+            ClaimChain.advance(connection, (String) values.get(i).get("rootId"), (String) values.get(i).get("id"));
+            ClaimIdentifier.index(connection, (String) values.get(i).get("id"), (String) values.get(i).get("patient"),
+                (String) values.get(i).get("rootId"), rows.get(i).get("resource"));
+          }
+      for (int i = 0; i < values.size(); i++)
+        if (!result.isFailed(i))
+          SearchIndex.index(connection, table, (String) values.get(i).get("id"), rows.get(i).get("resource"));
+      connection.commit();
+      autoCommitted(table);
+    } catch (SQLException e) {
+      result.failAll();
+      logger.log(Level.SEVERE, "Database::writeBatch:SQLException", e);
+    }
+    for (Map<String, Object> row : rows)
+      invalidate(table, row, false);
+
+    if (table != Table.AUDIT)
+      Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C,
+          result.isSuccessful() ? AuditEventOutcome.SUCCESS : AuditEventOutcome.SERIOUS_FAILURE, null, null,
+          "Write batch to " + table.value() + ": " + result.toString());
+    return result;
+  }
+
+  /**
+   * Run many updates against the database in a single transaction. Updates with
+   * the same columns are sent to the database as one JDBC batch. An update which
+   * fails or does not match any row is reported in the result, the other updates
+   * are still made.
+   * 
+   * @param table            - the Table to update.
+   * @param constraintParams - list of maps of column to value for the SQL WHERE
+   *                         clause.
+   * @param data             - list of maps of column to value for the SQL SET
+   *                         clause.
+   * @return BatchResult - which of the updates changed at least one row.
+   */
+  @Override
+  public BatchResult updateBatch(Table table, List<Map<String, Object>> constraintParams,
+      List<Map<String, Object>> data) {
+    logger.info("Database::updateBatch(" + table.value() + ", " + data.size() + " updates)");
+    if (constraintParams.size() != data.size())
+      throw new IllegalArgumentException("Every update needs constraints and data");
+    BatchResult result = new BatchResult(data.size());
+    if (data.isEmpty())
+      return result;
+
+    List<Map<String, Object>> values = new ArrayList<>(data.size());
+    Map<String, List<Integer>> batches = new LinkedHashMap<>();
+    for (int i = 0; i < data.size(); i++) {
+      values.add(compressResource(withStatus(table, data.get(i))));
+      QueryShape shape = QueryShape.of(Operation.UPDATE, table, null, values.get(i).keySet(),
+          constraintParams.get(i).keySet());
+      batches.computeIfAbsent(shape.sql(), sql -> new ArrayList<>()).add(i);
+    }
+
+    try (Connection connection = getConnection(table)) {
+      connection.setAutoCommit(false);
+      for (List<Integer> batch : batches.values()) {
+        int first = batch.get(0);
+        QueryShape shape = QueryShape.of(Operation.UPDATE, table, null, values.get(first).keySet(),
+            constraintParams.get(first).keySet());
+        PreparedStatement stmt = connection.prepareStatement(shape.sql());
+        for (int index : batch) {
+          shape.bind(stmt, values.get(index), constraintParams.get(index));
+          stmt.addBatch();
+        }
+        executeBatch(stmt, batch, result);
+      }
+      for (int i = 0; i < data.size(); i++)
+        if (!result.isFailed(i) && data.get(i).containsKey("resource"))
+          SearchIndex.index(connection, table, (String) constraintParams.get(i).get("id"), data.get(i).get("resource"));
+      connection.commit();
+      autoCommitted(table);
+    } catch (SQLException e) {
+      result.failAll();
+      logger.log(Level.SEVERE, "Database::updateBatch:SQLException", e);
+    }
+    for (Map<String, Object> constraints : constraintParams)
+      invalidate(table, constraints, false);
 
-    while (referencingClaim != null) {
-      // Update the referencingId to be the most recent referencingClaim
-      referencingId = FhirUtils.getIdFromResource(referencingClaim);
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U,
+        result.isSuccessful() ? AuditEventOutcome.SUCCESS : AuditEventOutcome.SERIOUS_FAILURE, null, null,
+        "Update batch of " + table.value() + ": " + result.toString());
+    return result;
+  }
 
-      // Get the new referencing claim
-      readConstraintMap.replace("related", referencingId);
-      referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
+  /**
+   * Execute a JDBC batch and record the rows which failed or changed nothing
+   * 
+   * @param stmt   - statement with the batch added.
+   * @param batch  - the index in the BatchResult of each row of the batch.
+   * @param result - the BatchResult to record failures in.
+   * @throws SQLException
+   */
+  private static void executeBatch(PreparedStatement stmt, List<Integer> batch, BatchResult result)
+      throws SQLException {
+    int[] counts;
+    try {
+      counts = stmt.executeBatch();
+    } catch (BatchUpdateException e) {
+      // H2 runs the rest of the batch after a failure and reports every row
+      logger.log(Level.SEVERE, "Database::executeBatch:BatchUpdateException", e);
+      counts = e.getUpdateCounts() != null ? e.getUpdateCounts() : new int[0];
     }
+    for (int i = 0; i < batch.size(); i++)
+      if (i >= counts.length || counts[i] == Statement.EXECUTE_FAILED || counts[i] == 0)
+        result.fail(batch.get(i));
+  }
 
-    return referencingId;
+  /**
+   * Replace the resource in a map of column values with its compressed encoding
+   * in the resource_data column. The map passed in is not modified.
+   * 
+   * @param data - map of columns (keys) and values.
+   * @return map of columns and values to store.
+   */
+  private Map<String, Object> compressResource(Map<String, Object> data) {
+    if (!compressResources || data == null || data.get("resource") == null)
+      return data;
+
+    Map<String, Object> values = new HashMap<String, Object>(data);
+    Object resource = values.get("resource");
+    if (resource instanceof IBaseResource)
+      values.put("resource_data", ResourceCodec.encode((IBaseResource) resource));
+    else
+      values.put("resource_data", ResourceCodec.encode(resource.toString()));
+    values.put("resource", QueryShape.SQL_NULL);
+    return values;
   }
 
   /**
-   * Create a SQL PreparedStatement from an SQL string and setting the strings
-   * based on the maps provided.
+   * Add the status of a Claim resource to the values written when no status is
+   * given, so the status column (which is applied to the resource when it is
+   * read) does not go stale
+   * 
+   * @param table - the Table written to.
+   * @param data  - map of columns (keys) and values.
+   * @return map of columns and values to store.
+   */
+  private static Map<String, Object> withStatus(Table table, Map<String, Object> data) {
+    if (table != Table.CLAIM || data == null || data.containsKey("status") || !(data.get("resource") instanceof Claim))
+      return data;
+    Claim claim = (Claim) data.get("resource");
+    if (!claim.hasStatus())
+      return data;
+
+    Map<String, Object> values = new HashMap<String, Object>(data);
+    values.put("status", claim.getStatus().toCode());
+    return values;
+  }
+
+  /**
+   * Add the root of its chain of updates to the values of a new Claim
    * 
-   * @param sql        - query string with '?' denoting values to be set by the
-   *                   maps.
-   * @param maps       - Collection of Maps used to set the values.
    * @param connection - the connection to the database.
-   * @return PreparedStatement with all values set or null if the number of values
-   *         provided is incorrect.
+   * @param values     - map of columns (keys) and values of the Claim.
+   * @param roots      - rootId of Claims written earlier in the same batch.
+   * @return map of columns and values to store.
    * @throws SQLException
    */
-  private PreparedStatement generateStatement(String sql, Collection<Map<String, Object>> maps, Connection connection)
+  private Map<String, Object> linkClaim(Connection connection, Map<String, Object> values, Map<String, String> roots)
       throws SQLException {
-    int numValuesNeeded = (int) sql.chars().filter(ch -> ch == '?').count();
-    int numValues = maps.stream().reduce(0, (subtotal, element) -> subtotal + element.size(), Integer::sum);
-    if (numValues != numValuesNeeded) {
-      logger.warning(
-          "Database::generateStatement:Value mismatch. Need " + numValuesNeeded + " values but received " + numValues);
-      return null;
+    String id = (String) values.get("id");
+    String related = (String) values.get("related");
+    String rootId = related != null && roots.containsKey(related) ? roots.get(related)
+        : ClaimChain.rootOf(connection, id, related);
+
+    Map<String, Object> linked = new HashMap<String, Object>(values);
+    linked.put("rootId", rootId);
+    return linked;
+  }
+
+  /**
+   * Move the head of a chain back after a Claim (and by cascade every later
+   * update) was deleted
+   * 
+   * @param connection - the connection to the database.
+   * @param rootId     - the rootId of the deleted Claim or null.
+   * @throws SQLException
+   */
+  private void unlinkClaim(Connection connection, String rootId) throws SQLException {
+    if (rootId != null)
+      ClaimChain.rebuild(connection, rootId);
+  }
+
+  /**
+   * Get the JSON of the resource in the current row, whether it is stored
+   * compressed or as a CLOB
+   * 
+   * @param rs - result set positioned on a row with resource and resource_data.
+   * @return the JSON of the resource.
+   * @throws SQLException
+   */
+  private static String readResource(ResultSet rs) throws SQLException {
+    byte[] data = rs.getBytes("resource_data");
+    return data != null ? ResourceCodec.decode(data) : rs.getString("resource");
+  }
+
+  /**
+   * Get the resource in the current row from the cache, parsing (and caching) it
+   * if it is not cached
+   * 
+   * @param table      - the Table the row was read from.
+   * @param rs         - result set positioned on a row with the columns selected
+   *                   by QueryShape for resources.
+   * @param generation - the cache generation before the query was run.
+   * @return the resource in the row.
+   * @throws SQLException
+   */
+  private Resource parseResource(Table table, ResultSet rs, long generation) throws SQLException {
+    if (table == Table.AUDIT)
+      return parseAuditEvent(rs);
+
+    // A unit of work must see its own (uncommitted) writes and rows it reads may
+    // be rolled back, so it does not use the cache
+    if (!CACHED_TABLES.contains(table) || inUnitOfWork(table))
+      return applyStatus(table, rs,
+          (Resource) App.getFhirContext().newJsonParser().parseResource(readResource(rs)));
+
+    String id = rs.getString("id");
+    String patient = rs.getString("patient");
+    Resource resource = cache.get(table, id, patient);
+    if (resource == null) {
+      // The status column is applied before caching since reads answered by
+      // the cache (see readCached) do not see the row
+      String json = readResource(rs);
+      resource = applyStatus(table, rs, (Resource) App.getFhirContext().newJsonParser().parseResource(json));
+      cache.put(table, id, patient, resource, json.length(), generation);
+      return resource;
     }
+    return applyStatus(table, rs, resource);
+  }
+
+  /**
+   * Build the AuditEvent in the current row of the Audit table from its columns.
+   * Rows written before audit events were stored as columns are parsed from
+   * their resource.
+   * 
+   * @param rs - result set positioned on a row of the Audit table.
+   * @return the AuditEvent in the row.
+   * @throws SQLException
+   */
+  private static Resource parseAuditEvent(ResultSet rs) throws SQLException {
+    String json = readResource(rs);
+    if (json != null)
+      return (Resource) App.getFhirContext().newJsonParser().parseResource(json);
+
+    Map<String, String> row = new HashMap<>();
+    for (String column : AUDIT_COLUMNS)
+      row.put(column, rs.getString(column));
+    return Audit.toAuditEvent(row, rs.getTimestamp("timestamp"));
+  }
 
-    PreparedStatement stmt = connection.prepareStatement(sql);
-    int valueIndex = 1;
-    for (Map<String, Object> map : maps) {
-      for (Object value : map.values()) {
-        String valueStr;
-        if (value instanceof String)
-          valueStr = (String) value;
-        else if (value instanceof IBaseResource)
-          valueStr = FhirUtils.json((IBaseResource) value);
-        else if (value == null)
-          valueStr = "null";
-        else
-          valueStr = value.toString();
-        stmt.setString(valueIndex, valueStr);
-        valueIndex++;
+  /**
+   * Set the status of a Claim to its status column. The status column is
+   * changed without rewriting the stored resource when a chain of Claims is
+   * cancelled.
+   * 
+   * @param table    - the Table the row was read from.
+   * @param rs       - result set positioned on the row of the resource.
+   * @param resource - the resource parsed from the row.
+   * @return the resource.
+   * @throws SQLException
+   */
+  private static Resource applyStatus(Table table, ResultSet rs, Resource resource) throws SQLException {
+    if (table != Table.CLAIM)
+      return resource;
+    Claim claim = (Claim) resource;
+    String status = rs.getString("status");
+    if (status != null && (!claim.hasStatus() || !status.equals(claim.getStatus().toCode()))) {
+      try {
+        claim.setStatus(ClaimStatus.fromCode(status));
+      } catch (FHIRException e) {
+        // Rows written without a valid status (for example "unknown")
+        logger.fine("Database::applyStatus:Not a Claim status " + status);
       }
     }
+    return claim;
+  }
+
+  /**
+   * Read a resource from the cache without querying the database. Only reads
+   * constrained by id (and optionally patient) can be answered by the cache.
+   * 
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints of the read.
+   * @return the cached resource or null.
+   */
+  private Resource readCached(Table table, Map<String, Object> constraintParams) {
+    if (!CACHED_TABLES.contains(table) || !(constraintParams.get("id") instanceof String) || inUnitOfWork(table))
+      return null;
+    Object patient = constraintParams.get("patient");
+    int columns = constraintParams.containsKey("patient") ? 2 : 1;
+    if (constraintParams.size() > columns || (patient != null && !(patient instanceof String)))
+      return null;
+    return cache.get(table, (String) constraintParams.get("id"), (String) patient);
+  }
+
+  /**
+   * Remove the resources changed by a write, update or delete from the cache.
+   * Without an id every resource of the table is removed. Deleting a Claim also
+   * deletes (by cascade) the Claims and ClaimResponses which reference it.
+   * 
+   * @param table            - the Table which was changed.
+   * @param constraintParams - the constraints (or inserted values) of the change.
+   * @param delete           - whether rows were deleted.
+   */
+  private void invalidate(Table table, Map<String, Object> constraintParams, boolean delete) {
+    // Other threads could cache the committed resource again before the unit of
+    // work commits, so invalidate again when it completes
+    if (inUnitOfWork(table)) {
+      Map<String, Object> constraints = new HashMap<>(constraintParams);
+      UnitOfWork.current().afterCompletion(() -> invalidate(table, constraints, delete));
+    }
+
+    Object id = constraintParams.get("id");
+    if (CACHED_TABLES.contains(table)) {
+      if (id != null)
+        cache.invalidate(table, id.toString());
+      else
+        cache.invalidate(table);
+    }
+    if (delete && table == Table.CLAIM) {
+      cache.invalidate(Table.CLAIM);
+      cache.invalidate(Table.CLAIM_RESPONSE);
+    }
+  }
 
+  /**
+   * Get the SQL of an INSERT. Audit rows are inserted into the partition of
+   * their day instead of the Audit view.
+   * 
+   * @param connection - the connection to the database.
+   * @param table      - the Table to insert into.
+   * @param shape      - the INSERT shape of the row.
+   * @param values     - the values of the row.
+   * @return the SQL of the INSERT.
+   * @throws SQLException
+   */
+  private String insertSql(Connection connection, Table table, QueryShape shape, Map<String, Object> values)
+      throws SQLException {
+    return table == Table.AUDIT ? auditPartitions.insertSql(connection, shape, values) : shape.sql();
+  }
+
+  /**
+   * Get the partitions of the Audit table
+   */
+  AuditPartitions getAuditPartitions() {
+    return auditPartitions;
+  }
+
+  /**
+   * Create a SQL PreparedStatement for a query shape and set its values from the
+   * maps provided. Pooled connections cache the statement so each shape is only
+   * compiled once per connection.
+   * 
+   * @param connection  - the connection to the database.
+   * @param shape       - the shape of the query.
+   * @param values      - map of column to value for the inserted or set columns.
+   * @param whereValues - map of column to value for the WHERE clause.
+   * @return PreparedStatement with all values set.
+   * @throws SQLException
+   */
+  private PreparedStatement prepare(Connection connection, QueryShape shape, Map<String, Object> values,
+      Map<String, Object> whereValues) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(shape.sql());
+    shape.bind(stmt, values, whereValues);
     return stmt;
   }
 
+  /**
+   * Get the latest update of a Claim from the head of its chain. Claims without
+   * a chain (written while the head could not be stored) fall back to following
+   * the updates.
+   * 
+   * @param id - Claim id
+   * @return the most recent Claim id for the Claim
+   */
+  @Override
+  public String getMostRecentId(String id) {
+    if (id != null) {
+      try (Connection connection = getConnection(Table.CLAIM)) {
+        String headId = ClaimChain.head(connection, id);
+        if (headId != null)
+          return headId;
+      } catch (SQLException e) {
+        logger.log(Level.SEVERE, "Database::getMostRecentId:SQLException", e);
+      }
+    }
+    return ResourceStore.super.getMostRecentId(id);
+  }
+
+  /**
+   * Find the latest update of the Claim with an identifier in the
+   * ClaimIdentifier table (see ClaimIdentifier) instead of reading every Claim
+   * of the patient.
+   * 
+   * @param patient    - the patient of the Claim.
+   * @param identifier - the identifier of the Claim.
+   * @return the id of the most recent Claim in its chain or null if there is
+   *         none.
+   */
+  @Override
+  public String findClaimByIdentifier(String patient, Identifier identifier) {
+    try (Connection connection = getConnection(Table.CLAIM)) {
+      return ClaimIdentifier.head(connection, patient, identifier.getSystem(), identifier.getValue());
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::findClaimByIdentifier:SQLException", e);
+    }
+    return null;
+  }
+
+  /**
+   * Cancel every Claim in the chain of a Claim with a single UPDATE of the
+   * status column (see applyStatus) and the items of the head of the chain, in
+   * one transaction.
+   * 
+   * @param claimId - the id of a Claim in the chain.
+   * @return true if the Claims were cancelled, false otherwise.
+   */
+  @Override
+  public boolean cancelClaimChain(String claimId) {
+    logger.info("Database::cancelClaimChain(" + claimId + ")");
+    String rootId = null;
+    try (Connection connection = getConnection(Table.CLAIM)) {
+      rootId = ClaimChain.rootId(connection, claimId);
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "Database::cancelClaimChain:SQLException", e);
+    }
+    if (rootId == null)
+      return ResourceStore.super.cancelClaimChain(claimId);
+
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    boolean result = false;
+    try (Connection connection = getConnection(Table.CLAIM)) {
+      connection.setAutoCommit(false);
+      result = ClaimChain.updateStatus(connection, rootId, ClaimStatus.CANCELLED.toCode()) > 0;
+      connection.commit();
+      autoCommitted(Table.CLAIM);
+      invalidate(Table.CLAIM, Collections.emptyMap(), false);
+    } catch (SQLException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "Database::cancelClaimChain:SQLException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U, auditOutcome, null, null,
+        "Cancel chain of Claim/" + claimId + " (root " + rootId + ")");
+    return result;
+  }
+
   /**
    * Delete a particular resource with a given id.
    * 
@@ -512,18 +1455,33 @@ public class Database {
    * @param id    - the id of the resource to delete.
    * @return boolean - whether or not the resource was deleted.
    */
+  @Override
   public boolean delete(Table table, String id, String patient) {
     logger.info("Database::delete(" + table.value() + ", " + id + ", " + patient + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
     if (table != null && id != null) {
-      try (Connection connection = getConnection()) {
-        PreparedStatement stmt = connection
-            .prepareStatement("DELETE FROM " + table.value() + " WHERE id = ? AND patient = ?;");
-        stmt.setString(1, id);
-        stmt.setString(2, patient);
+      try (Connection connection = getConnection(table)) {
+        Map<String, Object> constraintMap = new HashMap<String, Object>();
+        constraintMap.put("id", id);
+        constraintMap.put("patient", patient);
+        String rootId = table == Table.CLAIM ? ClaimChain.rootId(connection, id) : null;
+        // Later Claims of the chain and ClaimResponses are deleted by cascade
+        Map<Table, List<String>> cascaded = table == Table.CLAIM ? SearchIndex.cascade(connection, id, rootId)
+            : Collections.emptyMap();
+        QueryShape shape = QueryShape.of(Operation.DELETE, table, null, constraintMap.keySet());
+        PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintMap);
         stmt.execute();
         result = stmt.getUpdateCount() > 0 ? true : false;
+        if (result) {
+          unlinkClaim(connection, rootId);
+          if (table == Table.CLAIM)
+            ClaimIdentifier.remove(connection, id, rootId);
+          SearchIndex.remove(connection, table, id);
+          SearchIndex.prune(connection, cascaded);
+        }
+        autoCommitted(table);
+        invalidate(table, constraintMap, true);
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
         logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
@@ -541,16 +1499,31 @@ public class Database {
    * @param id    - the id of the resource to delete.
    * @return true if the resource was deleted and false otherwise.
    */
+  @Override
   public boolean delete(Table table, String id) {
     logger.info("Database::delete(" + table.value() + ", " + id + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
     if (table != null && id != null) {
-      try (Connection connection = getConnection()) {
-        PreparedStatement stmt = connection.prepareStatement("DELETE FROM " + table.value() + " WHERE id = ?;");
-        stmt.setString(1, id);
+      try (Connection connection = getConnection(table)) {
+        Map<String, Object> constraintMap = Collections.singletonMap("id", id);
+        String rootId = table == Table.CLAIM ? ClaimChain.rootId(connection, id) : null;
+        // Later Claims of the chain and ClaimResponses are deleted by cascade
+        Map<Table, List<String>> cascaded = table == Table.CLAIM ? SearchIndex.cascade(connection, id, rootId)
+            : Collections.emptyMap();
+        QueryShape shape = QueryShape.of(Operation.DELETE, table, null, constraintMap.keySet());
+        PreparedStatement stmt = prepare(connection, shape, Collections.emptyMap(), constraintMap);
         stmt.execute();
         result = stmt.getUpdateCount() > 0 ? true : false;
+        if (result) {
+          unlinkClaim(connection, rootId);
+          if (table == Table.CLAIM)
+            ClaimIdentifier.remove(connection, id, rootId);
+          SearchIndex.remove(connection, table, id);
+          SearchIndex.prune(connection, cascaded);
+        }
+        autoCommitted(table);
+        invalidate(table, constraintMap, true);
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
         logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
@@ -567,15 +1540,26 @@ public class Database {
    * @param table - the Table to delete from.
    * @return boolean - whether or not the resources were deleted.
    */
+  @Override
   public boolean delete(Table table) {
     logger.info("Database::delete(" + table.value() + ")");
     AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
     boolean result = false;
     if (table != null) {
-      try (Connection connection = getConnection()) {
-        PreparedStatement stmt = connection.prepareStatement("DELETE FROM " + table.value() + ";");
+      try (Connection connection = getConnection(table)) {
+        QueryShape shape = QueryShape.of(Operation.DELETE, table, null, Collections.emptySet());
+        PreparedStatement stmt = connection.prepareStatement(shape.sql());
         stmt.execute();
         result = stmt.getUpdateCount() > 0 ? true : false;
+        if (table == Table.CLAIM) {
+          ClaimChain.clear(connection);
+          ClaimIdentifier.clear(connection);
+          // Every ClaimResponse was deleted by cascade
+          SearchIndex.clear(connection, Table.CLAIM_RESPONSE);
+        }
+        SearchIndex.clear(connection, table);
+        autoCommitted(table);
+        invalidate(table, Collections.emptyMap(), true);
       } catch (SQLException e) {
         auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
         logger.log(Level.SEVERE, "Database::runQuery:SQLException", e);
@@ -585,40 +1569,6 @@ public class Database {
     return result;
   }
 
-  /**
-   * Reduce a Map to a single string in the form "{key} = '{value}'" +
-   * concatonator
-   * 
-   * @param map          - key value pair of columns and values.
-   * @param concatonator - the string to connect a set of key value with another
-   *                     set.
-   * @return string in the form "{key} = '{value}'" + concatonator...
-   */
-  private String generateClause(Map<String, Object> map, String concatonator) {
-    String column;
-    String sqlStr = "";
-    for (Iterator<String> iterator = map.keySet().iterator(); iterator.hasNext();) {
-      column = iterator.next();
-      sqlStr += column + " = ?";
-
-      if (iterator.hasNext())
-        sqlStr += concatonator;
-    }
-
-    return sqlStr;
-  }
-
-  /**
-   * Internal function to map the keys to a string
-   * 
-   * @param keys - the set of keys to be reduced.
-   * @return a string of each key concatenated by ", "
-   */
-  private String setColumns(Set<String> keys) {
-    Optional<String> reducedArr = Arrays.stream(keys.toArray(new String[0])).reduce((str1, str2) -> str1 + ", " + str2);
-    return reducedArr.get();
-  }
-
   private String printMap(Map<String, Object> data) {
     StringBuilder string = new StringBuilder("{ ");
 
@@ -0,0 +1,236 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.hl7.fhir.r4.model.ClaimResponse;
+
+/**
+ * A bulk $export of some tables. Run in the background, it streams the JSON of
+ * every resource of each table from the ResourceStore into one gzipped NDJSON
+ * file per table (export_dir/{id}/{Table}.ndjson.gz). ClaimResponses are
+ * stored in their response Bundle; the file has the ClaimResponse of each.
+ */
+public class ExportJob implements Runnable {
+
+  static final Logger logger = PALogger.getLogger();
+
+  public enum Status {
+    ACCEPTED, RUNNING, COMPLETED, FAILED, CANCELLED
+  }
+
+  /**
+   * The file written for a table and the number of resources in it
+   */
+  public static class Output {
+    private final Table table;
+    private final Path file;
+    private final long count;
+
+    Output(Table table, Path file, long count) {
+      this.table = table;
+      this.file = file;
+      this.count = count;
+    }
+
+    public Table getTable() {
+      return table;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+
+  private final String id;
+  private final List<Table> tables;
+  private final Date since;
+  private final String request;
+  private final Path dir;
+  private final Date transactionTime = new Date();
+  private final List<Output> outputs = Collections.synchronizedList(new ArrayList<>());
+  private final AtomicReference<Status> status = new AtomicReference<>(Status.ACCEPTED);
+  private volatile Table current = null;
+  private volatile String error = null;
+
+  /**
+   * Create a job exporting tables
+   *
+   * @param id      - the id of the job.
+   * @param tables  - the Tables to export.
+   * @param since   - only export rows written at or after this time or null.
+   * @param request - the url of the $export request.
+   * @param dir     - the directory the files are written to.
+   */
+  public ExportJob(String id, List<Table> tables, Date since, String request, Path dir) {
+    this.id = id;
+    this.tables = new ArrayList<>(tables);
+    this.since = since;
+    this.request = request;
+    this.dir = dir;
+  }
+
+  @Override
+  public void run() {
+    if (!status.compareAndSet(Status.ACCEPTED, Status.RUNNING))
+      return;
+    try {
+      Files.createDirectories(dir);
+      for (Table table : tables) {
+        if (status.get() == Status.CANCELLED)
+          break;
+        current = table;
+        Path file = dir.resolve(table.value() + ".ndjson.gz");
+        long count;
+        try (Writer out = new BufferedWriter(
+            new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8))) {
+          count = App.getDB().exportNdjson(table, since, out);
+        }
+        if (count < 0) {
+          logger.severe("ExportJob::run:Unable to read " + table.value());
+          fail("Unable to read " + table.value());
+          return;
+        }
+        outputs.add(new Output(table, file, count));
+        logger.info("ExportJob::run:Exported " + count + " " + table.value() + " to " + file);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Runtime exceptions (a resource which cannot be decoded or parsed) would
+      // otherwise be lost by the executor and leave the job running
+      logger.log(Level.SEVERE, "ExportJob::run:" + e.getClass().getSimpleName(), e);
+      fail(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+      return;
+    } finally {
+      current = null;
+    }
+
+    if (!status.compareAndSet(Status.RUNNING, Status.COMPLETED))
+      deleteFiles();
+  }
+
+  /**
+   * Cancel the job and delete its files. A running job stops after the table it
+   * is exporting.
+   */
+  public void cancel() {
+    if (status.getAndSet(Status.CANCELLED) != Status.RUNNING)
+      deleteFiles();
+  }
+
+  /**
+   * Mark the running job as failed. A job cancelled meanwhile stays cancelled
+   * and its files are deleted.
+   */
+  private void fail(String message) {
+    error = message;
+    if (!status.compareAndSet(Status.RUNNING, Status.FAILED))
+      deleteFiles();
+  }
+
+  private void deleteFiles() {
+    try {
+      if (Files.isDirectory(dir)) {
+        for (Path file : Files.newDirectoryStream(dir))
+          Files.delete(file);
+        Files.delete(dir);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "ExportJob::deleteFiles:IOException", e);
+    }
+  }
+
+  /**
+   * Turn the JSON of a stored resource into a single NDJSON line. Claims whose
+   * status column (which is changed without rewriting the resource when a chain
+   * is cancelled) differs from the status in the JSON are parsed to apply it.
+   * ClaimResponses are taken out of their response Bundle.
+   *
+   * @param table  - the Table the resource was read from.
+   * @param json   - the JSON of the resource.
+   * @param status - the status column of the row or null.
+   * @return the JSON of the resource without line breaks.
+   */
+  static String ndjsonLine(Table table, String json, String status) {
+    if (table == Table.CLAIM && status != null && !json.contains("\"status\":\"" + status + "\"")) {
+      Claim claim = (Claim) App.getFhirContext().newJsonParser().parseResource(json);
+      try {
+        claim.setStatus(ClaimStatus.fromCode(status));
+        json = App.getFhirContext().newJsonParser().setPrettyPrint(false).encodeResourceToString(claim);
+      } catch (FHIRException e) {
+        logger.fine("ExportJob::ndjsonLine:Not a Claim status " + status);
+      }
+    } else if (table == Table.CLAIM_RESPONSE) {
+      Bundle bundle = (Bundle) App.getFhirContext().newJsonParser().parseResource(json);
+      ClaimResponse claimResponse = FhirUtils.getClaimResponseFromResponseBundle(bundle);
+      if (claimResponse != null)
+        json = App.getFhirContext().newJsonParser().setPrettyPrint(false).encodeResourceToString(claimResponse);
+    }
+    // Line breaks in JSON strings are escaped so these are only whitespace
+    return json.replace("\r", "").replace("\n", "");
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Status getStatus() {
+    return status.get();
+  }
+
+  public Date getTransactionTime() {
+    return transactionTime;
+  }
+
+  public String getRequest() {
+    return request;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * Get a description of the progress of the job
+   *
+   * @return the table being exported, for example "Claim (1/3)".
+   */
+  public String getProgress() {
+    Table table = current;
+    if (table == null)
+      return status.get().name().toLowerCase();
+    return table.value() + " (" + (tables.indexOf(table) + 1) + "/" + tables.size() + ")";
+  }
+
+  /**
+   * Get the files written so far
+   *
+   * @return the file of every table exported.
+   */
+  public List<Output> getOutputs() {
+    synchronized (outputs) {
+      return new ArrayList<>(outputs);
+    }
+  }
+}
@@ -14,6 +14,7 @@ import org.hl7.fhir.r4.model.ClaimResponse;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
@@ -456,4 +457,38 @@ public class FhirUtils {
     }
     return false;
   }
+
+  /**
+   * Get the time range matched by a date search parameter
+   *
+   * @param value - the parameter, a FHIR dateTime with an optional prefix.
+   * @return the start (inclusive) and end (exclusive) of the range, either of
+   *         which can be null.
+   * @throws IllegalArgumentException if the value is not a dateTime
+   */
+  public static Date[] dateRange(String value) {
+    String prefix = value.length() > 2 && Character.isLetter(value.charAt(0)) ? value.substring(0, 2) : "eq";
+    DateTimeType dateTime;
+    try {
+      dateTime = new DateTimeType(prefix.equals("eq") && !value.startsWith("eq") ? value : value.substring(2));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("date " + value);
+    }
+    Date start = dateTime.getValue();
+    Date end = dateTime.getPrecision().add(start, 1);
+    switch (prefix) {
+      case "eq":
+        return new Date[] { start, end };
+      case "ge":
+        return new Date[] { start, null };
+      case "gt":
+        return new Date[] { end, null };
+      case "le":
+        return new Date[] { null, end };
+      case "lt":
+        return new Date[] { null, start };
+      default:
+        throw new IllegalArgumentException("date prefix " + prefix);
+    }
+  }
 }
@@ -0,0 +1,173 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Writes a page of the rows of a table as HTML for the debug endpoints. Rows
+ * are written to the output as they are read so a page is never built up in
+ * memory. Resources are shown in a collapsible preview of at most
+ * debug_preview_chars characters.
+ */
+public class HtmlTableWriter {
+
+  private static final String styleFile = "src/main/resources/style.html";
+  private static final String scriptFile = "src/main/resources/script.html";
+
+  private static String style = "";
+  private static String script = "";
+
+  private final Writer out;
+  private final int previewChars;
+  private boolean header = false;
+  private int rows = 0;
+
+  /**
+   * Create a writer of an HTML page
+   *
+   * @param out          - the writer the page is written to.
+   * @param previewChars - the maximum number of characters of a resource to
+   *                     show.
+   */
+  public HtmlTableWriter(Writer out, int previewChars) {
+    this.out = out;
+    this.previewChars = Math.max(0, previewChars);
+  }
+
+  /**
+   * Load the style and script of the pages
+   *
+   * @param relativePath - path to the project directory.
+   * @throws IOException if the files cannot be read
+   */
+  static void loadTemplates(String relativePath) throws IOException {
+    style = new String(Files.readAllBytes(Paths.get(relativePath + styleFile).toAbsolutePath()));
+    script = new String(Files.readAllBytes(Paths.get(relativePath + scriptFile).toAbsolutePath()));
+  }
+
+  /**
+   * Write the start of the page and the header of the table. Only the first
+   * call writes anything, so every shard of a store can call it before its
+   * rows. Nothing is written to the output before this call.
+   *
+   * @param columns - the names of the columns.
+   */
+  public void columns(String... columns) throws IOException {
+    if (header)
+      return;
+    header = true;
+    out.write("<html><head>");
+    out.write(style);
+    out.write("</head><body><table id='results'>\n<tr>");
+    for (String column : columns) {
+      if (column.contains("ID") || column.contains("RELATED")) {
+        out.write("<th><div style='width: 300px;'>");
+        escape(column);
+        out.write("</div></th>");
+      } else {
+        out.write("<th>");
+        escape(column);
+        out.write("</th>");
+      }
+    }
+    out.write("</tr>\n");
+  }
+
+  public void startRow() throws IOException {
+    rows++;
+    out.write("<tr>");
+  }
+
+  public void endRow() throws IOException {
+    out.write("</tr>\n");
+  }
+
+  /**
+   * Write a cell with a plain value
+   *
+   * @param value - the value or null.
+   */
+  public void cell(String value) throws IOException {
+    out.write("<td>");
+    escape(value == null ? "NULL" : value);
+    out.write("</td>\n");
+  }
+
+  /**
+   * Write a cell with a resource. Only the first debug_preview_chars characters
+   * are read from the reader.
+   *
+   * @param resource - reader of the resource or null.
+   */
+  public void preview(Reader resource) throws IOException {
+    if (resource == null) {
+      cell(null);
+      return;
+    }
+    out.write("<td><button class=\"collapsible\">+</button>\n<div class=\"content\"><pre>");
+    char[] buffer = new char[Math.min(8192, Math.max(1, previewChars))];
+    int remaining = previewChars;
+    int read = 0;
+    while (remaining > 0 && (read = resource.read(buffer, 0, Math.min(buffer.length, remaining))) != -1) {
+      escape(new String(buffer, 0, read));
+      remaining -= read;
+    }
+    if (remaining <= 0 && resource.read() != -1)
+      out.write("\n... (truncated)");
+    out.write("</pre>\n</div>\n</td>\n");
+  }
+
+  /**
+   * Close the table and the page
+   *
+   * @param nextUrl - the url of the next page or null if this is the last page.
+   */
+  public void end(String nextUrl) throws IOException {
+    if (header)
+      out.write("</table>\n");
+    else
+      out.write("<html><head>" + style + "</head><body>");
+    if (rows == 0)
+      out.write("<p>No rows</p>\n");
+    if (nextUrl != null) {
+      out.write("<p><a href=\"");
+      escape(nextUrl);
+      out.write("\">Next page</a></p>\n");
+    }
+    out.write(script);
+    out.write("</body></html>");
+    out.flush();
+  }
+
+  /**
+   * Get the number of rows written so far
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  private void escape(String text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '<':
+          out.write("&lt;");
+          break;
+        case '>':
+          out.write("&gt;");
+          break;
+        case '&':
+          out.write("&amp;");
+          break;
+        case '"':
+          out.write("&quot;");
+          break;
+        default:
+          out.write(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,392 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.RelatedClaimComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.json.simple.JSONObject;
+
+/**
+ * A bulk $import of Claim Bundles from an NDJSON file (one Bundle per line).
+ * The file is read as a stream. Lines are parsed by a pool of threads and
+ * handed, in the order of the file, to one of as many lanes by patient. Each
+ * lane submits its Bundles one after another in units of work of up to
+ * import_batch_size Bundles, so the Claims of a chain of updates (which all
+ * belong to one patient) are submitted in the order of the file. The Bundles
+ * of a unit of work all belong to patients of the same shard (see
+ * ResourceStore.shardOf).
+ *
+ * Claims are stored with new ids. Updates and cancellations later in the file
+ * which refer to a Claim by its id in the file are pointed at the stored
+ * Claim. Lines which fail are rolled back on their own and written with their
+ * line number and error to an NDJSON error file.
+ */
+public class ImportJob implements Runnable {
+
+  static final Logger logger = PALogger.getLogger();
+
+  public enum Status {
+    ACCEPTED, RUNNING, COMPLETED, FAILED
+  }
+
+  /**
+   * A line of the file and the Bundle parsed from it (or why it could not be)
+   */
+  private static class Line {
+    private final long number;
+    private final Bundle bundle;
+    private final String patient;
+    private final String error;
+
+    Line(long number, Bundle bundle, String patient, String error) {
+      this.number = number;
+      this.bundle = bundle;
+      this.patient = patient;
+      this.error = error;
+    }
+  }
+
+  // Put in the queue of a lane after the last line
+  private static final Line END = new Line(-1, null, null, null);
+
+  private final String id;
+  private final Path file;
+  private final Path errorFile;
+  private final int threads;
+  private final int batchSize;
+  private final Function<Bundle, Bundle> submit;
+
+  // Stored id of every Claim imported, keyed by its id in the file
+  private final Map<String, String> storedIds = new ConcurrentHashMap<>();
+
+  private final AtomicLong lines = new AtomicLong();
+  private final AtomicLong imported = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long started = 0;
+  private volatile long finished = 0;
+  private volatile Status status = Status.ACCEPTED;
+  private volatile String error = null;
+  private Writer errors;
+
+  /**
+   * Create a job importing a file
+   *
+   * @param id        - the id of the job.
+   * @param file      - the NDJSON file of Claim Bundles.
+   * @param errorFile - the file the lines which fail are written to.
+   * @param threads   - the number of threads parsing and of lanes submitting.
+   * @param batchSize - the maximum number of Bundles committed together.
+   * @param submit    - processes a Bundle like $submit and returns the response
+   *                  Bundle, or null if it failed.
+   */
+  public ImportJob(String id, Path file, Path errorFile, int threads, int batchSize,
+      Function<Bundle, Bundle> submit) {
+    this.id = id;
+    this.file = file;
+    this.errorFile = errorFile;
+    this.threads = Math.max(1, threads);
+    this.batchSize = Math.max(1, batchSize);
+    this.submit = submit;
+  }
+
+  @Override
+  public void run() {
+    status = Status.RUNNING;
+    started = System.nanoTime();
+    ExecutorService parsers = Executors.newFixedThreadPool(threads, task -> {
+      Thread thread = new Thread(task, "BulkImport-parse");
+      thread.setDaemon(true);
+      return thread;
+    });
+    List<Lane> lanes = new ArrayList<>();
+    for (int i = 0; i < threads; i++)
+      lanes.add(new Lane(i));
+
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        Writer errorWriter = new BufferedWriter(Files.newBufferedWriter(errorFile, StandardCharsets.UTF_8))) {
+      errors = errorWriter;
+      lanes.forEach(Thread::start);
+
+      // Lines are handed to the lanes in the order of the file while the next
+      // ones are parsed
+      Deque<Future<Line>> parsing = new ArrayDeque<>();
+      String text;
+      long number = 0;
+      try {
+        while ((text = reader.readLine()) != null) {
+          number++;
+          lines.incrementAndGet();
+          if (text.trim().isEmpty())
+            continue;
+          long lineNumber = number;
+          String lineText = text;
+          parsing.add(parsers.submit(() -> parse(lineNumber, lineText)));
+          if (parsing.size() >= threads * batchSize)
+            dispatch(lanes, parsing.poll().get());
+        }
+        while (!parsing.isEmpty())
+          dispatch(lanes, parsing.poll().get());
+      } finally {
+        for (Lane lane : lanes)
+          lane.queue.put(END);
+        for (Lane lane : lanes)
+          lane.join();
+      }
+      status = Status.COMPLETED;
+    } catch (IOException | ExecutionException e) {
+      error = e.getMessage();
+      status = Status.FAILED;
+      logger.log(Level.SEVERE, "ImportJob::run:" + e.getClass().getSimpleName(), e);
+    } catch (InterruptedException e) {
+      error = "Interrupted";
+      status = Status.FAILED;
+      Thread.currentThread().interrupt();
+    } finally {
+      parsers.shutdownNow();
+      finished = System.nanoTime();
+    }
+    logger.info("ImportJob::run:" + file + " " + getProgress());
+  }
+
+  /**
+   * Parse a line into a Claim Bundle
+   */
+  private Line parse(long number, String text) {
+    try {
+      Object resource = App.getFhirContext().newJsonParser().parseResource(text);
+      if (!(resource instanceof Bundle))
+        return new Line(number, null, null, "Not a Bundle");
+      Bundle bundle = (Bundle) resource;
+      if (!bundle.hasEntry() || !bundle.getEntry().get(0).hasResource()
+          || bundle.getEntry().get(0).getResource().getResourceType() != ResourceType.Claim)
+        return new Line(number, null, null, "The first entry is not a Claim");
+      String patient = FhirUtils.getPatientIdentifierFromBundle(bundle);
+      if (patient == null)
+        return new Line(number, null, null, "No patient");
+      return new Line(number, bundle, patient, null);
+    } catch (RuntimeException e) {
+      return new Line(number, null, null, e.getMessage());
+    }
+  }
+
+  private void dispatch(List<Lane> lanes, Line line) throws InterruptedException {
+    if (line.error != null)
+      fail(line.number, line.error);
+    else
+      lanes.get(Math.floorMod(line.patient.hashCode(), lanes.size())).queue.put(line);
+  }
+
+  /**
+   * A thread submitting the Bundles of some patients in the order they are
+   * queued
+   */
+  private class Lane extends Thread {
+    private final BlockingQueue<Line> queue = new ArrayBlockingQueue<>(batchSize * 2);
+
+    Lane(int index) {
+      super("BulkImport-" + index);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      List<Line> batch = new ArrayList<>();
+      boolean end = false;
+      while (!end) {
+        batch.clear();
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        queue.drainTo(batch, batchSize - 1);
+        end = batch.remove(END);
+        for (List<Line> shardBatch : byShard(batch))
+          importBatch(shardBatch);
+      }
+    }
+  }
+
+  /**
+   * Split a batch by the shard of the patients, keeping the order of the lines
+   * of each shard
+   */
+  private static Collection<List<Line>> byShard(List<Line> batch) {
+    Map<Integer, List<Line>> shards = new LinkedHashMap<>();
+    for (Line line : batch)
+      shards.computeIfAbsent(App.getDB().shardOf(line.patient), shard -> new ArrayList<>()).add(line);
+    return shards.values();
+  }
+
+  /**
+   * Submit the Bundles of a batch, whose patients all belong to one shard, in
+   * one unit of work. A Bundle which fails is rolled back to the savepoint taken
+   * before it, with the timers it scheduled (see UnitOfWork.afterCommit).
+   */
+  private void importBatch(List<Line> batch) {
+    List<Line> submitted = new ArrayList<>();
+    List<String> originalIds = new ArrayList<>();
+    boolean committed;
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork(batch.get(0).patient)) {
+      for (Line line : batch) {
+        Savepoint savepoint = unitOfWork.savepoint();
+        Claim claim = FhirUtils.getClaimFromRequestBundle(line.bundle);
+        String originalId = relink(claim);
+        String lineError = null;
+        AuditContext auditContext = AuditContext.begin(null);
+        try {
+          Bundle response = submit.apply(line.bundle);
+          if (response == null)
+            lineError = "Unable to process the Bundle";
+          else if (originalId != null)
+            storedIds.put(originalId, FhirUtils.getIdFromResource(claim));
+          Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.E,
+              response != null ? AuditEventOutcome.SUCCESS : AuditEventOutcome.MINOR_FAILURE, null, null,
+              "$import " + file.getFileName() + " line " + line.number);
+        } catch (RuntimeException e) {
+          lineError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        } finally {
+          auditContext.close();
+        }
+
+        if (lineError == null) {
+          submitted.add(line);
+          originalIds.add(originalId);
+        } else {
+          unitOfWork.rollbackTo(savepoint);
+          fail(line.number, lineError);
+        }
+      }
+      committed = unitOfWork.commit();
+    }
+
+    if (committed) {
+      imported.addAndGet(submitted.size());
+    } else {
+      for (int i = 0; i < submitted.size(); i++) {
+        if (originalIds.get(i) != null)
+          storedIds.remove(originalIds.get(i));
+        fail(submitted.get(i).number, "Unable to commit");
+      }
+    }
+  }
+
+  /**
+   * Point a Claim which updates or cancels a Claim imported earlier at the
+   * stored Claim
+   *
+   * @param claim - the Claim of the Bundle.
+   * @return the id of the Claim in the file.
+   */
+  private String relink(Claim claim) {
+    String originalId = FhirUtils.getIdFromResource(claim);
+    if (originalId != null && storedIds.containsKey(originalId))
+      claim.setId(storedIds.get(originalId));
+    for (RelatedClaimComponent related : claim.getRelated()) {
+      for (Coding code : related.getRelationship().getCoding()) {
+        if ("replaces".equals(code.getCode()) && storedIds.containsKey(related.getId()))
+          related.setId(storedIds.get(related.getId()));
+      }
+    }
+    return originalId;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void fail(long number, String message) {
+    failed.incrementAndGet();
+    JSONObject line = new JSONObject();
+    line.put("line", number);
+    line.put("error", message);
+    synchronized (this) {
+      try {
+        errors.write(line.toJSONString());
+        errors.write('\n');
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "ImportJob::fail:IOException", e);
+      }
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public Path getErrorFile() {
+    return errorFile;
+  }
+
+  public long getLines() {
+    return lines.get();
+  }
+
+  public long getImported() {
+    return imported.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Get the number of Bundles imported (or failed) per second so far
+   *
+   * @return the throughput or 0 if the job has not started.
+   */
+  public double getThroughput() {
+    if (started == 0)
+      return 0;
+    long elapsed = (finished != 0 ? finished : System.nanoTime()) - started;
+    return (imported.get() + failed.get()) * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed);
+  }
+
+  /**
+   * Get a description of the progress of the job
+   *
+   * @return for example "1200 lines, 1180 imported, 20 failed, 350.2/s".
+   */
+  public String getProgress() {
+    return String.format("%d lines, %d imported, %d failed, %.1f/s", getLines(), getImported(), getFailed(),
+        getThroughput());
+  }
+}
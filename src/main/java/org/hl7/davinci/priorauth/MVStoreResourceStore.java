@@ -0,0 +1,781 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * ResourceStore engine built directly on H2 MVStore maps instead of SQL. Every
+ * table is a map from the primary key to the row (the column values in the
+ * order of CreateDatabase.sql followed by a write sequence number which orders
+ * rows written within the same millisecond). Frequently searched columns have an index map
+ * from value + primary key to primary key so lookups by patient, related claim
+ * or token do not scan the table.
+ *
+ * Deleting a Claim cascades to the rows referencing it, like the ON DELETE
+ * CASCADE foreign keys of the SQL engine. Other foreign keys are not enforced.
+ * Changes are committed to disk by the MVStore background writer (within a
+ * second) and when the application shuts down.
+ */
+public class MVStoreResourceStore implements ResourceStore {
+
+  static final Logger logger = PALogger.getLogger();
+
+  private static final String MVSTORE_FILE = "resourcestore.mv.db";
+
+
+  // Separates the parts of composite keys. Never part of an id or column value
+  private static final char SEPARATOR = '\u0000';
+
+  private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS";
+
+  private static final Map<Table, String[]> COLUMNS = new EnumMap<>(Table.class);
+  private static final Map<Table, String[]> PRIMARY_KEYS = new EnumMap<>(Table.class);
+  private static final Map<Table, String[]> INDEXES = new EnumMap<>(Table.class);
+  private static final Map<Table, Map<String, String>> DEFAULTS = new EnumMap<>(Table.class);
+
+  static {
+    COLUMNS.put(Table.BUNDLE, new String[] { "id", "patient", "timestamp", "resource" });
+    COLUMNS.put(Table.CLAIM,
+        new String[] { "id", "patient", "related", "status", "isDifferential", "timestamp", "resource" });
+    COLUMNS.put(Table.CLAIM_RESPONSE, new String[] { "id", "claimId", "patient", "status", "outcome",
+        "isDifferential", "timestamp", "resource" });
+    COLUMNS.put(Table.CLAIM_ITEM, new String[] { "id", "sequence", "outcome", "status", "timestamp" });
+    COLUMNS.put(Table.SUBSCRIPTION, new String[] { "id", "claimResponseId", "patient", "status", "end",
+        "websocketId", "timestamp", "resource" });
+    COLUMNS.put(Table.RULES, new String[] { "system", "code", "topic", "rule", "timestamp" });
+    COLUMNS.put(Table.AUDIT, new String[] { "id", "type", "action", "outcome", "what", "query", "ip", "clientId",
+        "requestor", "description", "operations", "timestamp", "resource" });
+    COLUMNS.put(Table.CLIENT, new String[] { "id", "jwks", "jwks_url", "token", "timestamp", "organization" });
+
+    PRIMARY_KEYS.put(Table.BUNDLE, new String[] { "id" });
+    PRIMARY_KEYS.put(Table.CLAIM, new String[] { "id" });
+    PRIMARY_KEYS.put(Table.CLAIM_RESPONSE, new String[] { "id" });
+    PRIMARY_KEYS.put(Table.CLAIM_ITEM, new String[] { "id", "sequence" });
+    PRIMARY_KEYS.put(Table.SUBSCRIPTION, new String[] { "id" });
+    PRIMARY_KEYS.put(Table.RULES, new String[] { "system", "code" });
+    PRIMARY_KEYS.put(Table.AUDIT, new String[0]);
+    PRIMARY_KEYS.put(Table.CLIENT, new String[] { "id" });
+
+    INDEXES.put(Table.BUNDLE, new String[] { "patient" });
+    INDEXES.put(Table.CLAIM, new String[] { "patient", "related" });
+    INDEXES.put(Table.CLAIM_RESPONSE, new String[] { "patient", "claimId" });
+    INDEXES.put(Table.CLAIM_ITEM, new String[0]);
+    INDEXES.put(Table.SUBSCRIPTION, new String[] { "patient", "claimResponseId" });
+    INDEXES.put(Table.RULES, new String[0]);
+    INDEXES.put(Table.AUDIT, new String[0]);
+    INDEXES.put(Table.CLIENT, new String[] { "token" });
+
+    for (Table table : Table.values())
+      DEFAULTS.put(table, new HashMap<>());
+    DEFAULTS.get(Table.CLAIM).put("isdifferential", "FALSE");
+    DEFAULTS.get(Table.CLAIM_RESPONSE).put("isdifferential", "FALSE");
+  }
+
+  private final MVStore store;
+  private final Map<Table, MVMap<String, String[]>> tables = new EnumMap<>(Table.class);
+  private final Map<Table, Map<String, MVMap<String, String>>> indexes = new EnumMap<>(Table.class);
+  private final Map<Table, Map<String, Integer>> columnIndexes = new EnumMap<>(Table.class);
+  private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+
+  public MVStoreResourceStore() {
+    this("./");
+  }
+
+  /**
+   * Open (or create) the store in the given directory
+   *
+   * @param relativePath - directory of the store file. If null the store is kept
+   *                     in memory only.
+   */
+  public MVStoreResourceStore(String relativePath) {
+    MVStore.Builder builder = new MVStore.Builder();
+    if (relativePath != null) {
+      builder.fileName(relativePath + MVSTORE_FILE);
+      logger.info("MVStore: " + relativePath + MVSTORE_FILE);
+    }
+    store = builder.open();
+
+    for (Table table : Table.values()) {
+      tables.put(table, store.openMap(table.value()));
+      Map<String, MVMap<String, String>> tableIndexes = new HashMap<>();
+      for (String column : INDEXES.get(table))
+        tableIndexes.put(column.toLowerCase(Locale.ROOT), store.openMap(table.value() + "." + column));
+      indexes.put(table, tableIndexes);
+
+      Map<String, Integer> positions = new HashMap<>();
+      String[] columns = COLUMNS.get(table);
+      for (int i = 0; i < columns.length; i++)
+        positions.put(columns[i].toLowerCase(Locale.ROOT), i);
+      columnIndexes.put(table, positions);
+    }
+
+    String basePath = relativePath != null ? relativePath : "./";
+    try {
+      HtmlTableWriter.loadTemplates(basePath);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "MVStoreResourceStore::MVStoreResourceStore:IOException", e);
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(this::close, "MVStoreResourceStore-close"));
+  }
+
+  /**
+   * Commit any pending changes and close the store
+   */
+  public void close() {
+    if (!store.isClosed())
+      store.close();
+  }
+
+  @Override
+  public Bundle search(Table table, Map<String, Object> constraintMap) {
+    logger.info("MVStoreResourceStore::search(" + table.value() + ", " + constraintMap.toString() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    try {
+      int total = 0;
+      for (String[] row : select(table, constraintMap, false)) {
+        String id = row[column(table, "id")];
+        Resource resource = parse(table, row);
+        resource.setId(id);
+        BundleEntryComponent entry = new BundleEntryComponent();
+        entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + id);
+        entry.setResource(resource);
+        results.addEntry(entry);
+        total += 1;
+      }
+      results.setTotal(total);
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::search:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Search " + table.value());
+    return results;
+  }
+
+  @Override
+  public SearchPage searchPage(Table table, Map<String, Object> constraintMap, int count, String pageToken) {
+    logger.info("MVStoreResourceStore::searchPage(" + table.value() + ", " + constraintMap.toString() + ", " + count
+        + ")");
+    count = Math.max(count, 1);
+    String[] cursor = pageToken != null ? SearchPage.decodeToken(pageToken, 2) : null;
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    String nextPageToken = null;
+    try {
+      int idColumn = column(table, "id");
+      int timestampColumn = column(table, "timestamp");
+      int sequenceColumn = COLUMNS.get(table).length;
+      int total = 0;
+      String[] last = null;
+      for (String[] row : select(table, constraintMap, true)) {
+        String timestamp = row[timestampColumn] != null ? row[timestampColumn] : "";
+        // Skip the rows up to and including the last row of the previous page
+        if (cursor != null) {
+          int compare = timestamp.compareTo(cursor[0]);
+          if (compare > 0 || (compare == 0 && row[sequenceColumn].compareTo(cursor[1]) >= 0))
+            continue;
+        }
+        if (total == count) {
+          nextPageToken = SearchPage.encodeToken(last[timestampColumn] != null ? last[timestampColumn] : "",
+              last[sequenceColumn]);
+          break;
+        }
+        Resource resource = parse(table, row);
+        resource.setId(row[idColumn]);
+        BundleEntryComponent entry = new BundleEntryComponent();
+        entry.setFullUrl(App.getBaseUrl() + "/" + table.value() + "/" + row[idColumn]);
+        entry.setResource(resource);
+        results.addEntry(entry);
+        last = row;
+        total += 1;
+      }
+      if (cursor == null && nextPageToken == null)
+        results.setTotal(total);
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::searchPage:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Search " + table.value());
+    return new SearchPage(results, nextPageToken);
+  }
+
+  @Override
+  public IBaseResource read(Table table, Map<String, Object> constraintParams) {
+    logger.info("MVStoreResourceStore::read(" + table.value() + ", " + constraintParams.toString() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    IBaseResource result = null;
+    try {
+      List<String[]> rows = select(table, constraintParams, true);
+      if (!rows.isEmpty())
+        result = parse(table, rows.get(0));
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::read:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read from " + table.value());
+    return result;
+  }
+
+  @Override
+  public List<IBaseResource> readAll(Table table, Map<String, Object> constraintParams) {
+    logger.info("MVStoreResourceStore::readAll(" + table.value() + ", " + constraintParams.toString() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    List<IBaseResource> results = new ArrayList<IBaseResource>();
+    try {
+      for (String[] row : select(table, constraintParams, true))
+        results.add(parse(table, row));
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::readAll:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read all of " + table.value());
+    return results;
+  }
+
+  @Override
+  public String readString(Table table, Map<String, Object> constraintParams, String column) {
+    logger.info("MVStoreResourceStore::read(" + table.value() + ", " + constraintParams.toString() + ", " + column
+        + ")");
+    try {
+      int position = column(table, column);
+      List<String[]> rows = select(table, constraintParams, true);
+      if (!rows.isEmpty()) {
+        Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, null,
+            "Read " + column + " from " + table.value());
+        return rows.get(0)[position];
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, "MVStoreResourceStore::readString:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SERIOUS_FAILURE, null, null,
+        "Read " + column + " from " + table.value());
+    return null;
+  }
+
+  @Override
+  public Map<String, String> readColumns(Table table, Map<String, Object> constraintParams, String... columns) {
+    List<Map<String, String>> rows = selectColumns(table, constraintParams, columns, 1);
+    return rows.isEmpty() ? null : rows.get(0);
+  }
+
+  @Override
+  public List<Map<String, String>> readAllColumns(Table table, Map<String, Object> constraintParams,
+      String... columns) {
+    return selectColumns(table, constraintParams, columns, Integer.MAX_VALUE);
+  }
+
+  private List<Map<String, String>> selectColumns(Table table, Map<String, Object> constraintParams,
+      String[] columns, int limit) {
+    String projection = String.join(", ", columns);
+    logger.info("MVStoreResourceStore::readColumns(" + table.value() + ", " + constraintParams.toString() + ", "
+        + projection + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    List<Map<String, String>> results = new ArrayList<>();
+    try {
+      int[] positions = new int[columns.length];
+      for (int i = 0; i < columns.length; i++)
+        positions[i] = column(table, columns[i]);
+      for (String[] row : select(table, constraintParams, true)) {
+        if (results.size() == limit)
+          break;
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < columns.length; i++)
+          values.put(columns[i], row[positions[i]]);
+        results.add(values);
+      }
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::readColumns:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read " + projection + " from " + table.value());
+    return results;
+  }
+
+  /**
+   * Read the version of the most recent resource matching the constraints. The
+   * write sequence number of a row is its version.
+   */
+  @Override
+  public ResourceVersion readVersion(Table table, Map<String, Object> constraintParams) {
+    logger.info("MVStoreResourceStore::readVersion(" + table.value() + ", " + constraintParams.toString() + ")");
+    if (!QueryShape.VERSIONED_TABLES.contains(table))
+      return null;
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    ResourceVersion result = null;
+    try {
+      List<String[]> rows = select(table, constraintParams, true);
+      if (!rows.isEmpty()) {
+        String[] row = rows.get(0);
+        result = new ResourceVersion(row[row.length - 1], parseTimestamp(row[column(table, "timestamp")]));
+      }
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::readVersion:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, auditOutcome, null, null,
+        "Read version from " + table.value());
+    return result;
+  }
+
+  @Override
+  public boolean write(Table table, Map<String, Object> data) {
+    logger.info("MVStoreResourceStore::write(" + table.value() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    boolean result = false;
+    if (data != null) {
+      try {
+        String[] row = new String[COLUMNS.get(table).length + 1];
+        for (Map.Entry<String, String> entry : DEFAULTS.get(table).entrySet())
+          row[column(table, entry.getKey())] = entry.getValue();
+        row[column(table, "timestamp")] = now();
+        row[row.length - 1] = nextSequence();
+        for (Map.Entry<String, Object> entry : data.entrySet())
+          row[column(table, entry.getKey())] = QueryShape.toSqlString(entry.getValue());
+
+        synchronized (this) {
+          String key = primaryKey(table, row);
+          if (tables.get(table).putIfAbsent(key, row) == null) {
+            addToIndexes(table, key, row);
+            result = true;
+          } else {
+            auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+            logger.severe("MVStoreResourceStore::write:Duplicate primary key in " + table.value());
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+        logger.log(Level.SEVERE, "MVStoreResourceStore::write:IllegalArgumentException", e);
+      }
+    }
+    if (table != Table.AUDIT)
+      Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C, auditOutcome, null, null,
+          "Write to " + table.value() + (data.get("id") != null ? "/" + data.get("id") : ""));
+    return result;
+  }
+
+  @Override
+  public boolean update(Table table, Map<String, Object> constraintParams, Map<String, Object> data) {
+    logger.info("MVStoreResourceStore::update(" + table.value() + ", WHERE " + constraintParams.toString() + ", SET"
+        + data.toString() + ")");
+    AuditEventOutcome auditOutcome = AuditEventOutcome.SUCCESS;
+    boolean result = false;
+    try {
+      int timestampColumn = column(table, "timestamp");
+      synchronized (this) {
+        for (String[] row : select(table, constraintParams, false)) {
+          String oldKey = primaryKey(table, row);
+          String[] updated = row.clone();
+          for (Map.Entry<String, Object> entry : data.entrySet())
+            updated[column(table, entry.getKey())] = QueryShape.toSqlString(entry.getValue());
+          updated[timestampColumn] = now();
+          updated[updated.length - 1] = nextSequence();
+
+          String newKey = primaryKey(table, updated);
+          removeFromIndexes(table, oldKey, row);
+          if (!newKey.equals(oldKey))
+            tables.get(table).remove(oldKey);
+          tables.get(table).put(newKey, updated);
+          addToIndexes(table, newKey, updated);
+          result = true;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      auditOutcome = AuditEventOutcome.SERIOUS_FAILURE;
+      logger.log(Level.SEVERE, "MVStoreResourceStore::update:IllegalArgumentException", e);
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.U, auditOutcome, null, null,
+        "Update " + table.value() + " SET " + data.keySet() + " WHERE " + constraintParams.keySet());
+    return result;
+  }
+
+  @Override
+  public boolean delete(Table table, String id, String patient) {
+    logger.info("MVStoreResourceStore::delete(" + table.value() + ", " + id + ", " + patient + ")");
+    Map<String, Object> constraintMap = new HashMap<String, Object>();
+    constraintMap.put("id", id);
+    constraintMap.put("patient", patient);
+    boolean result = false;
+    if (table != null && id != null)
+      result = deleteWhere(table, constraintMap);
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D, AuditEventOutcome.SUCCESS, null, null,
+        "Delete " + table.value() + "/" + id + " for patient " + patient);
+    return result;
+  }
+
+  @Override
+  public boolean delete(Table table, String id) {
+    logger.info("MVStoreResourceStore::delete(" + table.value() + ", " + id + ")");
+    boolean result = false;
+    if (table != null && id != null)
+      result = deleteWhere(table, Collections.singletonMap("id", id));
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D, AuditEventOutcome.SUCCESS, null, null,
+        "Delete " + id + "from " + table.value());
+    return result;
+  }
+
+  @Override
+  public boolean delete(Table table) {
+    logger.info("MVStoreResourceStore::delete(" + table.value() + ")");
+    boolean result;
+    synchronized (this) {
+      result = tables.get(table).size() > 0;
+      clear(table);
+      if (table == Table.CLAIM) {
+        clear(Table.CLAIM_ITEM);
+        clear(Table.CLAIM_RESPONSE);
+      }
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D, AuditEventOutcome.SUCCESS, null, null,
+        "Delete " + table.value());
+    return result;
+  }
+
+  /**
+   * Export a table by iterating over its map. Timestamps are stored in a
+   * sortable format so since is compared to them as a string.
+   */
+  @Override
+  public long exportNdjson(Table table, Date since, Writer out) throws IOException {
+    logger.info("MVStoreResourceStore::exportNdjson(" + table.value() + ", " + since + ")");
+    String from = since != null ? new SimpleDateFormat(TIMESTAMP_FORMAT).format(since) : null;
+    int resourceColumn = column(table, "resource");
+    int timestampColumn = column(table, "timestamp");
+    Integer statusColumn = table == Table.CLAIM ? column(table, "status") : null;
+    long count = 0;
+    for (String[] row : tables.get(table).values()) {
+      String json = row[resourceColumn];
+      if (json == null || (from != null && (row[timestampColumn] == null || row[timestampColumn].compareTo(from) < 0)))
+        continue;
+      out.write(ExportJob.ndjsonLine(table, json, statusColumn != null ? row[statusColumn] : null));
+      out.write('\n');
+      count++;
+    }
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, null,
+        "Export " + table.value());
+    return count;
+  }
+
+  /**
+   * Write a page of a table, most recent first. Each page continues after the
+   * last row of the previous page like searchPage. The rows are scanned once
+   * and only the rows of the page are kept and sorted.
+   */
+  @Override
+  public String writeTable(Table table, int count, String pageToken, HtmlTableWriter out) throws IOException {
+    String[] cursor = pageToken != null ? SearchPage.decodeToken(pageToken, 2) : null;
+    String[] columns = COLUMNS.get(table);
+    String[] columnNames = new String[columns.length];
+    for (int i = 0; i < columns.length; i++)
+      columnNames[i] = columns[i].toUpperCase(Locale.ROOT);
+    out.columns(columnNames);
+
+    int timestampColumn = column(table, "timestamp");
+    int sequenceColumn = columns.length;
+    Comparator<String[]> newestFirst = newestFirst(table);
+    // The oldest row kept is dropped first when a more recent row is found
+    PriorityQueue<String[]> page = new PriorityQueue<>(count + 1, newestFirst.reversed());
+    for (String[] row : tables.get(table).values()) {
+      if (cursor != null) {
+        int compare = (row[timestampColumn] != null ? row[timestampColumn] : "").compareTo(cursor[0]);
+        if (compare > 0 || (compare == 0 && row[sequenceColumn].compareTo(cursor[1]) >= 0))
+          continue;
+      }
+      page.add(row);
+      // One row more than the page is kept to know if there is a next page
+      if (page.size() > count + 1)
+        page.poll();
+    }
+    List<String[]> rows = new ArrayList<>(page);
+    rows.sort(newestFirst);
+
+    for (String[] row : rows.subList(0, Math.min(count, rows.size()))) {
+      out.startRow();
+      for (int i = 0; i < columns.length; i++) {
+        if (row[i] != null && (columns[i].equals("resource") || columns[i].equals("organization")))
+          out.preview(new StringReader(row[i]));
+        else
+          out.cell(row[i]);
+      }
+      out.endRow();
+    }
+    if (rows.size() <= count)
+      return null;
+    String[] last = rows.get(count - 1);
+    return SearchPage.encodeToken(last[timestampColumn] != null ? last[timestampColumn] : "", last[sequenceColumn]);
+  }
+
+  /**
+   * Find the rows matching every constraint. Uses the primary key or an index
+   * map when the constraints allow it instead of scanning the whole table.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - map of column to value the rows must match. The
+   *                         values of indexed search parameters
+   *                         (SearchIndex.Criterion) are matched against the
+   *                         parsed resource since this engine stores no search
+   *                         index.
+   * @param orderByTimestamp - whether to sort the rows most recent first.
+   * @return the matching rows
+   * @throws IllegalArgumentException if a constraint is not a column of the table
+   */
+  private List<String[]> select(Table table, Map<String, Object> constraintParams, boolean orderByTimestamp) {
+    List<SearchIndex.Criterion> criteria = new ArrayList<>();
+    Map<String, Object> columnParams = new HashMap<>();
+    for (Map.Entry<String, Object> entry : constraintParams.entrySet()) {
+      if (entry.getValue() instanceof SearchIndex.Criterion)
+        criteria.add((SearchIndex.Criterion) entry.getValue());
+      else
+        columnParams.put(entry.getKey(), entry.getValue());
+    }
+    constraintParams = columnParams;
+
+    int[] positions = new int[constraintParams.size()];
+    String[] values = new String[constraintParams.size()];
+    Map<String, String> byColumn = new HashMap<>();
+    int c = 0;
+    for (Map.Entry<String, Object> entry : constraintParams.entrySet()) {
+      positions[c] = column(table, entry.getKey());
+      values[c] = QueryShape.toSqlString(entry.getValue());
+      byColumn.put(entry.getKey().toLowerCase(Locale.ROOT), values[c]);
+      c++;
+    }
+
+    MVMap<String, String[]> map = tables.get(table);
+    List<String[]> rows = new ArrayList<>();
+    String[] primaryKey = PRIMARY_KEYS.get(table);
+    String indexedColumn = indexedColumn(table, byColumn);
+    if (primaryKey.length > 0 && byColumn.keySet().containsAll(lowerCase(primaryKey))) {
+      String[] keyValues = new String[primaryKey.length];
+      for (int i = 0; i < primaryKey.length; i++)
+        keyValues[i] = byColumn.get(primaryKey[i].toLowerCase(Locale.ROOT));
+      String[] row = map.get(joinKey(keyValues));
+      if (row != null)
+        rows.add(row);
+    } else if (indexedColumn != null) {
+      String prefix = byColumn.get(indexedColumn) + SEPARATOR;
+      MVMap<String, String> index = indexes.get(table).get(indexedColumn);
+      for (Iterator<String> it = index.keyIterator(prefix); it.hasNext();) {
+        String indexKey = it.next();
+        if (!indexKey.startsWith(prefix))
+          break;
+        String[] row = map.get(index.get(indexKey));
+        if (row != null)
+          rows.add(row);
+      }
+    } else if (primaryKey.length > 1 && byColumn.containsKey(primaryKey[0].toLowerCase(Locale.ROOT))) {
+      String prefix = byColumn.get(primaryKey[0].toLowerCase(Locale.ROOT)) + SEPARATOR;
+      for (Iterator<String> it = map.keyIterator(prefix); it.hasNext();) {
+        String key = it.next();
+        if (!key.startsWith(prefix))
+          break;
+        rows.add(map.get(key));
+      }
+    } else {
+      rows.addAll(map.values());
+    }
+
+    rows.removeIf(row -> !matches(row, positions, values));
+    if (!criteria.isEmpty())
+      rows.removeIf(row -> !SearchIndex.matches(table, parse(table, row), criteria));
+    if (orderByTimestamp)
+      sortByTimestamp(table, rows);
+    return rows;
+  }
+
+  private boolean deleteWhere(Table table, Map<String, Object> constraintMap) {
+    boolean result = false;
+    try {
+      synchronized (this) {
+        for (String[] row : select(table, constraintMap, false)) {
+          String key = primaryKey(table, row);
+          tables.get(table).remove(key);
+          removeFromIndexes(table, key, row);
+          if (table == Table.CLAIM)
+            cascadeDelete(row[column(table, "id")]);
+          result = true;
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, "MVStoreResourceStore::delete:IllegalArgumentException", e);
+    }
+    return result;
+  }
+
+  /**
+   * Delete every row referencing a deleted Claim
+   */
+  private void cascadeDelete(String claimId) {
+    deleteWhere(Table.CLAIM, Collections.singletonMap("related", claimId));
+    deleteWhere(Table.CLAIM_RESPONSE, Collections.singletonMap("claimId", claimId));
+    deleteWhere(Table.CLAIM_ITEM, Collections.singletonMap("id", claimId));
+  }
+
+  private void clear(Table table) {
+    tables.get(table).clear();
+    for (MVMap<String, String> index : indexes.get(table).values())
+      index.clear();
+  }
+
+  private static boolean matches(String[] row, int[] positions, String[] values) {
+    for (int i = 0; i < positions.length; i++) {
+      if (row[positions[i]] == null || !row[positions[i]].equals(values[i]))
+        return false;
+    }
+    return true;
+  }
+
+  private String indexedColumn(Table table, Map<String, String> byColumn) {
+    for (String column : indexes.get(table).keySet()) {
+      if (byColumn.containsKey(column))
+        return column;
+    }
+    return null;
+  }
+
+  private void addToIndexes(Table table, String key, String[] row) {
+    for (Map.Entry<String, MVMap<String, String>> index : indexes.get(table).entrySet()) {
+      String value = row[column(table, index.getKey())];
+      if (value != null)
+        index.getValue().put(value + SEPARATOR + key, key);
+    }
+  }
+
+  private void removeFromIndexes(Table table, String key, String[] row) {
+    for (Map.Entry<String, MVMap<String, String>> index : indexes.get(table).entrySet()) {
+      String value = row[column(table, index.getKey())];
+      if (value != null)
+        index.getValue().remove(value + SEPARATOR + key);
+    }
+  }
+
+  /**
+   * Build the map key of a row from its primary key columns. Tables without a
+   * primary key get a random key.
+   */
+  private String primaryKey(Table table, String[] row) {
+    String[] primaryKey = PRIMARY_KEYS.get(table);
+    if (primaryKey.length == 0)
+      return UUID.randomUUID().toString();
+
+    String[] keyValues = new String[primaryKey.length];
+    for (int i = 0; i < primaryKey.length; i++) {
+      keyValues[i] = row[column(table, primaryKey[i])];
+      if (keyValues[i] == null)
+        throw new IllegalArgumentException("Missing primary key column " + primaryKey[i] + " for " + table.value());
+    }
+    return joinKey(keyValues);
+  }
+
+  private static String joinKey(String[] values) {
+    StringBuilder key = new StringBuilder(values[0]);
+    for (int i = 1; i < values.length; i++)
+      key.append(SEPARATOR).append(values[i]);
+    return key.toString();
+  }
+
+  /**
+   * Parse the resource of a row. Rows of the Audit table without a resource are
+   * built from their columns (see Audit.toAuditEvent).
+   */
+  private Resource parse(Table table, String[] row) {
+    String json = row[column(table, "resource")];
+    if (json != null || table != Table.AUDIT)
+      return (Resource) App.getFhirContext().newJsonParser().parseResource(json);
+
+    Map<String, String> values = new HashMap<>();
+    for (String column : COLUMNS.get(Table.AUDIT))
+      values.put(column, row[column(table, column)]);
+    return Audit.toAuditEvent(values, parseTimestamp(values.get("timestamp")));
+  }
+
+  private static Date parseTimestamp(String timestamp) {
+    try {
+      return timestamp != null ? new SimpleDateFormat(TIMESTAMP_FORMAT).parse(timestamp) : null;
+    } catch (ParseException e) {
+      logger.fine("MVStoreResourceStore::parseTimestamp:Unable to parse timestamp " + timestamp);
+      return null;
+    }
+  }
+
+  private int column(Table table, String column) {
+    Integer position = columnIndexes.get(table).get(column.toLowerCase(Locale.ROOT));
+    if (position == null)
+      throw new IllegalArgumentException("Column " + column + " not found in " + table.value());
+    return position;
+  }
+
+  /**
+   * Sort rows most recent first. Rows with the same timestamp are ordered by
+   * their write sequence number.
+   */
+  private void sortByTimestamp(Table table, List<String[]> rows) {
+    rows.sort(newestFirst(table));
+  }
+
+  private Comparator<String[]> newestFirst(Table table) {
+    int timestampColumn = column(table, "timestamp");
+    int sequenceColumn = COLUMNS.get(table).length;
+    return (a, b) -> {
+      String first = a[timestampColumn] != null ? a[timestampColumn] : "";
+      String second = b[timestampColumn] != null ? b[timestampColumn] : "";
+      int compare = second.compareTo(first);
+      return compare != 0 ? compare : b[sequenceColumn].compareTo(a[sequenceColumn]);
+    };
+  }
+
+  private String nextSequence() {
+    return String.format("%020d", sequence.incrementAndGet());
+  }
+
+  private static List<String> lowerCase(String[] columns) {
+    List<String> lower = new ArrayList<>(columns.length);
+    for (String column : columns)
+      lower.add(column.toLowerCase(Locale.ROOT));
+    return lower;
+  }
+
+  private static String now() {
+    return new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+  }
+}
@@ -0,0 +1,54 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Lightweight registry of counters and gauges describing the internals of the
+ * microservice (connection pool, caches, background workers...). The current
+ * values are exposed by the /Metrics endpoint.
+ */
+public class Metrics {
+
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Get (creating if necessary) the counter with the given name
+     *
+     * @param name - the name of the counter
+     * @return the counter
+     */
+    public static AtomicLong counter(String name) {
+        return counters.computeIfAbsent(name, key -> new AtomicLong());
+    }
+
+    /**
+     * Register a gauge which is evaluated every time the metrics are read. A gauge
+     * registered under an existing name replaces the previous one.
+     *
+     * @param name  - the name of the gauge
+     * @param gauge - supplier of the current value
+     */
+    public static void registerGauge(String name, Supplier<Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Get the current value of every counter and gauge
+     *
+     * @return map of metric name to current value, sorted by name
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.get()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+        return snapshot;
+    }
+}
@@ -31,6 +31,10 @@ public class ProcessClaimItemTask implements Runnable {
     private Thread thread;
     private ItemComponent item;
 
+    // The row to write for the item, set once the item has been processed
+    private Map<String, Object> itemData;
+    private Map<String, Object> itemConstraints;
+
     /**
      * Thread Status codes
      * 
@@ -59,7 +63,8 @@ public class ProcessClaimItemTask implements Runnable {
     public void start() {
         logger.fine("ProcessClaimItemTask::start:ClaimItem " + this.getItemName());
         if (this.thread == null) {
-            this.thread = new Thread(this, this.getItemName());
+            // Items are read in the unit of work (and audit context) of the request
+            this.thread = new Thread(AuditContext.propagate(UnitOfWork.propagate(this)), this.getItemName());
             this.thread.start();
             this.threadStatus = 3; // Running
         }
@@ -94,13 +99,32 @@ public class ProcessClaimItemTask implements Runnable {
         return this.id + "/" + this.item.getSequence();
     }
 
+    /**
+     * Get the ClaimItem columns computed for the item. The caller writes every
+     * item of a Claim in one batch once all of them have been processed.
+     * 
+     * @return map of column to value or null if the item has not been processed
+     */
+    public Map<String, Object> getItemData() {
+        return this.itemData;
+    }
+
+    /**
+     * Get the constraints of the existing ClaimItem row to update with the item
+     * data
+     * 
+     * @return map of column to value or null if the item is a new row
+     */
+    public Map<String, Object> getItemConstraints() {
+        return this.itemConstraints;
+    }
+
     /**
      * Process the claim item and compute a disposition
      * 
      * @return true if the claim item was processed successfully, false otherwise
      */
     private boolean process() {
-        boolean ret = true;
         boolean itemIsCancelled = false;
         String rulesEngine = PropertyProvider.getProperty("rules_engine");
         if (this.item.hasModifierExtension()) {
@@ -146,23 +170,14 @@ public class ProcessClaimItemTask implements Runnable {
             constraintMap.put("sequence", this.item.getSequence());
 
             // Update if item exists
-            if (App.getDB().readStatus(Table.CLAIM_ITEM, constraintMap) != null) {
-                if (!App.getDB().update(Table.CLAIM_ITEM, constraintMap, dataMap)) {
-                    logger.warning(
-                            "ClaimEndpoint::processClaimItems:unable to update claim item:" + this.getItemName());
-                    ret = false;
-                }
-                return ret;
-            }
-        }
-
-        // Add new item to the database
-        if (!App.getDB().write(Table.CLAIM_ITEM, dataMap)) {
-            logger.warning("ClaimEndpoint::processClaimItems:unable to write claim item:" + this.getItemName());
-            ret = false;
+            if (App.getDB().readStatus(Table.CLAIM_ITEM, constraintMap) != null)
+                this.itemConstraints = constraintMap;
         }
 
-        return ret;
+        // Staged for ClaimEndpoint, which writes the new items with writeBatch and
+        // the ones with itemConstraints with updateBatch
+        this.itemData = dataMap;
+        return true;
     }
 
     private Disposition sendAndGetDisposition(Bundle bundle, int seq, String address) throws IOException {
@@ -26,4 +26,16 @@ public class PropertyProvider {
         return result;
     }
 
+    /**
+     * Get a property, falling back to a default when it is not set
+     *
+     * @param property     - the name of the property.
+     * @param defaultValue - the value to use if the property is not set.
+     * @return the value of the property or defaultValue
+     */
+    public static String getProperty(String property, String defaultValue) {
+        String result = getProperty(property);
+        return result != null ? result : defaultValue;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,196 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.FhirUtils.ReviewAction;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+
+/**
+ * A TimerTask which deletes the Claim chains (see ClaimChain) older than the
+ * retention period. A chain is only deleted once it is final: its latest Claim
+ * was cancelled or its latest ClaimResponse is not pended. A chain with a
+ * Subscription on one of its ClaimResponses is kept since Subscription has no
+ * cascading foreign key. Deleting the root of a chain deletes the rest of the
+ * chain, its ClaimResponses and ClaimItems by cascade. The submitted Bundles of
+ * the chain (stored with the id of their Claim) are deleted with it, so a kept
+ * chain always keeps its Bundles. Bundles without a Claim are deleted by age.
+ *
+ * Each run deletes at most maxBatches batches of batchSize chains (and
+ * Bundles without a Claim), each in its own transaction, and pauses between
+ * batches so live requests are not starved of connections.
+ */
+public class PurgeExpiredTask extends TimerTask {
+
+    static final Logger logger = PALogger.getLogger();
+
+    private static final AtomicLong purgedClaims = Metrics.counter("db.purge.claims");
+    private static final AtomicLong purgedClaimResponses = Metrics.counter("db.purge.claim_responses");
+    private static final AtomicLong purgedBundles = Metrics.counter("db.purge.bundles");
+    private static final AtomicLong purgeMillis = Metrics.counter("db.purge.millis");
+
+    // Chains whose last activity is before the cutoff and whose head is final
+    private static final String SELECT_EXPIRED = "SELECT ClaimChain.rootId FROM ClaimChain INNER JOIN Claim head "
+            + "ON head.id = ClaimChain.headId WHERE ClaimChain.timestamp < ? AND head.timestamp < ? "
+            + "AND (head.status IN ('cancelled', 'entered-in-error') OR (SELECT outcome FROM ClaimResponse "
+            + "WHERE ClaimResponse.claimId = head.id ORDER BY ClaimResponse.timestamp DESC LIMIT 1) <> '"
+            + ReviewAction.PENDED.value() + "') AND NOT EXISTS (SELECT 1 FROM Claim INNER JOIN ClaimResponse "
+            + "ON ClaimResponse.claimId = Claim.id WHERE Claim.rootId = ClaimChain.rootId "
+            + "AND (ClaimResponse.timestamp >= ? OR EXISTS (SELECT 1 FROM Subscription "
+            + "WHERE Subscription.claimResponseId = ClaimResponse.id))) LIMIT ?;";
+    private static final String COUNT_CLAIMS = "SELECT COUNT(*) FROM Claim WHERE rootId = ?;";
+    private static final String COUNT_CLAIM_RESPONSES = "SELECT COUNT(*) FROM ClaimResponse INNER JOIN Claim "
+            + "ON ClaimResponse.claimId = Claim.id WHERE Claim.rootId = ?;";
+    private static final String DELETE_CHAIN = "DELETE FROM Claim WHERE rootId = ?;";
+    private static final String DELETE_CHAIN_BUNDLES = "DELETE FROM Bundle WHERE id IN "
+            + "(SELECT id FROM Claim WHERE rootId = ?);";
+    private static final String DELETE_BUNDLES = "DELETE FROM Bundle WHERE timestamp < ? AND NOT EXISTS "
+            + "(SELECT 1 FROM Claim WHERE Claim.id = Bundle.id) LIMIT ?;";
+
+    private final ConnectionPool pool;
+    private final ResourceCache cache;
+    private final int retentionDays;
+    private final int batchSize;
+    private final int maxBatches;
+    private final long pauseMillis;
+
+    /**
+     * Create the task
+     *
+     * @param pool          - the pool of the database to purge.
+     * @param cache         - the cache of the resources of the database.
+     * @param retentionDays - the number of days data is kept.
+     * @param batchSize     - the number of chains (and Bundles without a Claim)
+     *                      deleted per transaction.
+     * @param maxBatches    - the maximum number of batches per run.
+     * @param pauseMillis   - the pause between two batches.
+     */
+    public PurgeExpiredTask(ConnectionPool pool, ResourceCache cache, int retentionDays, int batchSize,
+            int maxBatches, long pauseMillis) {
+        this.pool = pool;
+        this.cache = cache;
+        this.retentionDays = retentionDays;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBatches = Math.max(1, maxBatches);
+        this.pauseMillis = Math.max(0, pauseMillis);
+    }
+
+    @Override
+    public void run() {
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+        long start = System.currentTimeMillis();
+        long[] purged = new long[5];
+        boolean failed = false;
+        try {
+            for (int batch = 0; batch < maxBatches; batch++) {
+                if (batch > 0 && pauseMillis > 0)
+                    Thread.sleep(pauseMillis);
+                long[] batchPurged = purgeBatch(cutoff);
+                for (int i = 0; i < purged.length; i++)
+                    purged[i] += batchPurged[i];
+                if (batchPurged[0] < batchSize && batchPurged[4] < batchSize)
+                    break;
+            }
+        } catch (SQLException e) {
+            failed = true;
+            logger.log(Level.SEVERE, "PurgeExpiredTask::run:SQLException", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long millis = System.currentTimeMillis() - start;
+        purgeMillis.addAndGet(millis);
+        String summary = "Purged " + purged[1] + " Claims, " + purged[2] + " ClaimResponses and " + purged[3]
+                + " Bundles older than " + cutoff + " in " + millis + "ms";
+        logger.info("PurgeExpiredTask::run:" + summary);
+        if (purged[1] > 0 || purged[3] > 0)
+            Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.D,
+                    failed ? AuditEventOutcome.SERIOUS_FAILURE : AuditEventOutcome.SUCCESS, null, null, summary);
+    }
+
+    /**
+     * Delete one batch of expired Claim chains (with their Bundles) and one of
+     * expired Bundles without a Claim
+     *
+     * @param cutoff - data last changed before this time is expired.
+     * @return the number of chains, Claims, ClaimResponses, Bundles and Bundles
+     *         without a Claim deleted.
+     * @throws SQLException
+     */
+    long[] purgeBatch(Timestamp cutoff) throws SQLException {
+        long[] purged = new long[5];
+        try (Connection connection = pool.getConnection()) {
+            PreparedStatement select = connection.prepareStatement(SELECT_EXPIRED);
+            select.setTimestamp(1, cutoff);
+            select.setTimestamp(2, cutoff);
+            select.setTimestamp(3, cutoff);
+            select.setInt(4, batchSize);
+            ResultSet rs = select.executeQuery();
+            List<String> roots = new ArrayList<>();
+            while (rs.next())
+                roots.add(rs.getString(1));
+            rs.close();
+
+            connection.setAutoCommit(false);
+            try {
+                for (String rootId : roots) {
+                    purged[1] += count(connection, COUNT_CLAIMS, rootId);
+                    purged[2] += count(connection, COUNT_CLAIM_RESPONSES, rootId);
+                    SearchIndex.removeChain(connection, rootId);
+                    PreparedStatement deleteBundles = connection.prepareStatement(DELETE_CHAIN_BUNDLES);
+                    deleteBundles.setString(1, rootId);
+                    purged[3] += deleteBundles.executeUpdate();
+                    PreparedStatement delete = connection.prepareStatement(DELETE_CHAIN);
+                    delete.setString(1, rootId);
+                    delete.execute();
+                    ClaimIdentifier.remove(connection, rootId, rootId);
+                    ClaimChain.rebuild(connection, rootId);
+                }
+                purged[0] = roots.size();
+
+                PreparedStatement delete = connection.prepareStatement(DELETE_BUNDLES);
+                delete.setTimestamp(1, cutoff);
+                delete.setInt(2, batchSize);
+                purged[4] = delete.executeUpdate();
+                purged[3] += purged[4];
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+
+        if (purged[0] > 0) {
+            cache.invalidate(Table.CLAIM);
+            cache.invalidate(Table.CLAIM_RESPONSE);
+        }
+        if (purged[3] > 0)
+            cache.invalidate(Table.BUNDLE);
+        purgedClaims.addAndGet(purged[1]);
+        purgedClaimResponses.addAndGet(purged[2]);
+        purgedBundles.addAndGet(purged[3]);
+        return purged;
+    }
+
+    private static long count(Connection connection, String sql, String rootId) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        stmt.setString(1, rootId);
+        ResultSet rs = stmt.executeQuery();
+        return rs.next() ? rs.getLong(1) : 0;
+    }
+}
@@ -0,0 +1,348 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * The SQL for a single kind of query against a table. The SQL only depends on
+ * the operation, the table and the set of columns used, so it is generated once
+ * per shape and cached. Values are bound in the (sorted) column order of the
+ * shape so the map iteration order of the caller does not matter.
+ */
+final class QueryShape {
+
+  enum Operation {
+    SEARCH, SEARCH_PAGE, SEARCH_PAGE_AFTER, READ, READ_ALL, READ_COLUMN, READ_ALL_COLUMNS, READ_VERSION, INSERT,
+    UPDATE, DELETE
+  }
+
+  // Tables with a version column, which takes the next value of the
+  // resource_version sequence every time a row is inserted or updated
+  static final Set<Table> VERSIONED_TABLES = Collections.unmodifiableSet(
+      EnumSet.of(Table.BUNDLE, Table.CLAIM, Table.CLAIM_RESPONSE, Table.SUBSCRIPTION));
+
+  // Value which binds an SQL NULL (a null value is stored as the string "null")
+  static final Object SQL_NULL = new Object();
+
+  // Callers only ever use a handful of fixed column sets. The limit protects
+  // against unbounded growth if arbitrary column sets are ever passed in
+  private static final int MAX_SHAPES = 1024;
+
+  private static final Map<Key, QueryShape> shapes = new ConcurrentHashMap<>();
+  private static final AtomicLong hits = Metrics.counter("db.query_shapes.hits");
+  private static final AtomicLong misses = Metrics.counter("db.query_shapes.misses");
+
+  // The scalar columns of each table (see CreateDatabase.sql and the
+  // migrations), the only columns which can be selected by name
+  private static final Map<Table, Set<String>> SCALAR_COLUMNS = new EnumMap<>(Table.class);
+
+  static {
+    Metrics.registerGauge("db.query_shapes.size", shapes::size);
+
+    scalarColumns(Table.BUNDLE, "id", "patient", "timestamp", "version");
+    scalarColumns(Table.CLAIM, "id", "patient", "related", "status", "isDifferential", "timestamp", "rootId",
+        "version");
+    scalarColumns(Table.CLAIM_RESPONSE, "id", "claimId", "patient", "status", "outcome", "isDifferential",
+        "timestamp", "version");
+    scalarColumns(Table.CLAIM_ITEM, "id", "sequence", "outcome", "status", "timestamp");
+    scalarColumns(Table.SUBSCRIPTION, "id", "claimResponseId", "patient", "status", "end", "websocketId",
+        "timestamp", "version");
+    scalarColumns(Table.RULES, "system", "code", "topic", "rule", "timestamp");
+    scalarColumns(Table.AUDIT, "id", "type", "action", "outcome", "what", "query", "ip", "clientId", "requestor",
+        "description", "operations", "timestamp");
+    scalarColumns(Table.CLIENT, "id", "jwks", "jwks_url", "token", "timestamp");
+  }
+
+  private static void scalarColumns(Table table, String... columns) {
+    Set<String> lowerCase = new HashSet<>();
+    for (String column : columns)
+      lowerCase.add(column.toLowerCase(Locale.ROOT));
+    SCALAR_COLUMNS.put(table, Collections.unmodifiableSet(lowerCase));
+  }
+
+  /**
+   * Check whether a name is a scalar column of a table
+   */
+  static boolean isColumn(Table table, String column) {
+    return SCALAR_COLUMNS.get(table).contains(column.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Get the select list of a projection, checking every column is a scalar
+   * column of the table so column names never put arbitrary SQL in a query
+   *
+   * @param table   - the Table the columns are selected from.
+   * @param columns - the columns to select.
+   * @return the columns separated by commas
+   * @throws IllegalArgumentException if a column is not a scalar column of the
+   *                                  table
+   */
+  static String projection(Table table, String... columns) {
+    if (columns.length == 0)
+      throw new IllegalArgumentException("No columns selected from " + table.value());
+    for (String column : columns)
+      if (column == null || !SCALAR_COLUMNS.get(table).contains(column.toLowerCase(Locale.ROOT)))
+        throw new IllegalArgumentException("Column " + column + " not found in " + table.value());
+    return String.join(", ", columns);
+  }
+
+  private final String sql;
+  private final String[] columns;
+  private final String[] whereColumns;
+
+  private QueryShape(Operation operation, Table table, String column, String[] columns, String[] whereColumns) {
+    this.columns = columns;
+    this.whereColumns = whereColumns;
+    this.sql = generateSql(operation, table, column, columns, whereColumns);
+  }
+
+  /**
+   * Get the shape of a query, generating it the first time it is used
+   *
+   * @param operation    - the kind of query.
+   * @param table        - the Table the query runs against.
+   * @param column       - the columns read by READ_COLUMN and READ_ALL_COLUMNS
+   *                     (see projection), otherwise null.
+   * @param columns      - the columns inserted or set (empty for queries).
+   * @param whereColumns - the columns in the WHERE clause.
+   * @return the shape of the query
+   */
+  static QueryShape of(Operation operation, Table table, String column, Set<String> columns,
+      Set<String> whereColumns) {
+    Key key = new Key(operation, table, column, columns, whereColumns);
+    QueryShape shape = shapes.get(key);
+    if (shape != null) {
+      hits.incrementAndGet();
+      return shape;
+    }
+
+    misses.incrementAndGet();
+    shape = new QueryShape(operation, table, column, sorted(columns), sorted(whereColumns));
+    if (shapes.size() < MAX_SHAPES)
+      shapes.putIfAbsent(key.copy(), shape);
+    return shape;
+  }
+
+  /**
+   * Get the shape of a query which only has a WHERE clause
+   */
+  static QueryShape of(Operation operation, Table table, String column, Set<String> whereColumns) {
+    return of(operation, table, column, Collections.emptySet(), whereColumns);
+  }
+
+  String sql() {
+    return this.sql;
+  }
+
+  /**
+   * Set the values of a PreparedStatement created from this shape
+   *
+   * @param stmt        - statement prepared from sql().
+   * @param values      - map of column to value for the inserted or set columns.
+   * @param whereValues - map of column to value for the WHERE clause.
+   *                    The value of an indexed search parameter is a
+   *                    SearchIndex.Criterion.
+   * @return the index of the next parameter. SEARCH_PAGE_AFTER takes the
+   *         timestamp (twice) and id of the last row of the previous page, then
+   *         both page operations take the number of rows to fetch.
+   * @throws SQLException
+   */
+  int bind(PreparedStatement stmt, Map<String, Object> values, Map<String, Object> whereValues) throws SQLException {
+    int valueIndex = 1;
+    for (String column : columns)
+      bindValue(stmt, valueIndex++, values.get(column));
+    for (String column : whereColumns) {
+      Object value = whereValues.get(column);
+      if (value instanceof SearchIndex.Criterion)
+        valueIndex = ((SearchIndex.Criterion) value).bind(stmt, valueIndex);
+      else
+        bindValue(stmt, valueIndex++, value);
+    }
+    return valueIndex;
+  }
+
+  private static void bindValue(PreparedStatement stmt, int valueIndex, Object value) throws SQLException {
+    if (value == SQL_NULL)
+      stmt.setNull(valueIndex, Types.NULL);
+    else if (value instanceof byte[])
+      stmt.setBytes(valueIndex, (byte[]) value);
+    else
+      stmt.setString(valueIndex, toSqlString(value));
+  }
+
+  /**
+   * Convert a value to the string stored in a column. Shared with the MVStore
+   * engine so both engines store the same values.
+   */
+  static String toSqlString(Object value) {
+    if (value instanceof String)
+      return (String) value;
+    else if (value instanceof IBaseResource)
+      return FhirUtils.json((IBaseResource) value);
+    else if (value == null)
+      return "null";
+    else
+      return value.toString();
+  }
+
+  private static String[] sorted(Set<String> columns) {
+    String[] array = columns.toArray(new String[0]);
+    Arrays.sort(array);
+    return array;
+  }
+
+  private static String generateSql(Operation operation, Table table, String column, String[] columns,
+      String[] whereColumns) {
+    StringBuilder sql = new StringBuilder();
+    switch (operation) {
+      case SEARCH:
+        sql.append("SELECT ").append(resourceColumns(table)).append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        break;
+      case SEARCH_PAGE:
+      case SEARCH_PAGE_AFTER:
+        // Keyset pagination: each page continues after the last row of the
+        // previous page instead of skipping over an offset
+        String selected = resourceColumns(table);
+        sql.append("SELECT ").append(selected.contains("timestamp") ? "" : "timestamp, ").append(selected)
+            .append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        if (operation == Operation.SEARCH_PAGE_AFTER)
+          sql.append(whereColumns.length == 0 ? " WHERE " : " AND ")
+              .append("(timestamp < ? OR (timestamp = ? AND id < ?))");
+        sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ?");
+        break;
+      case READ:
+        sql.append("SELECT TOP 1 ").append(resourceColumns(table)).append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        sql.append(" ORDER BY timestamp DESC");
+        break;
+      case READ_ALL:
+        sql.append("SELECT ").append(resourceColumns(table)).append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        sql.append(" ORDER BY timestamp DESC");
+        break;
+      case READ_COLUMN:
+        sql.append("SELECT TOP 1 ").append(column).append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        sql.append(" ORDER BY timestamp DESC");
+        break;
+      case READ_ALL_COLUMNS:
+        sql.append("SELECT ").append(column).append(" FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        sql.append(" ORDER BY timestamp DESC");
+        break;
+      case READ_VERSION:
+        sql.append("SELECT TOP 1 version, timestamp FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        sql.append(" ORDER BY timestamp DESC");
+        break;
+      case INSERT:
+        sql.append("INSERT INTO ").append(table.value()).append(" (").append(String.join(", ", columns))
+            .append(") VALUES (");
+        for (int i = 0; i < columns.length; i++)
+          sql.append(i == 0 ? "?" : ",?");
+        sql.append(")");
+        break;
+      case UPDATE:
+        sql.append("UPDATE ").append(table.value()).append(" SET ");
+        for (String setColumn : columns)
+          sql.append(setColumn).append(" = ?, ");
+        if (VERSIONED_TABLES.contains(table))
+          sql.append("version = NEXT VALUE FOR resource_version, ");
+        sql.append("timestamp = CURRENT_TIMESTAMP");
+        appendWhere(sql, table, whereColumns);
+        break;
+      case DELETE:
+        sql.append("DELETE FROM ").append(table.value());
+        appendWhere(sql, table, whereColumns);
+        break;
+    }
+    return sql.append(";").toString();
+  }
+
+  /**
+   * The columns selected by the queries which read resources. The status of a
+   * Claim is read from its column (see Database.applyStatus) and AuditEvents
+   * are built from the columns of the row (see Audit.toAuditEvent).
+   */
+  private static String resourceColumns(Table table) {
+    switch (table) {
+      case CLAIM:
+        return "id, patient, status, resource, resource_data";
+      case AUDIT:
+        // The Audit table has no patient column
+        return "id, NULL AS patient, type, action, outcome, what, query, ip, clientId, requestor, description, "
+            + "operations, timestamp, resource, resource_data";
+      default:
+        return "id, patient, resource, resource_data";
+    }
+  }
+
+  /**
+   * Append the WHERE clause. A search parameter which is not a column of the
+   * table is looked up in the search index (see SearchIndex.condition).
+   */
+  private static void appendWhere(StringBuilder sql, Table table, String[] whereColumns) {
+    for (int i = 0; i < whereColumns.length; i++) {
+      String condition = isColumn(table, whereColumns[i]) ? null : SearchIndex.condition(table, whereColumns[i]);
+      sql.append(i == 0 ? " WHERE " : " AND ").append(condition != null ? condition : whereColumns[i] + " = ?");
+    }
+  }
+
+  /**
+   * Cache key of a shape. Lookups use the key sets of the callers maps directly
+   * so a cache hit does not copy or sort anything.
+   */
+  private static final class Key {
+    private final Operation operation;
+    private final Table table;
+    private final String column;
+    private final Set<String> columns;
+    private final Set<String> whereColumns;
+    private final int hash;
+
+    Key(Operation operation, Table table, String column, Set<String> columns, Set<String> whereColumns) {
+      this.operation = operation;
+      this.table = table;
+      this.column = column;
+      this.columns = columns;
+      this.whereColumns = whereColumns;
+      this.hash = Objects.hash(operation, table, column, columns, whereColumns);
+    }
+
+    Key copy() {
+      return new Key(operation, table, column, new HashSet<>(columns), new HashSet<>(whereColumns));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return hash == other.hash && operation == other.operation && table == other.table
+          && Objects.equals(column, other.column) && columns.equals(other.columns)
+          && whereColumns.equals(other.whereColumns);
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Least recently used cache of parsed resources keyed by table and id. The
+ * cache is bounded by the total weight of its entries (the length of the JSON
+ * each resource was parsed from) rather than by the number of entries, since a
+ * Bundle can be orders of magnitude larger than a ClaimResponse.
+ *
+ * Resources are copied on the way in and on the way out so a caller modifying
+ * the resource it was handed cannot change the cached entry.
+ */
+public class ResourceCache {
+
+    private final String name;
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight = 0;
+
+    // Incremented on every invalidation so a resource read from the database
+    // before an update is not cached after the update invalidated it
+    private long generation = 0;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Create a new cache
+     *
+     * @param name      - prefix of the metrics published by the cache
+     * @param maxWeight - maximum total weight (in characters of JSON) of the
+     *                  cached resources
+     */
+    public ResourceCache(String name, long maxWeight) {
+        this.name = name;
+        this.maxWeight = maxWeight;
+        this.hits = Metrics.counter(name + ".hits");
+        this.misses = Metrics.counter(name + ".misses");
+        this.evictions = Metrics.counter(name + ".evictions");
+        Metrics.registerGauge(name + ".size", this::size);
+        Metrics.registerGauge(name + ".weight", this::weight);
+        Metrics.registerGauge(name + ".hit_ratio", this::hitRatio);
+    }
+
+    /**
+     * Get a copy of a cached resource
+     *
+     * @param table - the Table the resource is stored in
+     * @param id    - the id of the resource
+     * @return a copy of the resource or null if it is not cached
+     */
+    public Resource get(Table table, String id) {
+        return get(table, id, null);
+    }
+
+    /**
+     * Get a copy of a cached resource stored for a specific patient
+     *
+     * @param table   - the Table the resource is stored in
+     * @param id      - the id of the resource
+     * @param patient - the patient column of the row or null to ignore it
+     * @return a copy of the resource or null if it is not cached for the patient
+     */
+    public Resource get(Table table, String id, String patient) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key(table, id));
+        }
+        if (entry == null || (patient != null && !patient.equals(entry.patient))) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.resource.copy();
+    }
+
+    /**
+     * Get the generation to pass to put when caching a resource read from the
+     * database
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Cache a resource read from the database
+     *
+     * @param table      - the Table the resource was read from
+     * @param id         - the id of the resource
+     * @param patient    - the patient column of the row
+     * @param resource   - the parsed resource
+     * @param jsonLength - the length of the JSON the resource was parsed from
+     * @param generation - the generation before the resource was read. Nothing
+     *                   is cached if the cache has been invalidated since.
+     */
+    public void put(Table table, String id, String patient, Resource resource, int jsonLength, long generation) {
+        if (id == null || resource == null || jsonLength > maxWeight)
+            return;
+
+        Entry entry = new Entry(patient, resource.copy(), jsonLength);
+        synchronized (this) {
+            if (generation != this.generation)
+                return;
+            Entry previous = entries.put(key(table, id), entry);
+            weight += entry.weight - (previous == null ? 0 : previous.weight);
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove a resource from the cache
+     *
+     * @param table - the Table the resource is stored in
+     * @param id    - the id of the resource
+     */
+    public synchronized void invalidate(Table table, String id) {
+        generation++;
+        Entry entry = entries.remove(key(table, id));
+        if (entry != null)
+            weight -= entry.weight;
+    }
+
+    /**
+     * Remove every resource of a table from the cache
+     *
+     * @param table - the Table to remove
+     */
+    public synchronized void invalidate(Table table) {
+        generation++;
+        String prefix = table.value() + "/";
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                weight -= entry.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove everything from the cache
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public double hitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[size=" + size() + ", weight=" + weight() + "/" + maxWeight + "]";
+    }
+
+    private static String key(Table table, String id) {
+        return table.value() + "/" + id;
+    }
+
+    private static class Entry {
+        final String patient;
+        final Resource resource;
+        final long weight;
+
+        Entry(String patient, Resource resource, long weight) {
+            this.patient = patient;
+            this.resource = resource;
+            this.weight = weight;
+        }
+    }
+}
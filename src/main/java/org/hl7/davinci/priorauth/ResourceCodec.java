@@ -0,0 +1,161 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Encodes resources into the compact binary form stored in the resource_data
+ * column: minified JSON compressed with Deflate behind a small header.
+ *
+ * <pre>
+ * bytes 0-1  magic 'P' 'A'
+ * byte  2    format version (1)
+ * byte  3    compression (0 = none, 1 = deflate)
+ * bytes 4-7  length of the uncompressed JSON in bytes
+ * bytes 8-   payload
+ * </pre>
+ */
+public class ResourceCodec {
+
+    private static final byte MAGIC_0 = 'P';
+    private static final byte MAGIC_1 = 'A';
+    private static final byte VERSION = 1;
+    private static final byte NONE = 0;
+    private static final byte DEFLATE = 1;
+    private static final int HEADER_LENGTH = 8;
+
+    // Payloads smaller than this do not shrink enough to be worth compressing
+    private static final int MIN_COMPRESS_LENGTH = 128;
+
+    private static final AtomicLong encodeCount = Metrics.counter("codec.encode.count");
+    private static final AtomicLong encodeNanos = Metrics.counter("codec.encode.nanos");
+    private static final AtomicLong decodeCount = Metrics.counter("codec.decode.count");
+    private static final AtomicLong decodeNanos = Metrics.counter("codec.decode.nanos");
+    private static final AtomicLong rawBytes = Metrics.counter("codec.bytes.raw");
+    private static final AtomicLong encodedBytes = Metrics.counter("codec.bytes.encoded");
+
+    static {
+        Metrics.registerGauge("codec.compression_ratio",
+                () -> encodedBytes.get() == 0 ? 0.0 : (double) rawBytes.get() / encodedBytes.get());
+        Metrics.registerGauge("codec.encode.avg_micros",
+                () -> encodeCount.get() == 0 ? 0.0 : encodeNanos.get() / 1000.0 / encodeCount.get());
+        Metrics.registerGauge("codec.decode.avg_micros",
+                () -> decodeCount.get() == 0 ? 0.0 : decodeNanos.get() / 1000.0 / decodeCount.get());
+    }
+
+    private ResourceCodec() {
+    }
+
+    /**
+     * Encode a resource as compressed minified JSON
+     *
+     * @param resource - the resource to encode.
+     * @return the encoded resource.
+     */
+    public static byte[] encode(IBaseResource resource) {
+        return encode(App.getFhirContext().newJsonParser().setPrettyPrint(false).encodeResourceToString(resource));
+    }
+
+    /**
+     * Encode a JSON string
+     *
+     * @param json - the JSON to encode.
+     * @return the encoded JSON.
+     */
+    public static byte[] encode(String json) {
+        long start = System.nanoTime();
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = raw;
+        byte compression = NONE;
+        if (raw.length >= MIN_COMPRESS_LENGTH) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished())
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() < raw.length) {
+                    payload = out.toByteArray();
+                    compression = DEFLATE;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        encoded.put(MAGIC_0).put(MAGIC_1).put(VERSION).put(compression).putInt(raw.length).put(payload);
+
+        encodeCount.incrementAndGet();
+        encodeNanos.addAndGet(System.nanoTime() - start);
+        rawBytes.addAndGet(raw.length);
+        encodedBytes.addAndGet(HEADER_LENGTH + payload.length);
+        return encoded.array();
+    }
+
+    /**
+     * Decode data created by encode back into JSON
+     *
+     * @param data - the encoded resource.
+     * @return the JSON of the resource.
+     * @throws IllegalArgumentException if the data was not created by encode or is
+     *                                  corrupt.
+     */
+    public static String decode(byte[] data) {
+        long start = System.nanoTime();
+        if (!isEncoded(data))
+            throw new IllegalArgumentException("ResourceCodec::decode:Unrecognized resource encoding");
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(3);
+        byte compression = buffer.get();
+        int length = buffer.getInt();
+        String json;
+        if (compression == NONE) {
+            json = new String(data, HEADER_LENGTH, data.length - HEADER_LENGTH, StandardCharsets.UTF_8);
+        } else if (compression == DEFLATE) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+                byte[] raw = new byte[length];
+                int read = 0;
+                while (read < length && !inflater.finished()) {
+                    int n = inflater.inflate(raw, read, length - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+                if (read != length)
+                    throw new IllegalArgumentException("ResourceCodec::decode:Truncated resource data");
+                json = new String(raw, StandardCharsets.UTF_8);
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("ResourceCodec::decode:Corrupt resource data", e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IllegalArgumentException("ResourceCodec::decode:Unknown compression " + compression);
+        }
+
+        decodeCount.incrementAndGet();
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        return json;
+    }
+
+    /**
+     * Check whether data starts with the header written by encode
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= HEADER_LENGTH && data[0] == MAGIC_0 && data[1] == MAGIC_1
+                && data[2] == VERSION;
+    }
+}
@@ -0,0 +1,431 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.hl7.fhir.r4.model.Identifier;
+
+/**
+ * A ResourceStore is responsible for storing and retrieving FHIR resources and
+ * the columns stored alongside them. The engine backing the store is chosen
+ * with the database_engine property (sql, mvstore or sharded).
+ */
+public interface ResourceStore {
+
+  /**
+   * Search the store for the given resourceType.
+   *
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints.
+   * @return Bundle - the search result Bundle.
+   */
+  Bundle search(Table table, Map<String, Object> constraintMap);
+
+  /**
+   * Search the store for one page of the given resourceType. Results are
+   * ordered most recent first.
+   *
+   * @param table         - the Table to search in.
+   * @param constraintMap - the search constraints.
+   * @param count         - the maximum number of resources on the page.
+   * @param pageToken     - the next page token of the previous page or null for
+   *                      the first page.
+   * @return SearchPage - the resources on the page and the token of the next.
+   * @throws IllegalArgumentException if the page token is not valid
+   */
+  SearchPage searchPage(Table table, Map<String, Object> constraintMap, int count, String pageToken);
+
+  /**
+   * Read the most recent resource matching the constraints.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @return IBaseResource - if the resource exists, otherwise null.
+   */
+  IBaseResource read(Table table, Map<String, Object> constraintParams);
+
+  /**
+   * Read all resources matching the constraints, most recent first.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @return List of IBaseResource for all resources matching the constraints.
+   *         Empty list if none
+   */
+  List<IBaseResource> readAll(Table table, Map<String, Object> constraintParams);
+
+  /**
+   * Read the most recent data for specified column from the store
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @param column           - the column to read.
+   * @return the specified column or null if nothing matches
+   */
+  String readString(Table table, Map<String, Object> constraintParams, String column);
+
+  /**
+   * Read several columns of the most recent row matching the constraints at
+   * once
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @param columns          - the scalar columns to read.
+   * @return map of the columns to their values or null if nothing matches
+   */
+  Map<String, String> readColumns(Table table, Map<String, Object> constraintParams, String... columns);
+
+  /**
+   * Read several columns of every row matching the constraints, most recent
+   * first
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @param columns          - the scalar columns to read.
+   * @return list of maps of the columns to their values. Empty list if none
+   */
+  List<Map<String, String>> readAllColumns(Table table, Map<String, Object> constraintParams, String... columns);
+
+  /**
+   * Read the version of the most recent resource matching the constraints, the
+   * resource read would return, without reading the resource itself.
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @return the version or null if nothing matches or the table is not
+   *         versioned.
+   */
+  ResourceVersion readVersion(Table table, Map<String, Object> constraintParams);
+
+  /**
+   * Insert a resource into the store.
+   *
+   * @param table - the Table to write to.
+   * @param data  - map of columns (keys) and values.
+   * @return boolean - whether or not the resource was written.
+   */
+  boolean write(Table table, Map<String, Object> data);
+
+  /**
+   * Update columns of every row matching the constraints
+   *
+   * @param table            - the Table to update.
+   * @param constraintParams - map of column to value to match rows on.
+   * @param data             - map of column to new value.
+   * @return boolean - whether or not the update was successful
+   */
+  boolean update(Table table, Map<String, Object> constraintParams, Map<String, Object> data);
+
+  /**
+   * Insert many rows into the store. The default implementation writes the rows
+   * one at a time.
+   *
+   * @param table - the Table to write to.
+   * @param rows  - list of maps of columns (keys) and values.
+   * @return BatchResult - which of the rows were written.
+   */
+  default BatchResult writeBatch(Table table, List<Map<String, Object>> rows) {
+    BatchResult result = new BatchResult(rows.size());
+    for (int i = 0; i < rows.size(); i++)
+      if (!write(table, rows.get(i)))
+        result.fail(i);
+    return result;
+  }
+
+  /**
+   * Run many updates against the store. Update i sets the columns in data[i] of
+   * the rows matching constraintParams[i]. The default implementation runs the
+   * updates one at a time.
+   *
+   * @param table            - the Table to update.
+   * @param constraintParams - list of maps of column to value to match rows on.
+   * @param data             - list of maps of column to new value.
+   * @return BatchResult - which of the updates changed at least one row.
+   * @throws IllegalArgumentException if the lists are not the same size
+   */
+  default BatchResult updateBatch(Table table, List<Map<String, Object>> constraintParams,
+      List<Map<String, Object>> data) {
+    if (constraintParams.size() != data.size())
+      throw new IllegalArgumentException("Every update needs constraints and data");
+    BatchResult result = new BatchResult(data.size());
+    for (int i = 0; i < data.size(); i++)
+      if (!update(table, constraintParams.get(i), data.get(i)))
+        result.fail(i);
+    return result;
+  }
+
+  /**
+   * Delete a particular resource with a given id and patient.
+   *
+   * @param table   - the Table to delete from.
+   * @param id      - the id of the resource to delete.
+   * @param patient - the patient the resource belongs to.
+   * @return boolean - whether or not the resource was deleted.
+   */
+  boolean delete(Table table, String id, String patient);
+
+  /**
+   * Delete method for the expunge operation to delete by id.
+   *
+   * @param table - the table to delete from.
+   * @param id    - the id of the resource to delete.
+   * @return true if the resource was deleted and false otherwise.
+   */
+  boolean delete(Table table, String id);
+
+  /**
+   * Delete all resources of a particular type.
+   *
+   * @param table - the Table to delete from.
+   * @return boolean - whether or not the resources were deleted.
+   */
+  boolean delete(Table table);
+
+  /**
+   * Write one page of the rows of a table, most recent first, for the debug
+   * endpoints. Rows are written as they are read.
+   *
+   * @param table     - the Table to render.
+   * @param count     - the maximum number of rows on the page.
+   * @param pageToken - the token of the page from a previous call or null for
+   *                  the first page.
+   * @param out       - the HtmlTableWriter the rows are written to.
+   * @return the token of the next page or null if this is the last page (or the
+   *         table could not be read).
+   * @throws IOException              if writing to out fails
+   * @throws IllegalArgumentException if the page token is invalid
+   */
+  String writeTable(Table table, int count, String pageToken, HtmlTableWriter out) throws IOException;
+
+  /**
+   * Write the JSON of every resource in a table as NDJSON (one resource per
+   * line) without parsing the resources, one row at a time
+   *
+   * @param table - the Table to export (Bundle, Claim or ClaimResponse).
+   * @param since - only export rows written at or after this time or null.
+   * @param out   - the writer the lines are written to.
+   * @return the number of resources written or -1 if the table could not be
+   *         read.
+   * @throws IOException if writing to out fails
+   */
+  long exportNdjson(Table table, Date since, Writer out) throws IOException;
+
+  /**
+   * Begin a unit of work bound to the current thread. Stores without
+   * transactions return a unit of work which only tracks the commit.
+   *
+   * @return the unit of work. Close it (after committing) when done.
+   */
+  default UnitOfWork beginUnitOfWork() {
+    return UnitOfWork.begin(this, null);
+  }
+
+  /**
+   * Begin a unit of work for the rows of a patient. Stores which keep patients
+   * apart use it to begin the unit of work where the patient is stored.
+   *
+   * @param patient - the patient the rows written belong to or null.
+   * @return the unit of work. Close it (after committing) when done.
+   */
+  default UnitOfWork beginUnitOfWork(String patient) {
+    return beginUnitOfWork();
+  }
+
+  /**
+   * Get the partition of the store the rows of a patient are written to. The
+   * rows of patients in different partitions cannot be written in one unit of
+   * work.
+   *
+   * @param patient - the patient.
+   * @return the index of the partition, 0 for stores which do not keep patients
+   *         apart.
+   */
+  default int shardOf(String patient) {
+    return 0;
+  }
+
+  /**
+   * Read the related field from the store
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @return the related field of the most recent matching row
+   */
+  default String readRelated(Table table, Map<String, Object> constraintParams) {
+    return readString(table, constraintParams, "related");
+  }
+
+  /**
+   * Get the status of an item in the store
+   *
+   * @param table            - the Table to read from.
+   * @param constraintParams - the search constraints.
+   * @return - the string value of the status of the most recent matching row.
+   */
+  default String readStatus(Table table, Map<String, Object> constraintParams) {
+    return readString(table, constraintParams, "status");
+  }
+
+  /**
+   * Search the audit trail one page at a time, most recent first. The default
+   * implementation reads every matching AuditEvent and pages through them in
+   * memory.
+   *
+   * @param constraintMap - map of the columns of the Audit table (type, action,
+   *                      outcome, clientId, what) and the values they must equal.
+   * @param from          - the earliest time (inclusive) or null.
+   * @param to            - the latest time (exclusive) or null.
+   * @param count         - the maximum number of AuditEvents on the page.
+   * @param pageToken     - the next page token of the previous page or null for
+   *                      the first page.
+   * @return SearchPage - the searchset Bundle of AuditEvents and the token of the
+   *         next page.
+   * @throws IllegalArgumentException if the page token is invalid
+   */
+  default SearchPage searchAudit(Map<String, Object> constraintMap, Date from, Date to, int count,
+      String pageToken) {
+    String[] cursor = pageToken != null ? SearchPage.decodeToken(pageToken, 2) : null;
+    List<AuditEvent> auditEvents = new ArrayList<>();
+    for (IBaseResource resource : readAll(Table.AUDIT, constraintMap)) {
+      AuditEvent auditEvent = (AuditEvent) resource;
+      Date recorded = auditEvent.getRecorded();
+      if (recorded == null || (from != null && recorded.before(from)) || (to != null && !recorded.before(to)))
+        continue;
+      if (cursor != null) {
+        int compare = Long.compare(recorded.getTime(), Long.parseLong(cursor[0]));
+        if (compare > 0 || (compare == 0 && auditEvent.getIdElement().getIdPart().compareTo(cursor[1]) >= 0))
+          continue;
+      }
+      auditEvents.add(auditEvent);
+    }
+    auditEvents.sort(Comparator.comparing(AuditEvent::getRecorded)
+        .thenComparing(auditEvent -> auditEvent.getIdElement().getIdPart()).reversed());
+
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    for (AuditEvent auditEvent : auditEvents.subList(0, Math.min(count, auditEvents.size()))) {
+      String id = auditEvent.getIdElement().getIdPart();
+      results.addEntry().setFullUrl(App.getBaseUrl() + "/AuditEvent/" + id).setResource(auditEvent);
+    }
+    String nextPageToken = null;
+    if (auditEvents.size() > count) {
+      AuditEvent last = auditEvents.get(count - 1);
+      nextPageToken = SearchPage.encodeToken(Long.toString(last.getRecorded().getTime()),
+          last.getIdElement().getIdPart());
+    } else if (cursor == null)
+      results.setTotal(auditEvents.size());
+    return new SearchPage(results, nextPageToken);
+  }
+
+  /**
+   * Cancel a Claim and every Claim in its chain of updates (both the Claims it
+   * replaced and the Claims which replaced it) along with the items of the most
+   * recent Claim in the chain
+   *
+   * @param claimId - the id of a Claim in the chain.
+   * @return true if the Claims were cancelled, false otherwise.
+   */
+  default boolean cancelClaimChain(String claimId) {
+    String cancelled = ClaimStatus.CANCELLED.getDisplay().toLowerCase();
+    List<String> chain = new ArrayList<>();
+
+    // Follow each related until it is NULL...
+    String id = claimId;
+    while (id != null) {
+      chain.add(id);
+      id = readRelated(Table.CLAIM, Collections.singletonMap("id", id));
+    }
+
+    // ...and every Claim submitted after this which references it
+    Map<String, Object> readConstraintMap = new HashMap<String, Object>();
+    readConstraintMap.put("related", claimId);
+    Claim referencingClaim = (Claim) read(Table.CLAIM, readConstraintMap);
+    while (referencingClaim != null) {
+      String referencingId = FhirUtils.getIdFromResource(referencingClaim);
+      chain.add(referencingId);
+      readConstraintMap.replace("related", referencingId);
+      referencingClaim = (Claim) read(Table.CLAIM, readConstraintMap);
+    }
+
+    boolean result = true;
+    for (String chainId : chain) {
+      Map<String, Object> constraintMap = Collections.singletonMap("id", chainId);
+      Claim claim = (Claim) read(Table.CLAIM, constraintMap);
+      if (claim == null) {
+        result = false;
+        continue;
+      }
+      claim.setStatus(ClaimStatus.CANCELLED);
+      Map<String, Object> dataMap = new HashMap<String, Object>();
+      dataMap.put("status", cancelled);
+      dataMap.put("resource", claim);
+      result = update(Table.CLAIM, constraintMap, dataMap) && result;
+    }
+
+    update(Table.CLAIM_ITEM, Collections.singletonMap("id", getMostRecentId(claimId)),
+        Collections.singletonMap("status", cancelled));
+    return result;
+  }
+
+  /**
+   * Find the Claim of a patient with a business identifier, as Claim/$inquiry
+   * does. The default implementation reads every Claim of the patient and
+   * compares their first identifier.
+   *
+   * @param patient    - the patient of the Claim.
+   * @param identifier - the identifier of the Claim.
+   * @return the most recent Claim id in the chain of the Claim or null if no
+   *         Claim has the identifier.
+   */
+  default String findClaimByIdentifier(String patient, Identifier identifier) {
+    for (IBaseResource resource : readAll(Table.CLAIM, Collections.singletonMap("patient", patient))) {
+      Claim claim = (Claim) resource;
+      if (claim.hasIdentifier()
+          && Objects.equals(claim.getIdentifierFirstRep().getSystem(), identifier.getSystem())
+          && Objects.equals(claim.getIdentifierFirstRep().getValue(), identifier.getValue()))
+        return getMostRecentId(FhirUtils.getIdFromResource(claim));
+    }
+    return null;
+  }
+
+  /**
+   * Take in a Claim id and get the most recent id if it has been replaced by a
+   * more updated request.
+   *
+   * @param id - Claim id
+   * @return the most recent Claim id for the Claim by following all updates
+   */
+  default String getMostRecentId(String id) {
+    Map<String, Object> readConstraintMap = new HashMap<String, Object>();
+    readConstraintMap.put("related", id);
+    Claim referencingClaim = (Claim) read(Table.CLAIM, readConstraintMap);
+    String referencingId = id;
+
+    while (referencingClaim != null) {
+      // Update the referencingId to be the most recent referencingClaim
+      referencingId = FhirUtils.getIdFromResource(referencingClaim);
+
+      // Get the new referencing claim
+      readConstraintMap.replace("related", referencingId);
+      referencingClaim = (Claim) read(Table.CLAIM, readConstraintMap);
+    }
+
+    return referencingId;
+  }
+}
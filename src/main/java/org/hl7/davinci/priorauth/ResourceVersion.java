@@ -0,0 +1,49 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Date;
+
+/**
+ * The version of a stored resource and when it was last modified. The version
+ * changes every time the row of the resource is written, so it is used as the
+ * (weak) ETag of the resource and a client which already has the version can
+ * be answered with 304 Not Modified without reading the resource.
+ */
+public class ResourceVersion {
+
+  private final String version;
+  private final Date lastModified;
+
+  public ResourceVersion(String version, Date lastModified) {
+    this.version = version;
+    this.lastModified = lastModified;
+  }
+
+  public String getVersion() {
+    return this.version;
+  }
+
+  /**
+   * Get the value of the ETag header for this version
+   */
+  public String getETag() {
+    return "W/\"" + this.version + "\"";
+  }
+
+  /**
+   * Get when the resource was last written
+   *
+   * @return the time or null if it is not known.
+   */
+  public Date getLastModified() {
+    return this.lastModified;
+  }
+
+  /**
+   * Get the value of the Last-Modified header in milliseconds
+   *
+   * @return the time or -1 if it is not known.
+   */
+  public long getLastModifiedMillis() {
+    return this.lastModified != null ? this.lastModified.getTime() : -1;
+  }
+}
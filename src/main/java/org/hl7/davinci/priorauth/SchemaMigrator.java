@@ -0,0 +1,143 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Applies numbered schema scripts to the database on startup. The tables created
+ * by the database_sql script are version 1. Every later change to the schema is
+ * a script named V{version}__{description}.sql in the database_migrations
+ * directory. Scripts are applied in order, once, and the applied versions are
+ * recorded in the SchemaVersion table.
+ */
+public class SchemaMigrator {
+
+  static final Logger logger = PALogger.getLogger();
+
+  public static final int BASELINE_VERSION = 1;
+
+  private static final Pattern SCRIPT_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+  private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS SchemaVersion (version int PRIMARY KEY, "
+      + "description varchar, installed datetime DEFAULT CURRENT_TIMESTAMP);";
+
+  private SchemaMigrator() {
+  }
+
+  /**
+   * Apply every migration newer than the current schema version
+   *
+   * @param connection    - the connection to the database.
+   * @param migrationsDir - directory containing the migration scripts.
+   * @return the schema version after migrating.
+   * @throws SQLException if a migration fails. Migrations before the failing one
+   *                      stay applied.
+   */
+  public static int migrate(Connection connection, String migrationsDir) throws SQLException {
+    connection.prepareStatement(CREATE_VERSION_TABLE).execute();
+    int version = currentVersion(connection);
+    if (version < BASELINE_VERSION) {
+      recordVersion(connection, BASELINE_VERSION, "baseline");
+      version = BASELINE_VERSION;
+    }
+
+    for (Map.Entry<Integer, Path> migration : findMigrations(migrationsDir).entrySet()) {
+      if (migration.getKey() <= version)
+        continue;
+
+      String description = description(migration.getValue());
+      logger.info("SchemaMigrator::migrate:Applying V" + migration.getKey() + " " + description);
+      String sql;
+      try {
+        sql = new String(Files.readAllBytes(migration.getValue()));
+      } catch (IOException e) {
+        throw new SQLException("Unable to read migration " + migration.getValue(), e);
+      }
+
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try {
+        connection.prepareStatement(sql.replace("\"", "")).execute();
+        recordVersion(connection, migration.getKey(), description);
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(autoCommit);
+      }
+      version = migration.getKey();
+    }
+
+    logger.info("SchemaMigrator::migrate:Schema version " + version);
+    return version;
+  }
+
+  /**
+   * Get the most recent version applied to the database
+   *
+   * @param connection - the connection to the database.
+   * @return the schema version or 0 if no version has been recorded.
+   * @throws SQLException
+   */
+  public static int currentVersion(Connection connection) throws SQLException {
+    ResultSet rs = connection.prepareStatement("SELECT MAX(version) FROM SchemaVersion;").executeQuery();
+    return rs.next() ? rs.getInt(1) : 0;
+  }
+
+  private static void recordVersion(Connection connection, int version, String description) throws SQLException {
+    PreparedStatement stmt = connection
+        .prepareStatement("INSERT INTO SchemaVersion (version, description) VALUES (?, ?);");
+    stmt.setInt(1, version);
+    stmt.setString(2, description);
+    stmt.execute();
+  }
+
+  /**
+   * Find the migration scripts in a directory
+   *
+   * @param migrationsDir - directory containing the migration scripts.
+   * @return map of version to script, sorted by version.
+   */
+  private static Map<Integer, Path> findMigrations(String migrationsDir) {
+    Map<Integer, Path> migrations = new TreeMap<>();
+    Path dir = Paths.get(migrationsDir).toAbsolutePath();
+    if (!Files.isDirectory(dir)) {
+      logger.warning("SchemaMigrator::findMigrations:Migrations directory " + dir + " not found");
+      return migrations;
+    }
+
+    try (Stream<Path> files = Files.list(dir)) {
+      files.forEach(file -> {
+        Matcher matcher = SCRIPT_NAME.matcher(file.getFileName().toString());
+        if (matcher.matches()) {
+          Path previous = migrations.put(Integer.parseInt(matcher.group(1)), file);
+          if (previous != null)
+            logger.severe("SchemaMigrator::findMigrations:Duplicate migration version " + matcher.group(1)
+                + ". Ignoring " + previous);
+        }
+      });
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "SchemaMigrator::findMigrations:IOException", e);
+    }
+    return migrations;
+  }
+
+  private static String description(Path script) {
+    Matcher matcher = SCRIPT_NAME.matcher(script.getFileName().toString());
+    return matcher.matches() ? matcher.group(2).replace('_', ' ') : script.getFileName().toString();
+  }
+}
@@ -0,0 +1,746 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumeration;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Maintains the SearchToken and SearchDate tables (see the V9 migration) with
+ * the values of the search parameters of Claims and ClaimResponses, so a search
+ * on one of them is an indexed lookup instead of parsing every resource.
+ *
+ * The parameters are listed in search_index_parameters, separated by commas.
+ * {ResourceType}.{name} uses the path and type of the FHIR SearchParameter
+ * with that name (for example Claim.provider). {ResourceType}.{name}:{type}={path}
+ * defines a parameter of this server, where type is token or date and path is
+ * one or more element paths separated by | (for example
+ * Claim.item-code:token=Claim.item.productOrService). Codes, identifiers and
+ * references are indexed as tokens, dates and periods by their start.
+ *
+ * The definition of every indexed parameter is recorded in the
+ * SearchIndexParameter table (see the V11 migration), so a parameter which is
+ * added or redefined is indexed for the resources already stored (see
+ * unrecorded and record).
+ */
+public class SearchIndex {
+
+  static final Logger logger = PALogger.getLogger();
+
+  static final String DEFAULT_PARAMETERS = "Claim.provider,Claim.insurer,Claim.enterer,Claim.facility,Claim.created,"
+      + "Claim.use,Claim.priority,Claim.item-code:token=Claim.item.productOrService,ClaimResponse.insurer,"
+      + "ClaimResponse.requestor,ClaimResponse.created,ClaimResponse.outcome,ClaimResponse.use,"
+      + "ClaimResponse.preauthref:token=ClaimResponse.preAuthRef";
+
+  private static final String DELETE_TOKENS = "DELETE FROM SearchToken WHERE resourceType = ? AND id = ?;";
+  private static final String DELETE_DATES = "DELETE FROM SearchDate WHERE resourceType = ? AND id = ?;";
+  private static final String CLEAR_TOKENS = "DELETE FROM SearchToken WHERE resourceType = ?;";
+  private static final String CLEAR_DATES = "DELETE FROM SearchDate WHERE resourceType = ?;";
+  // The Claims of a chain and their ClaimResponses (see ClaimChain)
+  private static final String CHAIN_CLAIMS = "SELECT id FROM Claim WHERE rootId = ?";
+  private static final String CHAIN_CLAIM_RESPONSES = "SELECT ClaimResponse.id FROM ClaimResponse INNER JOIN Claim "
+      + "ON ClaimResponse.claimId = Claim.id WHERE Claim.rootId = ?";
+  // The same for a Claim which is not in a chain (rootId is null)
+  private static final String CASCADE_CLAIMS = "SELECT id FROM Claim WHERE rootId = ? OR id = ?;";
+  private static final String CASCADE_CLAIM_RESPONSES = "SELECT ClaimResponse.id FROM ClaimResponse INNER JOIN Claim "
+      + "ON ClaimResponse.claimId = Claim.id WHERE Claim.rootId = ? OR Claim.id = ?;";
+  private static final String INSERT_TOKEN = "INSERT INTO SearchToken (resourceType, id, param, system, code) "
+      + "VALUES (?, ?, ?, ?, ?);";
+  private static final String INSERT_DATE = "INSERT INTO SearchDate (resourceType, id, param, dateValue) "
+      + "VALUES (?, ?, ?, ?);";
+  private static final String DELETE_PARAM_TOKENS = "DELETE FROM SearchToken WHERE resourceType = ? AND id = ? "
+      + "AND param = ?;";
+  private static final String DELETE_PARAM_DATES = "DELETE FROM SearchDate WHERE resourceType = ? AND id = ? "
+      + "AND param = ?;";
+  private static final String SELECT_RECORDED = "SELECT param, definition FROM SearchIndexParameter "
+      + "WHERE resourceType = ?;";
+  private static final String CLEAR_PARAM_TOKENS = "DELETE FROM SearchToken WHERE resourceType = ? AND param = ?;";
+  private static final String CLEAR_PARAM_DATES = "DELETE FROM SearchDate WHERE resourceType = ? AND param = ?;";
+  private static final String DELETE_RECORDED = "DELETE FROM SearchIndexParameter WHERE resourceType = ? "
+      + "AND param = ?;";
+  private static final String MERGE_RECORDED = "MERGE INTO SearchIndexParameter (resourceType, param, definition) "
+      + "KEY (resourceType, param) VALUES (?, ?, ?);";
+
+  // Names and paths are put in the SQL of the searches so only plain names are
+  // accepted
+  private static final Pattern NAME = Pattern.compile("[a-z][a-z0-9-]*");
+  private static final Pattern PATH = Pattern.compile("[A-Za-z]+(\\.[A-Za-z]+)+");
+
+  // Bounds of an open ended date range
+  private static final Timestamp MIN_DATE = Timestamp.valueOf("0001-01-01 00:00:00");
+  private static final Timestamp MAX_DATE = Timestamp.valueOf("9999-12-31 23:59:59");
+
+  enum Type {
+    TOKEN, DATE
+  }
+
+  /**
+   * A search parameter which is indexed
+   */
+  static final class Parameter {
+    private final Table table;
+    private final String name;
+    private final Type type;
+    private final String[] paths;
+
+    Parameter(Table table, String name, Type type, String[] paths) {
+      this.table = table;
+      this.name = name;
+      this.type = type;
+      this.paths = paths;
+    }
+
+    /**
+     * Get the definition recorded in SearchIndexParameter, which changes with
+     * the type or paths of the parameter
+     */
+    String definition() {
+      return type.name().toLowerCase(Locale.ROOT) + "=" + String.join("|", paths);
+    }
+  }
+
+  /**
+   * A value of a search parameter in a resource. A token has a system (empty if
+   * it has none) and a code, a date only a date.
+   */
+  static final class Value {
+    private final String param;
+    private final String system;
+    private final String code;
+    private final Date date;
+
+    Value(String param, String system, String code, Date date) {
+      this.param = param;
+      this.system = system;
+      this.code = code;
+      this.date = date;
+    }
+  }
+
+  /**
+   * The value a search parameter is searched for. Put in the constraint map of
+   * ResourceStore.searchPage under the name of the parameter.
+   */
+  public abstract static class Criterion {
+    protected final Parameter parameter;
+
+    Criterion(Parameter parameter) {
+      this.parameter = parameter;
+    }
+
+    /**
+     * Set the values of the condition of the parameter (see condition)
+     *
+     * @param stmt  - the statement of the search.
+     * @param index - the index of the first value.
+     * @return the index of the next parameter.
+     * @throws SQLException
+     */
+    abstract int bind(PreparedStatement stmt, int index) throws SQLException;
+
+    abstract boolean matches(Value value);
+  }
+
+  static final class TokenCriterion extends Criterion {
+    // null matches any system
+    private final String system;
+    private final String code;
+
+    TokenCriterion(Parameter parameter, String system, String code) {
+      super(parameter);
+      this.system = system;
+      this.code = code;
+    }
+
+    @Override
+    int bind(PreparedStatement stmt, int index) throws SQLException {
+      stmt.setString(index, code);
+      stmt.setString(index + 1, system == null ? "%" : system.replaceAll("([\\\\%_])", "\\\\$1"));
+      return index + 2;
+    }
+
+    @Override
+    boolean matches(Value value) {
+      return value.code != null && value.code.equals(code) && (system == null || system.equals(value.system));
+    }
+
+    @Override
+    public String toString() {
+      return system == null ? code : system + "|" + code;
+    }
+  }
+
+  static final class DateCriterion extends Criterion {
+    // Start (inclusive) and end (exclusive) of the range or null if open
+    private final Date from;
+    private final Date to;
+
+    DateCriterion(Parameter parameter, Date from, Date to) {
+      super(parameter);
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    int bind(PreparedStatement stmt, int index) throws SQLException {
+      stmt.setTimestamp(index, from != null ? new Timestamp(from.getTime()) : MIN_DATE);
+      stmt.setTimestamp(index + 1, to != null ? new Timestamp(to.getTime()) : MAX_DATE);
+      return index + 2;
+    }
+
+    @Override
+    boolean matches(Value value) {
+      return value.date != null && (from == null || !value.date.before(from)) && (to == null || value.date.before(to));
+    }
+
+    @Override
+    public String toString() {
+      return "[" + (from != null ? from.toInstant() : "") + ", " + (to != null ? to.toInstant() : "") + ")";
+    }
+  }
+
+  private static final Map<Table, Map<String, Parameter>> parameters = load(
+      PropertyProvider.getProperty("search_index_parameters", DEFAULT_PARAMETERS));
+
+  private SearchIndex() {
+  }
+
+  /**
+   * Read the indexed parameters from the search_index_parameters setting.
+   * Parameters which cannot be indexed are logged and skipped.
+   *
+   * @param setting - the parameters separated by commas.
+   * @return map of table to map of name to parameter.
+   */
+  static Map<Table, Map<String, Parameter>> load(String setting) {
+    Map<Table, Map<String, Parameter>> loaded = new EnumMap<>(Table.class);
+    for (String entry : setting.split(",")) {
+      if (entry.trim().isEmpty())
+        continue;
+      try {
+        Parameter parameter = parse(entry.trim());
+        loaded.computeIfAbsent(parameter.table, table -> new LinkedHashMap<>()).put(parameter.name, parameter);
+      } catch (IllegalArgumentException e) {
+        logger.warning("SearchIndex::load:Not indexing " + entry.trim() + ": " + e.getMessage());
+      }
+    }
+    return loaded;
+  }
+
+  private static Parameter parse(String entry) {
+    String definition = entry;
+    String path = null;
+    String type = null;
+    int equals = entry.indexOf('=');
+    if (equals >= 0) {
+      definition = entry.substring(0, equals).trim();
+      path = entry.substring(equals + 1).trim();
+    }
+    int colon = definition.indexOf(':');
+    if (colon >= 0) {
+      type = definition.substring(colon + 1).trim();
+      definition = definition.substring(0, colon).trim();
+    }
+    int dot = definition.indexOf('.');
+    if (dot < 0)
+      throw new IllegalArgumentException("expected {ResourceType}.{name}");
+    String resourceType = definition.substring(0, dot);
+    String name = definition.substring(dot + 1);
+    Table table;
+    if (resourceType.equals(Table.CLAIM.value()))
+      table = Table.CLAIM;
+    else if (resourceType.equals(Table.CLAIM_RESPONSE.value()))
+      table = Table.CLAIM_RESPONSE;
+    else
+      throw new IllegalArgumentException("only Claim and ClaimResponse parameters are indexed");
+    if (!NAME.matcher(name).matches())
+      throw new IllegalArgumentException("invalid name " + name);
+    if (QueryShape.isColumn(table, name))
+      throw new IllegalArgumentException(name + " is a column of " + resourceType);
+
+    Type parameterType;
+    if (path == null) {
+      // A FHIR SearchParameter
+      RuntimeSearchParam searchParam = App.getFhirContext().getResourceDefinition(resourceType).getSearchParam(name);
+      if (searchParam == null || searchParam.getPath() == null || searchParam.getPath().isEmpty())
+        throw new IllegalArgumentException("no SearchParameter " + name + " on " + resourceType);
+      path = searchParam.getPath();
+      switch (searchParam.getParamType()) {
+        case TOKEN:
+        case REFERENCE:
+          parameterType = Type.TOKEN;
+          break;
+        case DATE:
+          parameterType = Type.DATE;
+          break;
+        default:
+          throw new IllegalArgumentException(searchParam.getParamType() + " parameters are not indexed");
+      }
+    } else {
+      if (type == null)
+        throw new IllegalArgumentException("expected {ResourceType}.{name}:{token|date}={path}");
+      try {
+        parameterType = Type.valueOf(type.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("unknown type " + type);
+      }
+    }
+
+    String[] paths = path.split("\\|");
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = paths[i].trim();
+      if (!PATH.matcher(paths[i]).matches() || !paths[i].startsWith(resourceType + "."))
+        throw new IllegalArgumentException("unsupported path " + paths[i]);
+    }
+    return new Parameter(table, name, parameterType, paths);
+  }
+
+  private static Map<String, Parameter> parameters(Table table) {
+    return parameters.getOrDefault(table, Collections.emptyMap());
+  }
+
+  /**
+   * Check whether any parameter of a table is indexed
+   */
+  static boolean isIndexed(Table table) {
+    return !parameters(table).isEmpty();
+  }
+
+  /**
+   * Get the condition of the WHERE clause of a search on an indexed parameter
+   *
+   * @param table - the Table searched.
+   * @param name  - the name of the parameter.
+   * @return the SQL condition, with the values set by Criterion.bind, or null if
+   *         the parameter is not indexed.
+   */
+  static String condition(Table table, String name) {
+    Parameter parameter = parameters(table).get(name);
+    if (parameter == null)
+      return null;
+    if (parameter.type == Type.DATE)
+      return "id IN (SELECT id FROM SearchDate WHERE resourceType = '" + table.value() + "' AND param = '" + name
+          + "' AND dateValue >= ? AND dateValue < ?)";
+    return "id IN (SELECT id FROM SearchToken WHERE resourceType = '" + table.value() + "' AND param = '" + name
+        + "' AND code = ? AND system LIKE ? ESCAPE '\\')";
+  }
+
+  /**
+   * Get the criteria of the indexed parameters of a search request
+   *
+   * @param table             - the Table searched.
+   * @param requestParameters - the parameters of the request. Parameters which
+   *                          are not indexed are ignored.
+   * @return map of parameter name to Criterion.
+   * @throws IllegalArgumentException if the value of a parameter is invalid
+   */
+  public static Map<String, Criterion> criteria(Table table, Map<String, String[]> requestParameters) {
+    Map<String, Criterion> criteria = new HashMap<>();
+    for (Map.Entry<String, String[]> requestParameter : requestParameters.entrySet()) {
+      Parameter parameter = parameters(table).get(requestParameter.getKey());
+      if (parameter == null)
+        continue;
+      if (parameter.type == Type.DATE) {
+        // Repeated dates (such as ge and lt) narrow the range
+        Date from = null;
+        Date to = null;
+        for (String value : requestParameter.getValue()) {
+          Date[] range = FhirUtils.dateRange(value);
+          if (range[0] != null && (from == null || range[0].after(from)))
+            from = range[0];
+          if (range[1] != null && (to == null || range[1].before(to)))
+            to = range[1];
+        }
+        criteria.put(parameter.name, new DateCriterion(parameter, from, to));
+      } else {
+        String[] values = requestParameter.getValue();
+        if (values.length != 1 || values[0].isEmpty() || values[0].contains(","))
+          throw new IllegalArgumentException(parameter.name + " takes a single [system|]code");
+        int bar = values[0].indexOf('|');
+        String code = bar >= 0 ? values[0].substring(bar + 1) : values[0];
+        if (code.isEmpty())
+          throw new IllegalArgumentException(parameter.name + " has no code");
+        criteria.put(parameter.name, new TokenCriterion(parameter, bar >= 0 ? values[0].substring(0, bar) : null, code));
+      }
+    }
+    return criteria;
+  }
+
+  /**
+   * Get the values of the indexed parameters of a resource
+   *
+   * @param table    - the Table of the resource.
+   * @param resource - the resource, or the response Bundle of a ClaimResponse.
+   * @return the values.
+   */
+  static List<Value> extract(Table table, IBaseResource resource) {
+    return extract(table, resource, parameters(table).keySet());
+  }
+
+  private static List<Value> extract(Table table, IBaseResource resource, Collection<String> names) {
+    List<Value> values = new ArrayList<>();
+    // ClaimResponses are stored in their response Bundle
+    if (table == Table.CLAIM_RESPONSE && resource instanceof Bundle) {
+      Bundle bundle = (Bundle) resource;
+      if (!bundle.hasEntry() || FhirUtils.getClaimResponseFromResponseBundle(bundle) == null)
+        return values;
+      resource = FhirUtils.getClaimResponseFromResponseBundle(bundle);
+    }
+    FhirTerser terser = App.getFhirContext().newTerser();
+    for (Parameter parameter : parameters(table).values()) {
+      if (!names.contains(parameter.name))
+        continue;
+      for (String path : parameter.paths)
+        for (IBase element : terser.getValues(resource, path))
+          addValues(values, parameter, element);
+    }
+    return values;
+  }
+
+  private static void addValues(List<Value> values, Parameter parameter, IBase element) {
+    if (parameter.type == Type.DATE) {
+      Date date = null;
+      if (element instanceof BaseDateTimeType)
+        date = ((BaseDateTimeType) element).getValue();
+      else if (element instanceof Period)
+        date = ((Period) element).getStart();
+      if (date != null)
+        values.add(new Value(parameter.name, null, null, date));
+    } else if (element instanceof CodeableConcept) {
+      for (Coding coding : ((CodeableConcept) element).getCoding())
+        addToken(values, parameter, coding.getSystem(), coding.getCode());
+    } else if (element instanceof Coding) {
+      addToken(values, parameter, ((Coding) element).getSystem(), ((Coding) element).getCode());
+    } else if (element instanceof Identifier) {
+      addToken(values, parameter, ((Identifier) element).getSystem(), ((Identifier) element).getValue());
+    } else if (element instanceof Reference) {
+      Reference reference = (Reference) element;
+      if (reference.hasReference()) {
+        // Absolute references are indexed as {ResourceType}/{id}
+        IdType id = new IdType(reference.getReference());
+        addToken(values, parameter, null, id.hasResourceType() && id.hasIdPart()
+            ? id.getResourceType() + "/" + id.getIdPart() : reference.getReference());
+      }
+      if (reference.hasIdentifier())
+        addToken(values, parameter, reference.getIdentifier().getSystem(), reference.getIdentifier().getValue());
+    } else if (element instanceof Enumeration) {
+      addToken(values, parameter, ((Enumeration<?>) element).getSystem(), ((Enumeration<?>) element).getValueAsString());
+    } else if (element instanceof PrimitiveType) {
+      addToken(values, parameter, null, ((PrimitiveType<?>) element).getValueAsString());
+    }
+  }
+
+  private static void addToken(List<Value> values, Parameter parameter, String system, String code) {
+    if (code != null && !code.isEmpty())
+      values.add(new Value(parameter.name, system != null ? system : "", code, null));
+  }
+
+  /**
+   * Check whether a resource matches every criterion. Used by the engines which
+   * do not store the index.
+   *
+   * @param table    - the Table of the resource.
+   * @param resource - the resource.
+   * @param criteria - the criteria.
+   * @return true if every criterion matches a value of the resource.
+   */
+  static boolean matches(Table table, IBaseResource resource, Collection<Criterion> criteria) {
+    List<Value> values = extract(table, resource);
+    for (Criterion criterion : criteria) {
+      boolean matched = false;
+      for (Value value : values)
+        matched |= value.param.equals(criterion.parameter.name) && criterion.matches(value);
+      if (!matched)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Replace the indexed values of a resource
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table of the resource.
+   * @param id         - the id of the row.
+   * @param resource   - the resource or its JSON.
+   * @throws SQLException
+   */
+  static void index(Connection connection, Table table, String id, Object resource) throws SQLException {
+    index(connection, table, id, resource, null);
+  }
+
+  /**
+   * Replace the indexed values of some parameters of a resource
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table of the resource.
+   * @param id         - the id of the row.
+   * @param resource   - the resource or its JSON.
+   * @param names      - the names of the parameters or null for every
+   *                   parameter.
+   * @throws SQLException
+   */
+  static void index(Connection connection, Table table, String id, Object resource, Collection<String> names)
+      throws SQLException {
+    if (!isIndexed(table) || id == null || resource == null)
+      return;
+    List<Value> values;
+    try {
+      IBaseResource parsed = resource instanceof IBaseResource ? (IBaseResource) resource
+          : App.getFhirContext().newJsonParser().parseResource(resource.toString());
+      values = extract(table, parsed, names != null ? names : parameters(table).keySet());
+    } catch (DataFormatException e) {
+      logger.log(Level.WARNING, "SearchIndex::index:Unable to index " + table.value() + "/" + id, e);
+      return;
+    }
+
+    if (names == null) {
+      remove(connection, table, id);
+    } else {
+      for (String sql : new String[] { DELETE_PARAM_TOKENS, DELETE_PARAM_DATES }) {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        for (String name : names) {
+          stmt.setString(1, table.value());
+          stmt.setString(2, id);
+          stmt.setString(3, name);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+      }
+    }
+    PreparedStatement tokens = null;
+    PreparedStatement dates = null;
+    for (Value value : values) {
+      if (value.date != null) {
+        if (dates == null)
+          dates = connection.prepareStatement(INSERT_DATE);
+        dates.setString(1, table.value());
+        dates.setString(2, id);
+        dates.setString(3, value.param);
+        dates.setTimestamp(4, new Timestamp(value.date.getTime()));
+        dates.addBatch();
+      } else {
+        if (tokens == null)
+          tokens = connection.prepareStatement(INSERT_TOKEN);
+        tokens.setString(1, table.value());
+        tokens.setString(2, id);
+        tokens.setString(3, value.param);
+        tokens.setString(4, value.system);
+        tokens.setString(5, value.code);
+        tokens.addBatch();
+      }
+    }
+    if (tokens != null)
+      tokens.executeBatch();
+    if (dates != null)
+      dates.executeBatch();
+  }
+
+  /**
+   * Get the parameters of a table which are indexed but not recorded in
+   * SearchIndexParameter with their current definition: the ones added to (or
+   * changed in) search_index_parameters since the last start. The resources
+   * already stored have no values (or stale ones) for them.
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table.
+   * @return the names of the parameters.
+   * @throws SQLException
+   */
+  static List<String> unrecorded(Connection connection, Table table) throws SQLException {
+    Map<String, String> recorded = recorded(connection, table);
+    List<String> names = new ArrayList<>();
+    for (Parameter parameter : parameters(table).values())
+      if (!parameter.definition().equals(recorded.get(parameter.name)))
+        names.add(parameter.name);
+    return names;
+  }
+
+  /**
+   * Record the indexed parameters of a table in SearchIndexParameter, once
+   * every stored resource is indexed for them. The values of the recorded
+   * parameters which are no longer indexed are removed.
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table.
+   * @throws SQLException
+   */
+  static void record(Connection connection, Table table) throws SQLException {
+    for (String name : recorded(connection, table).keySet()) {
+      if (parameters(table).containsKey(name))
+        continue;
+      for (String sql : new String[] { CLEAR_PARAM_TOKENS, CLEAR_PARAM_DATES, DELETE_RECORDED }) {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        stmt.setString(1, table.value());
+        stmt.setString(2, name);
+        stmt.execute();
+      }
+      logger.info("SearchIndex::record:Removed the values of " + table.value() + "." + name);
+    }
+    PreparedStatement merge = connection.prepareStatement(MERGE_RECORDED);
+    for (Parameter parameter : parameters(table).values()) {
+      merge.setString(1, table.value());
+      merge.setString(2, parameter.name);
+      merge.setString(3, parameter.definition());
+      merge.addBatch();
+    }
+    merge.executeBatch();
+  }
+
+  private static Map<String, String> recorded(Connection connection, Table table) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement(SELECT_RECORDED);
+    stmt.setString(1, table.value());
+    ResultSet rs = stmt.executeQuery();
+    Map<String, String> recorded = new HashMap<>();
+    while (rs.next())
+      recorded.put(rs.getString("param"), rs.getString("definition"));
+    return recorded;
+  }
+
+  /**
+   * Remove the indexed values of a resource
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table of the resource.
+   * @param id         - the id of the row.
+   * @throws SQLException
+   */
+  static void remove(Connection connection, Table table, String id) throws SQLException {
+    if (!isIndexed(table))
+      return;
+    for (String sql : new String[] { DELETE_TOKENS, DELETE_DATES }) {
+      PreparedStatement stmt = connection.prepareStatement(sql);
+      stmt.setString(1, table.value());
+      stmt.setString(2, id);
+      stmt.execute();
+    }
+  }
+
+  /**
+   * Remove the indexed values of the Claims of a chain and of their
+   * ClaimResponses, before the chain is deleted
+   *
+   * @param connection - the connection to the database.
+   * @param rootId     - the root of the chain.
+   * @throws SQLException
+   */
+  static void removeChain(Connection connection, String rootId) throws SQLException {
+    for (Table table : new Table[] { Table.CLAIM, Table.CLAIM_RESPONSE }) {
+      if (!isIndexed(table))
+        continue;
+      String ids = table == Table.CLAIM ? CHAIN_CLAIMS : CHAIN_CLAIM_RESPONSES;
+      for (String index : new String[] { "SearchToken", "SearchDate" }) {
+        PreparedStatement stmt = connection
+            .prepareStatement("DELETE FROM " + index + " WHERE resourceType = ? AND id IN (" + ids + ");");
+        stmt.setString(1, table.value());
+        stmt.setString(2, rootId);
+        stmt.execute();
+      }
+    }
+  }
+
+  /**
+   * Get the Claims and ClaimResponses which can be deleted by cascade with a
+   * Claim: the Claims of its chain and their ClaimResponses. Taken before the
+   * Claim is deleted, since the chain cannot be found afterwards (see prune).
+   *
+   * @param connection - the connection to the database.
+   * @param id         - the id of the Claim to delete.
+   * @param rootId     - the root of its chain or null.
+   * @return the ids of the Claims and of the ClaimResponses.
+   * @throws SQLException
+   */
+  static Map<Table, List<String>> cascade(Connection connection, String id, String rootId) throws SQLException {
+    Map<Table, List<String>> ids = new EnumMap<>(Table.class);
+    for (Table table : new Table[] { Table.CLAIM, Table.CLAIM_RESPONSE }) {
+      if (!isIndexed(table))
+        continue;
+      PreparedStatement stmt = connection
+          .prepareStatement(table == Table.CLAIM ? CASCADE_CLAIMS : CASCADE_CLAIM_RESPONSES);
+      stmt.setString(1, rootId);
+      stmt.setString(2, id);
+      ResultSet rs = stmt.executeQuery();
+      List<String> tableIds = new ArrayList<>();
+      while (rs.next())
+        tableIds.add(rs.getString(1));
+      ids.put(table, tableIds);
+    }
+    return ids;
+  }
+
+  /**
+   * Remove the indexed values of the resources returned by cascade which were
+   * deleted (by ON DELETE CASCADE) with the Claim
+   *
+   * @param connection - the connection to the database.
+   * @param ids        - the ids returned by cascade before the delete.
+   * @throws SQLException
+   */
+  static void prune(Connection connection, Map<Table, List<String>> ids) throws SQLException {
+    for (Map.Entry<Table, List<String>> entry : ids.entrySet()) {
+      if (entry.getValue().isEmpty())
+        continue;
+      String table = entry.getKey().value();
+      for (String index : new String[] { "SearchToken", "SearchDate" }) {
+        PreparedStatement stmt = connection.prepareStatement("DELETE FROM " + index
+            + " WHERE resourceType = ? AND id = ? AND NOT EXISTS (SELECT 1 FROM " + table + " WHERE " + table
+            + ".id = " + index + ".id);");
+        for (String id : entry.getValue()) {
+          stmt.setString(1, table);
+          stmt.setString(2, id);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+      }
+    }
+  }
+
+  /**
+   * Remove the indexed values of every resource of a table
+   *
+   * @param connection - the connection to the database.
+   * @param table      - the Table.
+   * @throws SQLException
+   */
+  static void clear(Connection connection, Table table) throws SQLException {
+    if (!isIndexed(table))
+      return;
+    for (String sql : new String[] { CLEAR_TOKENS, CLEAR_DATES }) {
+      PreparedStatement stmt = connection.prepareStatement(sql);
+      stmt.setString(1, table.value());
+      stmt.execute();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.hl7.davinci.priorauth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * One page of search results. Only the resources on the page are loaded, the
+ * rest of the search is continued from the opaque page token, so the memory
+ * used by a search is bounded by the page size rather than by the number of
+ * matching resources.
+ */
+public class SearchPage {
+
+  // Separates the parts of a page token. Cannot occur in ids or timestamps
+  private static final String SEPARATOR = "\n";
+
+  private final Bundle bundle;
+  private final String nextPageToken;
+
+  public SearchPage(Bundle bundle, String nextPageToken) {
+    this.bundle = bundle;
+    this.nextPageToken = nextPageToken;
+  }
+
+  /**
+   * Get the searchset Bundle with the resources on this page
+   */
+  public Bundle getBundle() {
+    return this.bundle;
+  }
+
+  /**
+   * Get the token to pass to ResourceStore.searchPage for the next page
+   *
+   * @return the token or null if this is the last page.
+   */
+  public String getNextPageToken() {
+    return this.nextPageToken;
+  }
+
+  public boolean hasNext() {
+    return this.nextPageToken != null;
+  }
+
+  /**
+   * Create an opaque page token from the position of the last row on a page
+   *
+   * @param parts - the sort keys of the last row.
+   * @return the page token
+   */
+  static String encodeToken(String... parts) {
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(String.join(SEPARATOR, parts).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the position encoded in a page token
+   *
+   * @param token - the page token.
+   * @param parts - the number of sort keys in the token.
+   * @return the sort keys of the last row of the previous page
+   * @throws IllegalArgumentException if the token was not created by encodeToken
+   */
+  static String[] decodeToken(String token, int parts) {
+    String[] decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(SEPARATOR, -1);
+    if (decoded.length != parts)
+      throw new IllegalArgumentException("Invalid page token " + token);
+    return decoded;
+  }
+}
@@ -0,0 +1,514 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Identifier;
+
+/**
+ * ResourceStore engine which spreads the rows over several SQL databases, each
+ * in its own H2 file (database, database-1, database-2, ...). The rows of a
+ * patient (Bundle, Claim, ClaimResponse and Subscription) are stored in the
+ * shard picked by a consistent hash of the patient and the items of a Claim in
+ * the shard of the Claim. Rules, Client and Audit are only stored in the first
+ * (home) shard.
+ *
+ * Queries with a patient go to a single shard. Queries without one go to the
+ * shard the row was last seen in (see the directory below) and otherwise fan
+ * out to every shard. Changing the number of shards moves patients between
+ * shards, so it needs a new (empty) store.
+ */
+public class ShardedResourceStore implements ResourceStore {
+
+  static final Logger logger = PALogger.getLogger();
+
+  private static final String JDBC_FILE = "database";
+  private static final int HOME = 0;
+
+  // Tables stored in the home shard only
+  private static final Set<Table> HOME_TABLES = EnumSet.of(Table.RULES, Table.CLIENT, Table.AUDIT);
+
+  private final List<ResourceStore> shards = new ArrayList<>();
+
+  // Shard of the rows recently written or found, keyed by Table/id
+  private final Cache<String, Integer> directory;
+
+  public ShardedResourceStore() {
+    this("./", Integer.parseInt(PropertyProvider.getProperty("database_shards", "4")));
+  }
+
+  /**
+   * Open (and create or migrate) the database of every shard
+   *
+   * @param relativePath - path to the project directory.
+   * @param shardCount   - the number of shards.
+   */
+  public ShardedResourceStore(String relativePath, int shardCount) {
+    this(createShards(relativePath, shardCount));
+  }
+
+  /**
+   * Spread the rows over the given stores. The first store is the home shard.
+   *
+   * @param shards - the store of every shard.
+   */
+  public ShardedResourceStore(List<ResourceStore> shards) {
+    if (shards.isEmpty())
+      throw new IllegalArgumentException("A sharded store needs at least one shard");
+    this.shards.addAll(shards);
+    this.directory = CacheBuilder.newBuilder()
+        .maximumSize(Long.parseLong(PropertyProvider.getProperty("database_shard_directory_size", "100000"))).build();
+  }
+
+  private static List<ResourceStore> createShards(String relativePath, int shardCount) {
+    List<ResourceStore> shards = new ArrayList<>();
+    for (int i = 0; i < shardCount; i++)
+      shards.add(new Database(relativePath, i == HOME ? JDBC_FILE : JDBC_FILE + "-" + i));
+    logger.info("ShardedResourceStore: " + shardCount + " shards");
+    return shards;
+  }
+
+  /**
+   * Get the number of shards
+   *
+   * @return the number of shards.
+   */
+  public int size() {
+    return shards.size();
+  }
+
+  /**
+   * Get the shard storing the rows of a patient
+   *
+   * @param patient - the patient.
+   * @return the index of the shard.
+   */
+  @Override
+  public int shardOf(String patient) {
+    return Hashing.consistentHash(Hashing.murmur3_128().hashString(patient, StandardCharsets.UTF_8), shards.size());
+  }
+
+  /**
+   * Get the shard all rows matching the constraints are stored in, without
+   * looking at the directory
+   *
+   * @param table       - the Table.
+   * @param constraints - map of column to value.
+   * @return the index of the shard or null if the rows can be in any shard.
+   */
+  private Integer fixedShard(Table table, Map<String, Object> constraints) {
+    if (HOME_TABLES.contains(table))
+      return HOME;
+    Object patient = constraints.get("patient");
+    if (patient != null)
+      return shardOf(patient.toString());
+    return null;
+  }
+
+  /**
+   * Get the shard the rows matching the constraints are stored in
+   *
+   * @param table       - the Table.
+   * @param constraints - map of column to value.
+   * @return the index of the shard or null if it is not known.
+   */
+  private Integer locate(Table table, Map<String, Object> constraints) {
+    Integer shard = fixedShard(table, constraints);
+    Object id = constraints.get("id");
+    if (shard != null || id == null)
+      return shard;
+    // The items of a Claim are stored with the Claim
+    return directory.getIfPresent((table == Table.CLAIM_ITEM ? Table.CLAIM : table).value() + "/" + id);
+  }
+
+  /**
+   * Get the shards to query for the rows matching the constraints
+   *
+   * @param table       - the Table.
+   * @param constraints - map of column to value.
+   * @return the indexes of the shards, a single one if it is known.
+   */
+  private List<Integer> route(Table table, Map<String, Object> constraints) {
+    Integer shard = locate(table, constraints);
+    if (shard != null)
+      return Collections.singletonList(shard);
+    List<Integer> all = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++)
+      all.add(i);
+    return all;
+  }
+
+  /**
+   * Get the shard a row is written to
+   *
+   * @param table - the Table.
+   * @param data  - map of column to value of the row.
+   * @return the index of the shard.
+   */
+  private int writeShard(Table table, Map<String, Object> data) {
+    Integer shard = locate(table, data);
+    if (shard == null && table == Table.CLAIM_ITEM)
+      shard = shardOfClaim(data.get("id").toString());
+    return shard != null ? shard : HOME;
+  }
+
+  /**
+   * Find the shard a Claim is stored in
+   *
+   * @param claimId - the id of the Claim.
+   * @return the index of the shard or null if no shard has the Claim.
+   */
+  private Integer shardOfClaim(String claimId) {
+    Map<String, Object> constraintMap = Collections.singletonMap("id", claimId);
+    for (int shard : route(Table.CLAIM, constraintMap)) {
+      if (shards.get(shard).readString(Table.CLAIM, constraintMap, "id") != null) {
+        found(Table.CLAIM, constraintMap, shard);
+        return shard;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remember the shard of the row with the id in the constraints (if any)
+   */
+  private void found(Table table, Map<String, Object> constraints, int shard) {
+    Object id = constraints.get("id");
+    if (id != null && !HOME_TABLES.contains(table) && table != Table.CLAIM_ITEM)
+      directory.put(table.value() + "/" + id, shard);
+  }
+
+  /**
+   * Query the shards one after the other until one of them returns a result
+   *
+   * @param table       - the Table.
+   * @param constraints - map of column to value.
+   * @param query       - the query to run against a shard.
+   * @return the first result which is not null, null if there is none.
+   */
+  private <T> T first(Table table, Map<String, Object> constraints, Function<ResourceStore, T> query) {
+    for (int shard : route(table, constraints)) {
+      T result = query.apply(shards.get(shard));
+      if (result != null) {
+        found(table, constraints, shard);
+        return result;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Query every shard the rows can be stored in and concatenate the results
+   */
+  private <T> List<T> all(Table table, Map<String, Object> constraints, Function<ResourceStore, List<T>> query) {
+    List<T> results = new ArrayList<>();
+    for (int shard : route(table, constraints))
+      results.addAll(query.apply(shards.get(shard)));
+    return results;
+  }
+
+  @Override
+  public Bundle search(Table table, Map<String, Object> constraintMap) {
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    for (int shard : route(table, constraintMap))
+      results.getEntry().addAll(shards.get(shard).search(table, constraintMap).getEntry());
+    results.setTotal(results.getEntry().size());
+    return results;
+  }
+
+  /**
+   * Search one page of the given resourceType. Searches for a patient page
+   * through its shard. Other searches page through the shards one after the
+   * other, so the results are most recent first within each shard.
+   */
+  @Override
+  public SearchPage searchPage(Table table, Map<String, Object> constraintMap, int count, String pageToken) {
+    Integer fixed = fixedShard(table, constraintMap);
+    if (fixed != null)
+      return shards.get(fixed).searchPage(table, constraintMap, count, pageToken);
+
+    // The token of a page is the shard it starts in and the token within it
+    int shard = 0;
+    String token = null;
+    if (pageToken != null) {
+      String[] cursor = SearchPage.decodeToken(pageToken, 2);
+      shard = Integer.parseInt(cursor[0]);
+      token = cursor[1].isEmpty() ? null : cursor[1];
+      if (shard < 0 || shard >= shards.size())
+        throw new IllegalArgumentException("Invalid page token " + pageToken);
+    }
+
+    Bundle results = new Bundle();
+    results.setType(BundleType.SEARCHSET);
+    results.setTimestamp(new Date());
+    String nextPageToken = null;
+    while (shard < shards.size()) {
+      SearchPage page = shards.get(shard).searchPage(table, constraintMap, count - results.getEntry().size(), token);
+      results.getEntry().addAll(page.getBundle().getEntry());
+      if (page.hasNext()) {
+        nextPageToken = SearchPage.encodeToken(Integer.toString(shard), page.getNextPageToken());
+        break;
+      }
+      shard++;
+      token = null;
+      if (results.getEntry().size() >= count) {
+        if (shard < shards.size())
+          nextPageToken = SearchPage.encodeToken(Integer.toString(shard), "");
+        break;
+      }
+    }
+    if (nextPageToken == null && pageToken == null)
+      results.setTotal(results.getEntry().size());
+    return new SearchPage(results, nextPageToken);
+  }
+
+  @Override
+  public IBaseResource read(Table table, Map<String, Object> constraintParams) {
+    return first(table, constraintParams, shard -> shard.read(table, constraintParams));
+  }
+
+  /**
+   * Read all resources matching the constraints. The resources are most recent
+   * first within each shard.
+   */
+  @Override
+  public List<IBaseResource> readAll(Table table, Map<String, Object> constraintParams) {
+    return all(table, constraintParams, shard -> shard.readAll(table, constraintParams));
+  }
+
+  @Override
+  public String readString(Table table, Map<String, Object> constraintParams, String column) {
+    return first(table, constraintParams, shard -> shard.readString(table, constraintParams, column));
+  }
+
+  @Override
+  public Map<String, String> readColumns(Table table, Map<String, Object> constraintParams, String... columns) {
+    return first(table, constraintParams, shard -> shard.readColumns(table, constraintParams, columns));
+  }
+
+  @Override
+  public List<Map<String, String>> readAllColumns(Table table, Map<String, Object> constraintParams,
+      String... columns) {
+    return all(table, constraintParams, shard -> shard.readAllColumns(table, constraintParams, columns));
+  }
+
+  @Override
+  public ResourceVersion readVersion(Table table, Map<String, Object> constraintParams) {
+    return first(table, constraintParams, shard -> shard.readVersion(table, constraintParams));
+  }
+
+  @Override
+  public boolean write(Table table, Map<String, Object> data) {
+    int shard = writeShard(table, data);
+    boolean result = shards.get(shard).write(table, data);
+    if (result)
+      found(table, data, shard);
+    return result;
+  }
+
+  /**
+   * Update the matching rows of every shard they can be stored in
+   */
+  @Override
+  public boolean update(Table table, Map<String, Object> constraintParams, Map<String, Object> data) {
+    boolean result = false;
+    for (int shard : route(table, constraintParams))
+      result = shards.get(shard).update(table, constraintParams, data) || result;
+    return result;
+  }
+
+  /**
+   * Insert many rows, one batch per shard
+   */
+  @Override
+  public BatchResult writeBatch(Table table, List<Map<String, Object>> rows) {
+    Map<Integer, List<Integer>> batches = new LinkedHashMap<>();
+    for (int i = 0; i < rows.size(); i++)
+      batches.computeIfAbsent(writeShard(table, rows.get(i)), shard -> new ArrayList<>()).add(i);
+
+    BatchResult result = new BatchResult(rows.size());
+    for (Map.Entry<Integer, List<Integer>> batch : batches.entrySet()) {
+      List<Map<String, Object>> shardRows = new ArrayList<>();
+      for (int i : batch.getValue())
+        shardRows.add(rows.get(i));
+      BatchResult shardResult = shards.get(batch.getKey()).writeBatch(table, shardRows);
+      for (int j = 0; j < shardRows.size(); j++) {
+        if (shardResult.isFailed(j))
+          result.fail(batch.getValue().get(j));
+        else
+          found(table, shardRows.get(j), batch.getKey());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Run many updates, one batch per shard for the updates whose shard is known
+   * and one at a time for the others
+   */
+  @Override
+  public BatchResult updateBatch(Table table, List<Map<String, Object>> constraintParams,
+      List<Map<String, Object>> data) {
+    if (constraintParams.size() != data.size())
+      throw new IllegalArgumentException("Every update needs constraints and data");
+    BatchResult result = new BatchResult(data.size());
+    Map<Integer, List<Integer>> batches = new LinkedHashMap<>();
+    for (int i = 0; i < data.size(); i++) {
+      Integer shard = locate(table, constraintParams.get(i));
+      if (shard != null)
+        batches.computeIfAbsent(shard, key -> new ArrayList<>()).add(i);
+      else if (!update(table, constraintParams.get(i), data.get(i)))
+        result.fail(i);
+    }
+
+    for (Map.Entry<Integer, List<Integer>> batch : batches.entrySet()) {
+      List<Map<String, Object>> shardConstraints = new ArrayList<>();
+      List<Map<String, Object>> shardData = new ArrayList<>();
+      for (int i : batch.getValue()) {
+        shardConstraints.add(constraintParams.get(i));
+        shardData.add(data.get(i));
+      }
+      BatchResult shardResult = shards.get(batch.getKey()).updateBatch(table, shardConstraints, shardData);
+      for (int j : shardResult.getFailed())
+        result.fail(batch.getValue().get(j));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean delete(Table table, String id, String patient) {
+    directory.invalidate(table.value() + "/" + id);
+    return shards.get(shardOf(patient)).delete(table, id, patient);
+  }
+
+  @Override
+  public boolean delete(Table table, String id) {
+    Map<String, Object> constraintMap = Collections.singletonMap("id", id);
+    boolean result = false;
+    for (int shard : route(table, constraintMap))
+      result = shards.get(shard).delete(table, id) || result;
+    directory.invalidate(table.value() + "/" + id);
+    return result;
+  }
+
+  @Override
+  public boolean delete(Table table) {
+    boolean result = true;
+    for (ResourceStore shard : shards)
+      result = shard.delete(table) && result;
+    directory.invalidateAll();
+    return result;
+  }
+
+  /**
+   * Write a page of a table. The rows of the shards are written one shard after
+   * the other like searchPage, so they are most recent first within each shard.
+   */
+  @Override
+  public String writeTable(Table table, int count, String pageToken, HtmlTableWriter out) throws IOException {
+    if (HOME_TABLES.contains(table))
+      return shards.get(HOME).writeTable(table, count, pageToken, out);
+
+    // The token of a page is the shard it starts in and the token within it
+    int shard = 0;
+    String token = null;
+    if (pageToken != null) {
+      String[] cursor = SearchPage.decodeToken(pageToken, 2);
+      shard = Integer.parseInt(cursor[0]);
+      token = cursor[1].isEmpty() ? null : cursor[1];
+      if (shard < 0 || shard >= shards.size())
+        throw new IllegalArgumentException("Invalid page token " + pageToken);
+    }
+
+    int start = out.getRows();
+    while (shard < shards.size()) {
+      String next = shards.get(shard).writeTable(table, count - (out.getRows() - start), token, out);
+      if (next != null)
+        return SearchPage.encodeToken(Integer.toString(shard), next);
+      shard++;
+      token = null;
+      if (out.getRows() - start >= count)
+        return shard < shards.size() ? SearchPage.encodeToken(Integer.toString(shard), "") : null;
+    }
+    return null;
+  }
+
+  @Override
+  public long exportNdjson(Table table, Date since, Writer out) throws IOException {
+    long count = 0;
+    for (ResourceStore shard : HOME_TABLES.contains(table) ? shards.subList(HOME, HOME + 1) : shards) {
+      long shardCount = shard.exportNdjson(table, since, out);
+      if (shardCount < 0)
+        return -1;
+      count += shardCount;
+    }
+    return count;
+  }
+
+  /**
+   * Begin a unit of work on the shard of the patient. Writes to the other
+   * shards (and the home shard) are not part of it.
+   */
+  @Override
+  public UnitOfWork beginUnitOfWork(String patient) {
+    if (patient == null)
+      return beginUnitOfWork();
+    return shards.get(shardOf(patient)).beginUnitOfWork();
+  }
+
+  @Override
+  public SearchPage searchAudit(Map<String, Object> constraintMap, Date from, Date to, int count,
+      String pageToken) {
+    return shards.get(HOME).searchAudit(constraintMap, from, to, count, pageToken);
+  }
+
+  /**
+   * Cancel the chain of a Claim in the shard of the Claim. Every Claim in the
+   * chain belongs to the same patient.
+   */
+  @Override
+  public boolean cancelClaimChain(String claimId) {
+    Integer shard = shardOfClaim(claimId);
+    if (shard == null) {
+      logger.warning("ShardedResourceStore::cancelClaimChain:Claim " + claimId + " not found");
+      return false;
+    }
+    return shards.get(shard).cancelClaimChain(claimId);
+  }
+
+  /**
+   * Find the Claim in the shard of the patient, where all of their Claims are
+   * stored
+   */
+  @Override
+  public String findClaimByIdentifier(String patient, Identifier identifier) {
+    return shards.get(shardOf(patient)).findClaimByIdentifier(patient, identifier);
+  }
+
+  @Override
+  public String getMostRecentId(String id) {
+    Integer shard = shardOfClaim(id);
+    return shard != null ? shards.get(shard).getMostRecentId(id) : id;
+  }
+}
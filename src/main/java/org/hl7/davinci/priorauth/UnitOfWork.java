@@ -0,0 +1,313 @@
+package org.hl7.davinci.priorauth;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single connection and transaction shared by every read and write made
+ * while processing one request. The unit of work is bound to the thread which
+ * began it; work handed to other threads is bound with propagate. Nothing is
+ * visible to other connections until commit, and closing a unit of work which
+ * was not committed rolls everything back.
+ *
+ * <pre>
+ * try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+ *   ... reads and writes through App.getDB() ...
+ *   unitOfWork.commit();
+ * }
+ * </pre>
+ *
+ * Beginning a unit of work while one is bound to the thread joins the enclosing
+ * one: commit and close of the inner unit of work do nothing.
+ */
+public class UnitOfWork implements AutoCloseable {
+
+  static final Logger logger = PALogger.getLogger();
+
+  private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+  // Every commit made by the application, whether by a unit of work or by a
+  // statement outside of one (autocommit)
+  static final AtomicLong commits = Metrics.counter("db.commits");
+  private static final AtomicLong unitCommits = Metrics.counter("db.unit_of_work.commits");
+  private static final AtomicLong unitRollbacks = Metrics.counter("db.unit_of_work.rollbacks");
+
+  private final Object owner;
+  private final Connection connection;
+  private final Connection shared;
+  private final boolean joined;
+  private final List<Runnable> afterCompletion = new ArrayList<>();
+  private final List<Runnable> afterCommit = new ArrayList<>();
+  // The number of afterCommit actions registered when each savepoint was set
+  private final Map<Savepoint, Integer> savepoints = new IdentityHashMap<>();
+  private volatile boolean completed = false;
+  private volatile boolean committed = false;
+
+  private UnitOfWork(Object owner, Connection connection, boolean joined) {
+    this.owner = owner;
+    this.connection = connection;
+    this.joined = joined;
+    this.shared = connection == null ? null : share(connection);
+  }
+
+  /**
+   * Begin a unit of work on the current thread or join the one already bound to
+   * it
+   *
+   * @param owner      - the store the connection belongs to.
+   * @param connection - connection with autocommit disabled which the unit of
+   *                   work owns, or null for stores without transactions. Not
+   *                   used when an enclosing unit of work is joined.
+   * @return the unit of work
+   */
+  static UnitOfWork begin(Object owner, Connection connection) {
+    UnitOfWork enclosing = current();
+    if (enclosing != null) {
+      closeQuietly(connection);
+      return new UnitOfWork(enclosing.owner, enclosing.connection, true);
+    }
+
+    UnitOfWork unitOfWork = new UnitOfWork(owner, connection, false);
+    current.set(unitOfWork);
+    return unitOfWork;
+  }
+
+  /**
+   * Get the unit of work bound to the current thread
+   *
+   * @return the unit of work or null if there is none (or it has completed)
+   */
+  public static UnitOfWork current() {
+    UnitOfWork unitOfWork = current.get();
+    return unitOfWork == null || unitOfWork.completed ? null : unitOfWork;
+  }
+
+  /**
+   * Wrap a task so it runs in the unit of work bound to the current thread
+   * (if any) when it is run on another thread
+   *
+   * @param task - the task to run.
+   * @return the task bound to the current unit of work
+   */
+  public static Runnable propagate(Runnable task) {
+    UnitOfWork unitOfWork = current();
+    if (unitOfWork == null)
+      return task;
+    return () -> {
+      UnitOfWork previous = current.get();
+      current.set(unitOfWork);
+      try {
+        task.run();
+      } finally {
+        if (previous == null)
+          current.remove();
+        else
+          current.set(previous);
+      }
+    };
+  }
+
+  /**
+   * Run an action once everything written so far on the current thread is
+   * committed: right away when no unit of work is bound to the thread, after
+   * the unit of work commits otherwise. The action is dropped if the unit of
+   * work (or the savepoint it was registered after) is rolled back. Used for
+   * side effects such as timers which cannot be rolled back.
+   *
+   * @param action - the action to run.
+   */
+  public static void afterCommit(Runnable action) {
+    UnitOfWork unitOfWork = current();
+    if (unitOfWork == null) {
+      action.run();
+      return;
+    }
+    synchronized (unitOfWork.afterCommit) {
+      unitOfWork.afterCommit.add(action);
+    }
+  }
+
+  /**
+   * Commit everything written in the unit of work
+   *
+   * @return true if the commit was successful, false otherwise. A unit of work
+   *         joining an enclosing one always returns true.
+   */
+  public boolean commit() {
+    if (joined)
+      return true;
+    if (completed)
+      return false;
+
+    boolean result = true;
+    try {
+      if (connection != null) {
+        connection.commit();
+        commits.incrementAndGet();
+      }
+      unitCommits.incrementAndGet();
+      committed = true;
+    } catch (SQLException e) {
+      result = false;
+      logger.log(Level.SEVERE, "UnitOfWork::commit:SQLException", e);
+      rollback();
+    }
+    complete();
+    return result;
+  }
+
+  /**
+   * Mark the current point of the unit of work, so what is written after it can
+   * be rolled back without the rest (see rollbackTo)
+   *
+   * @return the savepoint or null if the unit of work has no connection.
+   */
+  public Savepoint savepoint() {
+    if (connection == null || completed)
+      return null;
+    try {
+      Savepoint savepoint = connection.setSavepoint();
+      synchronized (afterCommit) {
+        savepoints.put(savepoint, afterCommit.size());
+      }
+      return savepoint;
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "UnitOfWork::savepoint:SQLException", e);
+      return null;
+    }
+  }
+
+  /**
+   * Roll back everything written in the unit of work since a savepoint
+   *
+   * @param savepoint - the savepoint returned by savepoint().
+   * @return true if the writes were rolled back, false otherwise.
+   */
+  public boolean rollbackTo(Savepoint savepoint) {
+    if (savepoint == null || connection == null || completed)
+      return false;
+    try {
+      connection.rollback(savepoint);
+      synchronized (afterCommit) {
+        Integer registered = savepoints.get(savepoint);
+        if (registered != null && registered < afterCommit.size())
+          afterCommit.subList(registered, afterCommit.size()).clear();
+      }
+      return true;
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "UnitOfWork::rollbackTo:SQLException", e);
+      return false;
+    }
+  }
+
+  /**
+   * Roll back the unit of work if it has not been committed and release its
+   * connection
+   */
+  @Override
+  public void close() {
+    if (joined || completed)
+      return;
+    rollback();
+    complete();
+  }
+
+  /**
+   * Get the connection of the unit of work. The connection cannot commit, roll
+   * back or close the transaction.
+   *
+   * @param store - the store asking for the connection.
+   * @return the connection or null if the unit of work has no connection for
+   *         the store.
+   */
+  Connection connection(Object store) {
+    return store == this.owner ? this.shared : null;
+  }
+
+  /**
+   * Run an action once the unit of work has been committed or rolled back
+   *
+   * @param action - the action to run.
+   */
+  void afterCompletion(Runnable action) {
+    synchronized (afterCompletion) {
+      afterCompletion.add(action);
+    }
+  }
+
+  private void rollback() {
+    unitRollbacks.incrementAndGet();
+    if (connection == null)
+      return;
+    try {
+      connection.rollback();
+    } catch (SQLException e) {
+      logger.log(Level.SEVERE, "UnitOfWork::rollback:SQLException", e);
+    }
+  }
+
+  private void complete() {
+    completed = true;
+    if (current.get() == this)
+      current.remove();
+    closeQuietly(connection);
+
+    List<Runnable> actions;
+    synchronized (afterCompletion) {
+      actions = new ArrayList<>(afterCompletion);
+    }
+    synchronized (afterCommit) {
+      if (committed)
+        actions.addAll(afterCommit);
+    }
+    for (Runnable action : actions)
+      action.run();
+  }
+
+  private static void closeQuietly(Connection connection) {
+    if (connection == null)
+      return;
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      logger.log(Level.WARNING, "UnitOfWork::closeQuietly:SQLException", e);
+    }
+  }
+
+  /**
+   * Wrap the connection so the statements run in the unit of work (which close
+   * their connection when done) cannot close it or end the transaction
+   */
+  private static Connection share(Connection connection) {
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "close":
+            case "commit":
+            case "rollback":
+            case "setAutoCommit":
+              return null;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            default:
+              try {
+                return method.invoke(connection, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+          }
+        });
+  }
+}
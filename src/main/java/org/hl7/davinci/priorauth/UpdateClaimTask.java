@@ -71,6 +71,11 @@ public class UpdateClaimTask extends TimerTask {
             constraintMap.put("claimResponseId", claimId);
             constraintMap.put("patient", patient);
             List<IBaseResource> subscriptions = App.getDB().readAll(Table.SUBSCRIPTION, constraintMap);
+            Map<String, String> websocketIds = new HashMap<>();
+            if (!subscriptions.isEmpty())
+                for (Map<String, String> row : App.getDB().readAllColumns(Table.SUBSCRIPTION, constraintMap, "id",
+                        "websocketId"))
+                    websocketIds.put(row.get("id"), row.get("websocketId"));
 
             // Send notification to each subscriber
             subscriptions.stream().forEach(resource -> {
@@ -98,8 +103,7 @@ public class UpdateClaimTask extends TimerTask {
                     }
                 } else if (subscriptionType == SubscriptionChannelType.WEBSOCKET) {
                     // Send websocket notification...
-                    String websocketId = App.getDB().readString(Table.SUBSCRIPTION,
-                            Collections.singletonMap("id", subscriptionId), "websocketId");
+                    String websocketId = websocketIds.get(subscriptionId);
                     if (websocketId != null) {
                         logger.info("SubscriptionHandler::Sending web-socket notification to " + websocketId);
                         SubscribeController.sendMessageToUser(websocketId, WebSocketConfig.SUBSCRIBE_USER_NOTIFICATION,
@@ -276,10 +276,12 @@ public class AuthEndpoint {
      * @throws IOException
      */
     private static JSONObject getJwks(String clientId) throws ParseException, IOException, InvalidAttributeValueException {
-        String jwks = App.getDB().readString(Table.CLIENT, Collections.singletonMap("id", clientId), "jwks");
+        Map<String, String> columns = App.getDB().readColumns(Table.CLIENT, Collections.singletonMap("id", clientId),
+                "jwks", "jwks_url");
+        if (columns == null) throw new InvalidAttributeValueException();
+        String jwks = columns.get("jwks");
         if (jwks == null || jwks.equals("null")) {
-            String jwksUrl = App.getDB().readString(Table.CLIENT, Collections.singletonMap("id", clientId),
-                    "jwks_url");
+            String jwksUrl = columns.get("jwks_url");
             if (jwksUrl == null) throw new InvalidAttributeValueException();
             OkHttpClient client = new OkHttpClient();
             okhttp3.Response response = client.newCall(new Request.Builder().get().url(jwksUrl).build()).execute();
@@ -0,0 +1,122 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.priorauth.SearchPage;
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.authorization.AuthUtils;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * The AuditEvent endpoint to SEARCH the audit trail. Supports the date (with
+ * the ge, gt, le, lt and eq prefixes), outcome, action, agent, entity and type
+ * search parameters and returns one page (_count) at a time, most recent first.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("/AuditEvent")
+public class AuditEventEndpoint {
+
+  static final Logger logger = PALogger.getLogger();
+
+  static final String INVALID_SEARCH = "Invalid search parameter: ";
+
+  @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
+  public ResponseEntity<String> searchAuditEventJson(HttpServletRequest request,
+      @RequestParam(name = "date", required = false) String[] date,
+      @RequestParam(name = "outcome", required = false) String outcome,
+      @RequestParam(name = "action", required = false) String action,
+      @RequestParam(name = "agent", required = false) String agent,
+      @RequestParam(name = "entity", required = false) String entity,
+      @RequestParam(name = "type", required = false) String type) {
+    return searchAuditEvent(date, outcome, action, agent, entity, type, request, RequestType.JSON);
+  }
+
+  @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
+  public ResponseEntity<String> searchAuditEventXml(HttpServletRequest request,
+      @RequestParam(name = "date", required = false) String[] date,
+      @RequestParam(name = "outcome", required = false) String outcome,
+      @RequestParam(name = "action", required = false) String action,
+      @RequestParam(name = "agent", required = false) String agent,
+      @RequestParam(name = "entity", required = false) String entity,
+      @RequestParam(name = "type", required = false) String type) {
+    return searchAuditEvent(date, outcome, action, agent, entity, type, request, RequestType.XML);
+  }
+
+  private ResponseEntity<String> searchAuditEvent(String[] date, String outcome, String action, String agent,
+      String entity, String type, HttpServletRequest request, RequestType requestType) {
+    logger.info("GET /AuditEvent fhir+" + requestType.name());
+    App.setBaseUrl(Endpoint.getServiceBaseUrl(request));
+    if (!AuthUtils.validateAccessToken(request)) {
+      Audit.createAuditEvent(AuditEventType.AUDIT, AuditEventAction.R, AuditEventOutcome.MINOR_FAILURE, "AuditEvent", request,
+          "Attempted to search AuditEvent but is unauthorized");
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    }
+
+    Map<String, Object> constraintMap = new HashMap<>();
+    Date from = null;
+    Date to = null;
+    SearchPage page;
+    int count;
+    try {
+      if (outcome != null)
+        constraintMap.put("outcome", AuditEvent.AuditEventOutcome.fromCode(outcome).toCode());
+      if (action != null)
+        constraintMap.put("action", AuditEventAction.fromCode(action).getDisplay());
+      if (agent != null)
+        constraintMap.put("clientId", agent.startsWith("Organization/") ? agent.substring(13) : agent);
+      if (entity != null)
+        constraintMap.put("what", entity);
+      if (type != null)
+        constraintMap.put("type", type);
+      for (String value : date != null ? date : new String[0]) {
+        Date[] range = FhirUtils.dateRange(value);
+        if (range[0] != null && (from == null || range[0].after(from)))
+          from = range[0];
+        if (range[1] != null && (to == null || range[1].before(to)))
+          to = range[1];
+      }
+
+      count = Endpoint.pageSize(request.getParameter("_count"));
+      page = App.getDB().searchAudit(constraintMap, from, to, count, request.getParameter("_page"));
+    } catch (IllegalArgumentException | FHIRException e) {
+      logger.warning("AuditEventEndpoint::searchAuditEvent:invalid search: " + e.getMessage());
+      OperationOutcome operationOutcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+          INVALID_SEARCH + e.getMessage());
+      return new ResponseEntity<>(FhirUtils.getFormattedData(operationOutcome, requestType), HttpStatus.BAD_REQUEST);
+    }
+
+    Bundle searchBundle = page.getBundle();
+    searchBundle.addLink().setRelation("self").setUrl(Endpoint.pageUrl(request, count, request.getParameter("_page")));
+    if (page.hasNext())
+      searchBundle.addLink().setRelation("next").setUrl(Endpoint.pageUrl(request, count, page.getNextPageToken()));
+    Audit.createAuditEvent(AuditEventType.AUDIT, AuditEventAction.R, AuditEventOutcome.SUCCESS, "AuditEvent", request,
+        "Searched AuditEvent " + constraintMap.toString());
+    return new ResponseEntity<>(FhirUtils.getFormattedData(searchBundle, requestType), HttpStatus.OK);
+  }
+}
@@ -1,10 +1,13 @@
 package org.hl7.davinci.priorauth.endpoint;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,10 +28,12 @@ import org.springframework.web.bind.annotation.RestController;
 import org.hl7.davinci.priorauth.authorization.AuthUtils;
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.BatchResult;
 import org.hl7.davinci.priorauth.ClaimResponseFactory;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.ProcessClaimItemTask;
+import org.hl7.davinci.priorauth.UnitOfWork;
 import org.hl7.davinci.priorauth.UpdateClaimTask;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
@@ -63,7 +68,8 @@ public class ClaimEndpoint {
   static final String REQUIRES_BUNDLE = "Prior Authorization Claim/$submit Operation requires a Bundle with a single Claim as the first entry and supporting resources.";
   static final String PROCESS_FAILED = "Unable to process the request properly. Check the log for more details.";
 
-  static final HashMap<String, Timer> pendedTimers = new HashMap<>();
+  // Bundles are also processed by the $import lanes in parallel
+  static final Map<String, Timer> pendedTimers = new ConcurrentHashMap<>();
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
   public ResponseEntity<String> readClaimJson(HttpServletRequest request,
@@ -143,7 +149,14 @@ public class ClaimEndpoint {
         Bundle bundle = (Bundle) resource;
         if (bundle.hasEntry() && (!bundle.getEntry().isEmpty()) && bundle.getEntry().get(0).hasResource()
             && bundle.getEntry().get(0).getResource().getResourceType() == ResourceType.Claim) {
-          Bundle responseBundle = processBundle(bundle);
+          // Everything stored for the submission is committed together
+          Bundle responseBundle;
+          try (UnitOfWork unitOfWork = App.getDB()
+              .beginUnitOfWork(FhirUtils.getPatientIdentifierFromBundle(bundle))) {
+            responseBundle = processBundle(bundle);
+            if (responseBundle != null && !unitOfWork.commit())
+              responseBundle = null;
+          }
           if (responseBundle == null) {
             // Failed processing bundle...
             OperationOutcome error = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID, PROCESS_FAILED);
@@ -194,7 +207,7 @@ public class ClaimEndpoint {
    * @param bundle Bundle with a Claim followed by other required resources.
    * @return ClaimResponse with the result.
    */
-  private Bundle processBundle(Bundle bundle) {
+  Bundle processBundle(Bundle bundle) {
     logger.fine("ClaimEndpoint::processBundle:" + bundle.getId());
 
     // Generate a shared id...
@@ -217,7 +230,8 @@ public class ClaimEndpoint {
       if (cancelClaim(FhirUtils.getIdFromResource(claim), patient)) {
         responseStatus = ClaimResponseStatus.CANCELLED;
         responseDisposition = Disposition.CANCELLED;
-        cancelTimer(FhirUtils.getIdFromResource(claim));
+        String claimId = FhirUtils.getIdFromResource(claim);
+        UnitOfWork.afterCommit(() -> cancelTimer(claimId));
       } else {
         logger.severe("ClaimEndpoint::Unable to cancel Claim/" + FhirUtils.getIdFromResource(claim));
         return null;
@@ -256,7 +270,8 @@ public class ClaimEndpoint {
         // Check if the related is pended in the DB
         if (FhirUtils.isPended(relatedId)) {
           logger.warning("ClaimEndpoint::Related claim " + relatedId + " is pending. Cancelling the scheduled update");
-          cancelTimer(relatedId);
+          String pendedId = relatedId;
+          UnitOfWork.afterCommit(() -> cancelTimer(pendedId));
         }
       }
 
@@ -284,9 +299,9 @@ public class ClaimEndpoint {
     Bundle responseBundle = ClaimResponseFactory.generateAndStoreClaimResponse(bundle, claim, id, responseDisposition,
         responseStatus, patient, false);
 
-    // Schedule update to Pended Claim
+    // Schedule update to Pended Claim once it is committed
     if (responseDisposition == Disposition.PENDING) {
-      schedulePendedClaimUpdate(bundle, id, patient);
+      UnitOfWork.afterCommit(() -> schedulePendedClaimUpdate(bundle, id, patient));
     }
 
     // Respond...
@@ -316,11 +331,19 @@ public class ClaimEndpoint {
     }
 
     // Block until all of the threads are done
+    List<Map<String, Object>> newItems = new ArrayList<>();
+    List<Map<String, Object>> updateConstraints = new ArrayList<>();
+    List<Map<String, Object>> updatedItems = new ArrayList<>();
     for (ProcessClaimItemTask itemTask : threads.values()) {
       try {
         itemTask.getThread().join();
         if (itemTask.getStatus() != 0)
           ret = false;
+        else if (itemTask.getItemConstraints() != null) {
+          updateConstraints.add(itemTask.getItemConstraints());
+          updatedItems.add(itemTask.getItemData());
+        } else
+          newItems.add(itemTask.getItemData());
         logger.fine("ClaimEndpoint::processClaimItems:finsihed processing " + itemTask.getItemName() + ":"
             + itemTask.getStatus());
       } catch (InterruptedException e) {
@@ -329,6 +352,18 @@ public class ClaimEndpoint {
       }
     }
 
+    // Write all of the items at once
+    BatchResult written = App.getDB().writeBatch(Table.CLAIM_ITEM, newItems);
+    if (!written.isSuccessful()) {
+      logger.warning("ClaimEndpoint::processClaimItems:unable to write claim items:" + written.toString());
+      ret = false;
+    }
+    BatchResult updated = App.getDB().updateBatch(Table.CLAIM_ITEM, updateConstraints, updatedItems);
+    if (!updated.isSuccessful()) {
+      logger.warning("ClaimEndpoint::processClaimItems:unable to update claim items:" + updated.toString());
+      ret = false;
+    }
+
     return ret;
   }
 
@@ -348,25 +383,8 @@ public class ClaimEndpoint {
     Claim initialClaim = (Claim) App.getDB().read(Table.CLAIM, claimConstraintMap);
     if (initialClaim != null) {
       if (initialClaim.getStatus() != ClaimStatus.CANCELLED) {
-        // Cancel the claim...
-        initialClaim.setStatus(ClaimStatus.CANCELLED);
-        Map<String, Object> dataMap = new HashMap<>();
-        Map<String, Object> constraintMap = new HashMap<>();
-        constraintMap.put("id", claimId);
-        dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
-        dataMap.put("resource", initialClaim);
-        App.getDB().update(Table.CLAIM, constraintMap, dataMap);
-
-        cascadeCancel(claimId);
-
-        // Cancel items...
-        dataMap = new HashMap<>();
-        constraintMap = new HashMap<>();
-        constraintMap.put("id", App.getDB().getMostRecentId(claimId));
-        dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
-        App.getDB().update(Table.CLAIM_ITEM, constraintMap, dataMap);
-
-        result = true;
+        // Cancel the claim, cascading to all related claims and the items
+        result = App.getDB().cancelClaimChain(claimId);
       } else {
         logger.warning("ClaimEndpoint::Claim " + claimId + " is already cancelled");
         result = false;
@@ -378,60 +396,6 @@ public class ClaimEndpoint {
     return result;
   }
 
-  /**
-   * Helper function to complete the cascade aspect of a Claim cancel. When a
-   * Claim is cancelled this will cascade the cancel to all related Claims (both
-   * up and downstream). A cancel updates the database status as well as update
-   * the resource status
-   * 
-   * @param claimId - the id of the original Claim to be cancelled
-   */
-  private void cascadeCancel(String claimId) {
-    // Cascade delete shared maps
-    Map<String, Object> dataMap = new HashMap<>();
-    dataMap.put("status", ClaimStatus.CANCELLED.getDisplay().toLowerCase());
-    dataMap.put("resource", null);
-    Map<String, Object> constraintMap = new HashMap<>();
-    constraintMap.put("id", null);
-
-    // Cascade up to all the Claims submitted after this which reference this Claim
-    Map<String, Object> readConstraintMap = new HashMap<>();
-    readConstraintMap.put("related", claimId);
-    Claim referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    String referencingId;
-
-    while (referencingClaim != null) {
-      // Update referencing claim to cancelled
-      referencingClaim.setStatus(ClaimStatus.CANCELLED);
-      referencingId = FhirUtils.getIdFromResource(referencingClaim);
-      constraintMap.replace("id", referencingId);
-      dataMap.replace("resource", referencingClaim);
-      App.getDB().update(Table.CLAIM, constraintMap, dataMap);
-
-      // Get the new referencing claim
-      readConstraintMap.replace("related", referencingId);
-      referencingClaim = (Claim) App.getDB().read(Table.CLAIM, readConstraintMap);
-    }
-
-    // Cascade the cancel to all related Claims...
-    // Follow each related until it is NULL
-    constraintMap.replace("id", claimId);
-    String relatedId = App.getDB().readRelated(Table.CLAIM, constraintMap);
-    Claim relatedClaim;
-
-    while (relatedId != null) {
-      // Update related claim to cancelled
-      constraintMap.replace("id", relatedId);
-      relatedClaim = (Claim) App.getDB().read(Table.CLAIM, constraintMap);
-      relatedClaim.setStatus(ClaimStatus.CANCELLED);
-      dataMap.replace("resource", relatedClaim);
-      App.getDB().update(Table.CLAIM, constraintMap, dataMap);
-
-      // Get the new related id from the db
-      relatedId = App.getDB().readRelated(Table.CLAIM, constraintMap);
-    }
-  }
-
   /**
    * Schedule an update to the Claim to support pending actions.
    *
@@ -28,9 +28,7 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import org.hl7.fhir.r4.model.Bundle;
@@ -154,33 +152,22 @@ public class ClaimInquiryEndpoint {
     private Bundle getClaimResponseBundle(Bundle requestBundle) {
         String patient = FhirUtils.getPatientIdentifierFromBundle(requestBundle);
         Claim claimInquiry = FhirUtils.getClaimFromRequestBundle(requestBundle);
-        Identifier claimInquiryIdentifier = claimInquiry.getIdentifier().get(0);
-
-        // Search DB for all claims for patient then filter to where identifiers match
-        List<IBaseResource> claims = App.getDB().readAll(Table.CLAIM, Collections.singletonMap("patient", patient));
-        logger.fine("Found " + claims.size() + " claims for Patient " + patient + " (Inquiry bundle: "
-                + requestBundle.getId() + ")");
-        for (IBaseResource resource : claims) {
-            Claim claim = (Claim) resource;
-            Identifier claimIdentifier = claim.getIdentifier().get(0);
-            if (identifiersMatch(claimIdentifier, claimInquiryIdentifier)) {
-                // Find the ClaimResponse
-                String claimId = FhirUtils.getIdFromResource(claim);
-                Map<String, Object> constraintMap = new HashMap<>();
-                constraintMap.put("patient", patient);
-                constraintMap.put("claimId", claimId);
-                logger.fine("Found matching Claim. Getting ClaimResponse with patient: " + patient + " and claimId: "
-                        + claimId);
-                return (Bundle) App.getDB().read(Table.CLAIM_RESPONSE, constraintMap);
-            }
+        Identifier claimInquiryIdentifier = claimInquiry.getIdentifierFirstRep();
+
+        // Look up the latest Claim with the identifier, then its ClaimResponse
+        String claimId = App.getDB().findClaimByIdentifier(patient, claimInquiryIdentifier);
+        if (claimId == null) {
+            logger.fine("No Claim with identifier " + claimInquiryIdentifier.getSystem() + "|"
+                    + claimInquiryIdentifier.getValue() + " for Patient " + patient + " (Inquiry bundle: "
+                    + requestBundle.getId() + ")");
+            return null;
         }
-
-        return null;
-    }
-
-    private boolean identifiersMatch(Identifier identifier1, Identifier identifier2) {
-        return identifier1.getSystem().equals(identifier2.getSystem())
-                && identifier1.getValue().equals(identifier2.getValue());
+        Map<String, Object> constraintMap = new HashMap<>();
+        constraintMap.put("patient", patient);
+        constraintMap.put("claimId", claimId);
+        logger.fine("Found matching Claim. Getting ClaimResponse with patient: " + patient + " and claimId: "
+                + claimId);
+        return (Bundle) App.getDB().read(Table.CLAIM_RESPONSE, constraintMap);
     }
 
 }
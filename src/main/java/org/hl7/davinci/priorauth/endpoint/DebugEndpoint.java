@@ -4,13 +4,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpStatus;
@@ -24,6 +29,7 @@ import org.springframework.web.bind.annotation.RestController;
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
 import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.HtmlTableWriter;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.PropertyProvider;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
@@ -44,43 +50,43 @@ public class DebugEndpoint {
   static final Logger logger = PALogger.getLogger();
 
   @GetMapping("/Bundle")
-  public ResponseEntity<String> getBundles(HttpServletRequest request) {
-    return query(Table.BUNDLE, request);
+  public void getBundles(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.BUNDLE, request, response);
   }
 
   @GetMapping("/Claim")
-  public ResponseEntity<String> getClaims(HttpServletRequest request) {
-    return query(Table.CLAIM, request);
+  public void getClaims(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.CLAIM, request, response);
   }
 
   @GetMapping("/ClaimResponse")
-  public ResponseEntity<String> getClaimResponses(HttpServletRequest request) {
-    return query(Table.CLAIM_RESPONSE, request);
+  public void getClaimResponses(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.CLAIM_RESPONSE, request, response);
   }
 
   @GetMapping("/ClaimItem")
-  public ResponseEntity<String> getClaimItems(HttpServletRequest request) {
-    return query(Table.CLAIM_ITEM, request);
+  public void getClaimItems(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.CLAIM_ITEM, request, response);
   }
 
   @GetMapping("/Subscription")
-  public ResponseEntity<String> getSubscription(HttpServletRequest request) {
-    return query(Table.SUBSCRIPTION, request);
+  public void getSubscription(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.SUBSCRIPTION, request, response);
   }
 
   @GetMapping("/Rules")
-  public ResponseEntity<String> getRules(HttpServletRequest request) {
-    return query(Table.RULES, request);
+  public void getRules(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.RULES, request, response);
   }
 
   @GetMapping("/Audit")
-  public ResponseEntity<String> getAudit(HttpServletRequest request) {
-    return query(Table.AUDIT, request);
+  public void getAudit(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.AUDIT, request, response);
   }
 
   @GetMapping("/Client")
-  public ResponseEntity<String> getClient(HttpServletRequest request) {
-    return query(Table.CLIENT, request);
+  public void getClient(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    query(Table.CLIENT, request, response);
   }
 
   @PostMapping("/PopulateDatabaseTestData")
@@ -197,14 +203,16 @@ public class DebugEndpoint {
       writeClaimResponse(getResource("PendedFinalResponse.json"), "f57a4af7-e3b7-475e-9fae-b31cc0319e36",
           "2200-09-10 10:55:03.0");
 
-      Map<String, Object> dataMap = new HashMap<>();
-      dataMap.put("id", "f57a4af7-e3b7-475e-9fae-b31cc0319e36");
-      dataMap.put("sequence", "1");
-      dataMap.put("status", "active");
-      dataMap.put("timestamp", "2200-09-10 08:43:32.9");
-      App.getDB().write(Table.CLAIM_ITEM, dataMap);
-      dataMap.replace("sequence", "2");
-      App.getDB().write(Table.CLAIM_ITEM, dataMap);
+      List<Map<String, Object>> items = new ArrayList<>();
+      for (String sequence : new String[] { "1", "2" }) {
+        Map<String, Object> dataMap = new HashMap<>();
+        dataMap.put("id", "f57a4af7-e3b7-475e-9fae-b31cc0319e36");
+        dataMap.put("sequence", sequence);
+        dataMap.put("status", "active");
+        dataMap.put("timestamp", "2200-09-10 08:43:32.9");
+        items.add(dataMap);
+      }
+      App.getDB().writeBatch(Table.CLAIM_ITEM, items);
     } catch (FileNotFoundException e) {
       status = HttpStatus.BAD_REQUEST;
       responseData = "ERROR: Unable to read all resources to populate database";
@@ -265,17 +273,40 @@ public class DebugEndpoint {
     return App.getDB().write(Table.CLAIM_RESPONSE, dataMap);
   }
 
-  private ResponseEntity<String> query(Table table, HttpServletRequest request) {
+  /**
+   * Stream one page of a table to the response. The page size is the _count
+   * parameter (debug_page_size by default, at most debug_max_page_size) and the
+   * next page is linked at the bottom of the page.
+   */
+  private void query(Table table, HttpServletRequest request, HttpServletResponse response) throws IOException {
     logger.info("GET /debug/" + table.value());
-    if (App.isDebugModeEnabled()) {
-      String description = "Read " + table.value() + " table in debug mode.";
-      Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, request, description);
-      return new ResponseEntity<>(App.getDB().generateAndRunQuery(table), HttpStatus.OK);
-    } else {
+    if (!App.isDebugModeEnabled()) {
       String description = "Attempted to read " + table.value() + " table but app is not in debug mode.";
       Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.MINOR_FAILURE, null, request, description);
       logger.warning("DebugEndpoint::query disabled");
-      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+      response.setStatus(HttpStatus.BAD_REQUEST.value());
+      return;
+    }
+
+    String pageToken = request.getParameter("_page");
+    try {
+      int count = Endpoint.pageSize(request.getParameter("_count"),
+          Integer.parseInt(PropertyProvider.getProperty("debug_page_size", "100")),
+          Integer.parseInt(PropertyProvider.getProperty("debug_max_page_size", "1000")));
+      response.setContentType(MediaType.TEXT_HTML_VALUE);
+      response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+      HtmlTableWriter out = new HtmlTableWriter(response.getWriter(),
+          Integer.parseInt(PropertyProvider.getProperty("debug_preview_chars", "2000")));
+      // An invalid page token is rejected before anything is written
+      String nextPageToken = App.getDB().writeTable(table, count, pageToken, out);
+      out.end(nextPageToken != null ? Endpoint.pageUrl(request, count, nextPageToken) : null);
+    } catch (IllegalArgumentException e) {
+      logger.warning("DebugEndpoint::query:invalid paging parameters: " + e.getMessage());
+      response.reset();
+      response.setStatus(HttpStatus.BAD_REQUEST.value());
+      return;
     }
+    String description = "Read " + table.value() + " table in debug mode.";
+    Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, request, description);
   }
-}
\ No newline at end of file
+}
@@ -1,5 +1,8 @@
 package org.hl7.davinci.priorauth.endpoint;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -9,6 +12,10 @@ import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.priorauth.PropertyProvider;
+import org.hl7.davinci.priorauth.ResourceVersion;
+import org.hl7.davinci.priorauth.SearchIndex;
+import org.hl7.davinci.priorauth.SearchPage;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
 import org.hl7.davinci.priorauth.Database.Table;
@@ -19,8 +26,10 @@ import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.ServletWebRequest;
 
 public class Endpoint {
 
@@ -34,6 +43,8 @@ public class Endpoint {
     static String REQUIRES_PATIENT = "Patient Identifier is required: DELETE {resourceType}?patient.identifier=";
     static String DELETED_MSG = "Deleted resource and all related and referenced resources.";
     static String SQL_ERROR = "Unable to perform operation. SQL error while processing. Check logs for more details.";
+    static String INVALID_PAGE = "Invalid paging parameters: _count must be a number and _page a page token from a next link.";
+    static String INVALID_SEARCH = "Invalid search parameter: ";
 
     /**
      * Read a resource from an endpoint in either JSON or XML
@@ -57,16 +68,50 @@ public class Endpoint {
             return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
         }
         String formattedData = null;
+        HttpHeaders headers = new HttpHeaders();
         String description = "Read " + referenceUrl;
         if ((!constraintMap.containsKey("id") || constraintMap.get("id") == null)
                 && (!constraintMap.containsKey("claimId") || constraintMap.get("claimId") == null)) {
-            // Search
+            // Search one page at a time
             constraintMap.remove("id");
-            Bundle searchBundle;
-            searchBundle = App.getDB().search(table, constraintMap);
+            SearchPage page;
+            int count;
+            try {
+                // Search parameters in the search index (see SearchIndex)
+                constraintMap.putAll(SearchIndex.criteria(table, request.getParameterMap()));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Endpoint::read:invalid search parameters: " + e.getMessage());
+                OperationOutcome outcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+                        INVALID_SEARCH + e.getMessage());
+                return new ResponseEntity<>(FhirUtils.getFormattedData(outcome, requestType), HttpStatus.BAD_REQUEST);
+            }
+            try {
+                count = pageSize(request.getParameter("_count"));
+                page = App.getDB().searchPage(table, constraintMap, count, request.getParameter("_page"));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Endpoint::read:invalid paging parameters: " + e.getMessage());
+                OperationOutcome outcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+                        INVALID_PAGE);
+                return new ResponseEntity<>(FhirUtils.getFormattedData(outcome, requestType), HttpStatus.BAD_REQUEST);
+            }
+            Bundle searchBundle = page.getBundle();
+            searchBundle.addLink().setRelation("self").setUrl(pageUrl(request, count, request.getParameter("_page")));
+            if (page.hasNext())
+                searchBundle.addLink().setRelation("next").setUrl(pageUrl(request, count, page.getNextPageToken()));
             formattedData = FhirUtils.getFormattedData(searchBundle, requestType);
             description = "Searched for " + referenceUrl;
         } else {
+            // A client which already has the current version is answered without
+            // reading, parsing or serializing the resource
+            ResourceVersion version = App.getDB().readVersion(table, constraintMap);
+            headers = versionHeaders(version);
+            if (version != null && new ServletWebRequest(request).checkNotModified(version.getETag(),
+                    version.getLastModifiedMillis())) {
+                Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, referenceUrl,
+                        request, "Read " + referenceUrl + " (not modified)");
+                return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+            }
+
             // Read
             IBaseResource baseResource;
             baseResource = App.getDB().read(table, constraintMap);
@@ -93,9 +138,83 @@ public class Endpoint {
             }
         }
 
-        Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.MINOR_FAILURE, referenceUrl, request,
+        Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, referenceUrl, request,
                 description);
-        return new ResponseEntity<>(formattedData, HttpStatus.OK);
+        return new ResponseEntity<>(formattedData, headers, HttpStatus.OK);
+    }
+
+    /**
+     * Get the ETag and Last-Modified headers of a version of a resource
+     * 
+     * @param version - the version or null if it is not known.
+     * @return the headers (empty if the version is not known)
+     */
+    static HttpHeaders versionHeaders(ResourceVersion version) {
+        HttpHeaders headers = new HttpHeaders();
+        if (version != null) {
+            headers.setETag(version.getETag());
+            if (version.getLastModified() != null)
+                headers.setLastModified(version.getLastModifiedMillis());
+        }
+        return headers;
+    }
+
+    /**
+     * Get the number of resources to return on each page of a search
+     * 
+     * @param count - the _count parameter of the request or null.
+     * @return the page size, capped at search_max_page_size.
+     * @throws IllegalArgumentException if count is not a number
+     */
+    static int pageSize(String count) {
+        return pageSize(count, Integer.parseInt(PropertyProvider.getProperty("search_page_size", "50")),
+                Integer.parseInt(PropertyProvider.getProperty("search_max_page_size", "500")));
+    }
+
+    /**
+     * Get the number of rows to return on each page
+     * 
+     * @param count           - the _count parameter of the request or null.
+     * @param defaultPageSize - the page size when count is null.
+     * @param maxPageSize     - the largest page size.
+     * @return the page size, capped at maxPageSize.
+     * @throws IllegalArgumentException if count is not a number
+     */
+    static int pageSize(String count, int defaultPageSize, int maxPageSize) {
+        if (count == null)
+            return Math.min(defaultPageSize, maxPageSize);
+        return Math.max(1, Math.min(Integer.parseInt(count), maxPageSize));
+    }
+
+    /**
+     * Get the url of a page of the search made by a request
+     * 
+     * @param request   - the HttpServletRequest of the search.
+     * @param count     - the page size.
+     * @param pageToken - the token of the page or null for the first page.
+     * @return the url of the page with the same search parameters.
+     */
+    static String pageUrl(HttpServletRequest request, int count, String pageToken) {
+        StringBuilder url = new StringBuilder(getServiceBaseUrl(request))
+                .append(request.getRequestURI().substring(request.getContextPath().length())).append("?");
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            if (parameter.getKey().equals("_count") || parameter.getKey().equals("_page"))
+                continue;
+            for (String value : parameter.getValue())
+                url.append(encode(parameter.getKey())).append("=").append(encode(value)).append("&");
+        }
+        url.append("_count=").append(count);
+        if (pageToken != null)
+            url.append("&_page=").append(encode(pageToken));
+        return url.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
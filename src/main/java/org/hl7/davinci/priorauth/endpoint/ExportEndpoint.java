@@ -0,0 +1,247 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.ExportJob;
+import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.priorauth.PropertyProvider;
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.ExportJob.Output;
+import org.hl7.davinci.priorauth.ExportJob.Status;
+import org.hl7.davinci.priorauth.authorization.AuthUtils;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * The $export endpoint runs FHIR Bulk Data style exports of the Claim,
+ * ClaimResponse and Bundle tables. A kick-off request starts an ExportJob in the
+ * background and returns the url of its status in Content-Location. The status
+ * answers 202 while the job runs and the manifest of the gzipped NDJSON files
+ * when it is done.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("/$export")
+public class ExportEndpoint {
+
+  static final Logger logger = PALogger.getLogger();
+
+  static final String INVALID_EXPORT = "Invalid export parameter: ";
+  static final String NDJSON = "application/fhir+ndjson";
+
+  private static final List<Table> EXPORT_TABLES = Arrays.asList(Table.CLAIM, Table.CLAIM_RESPONSE, Table.BUNDLE);
+  private static final List<String> OUTPUT_FORMATS = Arrays.asList(NDJSON, "application/ndjson", "ndjson");
+
+  // Jobs run one at a time so exports do not compete with each other for the
+  // database
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "BulkExport");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+
+  @GetMapping(value = "")
+  public ResponseEntity<String> exportKickOff(HttpServletRequest request,
+      @RequestParam(name = "_type", required = false) String type,
+      @RequestParam(name = "_since", required = false) String since,
+      @RequestParam(name = "_outputFormat", required = false) String outputFormat) {
+    logger.info("GET /$export");
+    App.setBaseUrl(Endpoint.getServiceBaseUrl(request));
+    if (!AuthUtils.validateAccessToken(request)) {
+      Audit.createAuditEvent(AuditEventType.EXPORT, AuditEventAction.E, AuditEventOutcome.MINOR_FAILURE, "$export",
+          request, "Attempted to $export but is unauthorized");
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    }
+
+    List<Table> tables = new ArrayList<>();
+    Date sinceDate = null;
+    try {
+      if (outputFormat != null && !OUTPUT_FORMATS.contains(outputFormat))
+        throw new IllegalArgumentException("_outputFormat " + outputFormat);
+      if (type == null)
+        tables.addAll(EXPORT_TABLES);
+      for (String resourceType : type != null ? type.split(",") : new String[0])
+        tables.add(exportTable(resourceType.trim()));
+      if (since != null)
+        sinceDate = instant(since);
+    } catch (IllegalArgumentException e) {
+      logger.warning("ExportEndpoint::exportKickOff:invalid export: " + e.getMessage());
+      OperationOutcome operationOutcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.INVALID,
+          INVALID_EXPORT + e.getMessage());
+      return new ResponseEntity<>(FhirUtils.getFormattedData(operationOutcome, RequestType.JSON),
+          HttpStatus.BAD_REQUEST);
+    }
+
+    String id = UUID.randomUUID().toString();
+    String requestUrl = Endpoint.getServiceBaseUrl(request) + "/$export"
+        + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+    ExportJob job = new ExportJob(id, tables, sinceDate, requestUrl,
+        Paths.get(PropertyProvider.getProperty("export_dir", "export/"), id));
+    jobs.put(id, job);
+    executor.submit(job);
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.CONTENT_LOCATION, Endpoint.getServiceBaseUrl(request) + "/$export/" + id);
+    Audit.createAuditEvent(AuditEventType.EXPORT, AuditEventAction.E, AuditEventOutcome.SUCCESS, "$export/" + id,
+        request, "Started $export of " + tables);
+    return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+  }
+
+  @GetMapping(value = "/{id}")
+  public ResponseEntity<String> exportStatus(HttpServletRequest request, @PathVariable String id) {
+    logger.info("GET /$export/" + id);
+    if (!AuthUtils.validateAccessToken(request))
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    ExportJob job = jobs.get(id);
+    if (job == null || job.getStatus() == Status.CANCELLED)
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+
+    HttpHeaders headers = new HttpHeaders();
+    switch (job.getStatus()) {
+      case COMPLETED:
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<>(manifest(job, Endpoint.getServiceBaseUrl(request)), headers, HttpStatus.OK);
+      case FAILED:
+        OperationOutcome operationOutcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.EXCEPTION,
+            job.getError());
+        return new ResponseEntity<>(FhirUtils.getFormattedData(operationOutcome, RequestType.JSON),
+            HttpStatus.INTERNAL_SERVER_ERROR);
+      default:
+        headers.set("X-Progress", job.getProgress());
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+    }
+  }
+
+  @DeleteMapping(value = "/{id}")
+  public ResponseEntity<String> exportDelete(HttpServletRequest request, @PathVariable String id) {
+    logger.info("DELETE /$export/" + id);
+    if (!AuthUtils.validateAccessToken(request))
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    ExportJob job = jobs.remove(id);
+    if (job == null)
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    job.cancel();
+    Audit.createAuditEvent(AuditEventType.EXPORT, AuditEventAction.D, AuditEventOutcome.SUCCESS, "$export/" + id,
+        request, "Deleted $export " + id);
+    return new ResponseEntity<>(HttpStatus.ACCEPTED);
+  }
+
+  /**
+   * Download one of the files of a completed export. The file is sent as stored
+   * (gzipped) with Content-Encoding: gzip.
+   */
+  @GetMapping(value = "/{id}/{file:.+}")
+  public ResponseEntity<Resource> exportFile(HttpServletRequest request, @PathVariable String id,
+      @PathVariable String file) {
+    logger.info("GET /$export/" + id + "/" + file);
+    if (!AuthUtils.validateAccessToken(request))
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    ExportJob job = jobs.get(id);
+    if (job != null && job.getStatus() == Status.COMPLETED) {
+      for (Output output : job.getOutputs()) {
+        if (output.getFile().getFileName().toString().equals(file)) {
+          HttpHeaders headers = new HttpHeaders();
+          headers.setContentType(MediaType.parseMediaType(NDJSON));
+          headers.set(HttpHeaders.CONTENT_ENCODING, "gzip");
+          Audit.createAuditEvent(AuditEventType.EXPORT, AuditEventAction.R, AuditEventOutcome.SUCCESS,
+              "$export/" + id + "/" + file, request, "Downloaded " + file);
+          return new ResponseEntity<>(new FileSystemResource(output.getFile()), headers, HttpStatus.OK);
+        }
+      }
+    }
+    return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+  }
+
+  /**
+   * Build the Bulk Data manifest of a completed export
+   *
+   * @param job  - the completed ExportJob.
+   * @param base - the base url of the service.
+   * @return the manifest as JSON.
+   */
+  @SuppressWarnings("unchecked")
+  static String manifest(ExportJob job, String base) {
+    JSONObject manifest = new JSONObject();
+    manifest.put("transactionTime", new InstantType(job.getTransactionTime()).asStringValue());
+    manifest.put("request", job.getRequest());
+    manifest.put("requiresAccessToken", true);
+    JSONArray output = new JSONArray();
+    for (Output file : job.getOutputs()) {
+      JSONObject entry = new JSONObject();
+      entry.put("type", file.getTable().value());
+      entry.put("url", base + "/$export/" + job.getId() + "/" + file.getFile().getFileName());
+      entry.put("count", file.getCount());
+      output.add(entry);
+    }
+    manifest.put("output", output);
+    manifest.put("error", new JSONArray());
+    return manifest.toJSONString();
+  }
+
+  /**
+   * Get the table of a resource type which can be exported
+   *
+   * @param resourceType - the resource type of the _type parameter.
+   * @return the Table.
+   * @throws IllegalArgumentException if the resource type cannot be exported
+   */
+  static Table exportTable(String resourceType) {
+    for (Table table : EXPORT_TABLES)
+      if (table.value().equals(resourceType))
+        return table;
+    throw new IllegalArgumentException("_type " + resourceType);
+  }
+
+  /**
+   * Parse the _since parameter
+   *
+   * @param since - a FHIR instant.
+   * @return the time.
+   * @throws IllegalArgumentException if since is not an instant
+   */
+  static Date instant(String since) {
+    try {
+      return new InstantType(since).getValue();
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("_since " + since);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.Audit;
+import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.ImportJob;
+import org.hl7.davinci.priorauth.PALogger;
+import org.hl7.davinci.priorauth.PropertyProvider;
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.ImportJob.Status;
+import org.hl7.davinci.priorauth.authorization.AuthUtils;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.json.simple.JSONObject;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * The $import endpoint loads an NDJSON file of Claim Bundles (from import_dir)
+ * as if every Bundle was sent to Claim/$submit. A request starts an ImportJob in
+ * the background and returns the url of its status in Content-Location. The
+ * status answers 202 with the progress while the job runs and the final counts
+ * when it is done. The lines which failed are at {status}/errors.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("/$import")
+public class ImportEndpoint {
+
+  static final Logger logger = PALogger.getLogger();
+
+  static final String INVALID_IMPORT = "Invalid import file: ";
+
+  // Jobs run one at a time. Each job has its own pool of threads
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+    Thread thread = new Thread(task, "BulkImport");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+  private final ClaimEndpoint claimEndpoint = new ClaimEndpoint();
+
+  @PostMapping(value = "")
+  public ResponseEntity<String> importKickOff(HttpServletRequest request,
+      @RequestParam(name = "file") String file) {
+    logger.info("POST /$import " + file);
+    App.setBaseUrl(Endpoint.getServiceBaseUrl(request));
+    if (!AuthUtils.validateAccessToken(request)) {
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.C, AuditEventOutcome.MINOR_FAILURE, "$import",
+          request, "Attempted to $import but is unauthorized");
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    }
+
+    // Only files in import_dir can be imported
+    Path importDir = Paths.get(PropertyProvider.getProperty("import_dir", "import/")).toAbsolutePath().normalize();
+    Path path = importDir.resolve(file).normalize();
+    if (!path.startsWith(importDir) || !Files.isRegularFile(path)) {
+      logger.warning("ImportEndpoint::importKickOff:invalid file " + file);
+      OperationOutcome operationOutcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.NOTFOUND,
+          INVALID_IMPORT + file);
+      return new ResponseEntity<>(FhirUtils.getFormattedData(operationOutcome, RequestType.JSON),
+          HttpStatus.BAD_REQUEST);
+    }
+
+    String id = UUID.randomUUID().toString();
+    ImportJob job = new ImportJob(id, path, importDir.resolve(id + ".errors.ndjson"),
+        Integer.parseInt(PropertyProvider.getProperty("import_threads", "4")),
+        Integer.parseInt(PropertyProvider.getProperty("import_batch_size", "50")), claimEndpoint::processBundle);
+    jobs.put(id, job);
+    executor.submit(job);
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(HttpHeaders.CONTENT_LOCATION, Endpoint.getServiceBaseUrl(request) + "/$import/" + id);
+    Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.C, AuditEventOutcome.SUCCESS, "$import/" + id,
+        request, "Started $import of " + file);
+    return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+  }
+
+  @SuppressWarnings("unchecked")
+  @GetMapping(value = "/{id}")
+  public ResponseEntity<String> importStatus(HttpServletRequest request, @PathVariable String id) {
+    logger.info("GET /$import/" + id);
+    if (!AuthUtils.validateAccessToken(request))
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    ImportJob job = jobs.get(id);
+    if (job == null)
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+
+    HttpHeaders headers = new HttpHeaders();
+    switch (job.getStatus()) {
+      case COMPLETED:
+        JSONObject result = new JSONObject();
+        result.put("lines", job.getLines());
+        result.put("imported", job.getImported());
+        result.put("failed", job.getFailed());
+        result.put("throughput", job.getThroughput());
+        result.put("errors", Endpoint.getServiceBaseUrl(request) + "/$import/" + id + "/errors");
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<>(result.toJSONString(), headers, HttpStatus.OK);
+      case FAILED:
+        OperationOutcome operationOutcome = FhirUtils.buildOutcome(IssueSeverity.ERROR, IssueType.EXCEPTION,
+            job.getError());
+        return new ResponseEntity<>(FhirUtils.getFormattedData(operationOutcome, RequestType.JSON),
+            HttpStatus.INTERNAL_SERVER_ERROR);
+      default:
+        headers.set("X-Progress", job.getProgress());
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>(headers, HttpStatus.ACCEPTED);
+    }
+  }
+
+  /**
+   * Download the lines which failed, one {"line", "error"} object per line
+   */
+  @GetMapping(value = "/{id}/errors")
+  public ResponseEntity<Resource> importErrors(HttpServletRequest request, @PathVariable String id) {
+    logger.info("GET /$import/" + id + "/errors");
+    if (!AuthUtils.validateAccessToken(request))
+      return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+    ImportJob job = jobs.get(id);
+    if (job == null || job.getStatus() == Status.ACCEPTED || job.getStatus() == Status.RUNNING)
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.parseMediaType("application/ndjson"));
+    return new ResponseEntity<>(new FileSystemResource(job.getErrorFile()), headers, HttpStatus.OK);
+  }
+}
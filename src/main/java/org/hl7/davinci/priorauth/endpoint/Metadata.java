@@ -1,14 +1,17 @@
 package org.hl7.davinci.priorauth.endpoint;
 
 import java.util.Calendar;
+import java.util.Date;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.hl7.davinci.priorauth.App;
 import org.hl7.davinci.priorauth.Audit;
 import org.hl7.davinci.priorauth.FhirUtils;
+import org.hl7.davinci.priorauth.ResourceVersion;
 import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
 import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.endpoint.Endpoint.RequestType;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.StringType;
@@ -24,6 +27,8 @@ import org.hl7.fhir.r4.model.CapabilityStatement.RestfulCapabilityMode;
 import org.hl7.fhir.r4.model.CapabilityStatement.TypeRestfulInteraction;
 import org.hl7.fhir.r4.model.Enumerations.FHIRVersion;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -31,6 +36,7 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 
 /**
  * The metadata microservice provides a CapabilityStatement.
@@ -41,30 +47,43 @@ import org.springframework.web.bind.annotation.RestController;
 public class Metadata {
 
   /**
-   * Cached CapabilityStatement.
+   * Cached CapabilityStatement, its JSON and XML and its version.
    */
   private CapabilityStatement capabilityStatement = null;
+  private String json = null;
+  private String xml = null;
+  private ResourceVersion version = null;
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE, "application/fhir+json" })
   public ResponseEntity<String> getMetadata(HttpServletRequest request) {
-    if (capabilityStatement == null)
-      capabilityStatement = buildCapabilityStatement();
-
-    String description = "Read metadata";
-    Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, "/metadata", request, description);
-    String json = FhirUtils.json(capabilityStatement);
-    return new ResponseEntity<>(json, HttpStatus.OK);
+    return getMetadata(request, RequestType.JSON);
   }
 
   @GetMapping(value = "", produces = { MediaType.APPLICATION_XML_VALUE, "application/fhir+xml" })
   public ResponseEntity<String> getMetadataXml(HttpServletRequest request) {
-    if (capabilityStatement == null)
-      capabilityStatement = buildCapabilityStatement();
+    return getMetadata(request, RequestType.XML);
+  }
+
+  private ResponseEntity<String> getMetadata(HttpServletRequest request, RequestType requestType) {
+    synchronized (this) {
+      if (capabilityStatement == null) {
+        capabilityStatement = buildCapabilityStatement();
+        json = FhirUtils.json(capabilityStatement);
+        xml = FhirUtils.xml(capabilityStatement);
+        version = new ResourceVersion(Integer.toHexString(json.hashCode()), new Date());
+      }
+    }
+
+    HttpHeaders headers = Endpoint.versionHeaders(version);
+    if (new ServletWebRequest(request).checkNotModified(version.getETag(), version.getLastModifiedMillis())) {
+      Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, "/metadata", request,
+          "Read metadata (not modified)");
+      return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+    }
 
     String description = "Read metadata";
     Audit.createAuditEvent(AuditEventType.QUERY, AuditEventAction.R, AuditEventOutcome.SUCCESS, "/metadata", request, description);
-    String xml = FhirUtils.xml(capabilityStatement);
-    return new ResponseEntity<>(xml, HttpStatus.OK);
+    return new ResponseEntity<>(requestType == RequestType.JSON ? json : xml, headers, HttpStatus.OK);
   }
 
   /**
@@ -136,6 +155,20 @@ public class Metadata {
     bundle.addInteraction().setCode(TypeRestfulInteraction.DELETE);
     rest.addResource(bundle);
 
+    // AuditEvent Resource
+    CapabilityStatementRestResourceComponent auditEvent = new CapabilityStatementRestResourceComponent();
+    auditEvent.setType("AuditEvent");
+    auditEvent.addInteraction().setCode(TypeRestfulInteraction.SEARCHTYPE);
+    auditEvent.addSearchParam().setName("date").setType(SearchParamType.DATE);
+    auditEvent.addSearchParam().setName("outcome").setType(SearchParamType.TOKEN);
+    auditEvent.addSearchParam().setName("action").setType(SearchParamType.TOKEN);
+    auditEvent.addSearchParam().setName("agent").setType(SearchParamType.REFERENCE);
+    auditEvent.addSearchParam().setName("entity").setType(SearchParamType.REFERENCE);
+    auditEvent.addSearchParam().setName("type").setType(SearchParamType.TOKEN);
+    rest.addResource(auditEvent);
+
+    rest.addOperation().setName("$export")
+        .setDefinition("http://hl7.org/fhir/uv/bulkdata/OperationDefinition/export");
     rest.addOperation().setName("$expunge")
         .setDefinition("https://smilecdr.com/docs/current/fhir_repository/deleting_data.html#drop-all-data")
         .setDocumentation(
@@ -0,0 +1,29 @@
+package org.hl7.davinci.priorauth.endpoint;
+
+import java.util.logging.Logger;
+
+import org.hl7.davinci.priorauth.Metrics;
+import org.hl7.davinci.priorauth.PALogger;
+import org.json.simple.JSONObject;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@CrossOrigin
+@RestController
+@RequestMapping("/Metrics")
+public class MetricsEndpoint {
+
+    static final Logger logger = PALogger.getLogger();
+
+    @GetMapping(value = "", produces = { MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<String> getMetrics() {
+        logger.fine("GET /Metrics");
+        return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.APPLICATION_JSON)
+                .body(JSONObject.toJSONString(Metrics.snapshot()));
+    }
+}
@@ -2,8 +2,10 @@ package org.hl7.davinci.rules;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,6 +14,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.opencds.cqf.cql.execution.Context;
 import org.hl7.davinci.priorauth.App;
+import org.hl7.davinci.priorauth.BatchResult;
 import org.hl7.davinci.priorauth.FhirUtils;
 import org.hl7.davinci.priorauth.PALogger;
 import org.hl7.davinci.priorauth.PropertyProvider;
@@ -105,6 +108,8 @@ public class PriorAuthRule {
         String cdsLibraryPath = PropertyProvider.getProperty("CDS_library");
         File filePath = new File(cdsLibraryPath);
 
+        // Every mapping is written in a single batch
+        List<Map<String, Object>> rules = new ArrayList<>();
         File[] topics = filePath.listFiles();
         for (File topic : topics) {
             if (topic.isDirectory()) {
@@ -136,8 +141,7 @@ public class PriorAuthRule {
                                         dataMap.put("code", code);
                                         dataMap.put("topic", topicName);
                                         dataMap.put("rule", elmFileName);
-                                        if (!App.getDB().write(Table.RULES, dataMap))
-                                            return false;
+                                        rules.add(dataMap);
                                     }
                                 }
                             } catch (Exception e) {
@@ -150,6 +154,11 @@ public class PriorAuthRule {
             }
         }
 
+        BatchResult result = App.getDB().writeBatch(Table.RULES, rules);
+        if (!result.isSuccessful()) {
+            logger.warning("PriorAuthRule::populateRulesTable:Unable to write all rules: " + result.toString());
+            return false;
+        }
         return true;
     }
 
@@ -183,11 +192,10 @@ public class PriorAuthRule {
         Map<String, Object> constraintParams = new HashMap<String, Object>();
         constraintParams.put("code", FhirUtils.getCode(claimItem.getProductOrService()));
         constraintParams.put("system", FhirUtils.getSystem(claimItem.getProductOrService()));
-        String topic = App.getDB().readString(Table.RULES, constraintParams, "topic");
-        String rule = App.getDB().readString(Table.RULES, constraintParams, "rule");
-        if (topic == null || rule == null)
+        Map<String, String> columns = App.getDB().readColumns(Table.RULES, constraintParams, "topic", "rule");
+        if (columns == null || columns.get("topic") == null || columns.get("rule") == null)
             return null;
-        return PropertyProvider.getProperty("CDS_library") + topic + "/" + rule;
+        return PropertyProvider.getProperty("CDS_library") + columns.get("topic") + "/" + columns.get("rule");
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+-- The business identifiers (system, value) of every Claim, so Claim/$inquiry
+-- finds the Claim it asks about without reading every Claim of the patient.
+-- rootId is the chain the Claim belongs to (see the V4 migration) so the head
+-- of the chain, the Claim its latest ClaimResponse refers to, is one join
+-- away. Rows are maintained by Database (see ClaimIdentifier), which also
+-- indexes the Claims stored before this migration when it starts.
+
+CREATE TABLE IF NOT EXISTS ClaimIdentifier (
+    system varchar,
+    value varchar,
+    patient varchar,
+    claimId varchar,
+    rootId varchar,
+    timestamp datetime DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX IF NOT EXISTS idx_claimidentifier_value ON ClaimIdentifier (patient, value, system, timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_claimidentifier_claim ON ClaimIdentifier (claimId);
+CREATE INDEX IF NOT EXISTS idx_claimidentifier_root ON ClaimIdentifier (rootId);
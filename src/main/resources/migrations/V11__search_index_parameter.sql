@@ -0,0 +1,12 @@
+-- The search parameters indexed in SearchToken and SearchDate (see the V9
+-- migration) with their definition (type and paths). When search_index_parameters
+-- adds a parameter or changes its definition, Database indexes that parameter
+-- for every stored resource when it starts and records it here. The values of
+-- parameters which are no longer indexed are deleted.
+
+CREATE TABLE IF NOT EXISTS SearchIndexParameter (
+    resourceType varchar,
+    param varchar,
+    definition varchar,
+    PRIMARY KEY (resourceType, param)
+);
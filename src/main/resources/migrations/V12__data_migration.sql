@@ -0,0 +1,9 @@
+-- Migrations of the stored data which run in Java instead of SQL, such as
+-- storing the identifiers of the Claims written before the V10 migration.
+-- Database runs each one when it starts until it completes and records it
+-- here, so it is not run again on every start.
+
+CREATE TABLE IF NOT EXISTS DataMigration (
+    name varchar PRIMARY KEY,
+    completed datetime DEFAULT CURRENT_TIMESTAMP
+);
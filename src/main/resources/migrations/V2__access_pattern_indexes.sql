@@ -0,0 +1,10 @@
+-- Secondary indexes matching the queries run by Database. Every read orders
+-- by timestamp DESC so it is the trailing column of each index. Foreign key
+-- columns (Claim.related, ClaimResponse.claimId, ClaimItem.id and
+-- Subscription.claimResponseId) are already indexed by their constraints.
+
+CREATE INDEX IF NOT EXISTS idx_bundle_patient ON Bundle (patient, timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_claim_patient ON Claim (patient, timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_claimresponse_patient ON ClaimResponse (patient, timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_subscription_patient ON Subscription (patient, timestamp DESC);
+CREATE INDEX IF NOT EXISTS idx_client_token ON Client (token, timestamp DESC);
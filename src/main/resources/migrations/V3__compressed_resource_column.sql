@@ -0,0 +1,9 @@
+-- Resources are stored compressed (see ResourceCodec) in resource_data. The
+-- resource CLOB is only kept for rows written before this migration until
+-- CompressResourcesTask has converted them.
+
+ALTER TABLE Bundle ADD COLUMN IF NOT EXISTS resource_data blob;
+ALTER TABLE Claim ADD COLUMN IF NOT EXISTS resource_data blob;
+ALTER TABLE ClaimResponse ADD COLUMN IF NOT EXISTS resource_data blob;
+ALTER TABLE Subscription ADD COLUMN IF NOT EXISTS resource_data blob;
+ALTER TABLE Audit ADD COLUMN IF NOT EXISTS resource_data blob;
@@ -0,0 +1,34 @@
+-- An update to a Claim references the Claim it replaces with related, so the
+-- Claims of one prior authorization form a chain from the original submission
+-- (the root) to the latest update (the head). rootId on every Claim and one
+-- ClaimChain row per chain let the latest Claim be found without walking the
+-- chain. Both are maintained by Database (see ClaimChain). ClaimChain has no
+-- foreign key to Claim since the unique index H2 would create for it slows
+-- down every Claim insert; Database removes chains whose root is deleted.
+
+ALTER TABLE Claim ADD COLUMN IF NOT EXISTS rootId varchar;
+CREATE INDEX IF NOT EXISTS idx_claim_root ON Claim (rootId);
+
+CREATE TABLE IF NOT EXISTS ClaimChain (
+    rootId varchar PRIMARY KEY,
+    headId varchar,
+    depth int DEFAULT 0,
+    timestamp datetime DEFAULT CURRENT_TIMESTAMP
+);
+
+-- Backfill the Claims stored before this migration
+MERGE INTO Claim (id, rootId) KEY (id)
+    WITH RECURSIVE chain (id, rootId) AS (
+        SELECT id, id FROM Claim WHERE related IS NULL
+        UNION ALL
+        SELECT Claim.id, chain.rootId FROM Claim INNER JOIN chain ON Claim.related = chain.id
+    )
+    SELECT id, rootId FROM chain;
+
+INSERT INTO ClaimChain (rootId, headId, depth)
+    SELECT rootId,
+        (SELECT head.id FROM Claim head WHERE head.rootId = chain.rootId
+            AND NOT EXISTS (SELECT 1 FROM Claim successor WHERE successor.related = head.id)
+            ORDER BY head.timestamp DESC LIMIT 1),
+        COUNT(*) - 1
+    FROM Claim chain WHERE rootId IS NOT NULL GROUP BY rootId;
@@ -0,0 +1,8 @@
+-- Audit rows are stored as typed columns only. The AuditEvent resource is
+-- built from the columns when it is read (see Audit.toAuditEvent), so an event
+-- no longer stores (and compresses) a copy of itself. Rows written before this
+-- migration keep their resource and are read from it.
+
+ALTER TABLE Audit ADD COLUMN IF NOT EXISTS clientId varchar;
+ALTER TABLE Audit ADD COLUMN IF NOT EXISTS requestor boolean;
+ALTER TABLE Audit ADD COLUMN IF NOT EXISTS description varchar;
@@ -0,0 +1,4 @@
+-- One audit event is written per request (see AuditContext). The reads and
+-- writes made while handling the request are summarized in operations.
+
+ALTER TABLE Audit ADD COLUMN IF NOT EXISTS operations varchar;
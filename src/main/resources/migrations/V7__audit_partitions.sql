@@ -0,0 +1,9 @@
+-- The Audit table is stored as one table per day (see AuditPartitions) so a
+-- day of audit events can be archived and dropped at once. Audit becomes a
+-- view over the partitions, which Database replaces whenever a partition is
+-- created or dropped. The rows written before this migration are kept in
+-- Audit_legacy until it expires.
+
+ALTER TABLE Audit RENAME TO Audit_legacy;
+CREATE VIEW Audit AS SELECT id, type, action, outcome, what, query, ip, clientId, requestor, description,
+    operations, timestamp, resource, resource_data FROM Audit_legacy;
@@ -0,0 +1,11 @@
+-- Every insert and update of a resource takes the next value of
+-- resource_version, so the version identifies the content of a row (see
+-- ResourceVersion). Values are unique across tables and rows, so a resource
+-- which is deleted and written again never gets a version it had before.
+
+CREATE SEQUENCE IF NOT EXISTS resource_version;
+
+ALTER TABLE Bundle ADD COLUMN IF NOT EXISTS version bigint DEFAULT NEXT VALUE FOR resource_version;
+ALTER TABLE Claim ADD COLUMN IF NOT EXISTS version bigint DEFAULT NEXT VALUE FOR resource_version;
+ALTER TABLE ClaimResponse ADD COLUMN IF NOT EXISTS version bigint DEFAULT NEXT VALUE FOR resource_version;
+ALTER TABLE Subscription ADD COLUMN IF NOT EXISTS version bigint DEFAULT NEXT VALUE FOR resource_version;
@@ -0,0 +1,25 @@
+-- The values of the search parameters of Claims and ClaimResponses configured
+-- in search_index_parameters (see SearchIndex), one row per value. Codes,
+-- identifiers and references are stored in SearchToken, dates in SearchDate.
+-- A search on a parameter looks its values up in these tables and joins the
+-- matching ids to the resource table instead of parsing every resource. Rows
+-- are maintained by Database when resources are written and deleted.
+
+CREATE TABLE IF NOT EXISTS SearchToken (
+    resourceType varchar,
+    id varchar,
+    param varchar,
+    system varchar,
+    code varchar
+);
+CREATE INDEX IF NOT EXISTS idx_searchtoken_code ON SearchToken (resourceType, param, code, system, id);
+CREATE INDEX IF NOT EXISTS idx_searchtoken_id ON SearchToken (resourceType, id);
+
+CREATE TABLE IF NOT EXISTS SearchDate (
+    resourceType varchar,
+    id varchar,
+    param varchar,
+    dateValue datetime
+);
+CREATE INDEX IF NOT EXISTS idx_searchdate_value ON SearchDate (resourceType, param, dateValue, id);
+CREATE INDEX IF NOT EXISTS idx_searchdate_id ON SearchDate (resourceType, id);
@@ -0,0 +1,105 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class AuditContextTest {
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Test
+  public void testOneEventPerRequest() throws InterruptedException {
+    String what = "ClaimResponse/" + UUID.randomUUID();
+    long aggregated = Metrics.counter("audit.context.aggregated").get();
+    try (AuditContext context = AuditContext.begin(request("GET"), 1.0)) {
+      Assert.assertSame(context, AuditContext.current());
+      read("Read from ClaimResponse");
+      read("Read from ClaimResponse");
+      read("Read from Bundle");
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.R, AuditEventOutcome.SUCCESS, what, null,
+          "Read ClaimResponse");
+
+      // Events of tasks handed to other threads are collected too
+      Thread thread = new Thread(AuditContext.propagate(() -> Audit.createAuditEvent(AuditEventType.ACTIVITY,
+          AuditEventAction.U, AuditEventOutcome.MINOR_FAILURE, null, null, "Update ClaimItem")));
+      thread.start();
+      thread.join();
+    }
+    Assert.assertNull(AuditContext.current());
+    Assert.assertEquals(aggregated + 4, Metrics.counter("audit.context.aggregated").get());
+    Audit.flush();
+
+    AuditEvent auditEvent = (AuditEvent) App.getDB().read(Table.AUDIT, Collections.singletonMap("what", what));
+    Assert.assertNotNull(auditEvent);
+    Assert.assertEquals("rest", auditEvent.getType().getCode());
+    Assert.assertEquals(AuditEventAction.R, auditEvent.getAction());
+    Assert.assertEquals(AuditEvent.AuditEventOutcome._4, auditEvent.getOutcome());
+    Assert.assertEquals("Read ClaimResponse", auditEvent.getEntityFirstRep().getDescription());
+    Assert.assertEquals("Read from ClaimResponse x2; Read from Bundle; Update ClaimItem",
+        auditEvent.getEntityFirstRep().getDetailFirstRep().getValueStringType().getValue());
+  }
+
+  @Test
+  public void testEventWithoutEndpointEvent() {
+    MockHttpServletRequest request = request("POST");
+    request.setRequestURI("/fhir/Claim/" + UUID.randomUUID() + "/$submit");
+    try (AuditContext context = AuditContext.begin(request, 1.0)) {
+      Assert.assertSame(context, AuditContext.current());
+      Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C, AuditEventOutcome.SUCCESS, null, null,
+          "Write to Claim/1");
+    }
+    Audit.flush();
+
+    String description = "POST " + request.getRequestURI();
+    Assert.assertEquals("Write to Claim/1",
+        App.getDB().readString(Table.AUDIT, Collections.singletonMap("description", description), "operations"));
+    Assert.assertEquals(AuditEventAction.C.getDisplay(),
+        App.getDB().readString(Table.AUDIT, Collections.singletonMap("description", description), "action"));
+  }
+
+  @Test
+  public void testReadOnlyRequestsAreSampled() {
+    String read = "Claim/" + UUID.randomUUID();
+    long sampledOut = Metrics.counter("audit.context.sampled_out").get();
+    try (AuditContext context = AuditContext.begin(request("GET"), 0.0)) {
+      Assert.assertSame(context, AuditContext.current());
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.R, AuditEventOutcome.SUCCESS, read, null,
+          "Read Claim");
+    }
+    Assert.assertEquals(sampledOut + 1, Metrics.counter("audit.context.sampled_out").get());
+
+    // Failures are always written
+    String failed = "Claim/" + UUID.randomUUID();
+    try (AuditContext context = AuditContext.begin(request("GET"), 0.0)) {
+      Assert.assertSame(context, AuditContext.current());
+      Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.R, AuditEventOutcome.MINOR_FAILURE, failed, null,
+          "Read Claim");
+    }
+    Audit.flush();
+
+    Assert.assertNull(App.getDB().readString(Table.AUDIT, Collections.singletonMap("what", read), "id"));
+    Assert.assertNotNull(App.getDB().readString(Table.AUDIT, Collections.singletonMap("what", failed), "id"));
+  }
+
+  private static MockHttpServletRequest request(String method) {
+    return new MockHttpServletRequest(method, "/fhir/ClaimResponse");
+  }
+
+  private static void read(String description) {
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.R, AuditEventOutcome.SUCCESS, null, null,
+        description);
+  }
+}
@@ -0,0 +1,145 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.QueryShape.Operation;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AuditPartitionsTest {
+
+  private ConnectionPool pool;
+  private Path archiveDir;
+
+  @Before
+  public void setup() throws IOException, SQLException {
+    pool = new ConnectionPool("auditpartitionstest", "jdbc:h2:mem:auditpartitionstest;DB_CLOSE_DELAY=-1", 1, 2,
+        5000, 0, 4);
+    archiveDir = Files.createTempDirectory("audit-archive");
+    try (Connection connection = pool.getConnection()) {
+      String sql = new String(Files.readAllBytes(Paths.get(PropertyProvider.getProperty("database_sql"))));
+      connection.prepareStatement(sql.replace("\"", "")).execute();
+      connection.prepareStatement("INSERT INTO Audit (id, type, timestamp, resource) "
+          + "VALUES ('legacy', '110100', '2020-01-01 00:00:00', '{\"resourceType\":\"AuditEvent\"}');").execute();
+      SchemaMigrator.migrate(connection, PropertyProvider.getProperty("database_migrations"));
+    }
+  }
+
+  @After
+  public void cleanup() throws IOException, SQLException {
+    try (Connection connection = pool.getConnection()) {
+      connection.prepareStatement("DROP ALL OBJECTS;").execute();
+    }
+    pool.close();
+    for (Path file : Files.newDirectoryStream(archiveDir))
+      Files.delete(file);
+    Files.delete(archiveDir);
+  }
+
+  @Test
+  public void testInsertIntoPartitionOfDay() throws SQLException {
+    AuditPartitions partitions = new AuditPartitions(pool, 0, archiveDir);
+    LocalDate today = LocalDate.now();
+    try (Connection connection = pool.getConnection()) {
+      partitions.initialize(connection);
+      Assert.assertEquals(2, partitions.size());
+      Assert.assertTrue(partitions.snapshot().contains(AuditPartitions.partitionOf(today)));
+
+      insert(partitions, connection, "yesterday", today.minusDays(1) + " 12:00:00.000");
+      insert(partitions, connection, "today", today + " 12:00:00.000");
+      Assert.assertEquals(3, partitions.size());
+      Assert.assertEquals(1, count(connection, AuditPartitions.partitionOf(today.minusDays(1))));
+      Assert.assertEquals(1, count(connection, AuditPartitions.partitionOf(today)));
+
+      // The view reads every partition
+      Assert.assertEquals(3, count(connection, Table.AUDIT.value()));
+    }
+    // Retention of 0 keeps every partition
+    Assert.assertEquals(0, partitions.rotate());
+  }
+
+  @Test
+  public void testRotateArchivesExpiredPartitions() throws SQLException, IOException, ParseException {
+    AuditPartitions partitions = new AuditPartitions(pool, 2, archiveDir);
+    LocalDate today = LocalDate.now();
+    String expired = AuditPartitions.partitionOf(today.minusDays(2));
+    try (Connection connection = pool.getConnection()) {
+      partitions.initialize(connection);
+      insert(partitions, connection, "expired-1", today.minusDays(2) + " 08:00:00.000");
+      insert(partitions, connection, "expired-2", today.minusDays(2) + " 09:00:00.000");
+      insert(partitions, connection, "kept", today.minusDays(1) + " 12:00:00.000");
+    }
+
+    // The expired day and the legacy rows are archived
+    Assert.assertEquals(2, partitions.rotate());
+    Assert.assertFalse(partitions.snapshot().contains(expired));
+    Assert.assertFalse(partitions.snapshot().contains(AuditPartitions.LEGACY));
+    try (Connection connection = pool.getConnection()) {
+      Assert.assertEquals(1, count(connection, Table.AUDIT.value()));
+    }
+
+    List<JSONObject> rows = readArchive(archiveDir.resolve(expired + ".ndjson.gz"));
+    Assert.assertEquals(2, rows.size());
+    Assert.assertEquals("expired-1", rows.get(0).get("id"));
+    Assert.assertEquals(Boolean.FALSE, rows.get(0).get("requestor"));
+    Assert.assertEquals("Write to Claim/expired-1", rows.get(0).get("description"));
+    List<JSONObject> legacy = readArchive(archiveDir.resolve(AuditPartitions.LEGACY + ".ndjson.gz"));
+    Assert.assertEquals(1, legacy.size());
+    Assert.assertEquals("{\"resourceType\":\"AuditEvent\"}", legacy.get(0).get("resource"));
+  }
+
+  private static void insert(AuditPartitions partitions, Connection connection, String id, String timestamp)
+      throws SQLException {
+    Map<String, Object> values = new HashMap<>();
+    values.put("id", id);
+    values.put("type", "110100");
+    values.put("requestor", false);
+    values.put("description", "Write to Claim/" + id);
+    values.put("timestamp", timestamp);
+    QueryShape shape = QueryShape.of(Operation.INSERT, Table.AUDIT, null, values.keySet(), Collections.emptySet());
+    PreparedStatement stmt = connection.prepareStatement(partitions.insertSql(connection, shape, values));
+    shape.bind(stmt, values, Collections.emptyMap());
+    stmt.execute();
+  }
+
+  private static int count(Connection connection, String table) throws SQLException {
+    ResultSet rs = connection.prepareStatement("SELECT COUNT(*) FROM " + table + ";").executeQuery();
+    rs.next();
+    return rs.getInt(1);
+  }
+
+  private static List<JSONObject> readArchive(Path file) throws IOException, ParseException {
+    List<JSONObject> rows = new ArrayList<>();
+    JSONParser parser = new JSONParser();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        rows.add((JSONObject) parser.parse(line));
+    }
+    return rows;
+  }
+}
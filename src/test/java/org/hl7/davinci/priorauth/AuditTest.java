@@ -0,0 +1,59 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import org.hl7.davinci.priorauth.Audit.AuditEventOutcome;
+import org.hl7.davinci.priorauth.Audit.AuditEventType;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.AuditEvent.AuditEventAction;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AuditTest {
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Test
+  public void testAuditEventBuiltFromColumns() {
+    String what = "Claim/" + UUID.randomUUID();
+    Audit.createAuditEvent(AuditEventType.REST, AuditEventAction.U, AuditEventOutcome.MINOR_FAILURE, what, null,
+        "Update " + what);
+    Audit.flush();
+
+    // Only the columns are stored
+    Assert.assertNull(App.getDB().readString(Table.AUDIT, Collections.singletonMap("what", what), "resource"));
+    Assert.assertNull(App.getDB().readString(Table.AUDIT, Collections.singletonMap("what", what), "resource_data"));
+
+    AuditEvent auditEvent = (AuditEvent) App.getDB().read(Table.AUDIT, Collections.singletonMap("what", what));
+    Assert.assertNotNull(auditEvent);
+    Assert.assertEquals("rest", auditEvent.getType().getCode());
+    Assert.assertEquals("http://dicom.nema.org/resources/ontology/DCM", auditEvent.getType().getSystem());
+    Assert.assertEquals(AuditEventAction.U, auditEvent.getAction());
+    Assert.assertEquals(AuditEvent.AuditEventOutcome._4, auditEvent.getOutcome());
+    Assert.assertNotNull(auditEvent.getRecorded());
+    Assert.assertEquals(what, auditEvent.getEntityFirstRep().getWhat().getReference());
+    Assert.assertEquals("Update " + what, auditEvent.getEntityFirstRep().getDescription());
+    Assert.assertFalse(auditEvent.getAgentFirstRep().getRequestor());
+    Assert.assertEquals("MITRE PAS Reference Implementation", auditEvent.getAgentFirstRep().getName());
+    Assert.assertEquals("MITRE PAS Reference Implementation", auditEvent.getSource().getSite());
+  }
+
+  @Test
+  public void testDescriptionIsCapped() {
+    String what = "Bundle/" + UUID.randomUUID();
+    String description = String.join("", Collections.nCopies(1000, "x"));
+    Audit.createAuditEvent(AuditEventType.ACTIVITY, AuditEventAction.C, AuditEventOutcome.SUCCESS, what, null,
+        description);
+    Audit.flush();
+
+    String stored = App.getDB().readString(Table.AUDIT, Collections.singletonMap("what", what), "description");
+    Assert.assertEquals(256, stored.length());
+    Assert.assertTrue(stored.endsWith("..."));
+  }
+}
@@ -0,0 +1,115 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hl7.davinci.priorauth.AuditWriter.Policy;
+import org.hl7.davinci.priorauth.Database.Table;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AuditWriterTest {
+
+  private Path spillFile;
+  private AuditWriter writer;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws IOException {
+    spillFile = Files.createTempFile("audit-spill", ".ndjson");
+    Files.delete(spillFile);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    if (writer != null)
+      writer.close();
+    Files.deleteIfExists(spillFile);
+  }
+
+  @Test
+  public void testFlushWritesQueuedRows() {
+    // The writer thread waits for a full batch (or a minute) before writing
+    writer = new AuditWriter(10, Policy.DROP, 100, 60000, 0, spillFile);
+    String[] ids = { row(), row(), row() };
+    for (String id : ids)
+      Assert.assertTrue(writer.enqueue(auditRow(id)));
+    Assert.assertEquals(3, writer.depth());
+
+    writer.flush();
+    Assert.assertEquals(0, writer.depth());
+    Assert.assertEquals(0, writer.lagMs());
+    for (String id : ids)
+      Assert.assertTrue(isWritten(id));
+  }
+
+  @Test
+  public void testDropWhenFull() {
+    writer = new AuditWriter(1, Policy.DROP, 100, 60000, 0, spillFile);
+    long dropped = Metrics.counter("audit.dropped").get();
+    Assert.assertTrue(writer.enqueue(auditRow(row())));
+    Assert.assertFalse(writer.enqueue(auditRow(row())));
+    Assert.assertEquals(dropped + 1, Metrics.counter("audit.dropped").get());
+    Assert.assertEquals(1, writer.depth());
+  }
+
+  @Test
+  public void testBlockTimesOut() {
+    writer = new AuditWriter(1, Policy.BLOCK, 100, 60000, 50, spillFile);
+    Assert.assertTrue(writer.enqueue(auditRow(row())));
+    long start = System.currentTimeMillis();
+    Assert.assertFalse(writer.enqueue(auditRow(row())));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 50);
+  }
+
+  @Test
+  public void testSpillAndReplay() throws IOException, InterruptedException {
+    writer = new AuditWriter(1, Policy.SPILL, 100, 60000, 0, spillFile);
+    String queued = row();
+    String spilled = row();
+    Assert.assertTrue(writer.enqueue(auditRow(queued)));
+    Assert.assertFalse(writer.enqueue(auditRow(spilled)));
+    Assert.assertEquals(1, Files.readAllLines(spillFile).size());
+    writer.close();
+    Assert.assertTrue(isWritten(queued));
+    Assert.assertFalse(isWritten(spilled));
+
+    // The next writer writes the spilled rows when it starts
+    writer = new AuditWriter(1, Policy.SPILL, 100, 60000, 0, spillFile);
+    for (int i = 0; i < 50 && Files.exists(spillFile); i++)
+      Thread.sleep(100);
+    for (int i = 0; i < 50 && !isWritten(spilled); i++)
+      Thread.sleep(100);
+    Assert.assertFalse(Files.exists(spillFile));
+    Assert.assertTrue(isWritten(spilled));
+  }
+
+  private static String row() {
+    return "audit-writer-test-" + UUID.randomUUID();
+  }
+
+  private static Map<String, Object> auditRow(String id) {
+    Map<String, Object> data = new HashMap<String, Object>();
+    data.put("id", id);
+    data.put("type", "110100");
+    data.put("action", "Read");
+    data.put("outcome", "0");
+    return data;
+  }
+
+  private static boolean isWritten(String id) {
+    return id.equals(App.getDB().readString(Table.AUDIT, Collections.singletonMap("id", id), "id"));
+  }
+}
@@ -4,8 +4,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -24,6 +27,7 @@ import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Claim;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -114,6 +118,55 @@ public class ClaimEndpointTest {
     Assert.assertTrue(result.isSuccessful());
   }
 
+  @Test
+  public void searchClaimsPaged() throws Exception {
+    Path fixture = Paths.get("src/test/resources").resolve("claim-minimal.json");
+    for (int i = 0; i < 3; i++) {
+      Claim claim = (Claim) App.getFhirContext().newJsonParser().parseResource(new FileInputStream(fixture.toString()));
+      Map<String, Object> claimMap = new HashMap<String, Object>();
+      claimMap.put("id", "paged" + i);
+      claimMap.put("patient", "paged");
+      claimMap.put("status", FhirUtils.getStatusFromResource(claim));
+      claimMap.put("resource", claim);
+      App.getDB().write(Table.CLAIM, claimMap);
+    }
+
+    try {
+      MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(wac).build();
+      MvcResult mvcresult = mockMvc
+          .perform(MockMvcRequestBuilders.get("/Claim?patient.identifier=paged&_count=2").header("Accept",
+              "application/fhir+json"))
+          .andExpect(ok).andReturn();
+      Bundle first = (Bundle) App.getFhirContext().newJsonParser()
+          .parseResource(mvcresult.getResponse().getContentAsString());
+      Assert.assertEquals(2, first.getEntry().size());
+      Assert.assertFalse(first.hasTotal());
+      Assert.assertNotNull(first.getLink("next"));
+
+      // Follow the next link
+      String next = first.getLink("next").getUrl();
+      Assert.assertTrue(next.contains("patient.identifier=paged"));
+      mvcresult = mockMvc.perform(MockMvcRequestBuilders.get(next.substring(next.indexOf("/Claim?")))
+          .header("Accept", "application/fhir+json")).andExpect(ok).andReturn();
+      Bundle second = (Bundle) App.getFhirContext().newJsonParser()
+          .parseResource(mvcresult.getResponse().getContentAsString());
+      Assert.assertEquals(1, second.getEntry().size());
+      Assert.assertNull(second.getLink("next"));
+
+      Set<String> ids = new HashSet<String>();
+      for (Bundle page : Arrays.asList(first, second))
+        for (BundleEntryComponent entry : page.getEntry())
+          ids.add(entry.getResource().getIdElement().getIdPart());
+      Assert.assertEquals(new HashSet<String>(Arrays.asList("paged0", "paged1", "paged2")), ids);
+
+      mockMvc.perform(MockMvcRequestBuilders.get("/Claim?patient.identifier=paged&_page=invalid")
+          .header("Accept", "application/fhir+json")).andExpect(MockMvcResultMatchers.status().isBadRequest());
+    } finally {
+      for (int i = 0; i < 3; i++)
+        App.getDB().delete(Table.CLAIM, "paged" + i, "paged");
+    }
+  }
+
   @Test
   public void claimExists() {
     Map<String, Object> constraintMap = new HashMap<String, Object>();
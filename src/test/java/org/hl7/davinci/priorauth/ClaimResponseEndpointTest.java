@@ -5,12 +5,14 @@ import java.io.FileNotFoundException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Map;
+import java.util.Collections;
 import java.util.HashMap;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
@@ -181,6 +183,48 @@ public class ClaimResponseEndpointTest {
     Assert.assertTrue(result.isSuccessful());
   }
 
+  @Test
+  public void getClaimResponseNotModified() throws Exception {
+    // Test that a client polling with the ETag of its copy gets 304 until the
+    // ClaimResponse changes
+    DefaultMockMvcBuilder builder = MockMvcBuilders.webAppContextSetup(wac);
+    MockMvc mockMvc = builder.build();
+    MockHttpServletRequestBuilder requestBuilder = MockMvcRequestBuilders
+        .get("/ClaimResponse?identifier=minimal&patient.identifier=1").header("Accept", "application/fhir+json")
+        .header("Origin", "http://localhost:" + port);
+    MvcResult mvcresult = mockMvc.perform(requestBuilder).andExpect(ok)
+        .andExpect(MockMvcResultMatchers.header().exists("Last-Modified")).andReturn();
+    String etag = mvcresult.getResponse().getHeader("ETag");
+    Assert.assertNotNull(etag);
+
+    mvcresult = mockMvc.perform(requestBuilder.header("If-None-Match", etag))
+        .andExpect(MockMvcResultMatchers.status().isNotModified()).andExpect(cors).andReturn();
+    Assert.assertEquals("", mvcresult.getResponse().getContentAsString());
+    Assert.assertEquals(etag, mvcresult.getResponse().getHeader("ETag"));
+
+    // Every update changes the version
+    App.getDB().update(Table.CLAIM_RESPONSE, Collections.singletonMap("id", "minimal"),
+        Collections.singletonMap("patient", "1"));
+    mvcresult = mockMvc.perform(requestBuilder).andExpect(ok).andReturn();
+    Assert.assertNotEquals(etag, mvcresult.getResponse().getHeader("ETag"));
+  }
+
+  @Test
+  public void getClaimResponseIsSampled() throws Exception {
+    // Test that a successful read (such as polling a pended ClaimResponse) is
+    // sampled like any read-only request
+    MockMvc mockMvc = MockMvcBuilders.webAppContextSetup(wac).build();
+    long sampledOut = Metrics.counter("audit.context.sampled_out").get();
+    // MockMvc handles the request on this thread, so its audit events are
+    // collected in this context, which samples every read-only request out
+    try (AuditContext context = AuditContext.begin(new MockHttpServletRequest("GET", "/fhir/ClaimResponse"), 0.0)) {
+      Assert.assertSame(context, AuditContext.current());
+      mockMvc.perform(MockMvcRequestBuilders.get("/ClaimResponse?identifier=minimal&patient.identifier=1")
+          .header("Accept", "application/fhir+json").header("Origin", "http://localhost:" + port)).andExpect(ok);
+    }
+    Assert.assertEquals(sampledOut + 1, Metrics.counter("audit.context.sampled_out").get());
+  }
+
   @Test
   public void getClaimResponseThatDoesNotExist() throws Exception {
     // Test that non-existent ClaimResponse returns 404.
@@ -0,0 +1,74 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CompressResourcesTaskTest {
+
+  private ConnectionPool pool;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws IOException, SQLException {
+    pool = new ConnectionPool("compresstest", "jdbc:h2:./database;DB_CLOSE_DELAY=-1", 1, 2, 5000, 0, 4);
+
+    // A row written before resources were compressed
+    String json = new String(Files.readAllBytes(Paths.get("src/test/resources/bundle-prior-auth.json")));
+    try (Connection connection = pool.getConnection()) {
+      PreparedStatement stmt = connection
+          .prepareStatement("INSERT INTO Bundle (id, patient, resource) VALUES ('legacy', 'pat013', ?);");
+      stmt.setString(1, json);
+      stmt.execute();
+    }
+  }
+
+  @After
+  public void cleanup() {
+    App.getDB().delete(Table.BUNDLE, "legacy");
+    pool.close();
+  }
+
+  @Test
+  public void testLegacyRowIsCompressed() throws SQLException {
+    CompressResourcesTask task = new CompressResourcesTask(pool, 10);
+    Assert.assertEquals(1, task.compressBatch(Table.BUNDLE));
+    Assert.assertEquals(0, task.compressBatch(Table.BUNDLE));
+
+    try (Connection connection = pool.getConnection()) {
+      ResultSet rs = connection
+          .prepareStatement("SELECT resource, resource_data FROM Bundle WHERE id = 'legacy';").executeQuery();
+      Assert.assertTrue(rs.next());
+      Assert.assertNull(rs.getString("resource"));
+      Assert.assertTrue(ResourceCodec.isEncoded(rs.getBytes("resource_data")));
+    }
+
+    Bundle bundle = (Bundle) App.getDB().read(Table.BUNDLE, Collections.singletonMap("id", "legacy"));
+    Assert.assertNotNull(bundle);
+    Assert.assertFalse(bundle.getEntry().isEmpty());
+  }
+
+  @Test
+  public void testLegacyRowIsReadable() {
+    // Rows which have not been converted yet are read from the CLOB
+    Bundle bundle = (Bundle) App.getDB().read(Table.BUNDLE, Collections.singletonMap("id", "legacy"));
+    Assert.assertNotNull(bundle);
+  }
+}
@@ -0,0 +1,136 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+  private ConnectionPool pool;
+
+  @Before
+  public void setup() {
+    pool = new ConnectionPool("test", "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 1, 2, 200, 0, 4);
+  }
+
+  @After
+  public void cleanup() {
+    pool.close();
+  }
+
+  @Test
+  public void testConnectionIsReturnedOnClose() throws SQLException {
+    Assert.assertEquals(1, pool.getIdleCount());
+
+    Connection connection = pool.getConnection();
+    Assert.assertEquals(1, pool.getActiveCount());
+    Assert.assertEquals(0, pool.getIdleCount());
+
+    connection.close();
+    Assert.assertTrue(connection.isClosed());
+    Assert.assertEquals(0, pool.getActiveCount());
+    Assert.assertEquals(1, pool.getIdleCount());
+
+    // Closing twice must not return the connection twice
+    connection.close();
+    Assert.assertEquals(1, pool.getIdleCount());
+  }
+
+  @Test
+  public void testReturnedConnectionCannotBeUsed() throws SQLException {
+    Connection connection = pool.getConnection();
+    connection.close();
+    try {
+      connection.createStatement();
+      Assert.fail("Expected SQLException using a returned connection");
+    } catch (SQLException e) {
+      Assert.assertFalse(e instanceof SQLTransientConnectionException);
+    }
+  }
+
+  @Test
+  public void testUnclosedStatementsAreClosedOnReturn() throws SQLException {
+    Connection connection = pool.getConnection();
+    Statement statement = connection.createStatement();
+    connection.close();
+    Assert.assertTrue(statement.isClosed());
+  }
+
+  @Test
+  public void testTimeoutWhenExhausted() throws SQLException {
+    Connection first = pool.getConnection();
+    Connection second = pool.getConnection();
+    try {
+      pool.getConnection();
+      Assert.fail("Expected SQLTransientConnectionException when the pool is exhausted");
+    } catch (SQLTransientConnectionException e) {
+      Assert.assertEquals(0, pool.getWaitingCount());
+    }
+
+    // Once a connection is returned it can be borrowed again
+    first.close();
+    Connection third = pool.getConnection();
+    Assert.assertFalse(third.isClosed());
+    third.close();
+    second.close();
+    Assert.assertEquals(2, pool.getIdleCount());
+  }
+
+  @Test
+  public void testUncommittedTransactionIsRolledBack() throws SQLException {
+    Connection connection = pool.getConnection();
+    connection.createStatement().execute("CREATE TABLE IF NOT EXISTS PoolTest (id INT)");
+    connection.setAutoCommit(false);
+    connection.createStatement().execute("INSERT INTO PoolTest VALUES (1)");
+    connection.close();
+
+    connection = pool.getConnection();
+    Assert.assertTrue(connection.getAutoCommit());
+    ResultSet rs = connection.createStatement().executeQuery("SELECT COUNT(*) FROM PoolTest");
+    rs.next();
+    Assert.assertEquals(0, rs.getInt(1));
+    connection.createStatement().execute("DROP TABLE PoolTest");
+    connection.close();
+  }
+
+  @Test
+  public void testPreparedStatementsAreCached() throws SQLException {
+    Connection connection = pool.getConnection();
+    PreparedStatement first = connection.prepareStatement("SELECT ?");
+    first.setString(1, "a");
+    ResultSet rs = first.executeQuery();
+    rs.next();
+    Assert.assertEquals("a", rs.getString(1));
+
+    // The statement is still in use so a separate statement is prepared
+    PreparedStatement second = connection.prepareStatement("SELECT ?");
+    Assert.assertNotSame(first, second);
+    second.close();
+
+    first.close();
+    Assert.assertTrue(first.isClosed());
+    PreparedStatement third = connection.prepareStatement("SELECT ?");
+    Assert.assertSame(first, third);
+    Assert.assertFalse(third.isClosed());
+    connection.close();
+
+    // Statements left open are returned to the cache with the connection
+    Assert.assertTrue(third.isClosed());
+    connection = pool.getConnection();
+    PreparedStatement fourth = connection.prepareStatement("SELECT ?");
+    Assert.assertSame(first, fourth);
+    fourth.setString(1, "b");
+    rs = fourth.executeQuery();
+    rs.next();
+    Assert.assertEquals("b", rs.getString(1));
+    connection.close();
+  }
+}
@@ -2,8 +2,12 @@ package org.hl7.davinci.priorauth;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -12,6 +16,8 @@ import java.util.Map;
 import org.hl7.davinci.priorauth.Database.Table;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.After;
@@ -123,6 +129,30 @@ public class DatabaseTest {
     Assert.assertNull(colDNE);
   }
 
+  @Test
+  public void testReadColumns() {
+    // Read the columns of the most recent hit in one query
+    Map<String, String> columns = App.getDB().readColumns(Table.CLAIM, Collections.singletonMap("patient", "pat013"),
+        "id", "related");
+    Assert.assertEquals("related-minimal", columns.get("id"));
+    Assert.assertEquals("minimal", columns.get("related"));
+
+    // Read the columns of every hit
+    List<Map<String, String>> rows = App.getDB().readAllColumns(Table.BUNDLE,
+        Collections.singletonMap("patient", "pat013"), "id", "patient");
+    Assert.assertEquals(2, rows.size());
+    Assert.assertEquals("minimal-1", rows.get(0).get("id"));
+    Assert.assertEquals("pat013", rows.get(1).get("patient"));
+
+    // No matches
+    Assert.assertNull(App.getDB().readColumns(Table.BUNDLE, Collections.singletonMap("id", "does-not-exist"), "id"));
+
+    // Only scalar columns of the table can be selected
+    Assert.assertNull(App.getDB().readColumns(Table.BUNDLE, Collections.singletonMap("id", "minimal"), "id",
+        "1; DROP TABLE Bundle"));
+    Assert.assertNull(App.getDB().readColumns(Table.BUNDLE, Collections.singletonMap("id", "minimal"), "resource"));
+  }
+
   @Test
   public void testWrite() throws FileNotFoundException {
     // Insert test data
@@ -155,6 +185,47 @@ public class DatabaseTest {
     Assert.assertNotNull(data);
   }
 
+  @Test
+  public void testWriteBatch() {
+    List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+    for (String sequence : new String[] { "1", "2", "1", "3" }) {
+      Map<String, Object> itemMap = new HashMap<String, Object>();
+      itemMap.put("id", "minimal");
+      itemMap.put("sequence", sequence);
+      itemMap.put("status", "active");
+      items.add(itemMap);
+    }
+    // A different set of columns and a Claim which does not exist
+    items.get(3).put("outcome", "A1");
+    items.get(3).replace("id", "missing");
+
+    BatchResult result = App.getDB().writeBatch(Table.CLAIM_ITEM, items);
+    Assert.assertEquals(2, result.getSucceeded());
+    Assert.assertEquals(Arrays.asList(2, 3), result.getFailed());
+
+    Map<String, Object> constraintMap = new HashMap<String, Object>();
+    constraintMap.put("id", "minimal");
+    constraintMap.put("sequence", "2");
+    Assert.assertEquals("active", App.getDB().readStatus(Table.CLAIM_ITEM, constraintMap));
+  }
+
+  @Test
+  public void testUpdateBatch() {
+    List<Map<String, Object>> constraints = new ArrayList<Map<String, Object>>();
+    List<Map<String, Object>> data = new ArrayList<Map<String, Object>>();
+    for (String id : new String[] { "minimal", "related-minimal", "missing" }) {
+      constraints.add(Collections.singletonMap("id", id));
+      data.add(Collections.singletonMap("status", "cancelled"));
+    }
+
+    BatchResult result = App.getDB().updateBatch(Table.CLAIM, constraints, data);
+    Assert.assertEquals(2, result.getSucceeded());
+    Assert.assertEquals(Collections.singletonList(2), result.getFailed());
+    Assert.assertEquals("cancelled", App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "minimal")));
+    Assert.assertEquals("cancelled",
+        App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "related-minimal")));
+  }
+
   @Test
   public void testDelete() {
     boolean outcome = App.getDB().delete(Table.BUNDLE, "minimal", "pat013");
@@ -179,6 +250,148 @@ public class DatabaseTest {
   public void testGetMostRecentId() {
     String mostRecentId = App.getDB().getMostRecentId("minimal");
     Assert.assertEquals("related-minimal", mostRecentId);
+    Assert.assertEquals("related-minimal", App.getDB().getMostRecentId("related-minimal"));
+    Assert.assertEquals("missing", App.getDB().getMostRecentId("missing"));
+  }
+
+  @Test
+  public void testCancelClaimChain() {
+    Map<String, Object> itemMap = new HashMap<String, Object>();
+    itemMap.put("id", "related-minimal");
+    itemMap.put("sequence", "1");
+    itemMap.put("status", "active");
+    App.getDB().write(Table.CLAIM_ITEM, itemMap);
+
+    Assert.assertTrue(App.getDB().cancelClaimChain("minimal"));
+    for (String id : new String[] { "minimal", "related-minimal" }) {
+      Claim claim = (Claim) App.getDB().read(Table.CLAIM, Collections.singletonMap("id", id));
+      Assert.assertEquals(ClaimStatus.CANCELLED, claim.getStatus());
+      Assert.assertEquals("cancelled", App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", id)));
+    }
+    itemMap.remove("status");
+    Assert.assertEquals("cancelled", App.getDB().readStatus(Table.CLAIM_ITEM, itemMap));
+  }
+
+  @Test
+  public void testCancelledClaimIsCached() {
+    Assert.assertTrue(App.getDB().cancelClaimChain("minimal"));
+
+    // The second read is answered by the cache and must keep the status
+    for (int i = 0; i < 2; i++) {
+      Claim claim = (Claim) App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "related-minimal"));
+      Assert.assertEquals(ClaimStatus.CANCELLED, claim.getStatus());
+    }
+  }
+
+  @Test
+  public void testClaimChain() {
+    Claim claim = (Claim) App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "minimal"));
+    List<Map<String, Object>> rows = new ArrayList<>();
+    String related = "related-minimal";
+    for (String id : new String[] { "update-1", "update-2" }) {
+      Map<String, Object> claimMap = new HashMap<String, Object>();
+      claimMap.put("id", id);
+      claimMap.put("patient", "pat013");
+      claimMap.put("related", related);
+      claimMap.put("resource", claim);
+      rows.add(claimMap);
+      related = id;
+    }
+    Assert.assertTrue(App.getDB().writeBatch(Table.CLAIM, rows).isSuccessful());
+    Assert.assertEquals("update-2", App.getDB().getMostRecentId("minimal"));
+    Assert.assertEquals("update-2", App.getDB().getMostRecentId("update-1"));
+
+    // Deleting an update (and the updates after it) moves the head back
+    Assert.assertTrue(App.getDB().delete(Table.CLAIM, "update-1"));
+    Assert.assertEquals("related-minimal", App.getDB().getMostRecentId("minimal"));
+  }
+
+  @Test
+  public void testFindClaimByIdentifier() {
+    Claim claim = (Claim) App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "minimal"));
+    claim.addIdentifier().setSystem("http://example.org/claims").setValue("inquiry-1");
+    String related = null;
+    for (String id : new String[] { "identified", "identified-update" }) {
+      Map<String, Object> claimMap = new HashMap<String, Object>();
+      claimMap.put("id", id);
+      claimMap.put("patient", "pat013");
+      if (related != null)
+        claimMap.put("related", related);
+      claimMap.put("resource", claim);
+      Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap));
+      related = id;
+    }
+
+    Identifier identifier = new Identifier().setSystem("http://example.org/claims").setValue("inquiry-1");
+    Assert.assertEquals("identified-update", App.getDB().findClaimByIdentifier("pat013", identifier));
+    Assert.assertNull(App.getDB().findClaimByIdentifier("pat-other", identifier));
+    Assert.assertNull(App.getDB().findClaimByIdentifier("pat013",
+        new Identifier().setSystem("http://example.org/other").setValue("inquiry-1")));
+
+    // Deleting the update moves the Claim found back to the original
+    Assert.assertTrue(App.getDB().delete(Table.CLAIM, "identified-update"));
+    Assert.assertEquals("identified", App.getDB().findClaimByIdentifier("pat013", identifier));
+    Assert.assertTrue(App.getDB().delete(Table.CLAIM, "identified"));
+    Assert.assertNull(App.getDB().findClaimByIdentifier("pat013", identifier));
+  }
+
+  @Test
+  public void testWriteTable() throws IOException {
+    // One row per page, with the resources cut after 10 characters
+    StringWriter html = new StringWriter();
+    HtmlTableWriter out = new HtmlTableWriter(html, 10);
+    String pageToken = App.getDB().writeTable(Table.BUNDLE, 1, null, out);
+    out.end(null);
+    Assert.assertNotNull(pageToken);
+    Assert.assertEquals(1, out.getRows());
+    Assert.assertTrue(html.toString().contains("<table id='results'>"));
+    Assert.assertTrue(html.toString().contains("... (truncated)"));
+
+    // Follow the pages to the end
+    int rows = 1;
+    while (pageToken != null) {
+      out = new HtmlTableWriter(new StringWriter(), 10);
+      pageToken = App.getDB().writeTable(Table.BUNDLE, 1, pageToken, out);
+      rows += out.getRows();
+    }
+    Assert.assertTrue(rows >= 2);
+
+    // Rows written at the same time are each on exactly one page
+    Map<String, Object> bundleMap = new HashMap<String, Object>();
+    bundleMap.put("patient", "pat013");
+    bundleMap.put("timestamp", "2200-01-01 00:00:00.0");
+    bundleMap.put("resource", new Bundle());
+    List<String> ids = Arrays.asList("same-time-0", "same-time-1", "same-time-2");
+    for (String id : ids) {
+      bundleMap.put("id", id);
+      Assert.assertTrue(App.getDB().write(Table.BUNDLE, bundleMap));
+    }
+    List<String> paged = new ArrayList<>();
+    pageToken = null;
+    for (int page = 0; page < ids.size(); page++) {
+      html = new StringWriter();
+      pageToken = App.getDB().writeTable(Table.BUNDLE, 1, pageToken, new HtmlTableWriter(html, 10));
+      for (String id : ids)
+        if (html.toString().contains(id))
+          paged.add(id);
+    }
+    Assert.assertEquals(ids.size(), paged.size());
+    Assert.assertTrue(paged.containsAll(ids));
+
+    // The Audit view is paged one partition at a time
+    out = new HtmlTableWriter(new StringWriter(), 10);
+    pageToken = App.getDB().writeTable(Table.AUDIT, 2, null, out);
+    Assert.assertEquals(2, out.getRows());
+    out = new HtmlTableWriter(new StringWriter(), 10);
+    App.getDB().writeTable(Table.AUDIT, 2, pageToken, out);
+    Assert.assertTrue(out.getRows() > 0);
+
+    try {
+      App.getDB().writeTable(Table.BUNDLE, 1, "not a token", new HtmlTableWriter(new StringWriter(), 10));
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
   }
 
 }
@@ -0,0 +1,205 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MVStoreResourceStoreTest {
+
+  private MVStoreResourceStore store;
+
+  @BeforeClass
+  public static void setupClass() {
+    // Audit events are written to the application database
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws FileNotFoundException {
+    store = new MVStoreResourceStore(null);
+
+    Path modulesFolder = Paths.get("src/test/resources");
+    Path fixture = modulesFolder.resolve("bundle-prior-auth.json");
+    FileInputStream inputStream = new FileInputStream(fixture.toString());
+    Bundle bundle = (Bundle) App.getFhirContext().newJsonParser().parseResource(inputStream);
+    Map<String, Object> bundleMap = new HashMap<String, Object>();
+    bundleMap.put("id", "minimal");
+    bundleMap.put("patient", "pat013");
+    bundleMap.put("resource", bundle);
+    store.write(Table.BUNDLE, bundleMap);
+
+    // Add a second Bundle
+    bundleMap.replace("id", "minimal-1");
+    store.write(Table.BUNDLE, bundleMap);
+
+    // Add a Claim
+    Claim claim = (Claim) bundle.getEntry().get(0).getResource();
+    bundleMap.replace("id", "minimal");
+    bundleMap.replace("resource", claim);
+    store.write(Table.CLAIM, bundleMap);
+
+    // Add a related Claim
+    claim.setId("related-minimal");
+    bundleMap.replace("id", "related-minimal");
+    bundleMap.replace("resource", claim);
+    bundleMap.put("related", "minimal");
+    store.write(Table.CLAIM, bundleMap);
+  }
+
+  @After
+  public void cleanup() {
+    store.close();
+  }
+
+  @Test
+  public void testSearch() {
+    Bundle results = store.search(Table.BUNDLE, Collections.singletonMap("patient", "pat013"));
+    Assert.assertEquals(BundleType.SEARCHSET, results.getType());
+    Assert.assertEquals(2, results.getTotal());
+  }
+
+  @Test
+  public void testSearchPage() {
+    Map<String, Object> constraintMap = Collections.singletonMap("patient", "pat013");
+    SearchPage first = store.searchPage(Table.BUNDLE, constraintMap, 1, null);
+    Assert.assertEquals(1, first.getBundle().getEntry().size());
+    Assert.assertEquals("minimal-1", first.getBundle().getEntryFirstRep().getResource().getIdElement().getIdPart());
+    Assert.assertTrue(first.hasNext());
+
+    SearchPage second = store.searchPage(Table.BUNDLE, constraintMap, 1, first.getNextPageToken());
+    Assert.assertEquals(1, second.getBundle().getEntry().size());
+    Assert.assertEquals("minimal", second.getBundle().getEntryFirstRep().getResource().getIdElement().getIdPart());
+    Assert.assertFalse(second.hasNext());
+
+    Assert.assertEquals(2, store.searchPage(Table.BUNDLE, constraintMap, 5, null).getBundle().getTotal());
+  }
+
+  @Test
+  public void testWriteTable() throws IOException {
+    StringWriter html = new StringWriter();
+    HtmlTableWriter out = new HtmlTableWriter(html, 10);
+    String pageToken = store.writeTable(Table.BUNDLE, 1, null, out);
+    Assert.assertEquals(1, out.getRows());
+    Assert.assertTrue(html.toString().contains("minimal-1"));
+    Assert.assertNotNull(pageToken);
+
+    html = new StringWriter();
+    out = new HtmlTableWriter(html, 10);
+    Assert.assertNull(store.writeTable(Table.BUNDLE, 1, pageToken, out));
+    Assert.assertEquals(1, out.getRows());
+    Assert.assertFalse(html.toString().contains("minimal-1"));
+  }
+
+  @Test
+  public void testCancelClaimChain() {
+    Assert.assertTrue(store.cancelClaimChain("related-minimal"));
+    for (String id : new String[] { "minimal", "related-minimal" }) {
+      Claim claim = (Claim) store.read(Table.CLAIM, Collections.singletonMap("id", id));
+      Assert.assertEquals(ClaimStatus.CANCELLED, claim.getStatus());
+      Assert.assertEquals("cancelled", store.readStatus(Table.CLAIM, Collections.singletonMap("id", id)));
+    }
+  }
+
+  @Test
+  public void testReadAll() {
+    List<IBaseResource> results = store.readAll(Table.BUNDLE, Collections.singletonMap("patient", "pat013"));
+    Assert.assertEquals(2, results.size());
+    results = store.readAll(Table.BUNDLE, Collections.singletonMap("patient", "pat001"));
+    Assert.assertEquals(0, results.size());
+  }
+
+  @Test
+  public void testReadString() {
+    // Most recent write is returned first
+    Assert.assertEquals("minimal-1",
+        store.readString(Table.BUNDLE, Collections.singletonMap("patient", "pat013"), "id"));
+    Assert.assertEquals("pat013", store.readString(Table.BUNDLE, Collections.singletonMap("id", "minimal"), "patient"));
+    Assert.assertEquals("FALSE",
+        store.readString(Table.CLAIM, Collections.singletonMap("id", "minimal"), "isDifferential"));
+    Assert.assertNull(store.readString(Table.BUNDLE, Collections.singletonMap("id", "does-not-exist"), "patient"));
+    Assert.assertNull(store.readString(Table.BUNDLE, Collections.singletonMap("id", "minimal"), "col-does-not-exist"));
+  }
+
+  @Test
+  public void testWriteDuplicate() {
+    Map<String, Object> dataMap = new HashMap<String, Object>();
+    dataMap.put("id", "minimal");
+    dataMap.put("patient", "pat013");
+    Assert.assertFalse(store.write(Table.BUNDLE, dataMap));
+  }
+
+  @Test
+  public void testUpdate() {
+    Assert.assertTrue(store.update(Table.BUNDLE, Collections.singletonMap("id", "minimal"),
+        Collections.singletonMap("id", "updated-minimal")));
+    Assert.assertNull(store.read(Table.BUNDLE, Collections.singletonMap("id", "minimal")));
+    Assert.assertNotNull(store.read(Table.BUNDLE, Collections.singletonMap("id", "updated-minimal")));
+
+    // The patient index follows the new key
+    Assert.assertEquals(2, store.readAll(Table.BUNDLE, Collections.singletonMap("patient", "pat013")).size());
+  }
+
+  @Test
+  public void testClaimItems() {
+    for (int sequence = 1; sequence <= 3; sequence++) {
+      Map<String, Object> itemMap = new HashMap<String, Object>();
+      itemMap.put("id", "minimal");
+      itemMap.put("sequence", String.valueOf(sequence));
+      itemMap.put("status", "active");
+      Assert.assertTrue(store.write(Table.CLAIM_ITEM, itemMap));
+    }
+
+    Map<String, Object> constraintMap = new HashMap<String, Object>();
+    constraintMap.put("id", "minimal");
+    constraintMap.put("sequence", "2");
+    Assert.assertTrue(store.update(Table.CLAIM_ITEM, constraintMap, Collections.singletonMap("outcome", "complete")));
+    Assert.assertEquals("complete", store.readString(Table.CLAIM_ITEM, constraintMap, "outcome"));
+    Assert.assertTrue(store.update(Table.CLAIM_ITEM, Collections.singletonMap("id", "minimal"),
+        Collections.singletonMap("status", "cancelled")));
+    constraintMap.replace("sequence", "3");
+    Assert.assertEquals("cancelled", store.readStatus(Table.CLAIM_ITEM, constraintMap));
+  }
+
+  @Test
+  public void testDeleteCascades() {
+    Map<String, Object> itemMap = new HashMap<String, Object>();
+    itemMap.put("id", "related-minimal");
+    itemMap.put("sequence", "1");
+    store.write(Table.CLAIM_ITEM, itemMap);
+
+    Assert.assertTrue(store.delete(Table.CLAIM, "minimal", "pat013"));
+    Assert.assertNull(store.read(Table.CLAIM, Collections.singletonMap("id", "minimal")));
+    Assert.assertNull(store.read(Table.CLAIM, Collections.singletonMap("id", "related-minimal")));
+    Assert.assertNull(store.readStatus(Table.CLAIM_ITEM, Collections.singletonMap("id", "related-minimal")));
+  }
+
+  @Test
+  public void testDeleteTable() {
+    Assert.assertTrue(store.delete(Table.BUNDLE));
+    Assert.assertEquals(0, store.readAll(Table.BUNDLE, Collections.singletonMap("patient", "pat013")).size());
+  }
+
+  @Test
+  public void testGetMostRecentId() {
+    Assert.assertEquals("related-minimal", store.getMostRecentId("minimal"));
+  }
+}
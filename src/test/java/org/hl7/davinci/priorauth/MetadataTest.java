@@ -107,4 +107,19 @@ public class MetadataTest {
     // TODO: a bug was causing this to fail when it is validated
     // Assert.assertTrue(result.isSuccessful());
   }
+
+  @Test
+  public void getMetadataNotModified() throws Exception {
+    // Test that the cached CapabilityStatement is answered with 304
+    DefaultMockMvcBuilder builder = MockMvcBuilders.webAppContextSetup(wac);
+    MockMvc mockMvc = builder.build();
+    MockHttpServletRequestBuilder requestBuilder = MockMvcRequestBuilders.get("/metadata")
+        .header("Accept", "application/fhir+json").header("Origin", "http://localhost:" + port);
+    MvcResult mvcresult = mockMvc.perform(requestBuilder).andExpect(ok).andReturn();
+    String etag = mvcresult.getResponse().getHeader("ETag");
+    Assert.assertNotNull(etag);
+
+    mockMvc.perform(requestBuilder.header("If-None-Match", etag))
+        .andExpect(MockMvcResultMatchers.status().isNotModified());
+  }
 }
@@ -0,0 +1,159 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.FhirUtils.ReviewAction;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PurgeExpiredTaskTest {
+
+  private static final String PATIENT = "pat-purge";
+
+  private static Bundle bundle;
+  private ConnectionPool pool;
+
+  @BeforeClass
+  public static void setupClass() throws IOException {
+    App.initializeAppDB();
+    bundle = (Bundle) App.getFhirContext().newJsonParser()
+        .parseResource(new FileInputStream("src/test/resources/bundle-prior-auth.json"));
+  }
+
+  @Before
+  public void setup() throws SQLException {
+    pool = new ConnectionPool("purgetest", "jdbc:h2:./database;DB_CLOSE_DELAY=-1", 1, 2, 5000, 0, 4);
+
+    // An approved Claim and its update, a pended Claim, a cancelled Claim, an
+    // approved Claim with a Subscription and an approved Claim still in use
+    writeClaim("purge-approved", null, ClaimStatus.ACTIVE);
+    writeClaim("purge-approved-update", "purge-approved", ClaimStatus.ACTIVE);
+    writeClaimResponse("purge-approved-response", "purge-approved-update", ReviewAction.APPROVED);
+    writeClaim("purge-pended", null, ClaimStatus.ACTIVE);
+    writeClaimResponse("purge-pended-response", "purge-pended", ReviewAction.PENDED);
+    writeClaim("purge-cancelled", null, ClaimStatus.CANCELLED);
+    writeClaim("purge-subscribed", null, ClaimStatus.ACTIVE);
+    writeClaimResponse("purge-subscribed-response", "purge-subscribed", ReviewAction.APPROVED);
+    writeClaim("purge-recent", null, ClaimStatus.ACTIVE);
+    writeClaimResponse("purge-recent-response", "purge-recent", ReviewAction.APPROVED);
+    // The submitted Bundles of a final and of a pended chain, and a Bundle
+    // without a Claim
+    writeBundle("purge-approved-update");
+    writeBundle("purge-pended");
+    writeBundle("purge-bundle");
+
+    try (Connection connection = pool.getConnection()) {
+      connection.prepareStatement("INSERT INTO Subscription (id, claimResponseId, patient, status) "
+          + "VALUES ('purge-subscription', 'purge-subscribed-response', '" + PATIENT + "', 'active');").execute();
+
+      // Everything but the recent Claim was last changed a year ago
+      Timestamp old = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365));
+      for (String sql : new String[] { "UPDATE Claim SET timestamp = ? WHERE patient = ? AND id <> 'purge-recent';",
+          "UPDATE ClaimResponse SET timestamp = ? WHERE patient = ? AND claimId <> 'purge-recent';",
+          "UPDATE ClaimChain SET timestamp = ? WHERE rootId IN (SELECT rootId FROM Claim WHERE patient = ?);",
+          "UPDATE Bundle SET timestamp = ? WHERE patient = ?;" }) {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        stmt.setTimestamp(1, old);
+        stmt.setString(2, PATIENT);
+        stmt.execute();
+      }
+    }
+  }
+
+  @After
+  public void cleanup() throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      connection.prepareStatement("DELETE FROM Subscription WHERE patient = '" + PATIENT + "';").execute();
+    }
+    for (String id : new String[] { "purge-approved", "purge-pended", "purge-cancelled", "purge-subscribed",
+        "purge-recent" })
+      App.getDB().delete(Table.CLAIM, id);
+    for (String id : new String[] { "purge-approved-update", "purge-pended", "purge-bundle" })
+      App.getDB().delete(Table.BUNDLE, id);
+    pool.close();
+  }
+
+  @Test
+  public void testPurgeFinalChains() throws SQLException {
+    Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30));
+    PurgeExpiredTask task = new PurgeExpiredTask(pool, new ResourceCache("purgetest", 1 << 20), 30, 10, 1, 0);
+    long[] purged = task.purgeBatch(cutoff);
+    Assert.assertEquals(2, purged[0]);
+    Assert.assertEquals(3, purged[1]);
+    Assert.assertEquals(1, purged[2]);
+    Assert.assertEquals(2, purged[3]);
+    Assert.assertEquals(1, purged[4]);
+
+    // The chains are deleted with their updates, responses and index rows
+    Assert.assertEquals(0,
+        count("SELECT COUNT(*) FROM Claim WHERE id LIKE 'purge-approved%' OR id = 'purge-cancelled'"));
+    Assert.assertEquals(0, count("SELECT COUNT(*) FROM ClaimResponse WHERE id = 'purge-approved-response'"));
+    Assert.assertEquals(0,
+        count("SELECT COUNT(*) FROM ClaimChain WHERE rootId IN ('purge-approved', 'purge-cancelled')"));
+    Assert.assertEquals(0, count("SELECT COUNT(*) FROM SearchToken WHERE id LIKE 'purge-approved%'"));
+    Assert.assertEquals(0, count("SELECT COUNT(*) FROM Bundle WHERE id IN ('purge-approved-update', 'purge-bundle')"));
+
+    // Pended, subscribed and recent chains are kept
+    Assert.assertEquals(3, count("SELECT COUNT(*) FROM Claim WHERE id IN ('purge-pended', 'purge-subscribed', "
+        + "'purge-recent')"));
+    // The pended chain keeps its Bundle, which its next update reads
+    Assert.assertEquals(1, count("SELECT COUNT(*) FROM Bundle WHERE id = 'purge-pended'"));
+    Assert.assertEquals(0, task.purgeBatch(cutoff)[0]);
+  }
+
+  private void writeClaim(String id, String related, ClaimStatus status) {
+    Claim claim = FhirUtils.getClaimFromRequestBundle(bundle).copy();
+    claim.setId(id);
+    claim.setStatus(status);
+    Map<String, Object> claimMap = new HashMap<>();
+    claimMap.put("id", id);
+    claimMap.put("patient", PATIENT);
+    if (related != null)
+      claimMap.put("related", related);
+    claimMap.put("resource", claim);
+    Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap));
+  }
+
+  private void writeBundle(String id) {
+    Map<String, Object> bundleMap = new HashMap<>();
+    bundleMap.put("id", id);
+    bundleMap.put("patient", PATIENT);
+    bundleMap.put("resource", bundle);
+    Assert.assertTrue(App.getDB().write(Table.BUNDLE, bundleMap));
+  }
+
+  private void writeClaimResponse(String id, String claimId, ReviewAction outcome) {
+    Map<String, Object> responseMap = new HashMap<>();
+    responseMap.put("id", id);
+    responseMap.put("claimId", claimId);
+    responseMap.put("patient", PATIENT);
+    responseMap.put("status", "active");
+    responseMap.put("outcome", outcome.value());
+    responseMap.put("resource", bundle);
+    Assert.assertTrue(App.getDB().write(Table.CLAIM_RESPONSE, responseMap));
+  }
+
+  private long count(String sql) throws SQLException {
+    try (Connection connection = pool.getConnection()) {
+      ResultSet rs = connection.prepareStatement(sql).executeQuery();
+      rs.next();
+      return rs.getLong(1);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.QueryShape.Operation;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class QueryShapeTest {
+
+  @Test
+  public void testShapeIsReused() {
+    Map<String, Object> first = new LinkedHashMap<String, Object>();
+    first.put("id", "1");
+    first.put("patient", "pat013");
+    Map<String, Object> second = new LinkedHashMap<String, Object>();
+    second.put("patient", "pat001");
+    second.put("id", "2");
+
+    QueryShape shape = QueryShape.of(Operation.READ, Table.CLAIM, null, first.keySet());
+    Assert.assertSame(shape, QueryShape.of(Operation.READ, Table.CLAIM, null, second.keySet()));
+    Assert.assertNotSame(shape, QueryShape.of(Operation.READ_ALL, Table.CLAIM, null, first.keySet()));
+    Assert.assertNotSame(shape, QueryShape.of(Operation.READ, Table.BUNDLE, null, first.keySet()));
+    Assert.assertEquals("SELECT TOP 1 id, patient, status, resource, resource_data FROM Claim WHERE id = ? AND patient = ? ORDER BY timestamp DESC;",
+        shape.sql());
+  }
+
+  @Test
+  public void testGeneratedSql() {
+    Map<String, Object> data = new HashMap<String, Object>();
+    data.put("status", "cancelled");
+    data.put("outcome", "complete");
+    Map<String, Object> constraintMap = Collections.singletonMap("id", "1");
+
+    Assert.assertEquals("INSERT INTO ClaimItem (outcome, status) VALUES (?,?);",
+        QueryShape.of(Operation.INSERT, Table.CLAIM_ITEM, null, data.keySet(), Collections.emptySet()).sql());
+    Assert.assertEquals("UPDATE Claim SET outcome = ?, status = ?, version = NEXT VALUE FOR resource_version, "
+        + "timestamp = CURRENT_TIMESTAMP WHERE id = ?;",
+        QueryShape.of(Operation.UPDATE, Table.CLAIM, null, data.keySet(), constraintMap.keySet()).sql());
+    Assert.assertEquals("UPDATE ClaimItem SET outcome = ?, status = ?, timestamp = CURRENT_TIMESTAMP WHERE id = ?;",
+        QueryShape.of(Operation.UPDATE, Table.CLAIM_ITEM, null, data.keySet(), constraintMap.keySet()).sql());
+    Assert.assertEquals("SELECT TOP 1 status FROM Claim WHERE id = ? ORDER BY timestamp DESC;",
+        QueryShape.of(Operation.READ_COLUMN, Table.CLAIM, "status", constraintMap.keySet()).sql());
+    Assert.assertEquals("DELETE FROM Bundle;",
+        QueryShape.of(Operation.DELETE, Table.BUNDLE, null, Collections.emptySet()).sql());
+  }
+
+  @Test
+  public void testProjection() {
+    Map<String, Object> constraintMap = Collections.singletonMap("system", "http://loinc.org");
+    String projection = QueryShape.projection(Table.RULES, "topic", "rule");
+    Assert.assertEquals("SELECT TOP 1 topic, rule FROM Rules WHERE system = ? ORDER BY timestamp DESC;",
+        QueryShape.of(Operation.READ_COLUMN, Table.RULES, projection, constraintMap.keySet()).sql());
+    Assert.assertEquals("SELECT topic, rule FROM Rules WHERE system = ? ORDER BY timestamp DESC;",
+        QueryShape.of(Operation.READ_ALL_COLUMNS, Table.RULES, projection, constraintMap.keySet()).sql());
+
+    // Columns are checked against the scalar columns of the table
+    Assert.assertEquals("jwks, JWKS_URL", QueryShape.projection(Table.CLIENT, "jwks", "JWKS_URL"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> QueryShape.projection(Table.CLIENT, "organization"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> QueryShape.projection(Table.RULES, "topic", "id"));
+    Assert.assertThrows(IllegalArgumentException.class, () -> QueryShape.projection(Table.RULES));
+  }
+}
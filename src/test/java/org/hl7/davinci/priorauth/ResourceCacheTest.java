@@ -0,0 +1,133 @@
+package org.hl7.davinci.priorauth;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ResourceCacheTest {
+
+  private ResourceCache cache;
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() {
+    cache = new ResourceCache("test.resource_cache", 100);
+  }
+
+  @After
+  public void cleanup() {
+    App.getDB().delete(Table.CLAIM, "cachetest");
+  }
+
+  @Test
+  public void testCopiesAreHandedOut() {
+    Claim claim = claim("claim1");
+    cache.put(Table.CLAIM, "claim1", "pat013", claim, 10, cache.generation());
+
+    // Changing the cached resource or a resource read from the cache does not
+    // change the cache
+    claim.setStatus(ClaimStatus.CANCELLED);
+    Claim cached = (Claim) cache.get(Table.CLAIM, "claim1");
+    Assert.assertEquals(ClaimStatus.ACTIVE, cached.getStatus());
+    cached.setStatus(ClaimStatus.CANCELLED);
+    Assert.assertEquals(ClaimStatus.ACTIVE, ((Claim) cache.get(Table.CLAIM, "claim1")).getStatus());
+  }
+
+  @Test
+  public void testPatientMustMatch() {
+    cache.put(Table.CLAIM, "claim1", "pat013", claim("claim1"), 10, cache.generation());
+    Assert.assertNotNull(cache.get(Table.CLAIM, "claim1", "pat013"));
+    Assert.assertNull(cache.get(Table.CLAIM, "claim1", "pat014"));
+    Assert.assertNull(cache.get(Table.CLAIM_RESPONSE, "claim1"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    cache.put(Table.CLAIM, "claim1", "pat013", claim("claim1"), 40, cache.generation());
+    cache.put(Table.CLAIM, "claim2", "pat013", claim("claim2"), 40, cache.generation());
+    cache.get(Table.CLAIM, "claim1");
+    cache.put(Table.CLAIM, "claim3", "pat013", claim("claim3"), 40, cache.generation());
+
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(80, cache.weight());
+    Assert.assertNotNull(cache.get(Table.CLAIM, "claim1"));
+    Assert.assertNull(cache.get(Table.CLAIM, "claim2"));
+    Assert.assertNotNull(cache.get(Table.CLAIM, "claim3"));
+
+    // Larger than the whole cache
+    cache.put(Table.CLAIM, "claim4", "pat013", claim("claim4"), 101, cache.generation());
+    Assert.assertNull(cache.get(Table.CLAIM, "claim4"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    cache.put(Table.CLAIM, "claim1", "pat013", claim("claim1"), 10, cache.generation());
+    cache.put(Table.CLAIM, "claim2", "pat013", claim("claim2"), 10, cache.generation());
+    cache.put(Table.BUNDLE, "claim1", "pat013", claim("claim1"), 10, cache.generation());
+
+    cache.invalidate(Table.CLAIM, "claim1");
+    Assert.assertNull(cache.get(Table.CLAIM, "claim1"));
+    Assert.assertNotNull(cache.get(Table.CLAIM, "claim2"));
+
+    cache.invalidate(Table.CLAIM);
+    Assert.assertNull(cache.get(Table.CLAIM, "claim2"));
+    Assert.assertNotNull(cache.get(Table.BUNDLE, "claim1"));
+    Assert.assertEquals(10, cache.weight());
+  }
+
+  @Test
+  public void testStaleReadIsNotCached() {
+    long generation = cache.generation();
+    cache.invalidate(Table.CLAIM, "claim1");
+    cache.put(Table.CLAIM, "claim1", "pat013", claim("claim1"), 10, generation);
+    Assert.assertNull(cache.get(Table.CLAIM, "claim1"));
+  }
+
+  @Test
+  public void testDatabaseReadSeesUpdates() {
+    Map<String, Object> dataMap = new HashMap<String, Object>();
+    dataMap.put("id", "cachetest");
+    dataMap.put("patient", "pat013");
+    dataMap.put("status", "active");
+    dataMap.put("resource", claim("cachetest"));
+    Assert.assertTrue(App.getDB().write(Table.CLAIM, dataMap));
+
+    Map<String, Object> constraintMap = new HashMap<String, Object>();
+    constraintMap.put("id", "cachetest");
+    constraintMap.put("patient", "pat013");
+    long hits = Metrics.counter("db.resource_cache.hits").get();
+    Claim first = (Claim) App.getDB().read(Table.CLAIM, constraintMap);
+    Claim second = (Claim) App.getDB().read(Table.CLAIM, constraintMap);
+    Assert.assertEquals(hits + 1, Metrics.counter("db.resource_cache.hits").get());
+    Assert.assertNotSame(first, second);
+
+    Claim cancelled = claim("cachetest");
+    cancelled.setStatus(ClaimStatus.CANCELLED);
+    Map<String, Object> updateMap = new HashMap<String, Object>();
+    updateMap.put("resource", cancelled);
+    Assert.assertTrue(App.getDB().update(Table.CLAIM, constraintMap, updateMap));
+    Assert.assertEquals(ClaimStatus.CANCELLED, ((Claim) App.getDB().read(Table.CLAIM, constraintMap)).getStatus());
+
+    App.getDB().delete(Table.CLAIM, "cachetest");
+    Assert.assertNull(App.getDB().read(Table.CLAIM, constraintMap));
+  }
+
+  private static Claim claim(String id) {
+    Claim claim = new Claim();
+    claim.setId(id);
+    claim.setStatus(ClaimStatus.ACTIVE);
+    return claim;
+  }
+}
@@ -0,0 +1,59 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourceCodecTest {
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Path fixture = Paths.get("src/test/resources").resolve("bundle-prior-auth.json");
+    Bundle bundle;
+    try (FileInputStream inputStream = new FileInputStream(fixture.toString())) {
+      bundle = (Bundle) App.getFhirContext().newJsonParser().parseResource(inputStream);
+    }
+
+    byte[] encoded = ResourceCodec.encode(bundle);
+    Assert.assertTrue(ResourceCodec.isEncoded(encoded));
+
+    // Much smaller than the pretty printed JSON which used to be stored
+    int prettyLength = FhirUtils.json(bundle).getBytes(StandardCharsets.UTF_8).length;
+    Assert.assertTrue(encoded.length * 2 < prettyLength);
+
+    String decoded = ResourceCodec.decode(encoded);
+    Assert.assertEquals(App.getFhirContext().newJsonParser().encodeResourceToString(bundle), decoded);
+    Assert.assertEquals(FhirUtils.json(bundle),
+        FhirUtils.json(App.getFhirContext().newJsonParser().parseResource(decoded)));
+  }
+
+  @Test
+  public void testSmallPayloadIsNotCompressed() {
+    String json = "{\"resourceType\":\"Claim\"}";
+    byte[] encoded = ResourceCodec.encode(json);
+    Assert.assertEquals(0, encoded[3]);
+    Assert.assertEquals(json, ResourceCodec.decode(encoded));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeUnknownData() {
+    ResourceCodec.decode("{\"resourceType\":\"Claim\"}".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeTruncatedData() {
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      json.append("{\"resourceType\":\"Claim\"}");
+    byte[] encoded = ResourceCodec.encode(json.toString());
+    byte[] truncated = new byte[encoded.length / 2];
+    System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+    ResourceCodec.decode(truncated);
+  }
+}
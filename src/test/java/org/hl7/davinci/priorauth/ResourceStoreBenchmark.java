@@ -0,0 +1,188 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.ClaimResponse;
+
+/**
+ * Compares the ResourceStore engines on the storage work done by Claim/$submit
+ * and by reads of the stored Claims. Not a unit test, run with:
+ *
+ * ./gradlew benchmark -Piterations=500 -Pengines=sql,mvstore
+ *
+ * The $submit path is measured both with every statement committed on its own
+ * and inside a single UnitOfWork. Commits include those of the audit events.
+ *
+ * Each engine is installed as the application database while it is measured
+ * so its audit events are written to the same engine. The rows created by the
+ * benchmark (except audit events) are deleted again afterwards.
+ */
+public class ResourceStoreBenchmark {
+
+  private static final int ITEMS_PER_CLAIM = 5;
+  private static final AtomicLong commits = Metrics.counter("db.commits");
+
+  private final ResourceStore store;
+  private final String engine;
+  private final Bundle bundle;
+  private final Claim claim;
+  private final ClaimResponse claimResponse;
+
+  ResourceStoreBenchmark(String engine, Bundle bundle, ClaimResponse claimResponse) {
+    this.engine = engine;
+    this.store = App.createResourceStore(engine);
+    this.bundle = bundle;
+    this.claim = (Claim) bundle.getEntry().get(0).getResource();
+    this.claimResponse = claimResponse;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    String[] engines = args.length > 1 ? args[1].split(",") : new String[] { "sql", "mvstore" };
+
+    Bundle bundle = (Bundle) parse("bundle-prior-auth.json");
+    Bundle responseBundle = (Bundle) parse("claimresponse-minimal.json");
+    ClaimResponse claimResponse = (ClaimResponse) responseBundle.getEntry().get(0).getResource();
+
+    System.out.println(String.format("%-10s %-12s %12s %12s %12s", "engine", "path", "ops/sec", "ms/op",
+        "commits/op"));
+    for (String engine : engines) {
+      ResourceStoreBenchmark benchmark = new ResourceStoreBenchmark(engine.trim(), bundle, claimResponse);
+      App.setDB(benchmark.store);
+
+      // Warm up the JIT, caches and pools before measuring
+      benchmark.run("warmup", Math.max(10, iterations / 10), false);
+      benchmark.run("measure", iterations, true);
+    }
+    System.exit(0);
+  }
+
+  private void run(String prefix, int iterations, boolean report) {
+    long commitsBefore = commits.get();
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++)
+      submit(id(prefix, i));
+    long submitNanos = System.nanoTime() - start;
+    long submitCommits = commits.get() - commitsBefore;
+
+    commitsBefore = commits.get();
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      try (UnitOfWork unitOfWork = store.beginUnitOfWork()) {
+        submit(id(prefix + "-uow", i));
+        unitOfWork.commit();
+      }
+    }
+    long unitNanos = System.nanoTime() - start;
+    long unitCommits = commits.get() - commitsBefore;
+
+    commitsBefore = commits.get();
+    start = System.nanoTime();
+    for (int i = 0; i < iterations; i++)
+      read(id(prefix, i));
+    long readNanos = System.nanoTime() - start;
+    long readCommits = commits.get() - commitsBefore;
+
+    for (int i = 0; i < iterations; i++) {
+      cleanup(id(prefix, i));
+      cleanup(id(prefix + "-uow", i));
+    }
+
+    if (report) {
+      print("$submit", iterations, submitNanos, submitCommits);
+      print("$submit+uow", iterations, unitNanos, unitCommits);
+      print("read", iterations, readNanos, readCommits);
+    }
+  }
+
+  /**
+   * The reads and writes made while processing a single Claim/$submit
+   */
+  private void submit(String id) {
+    Map<String, Object> bundleMap = new HashMap<String, Object>();
+    bundleMap.put("id", id);
+    bundleMap.put("patient", "bench-patient");
+    bundleMap.put("status", "active");
+    bundleMap.put("resource", claim);
+    store.write(Table.CLAIM, bundleMap);
+
+    bundleMap.remove("status");
+    bundleMap.replace("resource", bundle);
+    store.write(Table.BUNDLE, bundleMap);
+
+    for (int sequence = 1; sequence <= ITEMS_PER_CLAIM; sequence++) {
+      Map<String, Object> itemMap = new HashMap<String, Object>();
+      itemMap.put("id", id);
+      itemMap.put("sequence", String.valueOf(sequence));
+      itemMap.put("status", "active");
+      itemMap.put("outcome", "complete");
+      store.write(Table.CLAIM_ITEM, itemMap);
+    }
+
+    Map<String, Object> itemConstraintMap = new HashMap<String, Object>();
+    itemConstraintMap.put("id", id);
+    for (int sequence = 1; sequence <= ITEMS_PER_CLAIM; sequence++) {
+      itemConstraintMap.put("sequence", String.valueOf(sequence));
+      store.readString(Table.CLAIM_ITEM, itemConstraintMap, "outcome");
+    }
+
+    String claimId = store.getMostRecentId(id);
+    Map<String, Object> responseMap = new HashMap<String, Object>();
+    responseMap.put("id", id);
+    responseMap.put("claimId", claimId);
+    responseMap.put("patient", "bench-patient");
+    responseMap.put("status", "active");
+    responseMap.put("outcome", "complete");
+    responseMap.put("resource", claimResponse);
+    store.write(Table.CLAIM_RESPONSE, responseMap);
+
+    store.update(Table.CLAIM, Collections.singletonMap("id", claimId), Collections.singletonMap("status", "active"));
+  }
+
+  /**
+   * The reads made by the Claim and ClaimResponse endpoints for a stored Claim
+   */
+  private void read(String id) {
+    Map<String, Object> constraintMap = new HashMap<String, Object>();
+    constraintMap.put("id", id);
+    constraintMap.put("patient", "bench-patient");
+    store.read(Table.CLAIM, constraintMap);
+    store.readStatus(Table.CLAIM, Collections.singletonMap("id", id));
+    store.readString(Table.CLAIM_RESPONSE, Collections.singletonMap("claimId", id), "outcome");
+    store.read(Table.CLAIM_RESPONSE, constraintMap);
+  }
+
+  private void cleanup(String id) {
+    store.delete(Table.CLAIM_RESPONSE, id);
+    store.delete(Table.CLAIM_ITEM, id);
+    store.delete(Table.CLAIM, id);
+    store.delete(Table.BUNDLE, id);
+  }
+
+  private String id(String prefix, int i) {
+    return "benchmark-" + engine + "-" + prefix + "-" + i;
+  }
+
+  private void print(String path, int iterations, long nanos, long commitCount) {
+    double msPerOp = nanos / 1_000_000.0 / iterations;
+    System.out.println(String.format("%-10s %-12s %12.1f %12.3f %12.1f", engine, path, 1000.0 / msPerOp, msPerOp,
+        (double) commitCount / iterations));
+  }
+
+  private static Object parse(String fixtureName) throws IOException {
+    Path fixture = Paths.get("src/test/resources").resolve(fixtureName);
+    try (FileInputStream inputStream = new FileInputStream(fixture.toString())) {
+      return App.getFhirContext().newJsonParser().parseResource(inputStream);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.QueryShape.Operation;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SchemaMigratorTest {
+
+  private static Connection connection;
+
+  @BeforeClass
+  public static void setupClass() throws SQLException {
+    // Creating the Database runs the migrations
+    new Database();
+    connection = DriverManager.getConnection("jdbc:h2:./database;DB_CLOSE_DELAY=-1");
+  }
+
+  @AfterClass
+  public static void cleanupClass() throws SQLException {
+    connection.close();
+  }
+
+  @Test
+  public void testVersionRecorded() throws SQLException {
+    Assert.assertTrue(SchemaMigrator.currentVersion(connection) >= 2);
+  }
+
+  @Test
+  public void testMigrationsAppliedOnce() throws IOException, SQLException {
+    Path dir = Files.createTempDirectory("migrations");
+    Files.write(dir.resolve("V2__create_table.sql"), "CREATE TABLE MigrationTest (id varchar);".getBytes());
+    Files.write(dir.resolve("V3__add_column.sql"), "ALTER TABLE MigrationTest ADD status varchar;".getBytes());
+    Files.write(dir.resolve("README.txt"), "not a migration".getBytes());
+
+    try (Connection memory = DriverManager.getConnection("jdbc:h2:mem:migrationtest")) {
+      Assert.assertEquals(3, SchemaMigrator.migrate(memory, dir.toString()));
+      // Running again must not reapply (CREATE TABLE would fail the second time)
+      Assert.assertEquals(3, SchemaMigrator.migrate(memory, dir.toString()));
+
+      Files.write(dir.resolve("V4__add_index.sql"),
+          "CREATE INDEX idx_migrationtest_status ON MigrationTest (status);".getBytes());
+      Assert.assertEquals(4, SchemaMigrator.migrate(memory, dir.toString()));
+      Assert.assertEquals(4, SchemaMigrator.currentVersion(memory));
+    }
+  }
+
+  @Test
+  public void testClaimChainBackfill() throws IOException, SQLException {
+    try (Connection memory = DriverManager.getConnection("jdbc:h2:mem:claimchaintest")) {
+      String sql = new String(Files.readAllBytes(Paths.get(PropertyProvider.getProperty("database_sql"))));
+      memory.prepareStatement(sql.replace("\"", "")).execute();
+      memory.prepareStatement("INSERT INTO Claim (id, related, timestamp) VALUES ('a', NULL, '2020-01-01'), "
+          + "('a1', 'a', '2020-01-02'), ('a2', 'a1', '2020-01-03'), ('b', NULL, '2020-01-01');").execute();
+
+      SchemaMigrator.migrate(memory, PropertyProvider.getProperty("database_migrations"));
+      Assert.assertEquals("a2", ClaimChain.head(memory, "a"));
+      Assert.assertEquals("a2", ClaimChain.head(memory, "a1"));
+      Assert.assertEquals("b", ClaimChain.head(memory, "b"));
+      Assert.assertEquals("a", ClaimChain.rootId(memory, "a2"));
+      ResultSet rs = memory.prepareStatement("SELECT depth FROM ClaimChain WHERE rootId = 'a';").executeQuery();
+      Assert.assertTrue(rs.next());
+      Assert.assertEquals(2, rs.getInt(1));
+    }
+  }
+
+  @Test
+  public void testHotQueriesUseIndexes() throws SQLException {
+    // Foreign key columns use the index created for the constraint
+    assertUsesIndex(Operation.READ, Table.CLAIM, null, keys("related"), "_INDEX_");
+    assertUsesIndex(Operation.READ_ALL, Table.CLAIM, null, keys("patient"), "IDX_CLAIM_PATIENT");
+    assertUsesIndex(Operation.SEARCH, Table.CLAIM, null, keys("patient"), "IDX_CLAIM_PATIENT");
+    assertUsesIndex(Operation.READ, Table.CLAIM, null, keys("id", "patient"), "PRIMARY_KEY");
+    assertUsesIndex(Operation.READ_COLUMN, Table.CLAIM, "status", keys("id"), "PRIMARY_KEY");
+    assertUsesIndex(Operation.SEARCH, Table.BUNDLE, null, keys("patient"), "IDX_BUNDLE_PATIENT");
+    assertUsesIndex(Operation.READ_COLUMN, Table.CLAIM_RESPONSE, "outcome", keys("claimId"), "_INDEX_");
+    assertUsesIndex(Operation.SEARCH, Table.CLAIM_RESPONSE, null, keys("patient"), "IDX_CLAIMRESPONSE_PATIENT");
+    assertUsesIndex(Operation.READ_COLUMN, Table.CLAIM_ITEM, "outcome", keys("id", "sequence"), "PRIMARY_KEY");
+    assertUsesIndex(Operation.READ_ALL, Table.SUBSCRIPTION, null, keys("claimResponseId", "patient"), "_INDEX");
+    assertUsesIndex(Operation.READ_ALL, Table.SUBSCRIPTION, null, keys("patient"), "IDX_SUBSCRIPTION_PATIENT");
+    assertUsesIndex(Operation.READ_COLUMN, Table.CLIENT, "timestamp", keys("token"), "IDX_CLIENT_TOKEN");
+    assertUsesIndex(Operation.READ_COLUMN, Table.CLAIM, "rootId", keys("rootId"), "IDX_CLAIM_ROOT");
+    assertUsesIndex(Operation.READ_COLUMN, Table.RULES, "topic", keys("system", "code"), "PRIMARY_KEY");
+  }
+
+  private static void assertUsesIndex(Operation operation, Table table, String column, Set<String> whereColumns,
+      String index) throws SQLException {
+    String sql = QueryShape.of(operation, table, column, whereColumns).sql().replace("?", "'value'");
+    ResultSet rs = connection.prepareStatement("EXPLAIN " + sql).executeQuery();
+    Assert.assertTrue(rs.next());
+    String plan = rs.getString(1);
+    Assert.assertTrue(sql + " does not use " + index + ":\n" + plan, plan.contains(index));
+    Assert.assertFalse(sql + " scans the table:\n" + plan, plan.contains("tableScan"));
+  }
+
+  private static Set<String> keys(String... columns) {
+    Map<String, Object> map = new HashMap<String, Object>();
+    for (String column : columns)
+      map.put(column, "value");
+    return map.keySet();
+  }
+}
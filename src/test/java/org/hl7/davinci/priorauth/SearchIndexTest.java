@@ -0,0 +1,198 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.davinci.priorauth.FhirUtils.ReviewAction;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.ClaimResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SearchIndexTest {
+
+  private static Claim claim;
+
+  @BeforeClass
+  public static void setupClass() throws FileNotFoundException {
+    App.initializeAppDB();
+    Path fixture = Paths.get("src/test/resources").resolve("bundle-prior-auth.json");
+    Bundle bundle = (Bundle) App.getFhirContext().newJsonParser()
+        .parseResource(new FileInputStream(fixture.toString()));
+    claim = FhirUtils.getClaimFromRequestBundle(bundle);
+  }
+
+  @Before
+  public void setup() {
+    write(App.getDB(), "indexed", claim);
+  }
+
+  @After
+  public void cleanup() {
+    App.getDB().delete(Table.CLAIM, "indexed", "pat-index");
+  }
+
+  @Test
+  public void testSearchIndexed() {
+    assertSearch(App.getDB());
+  }
+
+  @Test
+  public void testSearchMVStore() {
+    MVStoreResourceStore store = new MVStoreResourceStore(null);
+    try {
+      write(store, "indexed", claim);
+      assertSearch(store);
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testUpdateReindexes() {
+    Claim updated = claim.copy();
+    updated.getProvider().setReference("Practitioner/other");
+    Map<String, Object> data = new HashMap<>();
+    data.put("resource", updated);
+    Map<String, Object> constraints = new HashMap<>();
+    constraints.put("id", "indexed");
+    constraints.put("patient", "pat-index");
+    Assert.assertTrue(App.getDB().update(Table.CLAIM, constraints, data));
+
+    Assert.assertEquals(0, search(App.getDB(), "provider", "Practitioner/pra1234"));
+    Assert.assertEquals(1, search(App.getDB(), "provider", "Practitioner/other"));
+  }
+
+  @Test
+  public void testDeletePrunesCascaded() throws SQLException {
+    // An update of the Claim and a ClaimResponse to it, deleted by cascade
+    Claim updated = claim.copy();
+    Map<String, Object> data = new HashMap<>();
+    data.put("id", "indexed-update");
+    data.put("patient", "pat-index");
+    data.put("status", "active");
+    data.put("related", "indexed");
+    data.put("resource", updated);
+    Assert.assertTrue(App.getDB().write(Table.CLAIM, data));
+    ClaimResponse claimResponse = new ClaimResponse();
+    claimResponse.setInsurer(new Reference("Organization/index-insurer"));
+    Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(claimResponse);
+    data = new HashMap<>();
+    data.put("id", "indexed-response");
+    data.put("claimId", "indexed-update");
+    data.put("patient", "pat-index");
+    data.put("status", "active");
+    data.put("outcome", ReviewAction.APPROVED.value());
+    data.put("resource", bundle);
+    Assert.assertTrue(App.getDB().write(Table.CLAIM_RESPONSE, data));
+
+    // ClaimResponses are indexed from their response Bundle
+    Map<String, String[]> parameters = Collections.singletonMap("insurer", new String[] { "Organization/index-insurer" });
+    Map<String, Object> constraintMap = new HashMap<>();
+    constraintMap.put("patient", "pat-index");
+    constraintMap.putAll(SearchIndex.criteria(Table.CLAIM_RESPONSE, parameters));
+    Assert.assertEquals(1,
+        App.getDB().searchPage(Table.CLAIM_RESPONSE, constraintMap, 10, null).getBundle().getEntry().size());
+
+    Assert.assertTrue(App.getDB().delete(Table.CLAIM, "indexed", "pat-index"));
+    ConnectionPool pool = new ConnectionPool("searchindextest", "jdbc:h2:./database;DB_CLOSE_DELAY=-1", 1, 2, 5000, 0,
+        4);
+    try (Connection connection = pool.getConnection()) {
+      for (String index : new String[] { "SearchToken", "SearchDate" }) {
+        ResultSet rs = connection.prepareStatement("SELECT COUNT(*) FROM " + index
+            + " WHERE id IN ('indexed', 'indexed-update', 'indexed-response');").executeQuery();
+        rs.next();
+        Assert.assertEquals(0, rs.getLong(1));
+      }
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void testAddedParameterIsIndexedOnStart() throws SQLException {
+    // The state of a Claim written before provider was added to
+    // search_index_parameters: indexed for the other parameters only
+    ConnectionPool pool = new ConnectionPool("searchindextest", "jdbc:h2:./database;DB_CLOSE_DELAY=-1", 1, 2, 5000, 0,
+        4);
+    try (Connection connection = pool.getConnection()) {
+      connection.prepareStatement("DELETE FROM SearchToken WHERE resourceType = 'Claim' AND param = 'provider';")
+          .execute();
+      connection.prepareStatement("DELETE FROM SearchIndexParameter WHERE resourceType = 'Claim' "
+          + "AND param = 'provider';").execute();
+    } finally {
+      pool.close();
+    }
+    Assert.assertEquals(0, search(App.getDB(), "provider", "Practitioner/pra1234"));
+    Assert.assertEquals(1, search(App.getDB(), "created", "ge2019-01-01"));
+
+    // Starting the server indexes the new parameter for the stored Claims
+    new Database();
+    Assert.assertEquals(1, search(App.getDB(), "provider", "Practitioner/pra1234"));
+    Assert.assertEquals(1, search(App.getDB(), "created", "ge2019-01-01"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidToken() {
+    search(App.getDB(), "provider", "Practitioner/a", "Practitioner/b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDate() {
+    search(App.getDB(), "created", "ge2019-13-45");
+  }
+
+  @Test
+  public void testLoad() {
+    Map<Table, Map<String, SearchIndex.Parameter>> loaded = SearchIndex
+        .load("Claim.provider,Claim.patient,Claim.name,Bundle.type,Claim.item-code:token=Claim.item.productOrService");
+    Assert.assertEquals(2, loaded.get(Table.CLAIM).size());
+    Assert.assertTrue(loaded.get(Table.CLAIM).containsKey("item-code"));
+    Assert.assertFalse(loaded.containsKey(Table.BUNDLE));
+  }
+
+  private void assertSearch(ResourceStore store) {
+    Assert.assertEquals(1, search(store, "provider", "Practitioner/pra1234"));
+    Assert.assertEquals(0, search(store, "provider", "Practitioner/missing"));
+    Assert.assertEquals(1, search(store, "use", "preauthorization"));
+    Assert.assertEquals(1, search(store, "use", "http://hl7.org/fhir/claim-use|preauthorization"));
+    Assert.assertEquals(0, search(store, "use", "http://example.org|preauthorization"));
+    Assert.assertEquals(1, search(store, "created", "ge2019-01-01"));
+    Assert.assertEquals(1, search(store, "created", "2019-04-01"));
+    Assert.assertEquals(0, search(store, "created", "ge2019-01-01", "lt2019-04-01"));
+    Assert.assertEquals(0, search(store, "insurer", "Organization/any"));
+  }
+
+  private static int search(ResourceStore store, String name, String... values) {
+    Map<String, String[]> parameters = new HashMap<>();
+    parameters.put(name, values);
+    Map<String, Object> constraintMap = new HashMap<>();
+    constraintMap.put("patient", "pat-index");
+    constraintMap.putAll(SearchIndex.criteria(Table.CLAIM, parameters));
+    return store.searchPage(Table.CLAIM, constraintMap, 10, null).getBundle().getEntry().size();
+  }
+
+  private static void write(ResourceStore store, String id, Claim resource) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("id", id);
+    data.put("patient", "pat-index");
+    data.put("status", "active");
+    data.put("resource", resource);
+    store.write(Table.CLAIM, data);
+  }
+}
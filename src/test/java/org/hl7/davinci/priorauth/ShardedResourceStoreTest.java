@@ -0,0 +1,141 @@
+package org.hl7.davinci.priorauth;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Claim;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ShardedResourceStoreTest {
+
+  private static final int SHARDS = 3;
+
+  private List<MVStoreResourceStore> shards;
+  private ShardedResourceStore store;
+  private Bundle bundle;
+
+  @BeforeClass
+  public static void setupClass() {
+    // Audit events are written to the application database
+    App.initializeAppDB();
+  }
+
+  @Before
+  public void setup() throws FileNotFoundException {
+    shards = new ArrayList<>();
+    for (int i = 0; i < SHARDS; i++)
+      shards.add(new MVStoreResourceStore(null));
+    store = new ShardedResourceStore(new ArrayList<>(shards));
+
+    Path fixture = Paths.get("src/test/resources").resolve("bundle-prior-auth.json");
+    bundle = (Bundle) App.getFhirContext().newJsonParser().parseResource(new FileInputStream(fixture.toString()));
+  }
+
+  @After
+  public void cleanup() {
+    for (MVStoreResourceStore shard : shards)
+      shard.close();
+  }
+
+  @Test
+  public void testRowsOfPatientInOneShard() {
+    Claim claim = (Claim) bundle.getEntry().get(0).getResource();
+    for (int i = 0; i < 10; i++) {
+      String patient = "pat" + i;
+      Assert.assertTrue(store.write(Table.CLAIM, row("claim-" + i, patient, claim)));
+      int shard = store.shardOf(patient);
+      Assert.assertEquals(shard, store.shardOf(patient));
+
+      // Only the shard of the patient has the Claim...
+      for (int j = 0; j < SHARDS; j++)
+        Assert.assertEquals(j == shard, shards.get(j).read(Table.CLAIM, Collections.singletonMap("id", "claim-" + i)) != null);
+
+      // ...and its items
+      Map<String, Object> itemMap = new HashMap<>();
+      itemMap.put("id", "claim-" + i);
+      itemMap.put("sequence", 1);
+      itemMap.put("status", "active");
+      Assert.assertTrue(store.write(Table.CLAIM_ITEM, itemMap));
+      Assert.assertEquals("active", shards.get(shard).readStatus(Table.CLAIM_ITEM, Collections.singletonMap("id", "claim-" + i)));
+    }
+
+    // Rules are stored in the home shard
+    Map<String, Object> ruleMap = new HashMap<>();
+    ruleMap.put("system", "http://loinc.org");
+    ruleMap.put("code", "1234");
+    ruleMap.put("topic", "Topic");
+    ruleMap.put("rule", "Rule");
+    Assert.assertTrue(store.write(Table.RULES, ruleMap));
+    Assert.assertEquals("Topic", shards.get(0).readString(Table.RULES, Collections.singletonMap("code", "1234"), "topic"));
+  }
+
+  @Test
+  public void testReadWithoutPatient() {
+    Claim claim = (Claim) bundle.getEntry().get(0).getResource();
+    Assert.assertTrue(store.write(Table.CLAIM, row("minimal", "pat013", claim)));
+
+    // A new store does not know where the Claim is and reads every shard
+    ShardedResourceStore other = new ShardedResourceStore(new ArrayList<>(shards));
+    Map<String, Object> constraintMap = Collections.singletonMap("id", "minimal");
+    Assert.assertNotNull(other.read(Table.CLAIM, constraintMap));
+    Assert.assertEquals("pat013", other.readString(Table.CLAIM, constraintMap, "patient"));
+    Assert.assertNull(other.read(Table.CLAIM, Collections.singletonMap("id", "missing")));
+    Assert.assertEquals("minimal", other.getMostRecentId("minimal"));
+
+    Assert.assertTrue(other.delete(Table.CLAIM, "minimal"));
+    Assert.assertNull(store.read(Table.CLAIM, constraintMap));
+  }
+
+  @Test
+  public void testWriteBatchAndSearchPage() {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    Set<Integer> used = new HashSet<>();
+    for (int i = 0; i < 12; i++) {
+      rows.add(row("bundle-" + i, "pat" + i, bundle));
+      used.add(store.shardOf("pat" + i));
+    }
+    Assert.assertTrue(used.size() > 1);
+    BatchResult result = store.writeBatch(Table.BUNDLE, rows);
+    Assert.assertTrue(result.isSuccessful());
+    for (int i = 0; i < 12; i++)
+      Assert.assertNotNull(shards.get(store.shardOf("pat" + i)).read(Table.BUNDLE, Collections.singletonMap("id", "bundle-" + i)));
+
+    // Without a patient the pages walk through every shard
+    Set<String> ids = new HashSet<>();
+    String pageToken = null;
+    do {
+      SearchPage page = store.searchPage(Table.BUNDLE, Collections.emptyMap(), 5, pageToken);
+      Assert.assertTrue(page.getBundle().getEntry().size() <= 5);
+      page.getBundle().getEntry().forEach(entry -> ids.add(entry.getResource().getIdElement().getIdPart()));
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+    Assert.assertEquals(12, ids.size());
+    Assert.assertEquals(12, store.search(Table.BUNDLE, Collections.emptyMap()).getTotal());
+
+    // With one it only reads the shard of the patient
+    Assert.assertEquals(1, store.search(Table.BUNDLE, Collections.singletonMap("patient", "pat3")).getTotal());
+  }
+
+  private static Map<String, Object> row(String id, String patient, Object resource) {
+    Map<String, Object> row = new HashMap<>();
+    row.put("id", id);
+    row.put("patient", patient);
+    row.put("resource", resource);
+    return row;
+  }
+}
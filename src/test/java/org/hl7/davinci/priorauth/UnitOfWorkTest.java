@@ -0,0 +1,162 @@
+package org.hl7.davinci.priorauth;
+
+import java.sql.Savepoint;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.hl7.davinci.priorauth.Database.Table;
+import org.hl7.fhir.r4.model.Claim;
+import org.hl7.fhir.r4.model.Claim.ClaimStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class UnitOfWorkTest {
+
+  @BeforeClass
+  public static void setupClass() {
+    App.initializeAppDB();
+  }
+
+  @After
+  public void cleanup() {
+    Assert.assertNull(UnitOfWork.current());
+    App.getDB().delete(Table.CLAIM, "uow");
+  }
+
+  @Test
+  public void testCommit() {
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+      Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap()));
+      writeItem("1");
+      writeItem("2");
+      App.getDB().update(Table.CLAIM, Collections.singletonMap("id", "uow"), Collections.singletonMap("status", "draft"));
+
+      // Reads in the unit of work see its writes
+      Assert.assertEquals("draft", App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "uow")));
+      Assert.assertNotNull(App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "uow")));
+      // Audit events are committed by their writer
+      Audit.flush();
+      long commits = Metrics.counter("db.commits").get();
+      Assert.assertTrue(unitOfWork.commit());
+      Assert.assertEquals(commits + 1, Metrics.counter("db.commits").get());
+    }
+    Assert.assertEquals("draft", App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "uow")));
+  }
+
+  @Test
+  public void testRollbackOnClose() {
+    AtomicInteger runs = new AtomicInteger();
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+      Assert.assertSame(unitOfWork, UnitOfWork.current());
+      Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap()));
+      writeItem("1");
+      Assert.assertNotNull(App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "uow")));
+      UnitOfWork.afterCommit(runs::incrementAndGet);
+    }
+    Assert.assertNull(App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "uow")));
+    // Actions waiting for the commit are dropped with the rollback
+    Assert.assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void testAfterCommit() {
+    AtomicInteger runs = new AtomicInteger();
+    AtomicInteger rolledBack = new AtomicInteger();
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+      try (UnitOfWork inner = App.getDB().beginUnitOfWork()) {
+        UnitOfWork.afterCommit(runs::incrementAndGet);
+        Assert.assertTrue(inner.commit());
+      }
+      Savepoint savepoint = unitOfWork.savepoint();
+      UnitOfWork.afterCommit(rolledBack::incrementAndGet);
+      Assert.assertTrue(unitOfWork.rollbackTo(savepoint));
+
+      // Nothing runs before the enclosing unit of work commits
+      Assert.assertEquals(0, runs.get());
+      Assert.assertTrue(unitOfWork.commit());
+    }
+    Assert.assertEquals(1, runs.get());
+    Assert.assertEquals(0, rolledBack.get());
+
+    // Without a unit of work the action runs right away
+    UnitOfWork.afterCommit(runs::incrementAndGet);
+    Assert.assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testUncommittedWritesAreNotVisible() throws InterruptedException {
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+      Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap()));
+
+      // A thread outside of the unit of work does not see the Claim...
+      AtomicReference<String> outside = new AtomicReference<>("unset");
+      Thread thread = new Thread(
+          () -> outside.set(App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "uow"))));
+      thread.start();
+      thread.join();
+      Assert.assertNull(outside.get());
+
+      // ...but a task propagated from the unit of work does
+      thread = new Thread(UnitOfWork.propagate(
+          () -> outside.set(App.getDB().readStatus(Table.CLAIM, Collections.singletonMap("id", "uow")))));
+      thread.start();
+      thread.join();
+      Assert.assertEquals("active", outside.get());
+      Assert.assertTrue(unitOfWork.commit());
+    }
+  }
+
+  @Test
+  public void testNestedUnitOfWorkJoins() {
+    try (UnitOfWork outer = App.getDB().beginUnitOfWork()) {
+      try (UnitOfWork inner = App.getDB().beginUnitOfWork()) {
+        Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap()));
+        Assert.assertTrue(inner.commit());
+      }
+      Assert.assertSame(outer, UnitOfWork.current());
+    }
+    Assert.assertNull(App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "uow")));
+  }
+
+  @Test
+  public void testRollbackToSavepoint() {
+    try (UnitOfWork unitOfWork = App.getDB().beginUnitOfWork()) {
+      Assert.assertTrue(App.getDB().write(Table.CLAIM, claimMap()));
+      writeItem("1");
+      Savepoint savepoint = unitOfWork.savepoint();
+      Assert.assertNotNull(savepoint);
+      writeItem("2");
+
+      // Only the item written after the savepoint is rolled back
+      Assert.assertTrue(unitOfWork.rollbackTo(savepoint));
+      Assert.assertEquals(1, App.getDB().readAllColumns(Table.CLAIM_ITEM, Collections.singletonMap("id", "uow"), "sequence").size());
+      Assert.assertTrue(unitOfWork.commit());
+    }
+    Assert.assertNotNull(App.getDB().read(Table.CLAIM, Collections.singletonMap("id", "uow")));
+  }
+
+  private static Map<String, Object> claimMap() {
+    Claim claim = new Claim();
+    claim.setId("uow");
+    claim.setStatus(ClaimStatus.ACTIVE);
+    Map<String, Object> claimMap = new HashMap<String, Object>();
+    claimMap.put("id", "uow");
+    claimMap.put("patient", "pat013");
+    claimMap.put("status", "active");
+    claimMap.put("resource", claim);
+    return claimMap;
+  }
+
+  private static void writeItem(String sequence) {
+    Map<String, Object> itemMap = new HashMap<String, Object>();
+    itemMap.put("id", "uow");
+    itemMap.put("sequence", sequence);
+    itemMap.put("status", "active");
+    Assert.assertTrue(App.getDB().write(Table.CLAIM_ITEM, itemMap));
+  }
+}